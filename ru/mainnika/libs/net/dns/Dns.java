@@ -1,11 +1,18 @@
 package ru.mainnika.libs.net.dns;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Random;
 import java.util.StringTokenizer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import jdk.jfr.EventType;
+import ru.mainnika.libs.net.dns.jfr.DecodeEvent;
+import ru.mainnika.libs.net.dns.jfr.EncodeEvent;
+import ru.mainnika.libs.net.dns.jfr.MessageEvent;
+import ru.mainnika.libs.net.dns.metrics.Metrics;
 
 /**
  * Представление заголовка DNS пакета.
@@ -14,8 +21,23 @@ import java.util.regex.Pattern;
  */
 public final class Dns {
 
+    private static final EventType ENCODE_EVENT = EventType.getEventType(EncodeEvent.class);
+    
+    private static final EventType DECODE_EVENT = EventType.getEventType(DecodeEvent.class);
+
     private byte[] raw;
     
+    /* Длина пакета в raw; после разбора из ByteBuffer массив может быть длиннее */
+    private int rawLength;
+    
+    /* Массив, в который копируется пакет из ByteBuffer; переживает reset */
+    private byte[] buffer;
+    
+    /* События JFR создаются, только когда включены, и переиспользуются вместе с пакетом */
+    private EncodeEvent encodeEvent;
+    
+    private DecodeEvent decodeEvent;
+    
     private boolean custom;
     
     private ArrayList<Dns.Query> queries;
@@ -25,6 +47,25 @@ public final class Dns {
     private ArrayList<Dns.Answer> authorities;
     
     private ArrayList<Dns.Answer> additionals;
+    
+    /* Объекты секций, отложенные reset для следующего разбора */
+    private ArrayList<Dns.Query> spareQueries;
+    
+    private ArrayList<Dns.Answer> spareAnswers;
+    
+    /* Пакет лежит в пуле потока */
+    private boolean pooled;
+    
+    /* Сколько пакетов держит пул одного потока */
+    private static final int POOL_SIZE = 16;
+    
+    /* Пакет, разобравший больше записей, в пул не возвращается, чтобы пул не держал лишнюю память */
+    private static final int POOL_MAX_RECORDS = 256;
+    
+    private static final ThreadLocal<ArrayList<Dns>> POOL = ThreadLocal.withInitial(ArrayList::new);
+    
+    /* Промежуточный массив сборки в прямой буфер */
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[65536]);
 
     /**
      * Биты ID являются уникальным 16-битовым идентификационным номером пакета
@@ -90,6 +131,7 @@ public final class Dns {
     /* Конструктор кастомного пакета, создается отдельным методом, поэтому private */
     private Dns(byte[] raw){
         this.raw = raw;
+        rawLength = raw.length;
         custom = true;
     }
     
@@ -106,6 +148,108 @@ public final class Dns {
     public static Dns mkCustomRawPacket(byte[] raw){
         return new Dns(raw);
     }
+    
+    /*
+     * Пакет из пула текущего потока или новый. После release пакет и все
+     * полученные из него Query, Answer и Name использовать нельзя.
+     */
+    public static Dns acquire(){
+        ArrayList<Dns> pool = POOL.get();
+        if (pool.isEmpty())
+            return new Dns();
+        Dns ret = pool.remove(pool.size()-1);
+        ret.pooled = false;
+        return ret;
+    }
+    
+    /* Сбрасывает пакет и возвращает его в пул текущего потока; повторный вызов ничего не делает */
+    public void release(){
+        if (pooled)
+            return;
+        reset();
+        ArrayList<Dns> pool = POOL.get();
+        if ((pool.size() < POOL_SIZE) && (spareQueries.size()+spareAnswers.size() <= POOL_MAX_RECORDS)){
+            pooled = true;
+            pool.add(this);
+        }
+    }
+    
+    /*
+     * Возвращает пакет к состоянию new Dns(): заголовок обнуляется, списки
+     * секций очищаются с сохранением емкости, а Query и Answer вместе с их
+     * Name откладываются и заново используются следующими fromRaw и addQuery.
+     * Кастомный пакет становится обычным.
+     */
+    public Dns reset(){
+        if (queries == null){
+            queries = new ArrayList<>();
+            answers = new ArrayList<>();
+            authorities = new ArrayList<>();
+            additionals = new ArrayList<>();
+        }
+        if (spareQueries == null){
+            spareQueries = new ArrayList<>();
+            spareAnswers = new ArrayList<>();
+        }
+        for (int i=0; i<queries.size(); i++){
+            Dns.Query query = queries.get(i);
+            if ((query.getDns() == this) && !query.spare){
+                query.reset();
+                query.spare = true;
+                spareQueries.add(query);
+            }
+        }
+        queries.clear();
+        recycle(answers);
+        recycle(authorities);
+        recycle(additionals);
+        raw = null;
+        rawLength = 0;
+        custom = false;
+        id = 0;
+        qr = 0;
+        opcode = 0;
+        aa = 0;
+        tc = 0;
+        rd = 0;
+        ra = 0;
+        z = 0;
+        rcode = 0;
+        qdcount = 0;
+        ancount = 0;
+        nscount = 0;
+        arcount = 0;
+        return this;
+    }
+    
+    private void recycle(ArrayList<Dns.Answer> section){
+        for (int i=0; i<section.size(); i++){
+            Dns.Answer answer = section.get(i);
+            if ((answer.getDns() == this) && !answer.spare){
+                answer.reset();
+                answer.spare = true;
+                spareAnswers.add(answer);
+            }
+        }
+        section.clear();
+    }
+    
+    /* Query этого пакета: отложенный reset или новый */
+    private Dns.Query obtainQuery(){
+        if ((spareQueries == null) || spareQueries.isEmpty())
+            return new Dns.Query();
+        Dns.Query ret = spareQueries.remove(spareQueries.size()-1);
+        ret.spare = false;
+        return ret;
+    }
+    
+    private Dns.Answer obtainAnswer(){
+        if ((spareAnswers == null) || spareAnswers.isEmpty())
+            return new Dns.Answer();
+        Dns.Answer ret = spareAnswers.remove(spareAnswers.size()-1);
+        ret.spare = false;
+        return ret;
+    }
 
     /* Манипуляция с id */
     public short getId() {
@@ -244,13 +388,22 @@ public final class Dns {
     
     /* Добавить стандартный Query в пакет */
     public Dns addQuery(String query, int qType, int qClass) throws DnsException{
-        Dns.Query q = new Dns.Query();
+        Dns.Query q = obtainQuery();
         q.setQuery(query).setCl((short)qClass).setType((short)qType);
         queries.add(q);
         qdcount++;
         return this;
     }
 
+    /* Добавить Query с именем в несжатом байтовом виде: метки копируются как есть, без разбора строки */
+    public Dns addQuery(byte[] name, int qType, int qClass) throws DnsException{
+        Dns.Query q = obtainQuery();
+        q.setQuery(name).setCl((short)qClass).setType((short)qType);
+        queries.add(q);
+        qdcount++;
+        return this;
+    }
+
     /* Получить Query по индексу */
     public Dns.Query getQueryAt(int index) throws DnsException{
         if (queries.size()<index){
@@ -294,22 +447,76 @@ public final class Dns {
     }
     
     
-    // TODO public Dns addAuthority(Authority auth)
+    /* Добавление готовой записи в секцию ответов */
+    public Dns addAnswer(ResourceRecord rr) throws DnsException{
+        return addAnswer(makeAnswer(rr));
+    }
     
-    // TODO public Dns addAuthority(Name name, short aClass, int aTtl, Name addData)
+    /* Добавление кастомной записи в секцию авторитетных серверов */
+    public Dns addAuthority(Dns.Answer auth){
+        authorities.add(auth);
+        nscount++;
+        return this;
+    }
     
-    // TODO public Authority getAuthorityAt(int index) throws DnsException
+    /* Добавление готовой записи в секцию авторитетных серверов */
+    public Dns addAuthority(ResourceRecord rr) throws DnsException{
+        return addAuthority(makeAnswer(rr));
+    }
+    
+    public Answer getAuthorityAt(int index) throws DnsException {
+        if (authorities.size()<=index){
+            throw new DnsException("Only "+Integer.toString(authorities.size())+" contains");
+        }else{
+            return authorities.get(index);
+        }
+    }
+    
+    // TODO public Dns addAuthority(Name name, short aClass, int aTtl, Name addData)
     
     // TODO public short getAuthoritySize()
     
-    // TODO public Dns addAdditional(Additional auth)
+    /* Добавление кастомной записи в секцию дополнительной информации */
+    public Dns addAdditional(Dns.Answer additional){
+        additionals.add(additional);
+        arcount++;
+        return this;
+    }
     
-    // TODO public Dns addAdditional(Name name, short aType, short aClass, int aTtl, Name addData)
+    /* Добавление готовой записи в секцию дополнительной информации */
+    public Dns addAdditional(ResourceRecord rr) throws DnsException{
+        return addAdditional(makeAnswer(rr));
+    }
+    
+    public Answer getAdditionalAt(int index) throws DnsException {
+        if (additionals.size()<=index){
+            throw new DnsException("Only "+Integer.toString(additionals.size())+" contains");
+        }else{
+            return additionals.get(index);
+        }
+    }
     
-    // TODO public Additional getAdditionalAt(int index) throws DnsException
+    // TODO public Dns addAdditional(Name name, short aType, short aClass, int aTtl, Name addData)
     
     // TODO public short getAdditionalSize()
     
+    /* Answer из готовой записи, RDATA переносится без разбора */
+    private Dns.Answer makeAnswer(ResourceRecord rr) throws DnsException{
+        Dns.Answer ret = obtainAnswer();
+        byte[] name = rr.getName();
+        int off = 0;
+        while (name[off]!=0){
+            int len = name[off] & 0xff;
+            ret.addName(new String(name, off+1, len, StandardCharsets.ISO_8859_1));
+            off+=len+1;
+        }
+        ret.setType((short)rr.getType());
+        ret.setCl((short)rr.getCl());
+        ret.setTtl((int)rr.getTtl());
+        ret.setDataAsRaw(rr.getRdata());
+        return ret;
+    }
+    
     /* Получение Name по смещению */
     public Dns.Data.Name getNameAtOffset(short offset) throws DnsException{
         
@@ -351,146 +558,284 @@ public final class Dns {
         return false;
     }
     
+    /* Исходные байты пакета из fromRaw или mkCustomRawPacket, иначе null */
+    public byte[] getSourceRaw(){
+        return ((raw == null) || (raw.length == rawLength)) ? raw : Arrays.copyOf(raw, rawLength);
+    }
+    
     /* Вернет уже сформированный массив байт */
     public byte[] getRaw() throws Exception{
     
         if (custom)
-            return raw.clone();
-        
-        ArrayList<byte[]> _raws = new ArrayList<>();
-        int _size = 12;
-        for (Dns.Query query: queries){
-            byte[] newRaw = query.makeRaw();
-            _size+=newRaw.length;
-            _raws.add(newRaw);
-        }
-        for (Dns.Answer answer: answers){
-            byte[] newRaw = answer.makeRaw();
-            _size+=newRaw.length;
-            _raws.add(newRaw);
-        }
-        for (Dns.Answer answer: authorities){
-            byte[] newRaw = answer.makeRaw();
-            _size+=newRaw.length;
-            _raws.add(newRaw);
-        }
-        for (Dns.Answer answer: additionals){
-            byte[] newRaw = answer.makeRaw();
-            _size+=newRaw.length;
-            _raws.add(newRaw);
-        }     
-        
-        byte _raw[] = new byte[_size];
-        _raw[0] = (byte) (id >> 8);
-        _raw[1] = (byte) id;
-        _raw[2] = (byte) ((qr << 7) | (opcode << 3) | (aa << 2) | (tc << 1) | rd);
-        _raw[3] = (byte) ((ra << 7) | (z << 4) | rcode);
-        _raw[4] = (byte) (qdcount >> 8);
-        _raw[5] = (byte) qdcount;
-        _raw[6] = (byte) (ancount >> 8);
-        _raw[7] = (byte) ancount;
-        _raw[8] = (byte) (nscount >> 8);
-        _raw[9] = (byte) nscount;
-        _raw[10] = (byte) (arcount >> 8);
-        _raw[11] = (byte) arcount;
-        _size = 12;
-        
-        for (byte[] _r : _raws){
-            System.arraycopy(_r, 0, _raw, _size, _r.length);
-            _size+=_r.length;
-        }
+            return Arrays.copyOf(raw, rawLength);
         
+        byte[] _raw = new byte[getSize()];
+        encode(_raw, 0, _raw.length);
         return _raw;
     }
+    
+    /* Пишет пакет в dst с позиции off без промежуточных массивов, возвращает длину */
+    public int getRaw(byte[] dst, int off) throws Exception{
+        int size = getSize();
+        if (dst.length-off < size)
+            throw new DnsException("Buffer too small for "+Integer.toString(size)+" bytes");
+        if (custom){
+            System.arraycopy(raw, 0, dst, off, size);
+            return size;
+        }
+        encode(dst, off, size);
+        return size;
+    }
+    
+    /* Пишет пакет в dst с его позиции и сдвигает позицию, возвращает длину */
+    public int getRaw(ByteBuffer dst) throws Exception{
+        int size = getSize();
+        if (dst.remaining() < size)
+            throw new DnsException("Buffer too small for "+Integer.toString(size)+" bytes");
+        if (dst.hasArray()){
+            getRaw(dst.array(), dst.arrayOffset()+dst.position());
+        }else{
+            byte[] scratch = SCRATCH.get();
+            if (scratch.length < size)
+                scratch = new byte[size];
+            getRaw(scratch, 0);
+            dst.put(dst.position(), scratch, 0, size);
+        }
+        dst.position(dst.position()+size);
+        return size;
+    }
+    
+    /* Размер пакета, который вернет getRaw */
+    public int getSize(){
+        if (custom)
+            return rawLength;
+        int ret = 12;
+        for (int i=0; i<queries.size(); i++)
+            ret+=queries.get(i).getRawSize();
+        for (int i=0; i<answers.size(); i++)
+            ret+=answers.get(i).getSize();
+        for (int i=0; i<authorities.size(); i++)
+            ret+=authorities.get(i).getSize();
+        for (int i=0; i<additionals.size(); i++)
+            ret+=additionals.get(i).getSize();
+        return ret;
+    }
+    
+    private void encode(byte[] _raw, int off, int size) throws DnsException{
+        
+        boolean measure = Metrics.enabled;
+        long start = measure ? System.nanoTime() : 0;
+        EncodeEvent event = null;
+        if (ENCODE_EVENT.isEnabled()){
+            if (encodeEvent == null)
+                encodeEvent = new EncodeEvent();
+            event = encodeEvent;
+            event.begin();
+        }
+        
+        _raw[off] = (byte) (id >> 8);
+        _raw[off+1] = (byte) id;
+        _raw[off+2] = (byte) ((qr << 7) | (opcode << 3) | (aa << 2) | (tc << 1) | rd);
+        _raw[off+3] = (byte) ((ra << 7) | (z << 4) | rcode);
+        _raw[off+4] = (byte) (qdcount >> 8);
+        _raw[off+5] = (byte) qdcount;
+        _raw[off+6] = (byte) (ancount >> 8);
+        _raw[off+7] = (byte) ancount;
+        _raw[off+8] = (byte) (nscount >> 8);
+        _raw[off+9] = (byte) nscount;
+        _raw[off+10] = (byte) (arcount >> 8);
+        _raw[off+11] = (byte) arcount;
+        int pos = off+12;
+        
+        for (int i=0; i<queries.size(); i++)
+            pos = queries.get(i).write(_raw, pos);
+        for (int i=0; i<answers.size(); i++)
+            pos = answers.get(i).write(_raw, pos);
+        for (int i=0; i<authorities.size(); i++)
+            pos = authorities.get(i).write(_raw, pos);
+        for (int i=0; i<additionals.size(); i++)
+            pos = additionals.get(i).write(_raw, pos);
+        
+        if (measure)
+            Metrics.get().encoded(size, getCompressionSaved(), rcode, qr!=0, System.nanoTime()-start);
+        if (event != null)
+            commit(event, size, null);
+    }
+    
+    /* Заполняет и пишет событие JFR, если оно прошло порог */
+    private void commit(MessageEvent event, int size, Throwable failure){
+        event.end();
+        if (!event.shouldCommit())
+            return;
+        event.id = id & 0xffff;
+        if (!queries.isEmpty())
+            event.setQuestion(queries.get(0).getWireName(), queries.get(0).getType() & 0xffff);
+        else
+            event.setQuestion(null, -1);
+        event.size = size;
+        event.response = qr!=0;
+        event.setRcode(rcode);
+        event.setOutcome(failure);
+        event.commit();
+    }
+    
+    /* Сколько байт сэкономило сжатие имен по сравнению с полной записью */
+    private int getCompressionSaved(){
+        int ret = 0;
+        for (Dns.Query query : queries)
+            ret+=getCompressionSaved(query.names);
+        for (ArrayList<Dns.Answer> section : Arrays.asList(answers, authorities, additionals))
+            for (Dns.Answer answer : section){
+                ret+=getCompressionSaved(answer.names);
+                ret+=getCompressionSaved(answer.datas);
+            }
+        return ret;
+    }
+    
+    private int getCompressionSaved(ArrayList<Dns.Data.Name> names){
+        int ret = 0;
+        for (Dns.Data.Name name : names)
+            if (name.equivalent!=null)
+                ret+=name.equivalent.getExpandedSize()-2;
+        return ret;
+    }
         
-    /* Формирует пакет из массива байт */
+    /*
+     * Формирует пакет из массива байт. Как и {@link #fromRaw(ByteBuffer)},
+     * копирует байты во внутренний массив: ленивые метки ссылаются на него,
+     * и вызывающий может сразу переиспользовать raw под следующий прием.
+     */
     public Dns fromRaw(byte[] raw) throws DnsException {
+        if (raw == null)
+            return fromRaw(null, 0);
+        reset();
+        int length = raw.length;
+        if ((buffer == null) || (buffer.length < length))
+            buffer = new byte[Math.max(length, 512)];
+        System.arraycopy(raw, 0, buffer, 0, length);
+        return fromRaw(buffer, length);
+    }
+    
+    /*
+     * Формирует пакет из буфера от position до limit, позиция не меняется.
+     * Пакет сначала сбрасывается, байты копируются во внутренний массив,
+     * который переживает reset, поэтому пакет из пула разбирает буфер без
+     * создания массивов, но с одной копией: разборщик и ленивые метки
+     * работают с byte[]. Ответ без копирования запроса собирает
+     * {@link ru.mainnika.libs.net.dns.server.ResponseWriter}.
+     */
+    public Dns fromRaw(ByteBuffer src) throws DnsException {
+        reset();
+        int length = src.remaining();
+        if ((buffer == null) || (buffer.length < length))
+            buffer = new byte[Math.max(length, 512)];
+        src.get(src.position(), buffer, 0, length);
+        return fromRaw(buffer, length);
+    }
+    
+    private Dns fromRaw(byte[] raw, int length) throws DnsException {
+        
+        boolean measure = Metrics.enabled;
+        long start = measure ? System.nanoTime() : 0;
+        DecodeEvent event = null;
+        if (DECODE_EVENT.isEnabled()){
+            if (decodeEvent == null)
+                decodeEvent = new DecodeEvent();
+            event = decodeEvent;
+            event.begin();
+        }
         
+        Exception failure = null;
         try{
-            id = (short) ((raw[0] << 8) | (0x00ff & raw[1]));
-            qr = (byte) ((0x80 & raw[2]) >> 7);
-            opcode = (byte) ((0x78 & raw[2]) >> 3);
-            aa = (byte) ((0x4 & raw[2]) >> 2);
-            tc = (byte) ((0x2 & raw[2]) >> 1);
-            rd = (byte) (0x1 & raw[2]);
-            ra = (byte) ((0x80 & raw[3]) >> 7);
-            z = (byte) ((0x70 & raw[3]) >> 4);
-            rcode = (byte) (0xf & raw[3]);
-            qdcount = (short) ((raw[4] << 8) | (0x00ff & raw[5]));
-            ancount = (short) ((raw[6] << 8) | (0x00ff & raw[7]));
-            nscount = (short) ((raw[8] << 8) | (0x00ff & raw[9]));
-            arcount = (short) ((raw[10] << 8) | (0x00ff & raw[11]));
-
-            int lastoffset;
-            int offset=12;
-
-            for (int counter=0;counter<qdcount;counter++){
-                lastoffset=offset;
-                while (raw[offset]!=0)
-                    offset+=raw[offset]+1;
-                offset+=5;
-                putQuery(new Dns.Query(Arrays.copyOfRange(raw, lastoffset, offset)));
-            }
-            
-            for (int counter=0;counter<ancount;counter++){
-                lastoffset=offset;
-                while (raw[offset]!=0){
-                    if ((0xc0 & raw[offset])==0xc0){
-                        offset+=2;
-                        break;
-                    }else{
-                        offset+=(int)raw[offset];
-                    }
-                }
-                offset+=8;
-                offset=offset+(int)((raw[offset]<<8) | raw[offset+1])+2;
-                putAnswer(new Dns.Answer(Arrays.copyOfRange(raw, lastoffset, offset)));
-            }
-            
-            for (int counter=0;counter<nscount;counter++){
-                lastoffset=offset;
-                while (raw[offset]!=0){
-                    if ((0xc0 & raw[offset])==0xc0){
-                        offset+=2;
-                        break;
-                    }else{
-                        offset+=(int)raw[offset];
-                    }
-                }
-                offset+=8;
-                offset=offset+(int)((raw[offset]<<8) | raw[offset+1])+2;
-                putAuthority(new Dns.Answer(Arrays.copyOfRange(raw, lastoffset, offset)));
-            }
-            
-            for (int counter=0;counter<arcount;counter++){
-                lastoffset=offset;
-                while (raw[offset]!=0){
-                    if ((0xc0 & raw[offset])==0xc0){
-                        offset+=2;
-                        break;
-                    }else{
-                        offset+=(int)raw[offset];
-                    }
-                }
-                offset+=8;
-                offset=offset+(int)((raw[offset]<<8) | raw[offset+1])+2;
-                putAdditional(new Dns.Answer(Arrays.copyOfRange(raw, lastoffset, offset)));
-            }
-            
-            
-            
+            parse(raw, length);
             custom = false;
             
             // TODO Add others
         }catch(Exception e){
             custom = true;
-            throw new DnsException("Error while parsing packet: "+e.getMessage());
+            failure = e;
         }finally{
             this.raw = raw;
+            rawLength = length;
         }
+        if (event != null)
+            commit(event, length, failure);
+        if (failure != null){
+            if (measure)
+                Metrics.get().parseError(failure);
+            throw new DnsException(DnsException.kindOf(failure), "Error while parsing packet: "+failure.getMessage());
+        }
+        if (measure)
+            Metrics.get().decoded(length, queries.isEmpty() ? -1 : queries.get(0).getType() & 0xffff, rcode, qr!=0, System.nanoTime()-start);
         return this;
     }    
     
+    /* Разбор заголовка и секций в этот пакет */
+    private void parse(byte[] raw, int length) throws DnsException{
+        if (length < 12)
+            throw new DnsException(DnsException.Kind.TRUNCATED, "Truncated header");
+        id = (short) ((raw[0] << 8) | (0x00ff & raw[1]));
+        qr = (byte) ((0x80 & raw[2]) >> 7);
+        opcode = (byte) ((0x78 & raw[2]) >> 3);
+        aa = (byte) ((0x4 & raw[2]) >> 2);
+        tc = (byte) ((0x2 & raw[2]) >> 1);
+        rd = (byte) (0x1 & raw[2]);
+        ra = (byte) ((0x80 & raw[3]) >> 7);
+        z = (byte) ((0x70 & raw[3]) >> 4);
+        rcode = (byte) (0xf & raw[3]);
+        qdcount = (short) ((raw[4] << 8) | (0x00ff & raw[5]));
+        ancount = (short) ((raw[6] << 8) | (0x00ff & raw[7]));
+        nscount = (short) ((raw[8] << 8) | (0x00ff & raw[9]));
+        arcount = (short) ((raw[10] << 8) | (0x00ff & raw[11]));
+
+        int lastoffset;
+        int offset=12;
+
+        for (int counter=0;counter<(qdcount & 0xffff);counter++){
+            lastoffset=offset;
+            offset=Wire.skipName(raw, offset, length)+4;
+            if (offset>length)
+                throw new DnsException(DnsException.Kind.TRUNCATED, "Truncated question");
+            putQuery(obtainQuery().decode(raw, lastoffset, offset));
+        }
+        
+        for (int counter=0;counter<(ancount & 0xffff);counter++){
+            lastoffset=offset;
+            offset=skipRecord(raw, offset, length);
+            putAnswer(obtainAnswer().decode(raw, lastoffset, offset));
+        }
+        
+        for (int counter=0;counter<(nscount & 0xffff);counter++){
+            lastoffset=offset;
+            offset=skipRecord(raw, offset, length);
+            putAuthority(obtainAnswer().decode(raw, lastoffset, offset));
+        }
+        
+        for (int counter=0;counter<(arcount & 0xffff);counter++){
+            lastoffset=offset;
+            offset=skipRecord(raw, offset, length);
+            putAdditional(obtainAnswer().decode(raw, lastoffset, offset));
+        }
+    }
+    
+    /* Смещение за записью ресурса, начинающейся с offset */
+    private static int skipRecord(byte[] raw, int offset, int length) throws DnsException{
+        offset=Wire.skipName(raw, offset, length)+10;
+        if (offset>length)
+            throw new DnsException(DnsException.Kind.TRUNCATED, "Truncated record");
+        offset+=Wire.u16(raw, offset-2);
+        if (offset>length)
+            throw new DnsException(DnsException.Kind.TRUNCATED, "Truncated rdata");
+        return offset;
+    }
+    
+    /* Байт raw[i] записи, которая заканчивается перед end */
+    private static byte at(byte[] raw, int i, int end) throws DnsException{
+        if (i>=end)
+            throw new DnsException(DnsException.Kind.TRUNCATED, "Truncated record");
+        return raw[i];
+    }
+    
     /* Добавление Answer, использование только внутри класса, не инкрементирует ancount */
     private Dns putAnswer(Dns.Answer answer){
         answers.add(answer);
@@ -498,12 +843,12 @@ public final class Dns {
     }
     
     private Dns putAdditional(Dns.Answer additional){
-        answers.add(additional);
+        additionals.add(additional);
         return this;
     }
     
     private Dns putAuthority(Dns.Answer authory){
-        answers.add(authory);
+        authorities.add(authory);
         return this;
     }
     
@@ -516,25 +861,31 @@ public final class Dns {
 
     @Override
     public String toString() {
-        String ret = "";
-        for (Dns.Query query : queries){
-            ret+=" QType:"+Integer.toString(query.getType())+":"+query;
-        }
-        for (Dns.Answer answer : answers){
-            ret+=" AType:"+Integer.toString(answer.getType())+":"+answer;
-        }
-        
-        return "ID:" + Integer.toString(id) + " QR:" + qr + " OP:" + opcode
-                + " AA:" + aa + " TC:" + tc + " RD:" + rd + " RA:" + ra
-                + " Z:" + Integer.toString(z) + " RC:" + Integer.toString(rcode)
-                + " QD:" + Integer.toString(qdcount) + " AN:" + Integer.toString(ancount)
-                + " NS:" + Integer.toString(nscount) + " AR:" + Integer.toString(arcount) + ret;
+        // один буфер на всю строку: сложение строк в цикле копирует ее на каждой записи
+        StringBuilder ret = new StringBuilder(64 + 32 * (queries.size() + answers.size()));
+        ret.append("ID:").append(id).append(" QR:").append(qr).append(" OP:").append(opcode)
+                .append(" AA:").append(aa).append(" TC:").append(tc).append(" RD:").append(rd).append(" RA:").append(ra)
+                .append(" Z:").append(z).append(" RC:").append(rcode)
+                .append(" QD:").append(qdcount).append(" AN:").append(ancount)
+                .append(" NS:").append(nscount).append(" AR:").append(arcount);
+        for (Dns.Query query : queries)
+            ret.append(" QType:").append(query.getType()).append(':').append(query);
+        for (Dns.Answer answer : answers)
+            ret.append(" AType:").append(answer.getType()).append(':').append(answer);
+        return ret.toString();
     }
     
     /* ———————————————————— Секция вложенных классов —————————————————————— */
     
     /* Стандартные функции для секций */
     public abstract class Data {
+        
+        /* Объект отложен пакетом для повторного использования */
+        boolean spare;
+        
+        /* Имена, освобожденные reset */
+        private ArrayList<Dns.Data.Name> spareNames;
+        
         abstract public byte[] makeRaw()  throws DnsException;
         abstract public short getOffset();
         abstract public short getNameOffset(Dns.Data.Name name) throws DnsException;
@@ -545,19 +896,89 @@ public final class Dns {
 
         abstract protected void calcNames(ArrayList<Dns.Data.Name> buffer);
         abstract protected void calcENames(ArrayList<Dns.Data.Name> buffer);
+        abstract protected int getSuffixSize(Dns.Data.Name name);
+        
+        /* Очищает объект, сохраняя емкость списков и объекты имен */
+        abstract public void reset();
+        
+        Dns getDns(){
+            return Dns.this;
+        }
+        
+        /* Откладывает собственные имена списка для повторного использования и очищает список */
+        protected void recycle(ArrayList<Dns.Data.Name> list){
+            if (spareNames == null)
+                spareNames = new ArrayList<>();
+            for (int i=0; i<list.size(); i++){
+                Dns.Data.Name name = list.get(i);
+                if ((name.getData() == this) && !name.spare){
+                    name.name = null;
+                    name.equivalent = null;
+                    name.src = null;
+                    name.spare = true;
+                    spareNames.add(name);
+                }
+            }
+            list.clear();
+        }
+        
+        private Dns.Data.Name obtainName(){
+            if ((spareNames == null) || spareNames.isEmpty())
+                return new Dns.Data.Name();
+            Dns.Data.Name ret = spareNames.remove(spareNames.size()-1);
+            ret.spare = false;
+            return ret;
+        }
+        
+        /* Размер имени без сжатия, начиная с метки name из списка list, вместе с нулевой меткой */
+        protected int getSuffixSize(ArrayList<Dns.Data.Name> list, Dns.Data.Name name){
+            int ret = 1;
+            int index = list.indexOf(name);
+            for (int i = (index<0) ? list.size() : index; i < list.size(); i++){
+                Dns.Data.Name label = list.get(i);
+                if (label.equivalent!=null)
+                    return ret-1+label.equivalent.getExpandedSize();
+                ret+=label.getSize();
+            }
+            return ret;
+        }
         
         public Dns.Data.Name makeNameAsName(Dns.Data.Name name) throws DnsException {
-            return new Dns.Data.Name(null,name,false);
+            return obtainName().init(null,name,false);
         }
         public Dns.Data.Name makeNameAsName(String name) throws DnsException {
-            return new Dns.Data.Name(name,null,false);
+            return obtainName().init(name,null,false);
         }
 
         public Dns.Data.Name makeNameAsEName(Dns.Data.Name name) throws DnsException {
-            return new Dns.Data.Name(null,name,true);
+            return obtainName().init(null,name,true);
         }
         public Dns.Data.Name makeNameAsEName(String name) throws DnsException {
-            return new Dns.Data.Name(name,null,true);
+            return obtainName().init(name,null,true);
+        }
+        
+        /* Адрес IPv4 из разобранного пакета: 4 байта с позиции at, строка создается только при первом getName */
+        protected Dns.Data.Name makeNameAsAddress(byte[] src, int at){
+            Dns.Data.Name ret = obtainName();
+            ret.name = null;
+            ret.equivalent = null;
+            ret.ename = true;
+            ret.src = src;
+            ret.at = at;
+            return ret;
+        }
+        
+        /* Метка из разобранного пакета: строка создается только при первом getName */
+        protected Dns.Data.Name makeNameAsLabel(byte[] src, int at, boolean ename) throws DnsException {
+            if (at+1+(src[at] & 0xff) > src.length)
+                throw new DnsException(DnsException.Kind.TRUNCATED, "Truncated label");
+            Dns.Data.Name ret = obtainName();
+            ret.name = null;
+            ret.equivalent = null;
+            ret.ename = ename;
+            ret.src = src;
+            ret.at = at;
+            return ret;
         }
         
         public class Name {
@@ -568,21 +989,41 @@ public final class Dns {
             private Dns.Data.Name equivalent;       
             
             private boolean ename;
+            
+            /* Метка в исходном пакете, пока строка name не создана */
+            private byte[] src;
+            
+            private int at;
+            
+            private boolean spare;
 
-            private Name(String sname, Dns.Data.Name nname, boolean ename) throws DnsException {
+            private Name(){
+            }
+            
+            private Dns.Data.Name init(String sname, Dns.Data.Name nname, boolean ename) throws DnsException {
+                src = null;
                 if (nname==null){
                     this.name = sname;
                     equivalent = null;
                     this.ename = ename;
                 }else{
                     if ((Dns.Data.this.containsName(nname))||(!Dns.this.containsName(nname)))
-                        throw new DnsException("Invalid name");
+                        throw new DnsException(DnsException.Kind.BAD_NAME, "Invalid name");
                     if ((nname.isEName())&&(nname.getDataType()!=0))
-                        throw new DnsException("Invalid name");
+                        throw new DnsException(DnsException.Kind.BAD_NAME, "Invalid name");
                     name = null;
                     equivalent = nname;
                     this.ename = ename;
                 }
+                return this;
+            }
+            
+            private Dns.Data getData(){
+                return Dns.Data.this;
+            }
+            
+            private int getLabelLength(){
+                return (name != null) ? name.length() : src[at] & 0xff;
             }
             
             
@@ -604,10 +1045,10 @@ public final class Dns {
                     if (ename){
                         switch(getDataType()){
                             case 1: ret = (short)4; break;
-                            default: ret = (short)(name.length() + 1); 
+                            default: ret = (short)(getLabelLength() + 1); 
                         }
                     }else{
-                        ret = (short)(name.length() + 1);
+                        ret = (short)(getLabelLength() + 1);
                     }
                 }
                 
@@ -618,12 +1059,26 @@ public final class Dns {
                 return Dns.Data.this.getNameOffset(this);
             }
             
+            /* Размер имени начиная с этой метки без сжатия */
+            public int getExpandedSize(){
+                return (equivalent == null) ? Dns.Data.this.getSuffixSize(this) : equivalent.getExpandedSize();
+            }
+            
             public Dns.Data.Name getThis() {
                 return (equivalent == null) ? this : equivalent;
             }
 
             public String getName() {
-                return (equivalent == null) ? name : equivalent.getName();
+                if (equivalent != null)
+                    return equivalent.getName();
+                if ((name == null) && (src != null)){
+                    if ((ename)&&(getDataType()==1))
+                        name = new StringBuilder(15).append(src[at] & 0xff).append('.').append(src[at+1] & 0xff)
+                                .append('.').append(src[at+2] & 0xff).append('.').append(src[at+3] & 0xff).toString();
+                    else
+                        name = new String(src, at+1, src[at] & 0xff, StandardCharsets.ISO_8859_1);
+                }
+                return name;
             }
             
             public int getCount(){
@@ -644,42 +1099,45 @@ public final class Dns {
             
             public byte[] makeRaw() throws DnsException{
                 byte[] quer = new byte[getSize()];
-                if (!ename){
-                    if (equivalent==null){
-                        quer[0]=(byte)name.length();
-                        byte[] rawname=name.getBytes();
-                        System.arraycopy(rawname, 0, quer, 1, quer[0]);
-                    }else{
-                        int off = getThis().getOffset();
-                        short tmp=(short) (49152 | off);
-                        quer[1] = (byte)(tmp & 0xff);
-                        quer[0] = (byte)((tmp >> 8) & 0xff);
+                write(quer, 0);
+                return quer;
+            }
+            
+            /* Пишет имя в dst с позиции pos, возвращает позицию после него */
+            public int write(byte[] dst, int pos) throws DnsException{
+                if ((ename)&&(getDataType()==1)){ // 0 - domain part; 1 - IP; 2 - TXT; -1 - No data
+                    if (name == null){
+                        System.arraycopy(src, at, dst, pos, 4);
+                        return pos+4;
                     }
+                    String[] ip=name.split("\\.");
+                    for (int i=0; i<4; i++)
+                        dst[pos+i]=(byte)Integer.parseInt(ip[i]);
+                    return pos+4;
+                }
+                if (equivalent!=null){
+                    short tmp = (short) (49152 | getThis().getOffset());
+                    dst[pos] = (byte) ((tmp >> 8) & 0xff);
+                    dst[pos+1] = (byte) (tmp & 0xff);
+                    return pos+2;
+                }
+                return putLabel(dst, pos);
+            }
+            
+            /* Метка длина+байты в dst с позиции pos без создания строки, сжатие раскрывается */
+            private int putLabel(byte[] dst, int pos){
+                if (equivalent!=null)
+                    return equivalent.putLabel(dst, pos);
+                int len = getLabelLength();
+                dst[pos++] = (byte) len;
+                if (name != null){
+                    for (int i=0; i<len; i++)
+                        dst[pos++] = (byte) name.charAt(i);
                 }else{
-                    switch (getDataType()){ // 0 - domain part; 1 - IP; 2 - TXT; -1 - No data
-                        case 1:{
-                            String[] ip=name.split("\\."); 
-                            for (int i=0; i<4; i++){
-                                int tmp=Integer.parseInt(ip[i]);
-                                quer[i]=(byte)tmp;
-                            }
-                        }
-                        break;
-                        default: {
-                            if (equivalent == null) {
-                                quer[0] = (byte) name.length();
-                                byte[] rawname = name.getBytes();
-                                System.arraycopy(rawname, 0, quer, 1, quer[0]);
-                            } else {
-                                short tmp = (short) (49152 | getOffset());
-                                quer[0] = (byte) (tmp & 0xff);
-                                quer[1] = (byte) ((tmp >> 8) & 0xff);
-                            }
-                        }
-                    }
-                            
+                    System.arraycopy(src, at+1, dst, pos, len);
+                    pos+=len;
                 }
-                return quer;
+                return pos;
             }
             
             @Override
@@ -698,30 +1156,53 @@ public final class Dns {
 
         @Override
         public byte[] makeRaw()  throws DnsException{
-            int _size = 0;
-            for (Dns.Data.Name name : names){
-                _size+=name.getSize();
-            }
-            byte[] ret = new byte[_size+4];
-            _size=0;
-            for (int i=0; i<names.size();i++){
-                byte[] _name = names.get(i).makeRaw();
-                System.arraycopy(_name, 0, ret, _size, _name.length);
-                _size+=_name.length;
-                if ((names.get(i).equivalent==null)&&((i+1)==names.size())){
-                    _size++;
-                    ret = Arrays.copyOf(ret, ret.length+1);
-                }
-            }
-            ret[ret.length-4] = (byte) (type >> 8);
-            ret[ret.length-3] = (byte) type;
-            ret[ret.length-2] = (byte) (cl >> 8);
-            ret[ret.length-1] = (byte) cl;
-
+            byte[] ret = new byte[getRawSize()];
+            write(ret, 0);
             return ret;
         }
         
+        /* Размер вопроса в пакете вместе с завершающей нулевой меткой */
+        private int getRawSize(){
+            int ret = 4;
+            for (int i=0; i<names.size(); i++)
+                ret+=names.get(i).getSize();
+            if ((names.isEmpty())||(names.get(names.size()-1).equivalent==null))
+                ret++;
+            return ret;
+        }
+        
+        private int write(byte[] dst, int pos) throws DnsException{
+            for (int i=0; i<names.size(); i++)
+                pos = names.get(i).write(dst, pos);
+            if ((names.isEmpty())||(names.get(names.size()-1).equivalent==null))
+                dst[pos++] = 0;
+            dst[pos++] = (byte) (type >> 8);
+            dst[pos++] = (byte) type;
+            dst[pos++] = (byte) (cl >> 8);
+            dst[pos++] = (byte) cl;
+            return pos;
+        }
         
+        /* Имя запроса в несжатом байтовом виде */
+        public byte[] getWireName(){
+            byte[] buf = new byte[Wire.MAX_NAME+64];
+            return Arrays.copyOf(buf, getWireName(buf, 0));
+        }
+        
+        /* Имя запроса в несжатом байтовом виде в буфер dst, возвращает длину; без выделения памяти */
+        public int getWireName(byte[] dst, int off){
+            int pos = off;
+            int last = names.size()-1;
+            if ((last>=0)&&(names.get(last).equivalent!=null)){
+                for (Dns.Data.Name label : getNames())
+                    pos = label.putLabel(dst, pos);
+            }else{
+                for (int i=0; i<=last; i++)
+                    pos = names.get(i).putLabel(dst, pos);
+            }
+            dst[pos++] = 0;
+            return pos-off;
+        }
         
         public Dns.Answer makeAnwser() throws DnsException{
             Dns.Answer ret = new Dns.Answer();
@@ -731,31 +1212,27 @@ public final class Dns {
             return ret;
         }
 
-        private Query(byte[] raw) {
-            
-            names = new ArrayList<>();
-            type=0;
-            cl=0;
+        /* Разбор вопроса raw[offset, end); метки ссылаются на raw без копирования */
+        private Dns.Query decode(byte[] raw, int offset, int end) {
             
-            short curroffset = 0;
+            int curroffset = offset;
             try {
-                while (raw[curroffset] != 0) {
+                while (at(raw, curroffset, end) != 0) {
                     if ((raw[curroffset]&0xc0)==0xc0){
-                        names.add(makeNameAsName(getNameAtOffset((short) ((raw[curroffset] << 8) | (0x00ff & raw[curroffset+1])))));
+                        names.add(makeNameAsName(getNameAtOffset((short) ((raw[curroffset] << 8) | (0x00ff & at(raw, curroffset+1, end))))));
                         curroffset += 1;
                         break;
                     }else{
-                        names.add(makeNameAsName(new String(Arrays.copyOfRange(raw, curroffset + 1, curroffset + 1 + raw[curroffset]))));
+                        names.add(makeNameAsLabel(raw, curroffset, false));
                         curroffset += raw[curroffset] + 1;
                     }
                 }
-                type = (short) ((raw[curroffset + 1] << 8) | (0x00ff & raw[curroffset + 2]));
-                cl = (short) ((raw[curroffset + 3] << 8) | (0x00ff & raw[curroffset + 4]));
+                type = (short) ((at(raw, curroffset + 1, end) << 8) | (0x00ff & at(raw, curroffset + 2, end)));
+                cl = (short) ((at(raw, curroffset + 3, end) << 8) | (0x00ff & at(raw, curroffset + 4, end)));
             } catch (Exception e) {
-                names.clear();
-                type=0;
-                cl=0;
+                reset();
             }
+            return this;
         }
         
         public Query(){
@@ -764,8 +1241,15 @@ public final class Dns {
             cl=0;
         }
         
+        @Override
+        public void reset(){
+            recycle(names);
+            type=0;
+            cl=0;
+        }
+        
         public Dns.Query setQuery(String query) throws DnsException{
-            names.clear();
+            recycle(names);
             StringTokenizer st = new StringTokenizer(query, ".");
             while (st.hasMoreTokens()) {
                 names.add(makeNameAsName(st.nextToken()));
@@ -773,6 +1257,15 @@ public final class Dns {
             return this;
         }
         
+        /* Имя из несжатого байтового вида; метки ссылаются на копию name, точки и обратные косые черты внутри меток сохраняются */
+        public Dns.Query setQuery(byte[] name) throws DnsException{
+            recycle(names);
+            byte[] copy = Wire.copyName(name, 0);
+            for (int off=0; copy[off]!=0; off+=(copy[off] & 0xff)+1)
+                names.add(makeNameAsLabel(copy, off, false));
+            return this;
+        }
+        
         public Dns.Query addName(String name) throws DnsException{
             names.add(makeNameAsName(name));
             return this;
@@ -786,7 +1279,7 @@ public final class Dns {
         @Override
         public int getNameCount(){
             int ret = names.size();
-            if (names.get(names.size()-1).equivalent!=null){
+            if ((ret>0)&&(names.get(names.size()-1).equivalent!=null)){
                 ret+=-1+names.get(names.size()-1).equivalent.getCount();
             }
             return ret;
@@ -811,6 +1304,8 @@ public final class Dns {
 
         @Override
         protected void calcNames(ArrayList<Dns.Data.Name> buffer) {
+            if (names.isEmpty())
+                return;
             for (int i=0; i<names.size()-1; i++)
                 buffer.add(names.get(i));
             if (names.get(names.size()-1).equivalent!=null){
@@ -825,6 +1320,11 @@ public final class Dns {
         protected void calcENames(ArrayList<Dns.Data.Name> buffer) {
             throw new UnsupportedOperationException("Not supported yet.");
         }
+        
+        @Override
+        protected int getSuffixSize(Dns.Data.Name name) {
+            return getSuffixSize(names, name);
+        }
 
         public Dns.Data.Name getNameAt(int index){
             return names.get(index);
@@ -903,45 +1403,46 @@ public final class Dns {
         private short type;
         private short cl;
         private int ttl;
-        private short dataType;
+        private short dataType; // 0 - domain part; 1 - IP; 2 - TXT; 3 - raw
         private ArrayList<Dns.Data.Name> datas;
+        private byte[] rdata;
         
-        private Answer(byte[] raw){
-            names = new ArrayList<>();
-            datas = new ArrayList<>();
+        /* Разбор записи raw[offset, end); метки ссылаются на raw без копирования */
+        private Dns.Answer decode(byte[] raw, int offset, int end){
             
-            short curroffset = 0;
+            int curroffset = offset;
             try {
-                while (raw[curroffset] != 0) {
+                while (at(raw, curroffset, end) != 0) {
                     if ((raw[curroffset]&0xc0)==0xc0){
-                        names.add(makeNameAsName(getNameAtOffset((short) (((raw[curroffset] << 8) | (0x00ff & raw[curroffset+1])) & 0x3FFF))));
+                        names.add(makeNameAsName(getNameAtOffset((short) (((raw[curroffset] << 8) | (0x00ff & at(raw, curroffset+1, end))) & 0x3FFF))));
                         curroffset += 1;
                         break;
                     }else{
-                        names.add(makeNameAsName(new String(Arrays.copyOfRange(raw, curroffset + 1, curroffset + 1 + raw[curroffset]))));
+                        names.add(makeNameAsLabel(raw, curroffset, false));
                         curroffset += raw[curroffset] + 1;
                     }
                 }
-                type = (short) ((raw[curroffset + 1] << 8) | (0x00ff & raw[curroffset + 2]));
-                cl = (short) ((raw[curroffset + 3] << 8) | (0x00ff & raw[curroffset + 4]));
+                type = (short) ((at(raw, curroffset + 1, end) << 8) | (0x00ff & at(raw, curroffset + 2, end)));
+                cl = (short) ((at(raw, curroffset + 3, end) << 8) | (0x00ff & at(raw, curroffset + 4, end)));
                 curroffset+=9;
-                // TODO ttl
-                short dlen = (short)(curroffset + 1 + ((raw[curroffset] << 8) | (0x00ff & raw[curroffset + 1])));
+                ttl = ((at(raw, curroffset - 4, end) & 0xff) << 24) | ((at(raw, curroffset - 3, end) & 0xff) << 16)
+                        | ((at(raw, curroffset - 2, end) & 0xff) << 8) | (at(raw, curroffset - 1, end) & 0xff);
+                int dlen = curroffset + 1 + ((at(raw, curroffset, end) << 8) | (0x00ff & at(raw, curroffset + 1, end)));
                 curroffset+=2;
                 if (type==1){
-                    byte[] __byte_ip = Arrays.copyOfRange(raw, curroffset, curroffset + 4);
-                    String __string_ip = "";
-                    for (int i = 0; i< __byte_ip.length; i++)
-                        __string_ip+=Integer.toString(__byte_ip[i])+((i+1==__byte_ip.length)?"":".");
-                    datas.add(makeNameAsEName(__string_ip));
+                    at(raw, curroffset + 3, end);
+                    dataType = 1;
+                    datas.add(makeNameAsAddress(raw, curroffset));
                 }else{
-                    while (raw[curroffset] != 0) {
+                    while (at(raw, curroffset, end) != 0) {
                         if ((raw[curroffset]&0xc0)==0xc0){
-                            datas.add(makeNameAsEName(getNameAtOffset((short) (((raw[curroffset] << 8) | (0x00ff & raw[curroffset+1])) & 0x3FFF))));
+                            datas.add(makeNameAsEName(getNameAtOffset((short) (((raw[curroffset] << 8) | (0x00ff & at(raw, curroffset+1, end))) & 0x3FFF))));
                             curroffset += 1;
                             break;
                         }else{
-                            datas.add(makeNameAsEName(new String(Arrays.copyOfRange(raw, curroffset + 1, curroffset + 1 + raw[curroffset]))));
+                            if (curroffset + (raw[curroffset] & 0xff) >= end)
+                                throw new DnsException(DnsException.Kind.TRUNCATED, "Truncated label");
+                            datas.add(makeNameAsLabel(raw, curroffset, true));
                             curroffset += raw[curroffset] + 1;
                         }
                         if (curroffset > dlen) {
@@ -950,11 +1451,9 @@ public final class Dns {
                     }
                 }
             } catch (Exception e) {
-                names.clear();
-                datas.clear();
-                type=0;
-                cl=0;
+                reset();
             }
+            return this;
         }
         
         public Answer(){
@@ -964,42 +1463,71 @@ public final class Dns {
             cl=0;
             ttl=0;
         }
+        
+        @Override
+        public void reset(){
+            recycle(names);
+            recycle(datas);
+            type=0;
+            cl=0;
+            ttl=0;
+            dataType=0;
+            rdata=null;
+        }
 
         @Override
         public byte[] makeRaw() throws DnsException{
-            int _size = 0;
-            short _dlen = 0;
-            for (Dns.Data.Name name : names){
-                _size+=name.getSize();
-            }
-            for (Dns.Data.Name name : datas){
-                _size+=name.getSize();
-                _dlen+=name.getSize();
-            }
-            byte[] ret = new byte[_size+10];
-            _size=0;
-            for (int i = 0; i< names.size(); i++){
-                byte[] _name = names.get(i).makeRaw();
-                System.arraycopy(_name, 0, ret, _size, _name.length);
-                _size+=_name.length;
-                if ((names.get(i).equivalent==null)&&(names.get(i).getDataType()==0)&&((i+1)==names.size())){
-                    _size++;
-                    ret = Arrays.copyOf(ret, ret.length+1);
-                }
-            }
-            ret[_size++] = (byte) (type >> 8);
-            ret[_size++] = (byte) type;
-            ret[_size++] = (byte) (cl >> 8);
-            ret[_size++] = (byte) cl;
-            // TODO make raw ttl
-            _size+=4;
-            ret[_size++] = (byte) (_dlen >> 8);
-            ret[_size++] = (byte) _dlen;
-            for (Dns.Data.Name name : datas){
-                byte[] _name = name.makeRaw();
-                System.arraycopy(_name, 0, ret, _size, _name.length);
-                _size+=_name.length;
+            byte[] ret = new byte[getSize()];
+            write(ret, 0);
+            return ret;
+        }
+        
+        private int write(byte[] dst, int pos) throws DnsException{
+            short _dlen = getDataSize();
+            for (int i=0; i<names.size(); i++)
+                pos = names.get(i).write(dst, pos);
+            if ((names.isEmpty())||(names.get(names.size()-1).equivalent==null))
+                dst[pos++] = 0;
+            dst[pos++] = (byte) (type >> 8);
+            dst[pos++] = (byte) type;
+            dst[pos++] = (byte) (cl >> 8);
+            dst[pos++] = (byte) cl;
+            dst[pos++] = (byte) (ttl >> 24);
+            dst[pos++] = (byte) (ttl >> 16);
+            dst[pos++] = (byte) (ttl >> 8);
+            dst[pos++] = (byte) ttl;
+            dst[pos++] = (byte) (_dlen >> 8);
+            dst[pos++] = (byte) _dlen;
+            if (dataType==3){
+                System.arraycopy(rdata, 0, dst, pos, rdata.length);
+                return pos+rdata.length;
             }
+            for (int i=0; i<datas.size(); i++)
+                pos = datas.get(i).write(dst, pos);
+            if ((dataType==0)&&(!datas.isEmpty())&&(datas.get(datas.size()-1).equivalent==null))
+                dst[pos++] = 0;
+            return pos;
+        }
+        
+        /* Размер имени владельца вместе с завершающей нулевой меткой */
+        private short getOwnerSize(){
+            short ret = 0;
+            for (int i=0; i<names.size(); i++)
+                ret+=names.get(i).getSize();
+            if ((names.isEmpty())||(names.get(names.size()-1).equivalent==null))
+                ret++;
+            return ret;
+        }
+        
+        /* Размер RDATA, доменное имя завершается нулевой меткой */
+        private short getDataSize(){
+            if (dataType==3)
+                return (short)rdata.length;
+            short ret = 0;
+            for (int i=0; i<datas.size(); i++)
+                ret+=datas.get(i).getSize();
+            if ((dataType==0)&&(!datas.isEmpty())&&(datas.get(datas.size()-1).equivalent==null))
+                ret++;
             return ret;
         }
         
@@ -1047,6 +1575,14 @@ public final class Dns {
             return this;             
         }
         
+        /* RDATA произвольного типа в готовом байтовом виде, имена внутри не сжимаются */
+        public Dns.Answer setDataAsRaw(byte[] rdata){
+            dataType=3;
+            datas.clear();
+            this.rdata = rdata;
+            return this;
+        }
+        
         public Dns.Answer setDataAsTXT(String txt) throws DnsException{
             dataType=2;
             datas.clear();
@@ -1123,14 +1659,7 @@ public final class Dns {
         }
         
         public short getSize(){
-            short ret = 0;
-            for(Dns.Data.Name name : names){
-                ret+=name.getSize();
-            }
-            for(Dns.Data.Name name : datas){
-                ret+=name.getSize();
-            }
-            return (short)(ret+10);
+            return (short)(getOwnerSize()+getDataSize()+10);
         }
 
         @Override
@@ -1206,6 +1735,11 @@ public final class Dns {
         public int getENameCount() {
             throw new UnsupportedOperationException("Not supported yet.");
         }
+        
+        @Override
+        protected int getSuffixSize(Dns.Data.Name name) {
+            return getSuffixSize(names.contains(name) ? names : datas, name);
+        }
 
         @Override
         public int getNameCount(){
@@ -1216,4 +1750,4 @@ public final class Dns {
             return ret;
         }
     }
-}
+}
@@ -5,11 +5,42 @@ package ru.mainnika.libs.net.dns;
  * @author MainNika
  */
 public class DnsException extends Exception{
+    
+    /* Класс ошибки: по нему ведется учет, а не по тексту сообщения */
+    public enum Kind {
+        /** Пакет короче, чем требуют счетчики и длины */
+        TRUNCATED,
+        /** Недопустимая метка, сжатие или длина имени */
+        BAD_NAME,
+        /** Прочие ошибки формата и использования */
+        MALFORMED
+    }
+    
+    private final Kind kind;
+    
     public DnsException(String message){
+        this(Kind.MALFORMED, message);
+    }
+    public DnsException(Kind kind, String message){
         super(message);
+        this.kind = kind;
     }
     public DnsException(){
         super();
+        kind = Kind.MALFORMED;
+    }
+    
+    public Kind getKind(){
+        return kind;
+    }
+    
+    /* Класс произвольной ошибки разбора: выход за границы массива - обрезанный пакет */
+    public static Kind kindOf(Throwable e){
+        if (e instanceof DnsException)
+            return ((DnsException) e).kind;
+        if (e instanceof IndexOutOfBoundsException)
+            return Kind.TRUNCATED;
+        return Kind.MALFORMED;
     }
     // TODO Добавить идентификацию ошибочного пакета и получение по этому дополнительной информации.
 }
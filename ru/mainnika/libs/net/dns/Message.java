@@ -0,0 +1,247 @@
+package ru.mainnika.libs.net.dns;
+
+import java.util.ArrayList;
+
+/**
+ * Разобранное сообщение в виде списков {@link ResourceRecord}. В отличие от
+ * {@link Dns} имена в записях распакованы, в том числе внутри RDATA типов,
+ * где допускается сжатие (RFC 3597, раздел 4), поэтому записи можно
+ * кэшировать и пересылать без исходного пакета. Запись OPT в секцию
+ * дополнительных не попадает, ее размер доступен через {@link #getUdpSize()}.
+ *
+ * @author MainNika
+ */
+public final class Message {
+
+    private final byte[] raw;
+
+    private final int length;
+
+    private byte[] qname;
+
+    private int qtype;
+
+    private int qclass;
+
+    private int udpSize;
+
+    private boolean dnssecOk;
+
+    private final ArrayList<ResourceRecord> answers = new ArrayList<>();
+
+    private final ArrayList<ResourceRecord> authorities = new ArrayList<>();
+
+    private final ArrayList<ResourceRecord> additionals = new ArrayList<>();
+
+    private Message(byte[] raw, int length){
+        this.raw = raw;
+        this.length = length;
+    }
+
+    public static Message parse(byte[] raw) throws DnsException{
+        return parse(raw, raw.length);
+    }
+
+    public static Message parse(byte[] raw, int length) throws DnsException{
+        if (length < 12)
+            throw new DnsException("Truncated header");
+        Message ret = new Message(raw, length);
+        int off = 12;
+        int qd = Wire.u16(raw, 4);
+        for (int i = 0; i < qd; i++){
+            if (i == 0){
+                ret.qname = readName(raw, off, length);
+                Wire.toLowerCase(ret.qname, 0);
+            }
+            off = Wire.skipName(raw, off, length) + 4;
+            if (off > length)
+                throw new DnsException("Truncated question");
+            if (i == 0){
+                ret.qtype = Wire.u16(raw, off - 4);
+                ret.qclass = Wire.u16(raw, off - 2);
+            }
+        }
+        off = ret.section(off, Wire.u16(raw, 6), ret.answers);
+        off = ret.section(off, Wire.u16(raw, 8), ret.authorities);
+        ret.section(off, Wire.u16(raw, 10), ret.additionals);
+        return ret;
+    }
+
+    private int section(int off, int count, ArrayList<ResourceRecord> list) throws DnsException{
+        for (int i = 0; i < count; i++){
+            byte[] name = readName(raw, off, length);
+            off = Wire.skipName(raw, off, length) + 10;
+            if (off > length)
+                throw new DnsException("Truncated record");
+            int type = Wire.u16(raw, off - 10);
+            int cl = Wire.u16(raw, off - 8);
+            long ttl = Wire.u32(raw, off - 6);
+            int rdlength = Wire.u16(raw, off - 2);
+            if (off + rdlength > length)
+                throw new DnsException("Truncated rdata");
+            if (type == Type.OPT){
+                udpSize = cl;
+                dnssecOk = (ttl & 0x8000) != 0;
+            }else{
+                list.add(new ResourceRecord(name, type, cl, ttl, readRdata(raw, off, rdlength, type, length)));
+            }
+            off += rdlength;
+        }
+        return off;
+    }
+
+    private static byte[] readName(byte[] msg, int off, int end) throws DnsException{
+        byte[] buf = new byte[Wire.MAX_NAME];
+        int len = Wire.readName(msg, off, end, buf, 0);
+        byte[] ret = new byte[len];
+        System.arraycopy(buf, 0, ret, 0, len);
+        return ret;
+    }
+
+    /* RDATA с распакованными именами для типов, где сжатие разрешено */
+    public static byte[] readRdata(byte[] msg, int off, int len, int type, int end) throws DnsException{
+        // пустая RDATA бывает в предусловиях и удалениях UPDATE
+        if (len == 0)
+            return new byte[0];
+        int names;
+        int prefix = 0;
+        switch (type){
+            case Type.NS:
+            case Type.CNAME:
+            case Type.PTR:
+                names = 1;
+                break;
+            case Type.MX:
+                prefix = 2;
+                names = 1;
+                break;
+            case Type.SOA:
+                names = 2;
+                break;
+            default:
+                byte[] ret = new byte[len];
+                System.arraycopy(msg, off, ret, 0, len);
+                return ret;
+        }
+        byte[] buf = new byte[len + names * Wire.MAX_NAME];
+        System.arraycopy(msg, off, buf, 0, prefix);
+        int pos = prefix;
+        int src = off + prefix;
+        for (int i = 0; i < names; i++){
+            pos += Wire.readName(msg, src, end, buf, pos);
+            src = Wire.skipName(msg, src, end);
+        }
+        int rest = off + len - src;
+        if (rest < 0)
+            throw new DnsException("Malformed rdata");
+        System.arraycopy(msg, src, buf, pos, rest);
+        byte[] ret = new byte[pos + rest];
+        System.arraycopy(buf, 0, ret, 0, ret.length);
+        return ret;
+    }
+
+    /* Запрос с одним вопросом класса IN */
+    public static byte[] query(int id, byte[] qname, int qtype, boolean rd){
+        int nameLen = Wire.nameLength(qname, 0);
+        byte[] ret = new byte[12 + nameLen + 4];
+        Wire.put16(ret, 0, id);
+        ret[2] = (byte) (rd ? 1 : 0);
+        Wire.put16(ret, 4, 1);
+        System.arraycopy(qname, 0, ret, 12, nameLen);
+        Wire.put16(ret, 12 + nameLen, qtype);
+        Wire.put16(ret, 14 + nameLen, Type.CLASS_IN);
+        return ret;
+    }
+
+    /* Запрос с записью OPT: размер буфера UDP и бит DO (RFC 6891, RFC 3225) */
+    public static byte[] query(int id, byte[] qname, int qtype, boolean rd, int udpSize, boolean dnssecOk){
+        byte[] plain = query(id, qname, qtype, rd);
+        byte[] ret = new byte[plain.length + 11];
+        System.arraycopy(plain, 0, ret, 0, plain.length);
+        Wire.put16(ret, 10, 1);
+        int off = plain.length + 1;
+        Wire.put16(ret, off, Type.OPT);
+        Wire.put16(ret, off + 2, udpSize);
+        Wire.put32(ret, off + 4, dnssecOk ? 0x8000 : 0);
+        return ret;
+    }
+
+    public int getId() {
+        return Wire.u16(raw, 0);
+    }
+
+    public boolean isResponse() {
+        return (raw[2] & 0x80) != 0;
+    }
+
+    public int getOpcode() {
+        return (raw[2] & 0x78) >> 3;
+    }
+
+    public boolean isAuthoritative() {
+        return (raw[2] & 0x04) != 0;
+    }
+
+    public boolean isTruncated() {
+        return (raw[2] & 0x02) != 0;
+    }
+
+    public boolean isRecursionDesired() {
+        return (raw[2] & 0x01) != 0;
+    }
+
+    public boolean isAuthenticData() {
+        return (raw[3] & 0x20) != 0;
+    }
+
+    public boolean isCheckingDisabled() {
+        return (raw[3] & 0x10) != 0;
+    }
+
+    public int getRcode() {
+        return raw[3] & 0xf;
+    }
+
+    /* Имя первого вопроса в нижнем регистре или null */
+    public byte[] getQname() {
+        return qname;
+    }
+
+    public int getQtype() {
+        return qtype;
+    }
+
+    public int getQclass() {
+        return qclass;
+    }
+
+    /* Размер буфера UDP из OPT или 0, если EDNS нет */
+    public int getUdpSize() {
+        return udpSize;
+    }
+
+    /* Бит DO из OPT: отправитель понимает записи DNSSEC */
+    public boolean isDnssecOk() {
+        return dnssecOk;
+    }
+
+    public ArrayList<ResourceRecord> getAnswers() {
+        return answers;
+    }
+
+    public ArrayList<ResourceRecord> getAuthorities() {
+        return authorities;
+    }
+
+    public ArrayList<ResourceRecord> getAdditionals() {
+        return additionals;
+    }
+
+    public byte[] getRaw() {
+        return raw;
+    }
+
+    public int getLength() {
+        return length;
+    }
+}
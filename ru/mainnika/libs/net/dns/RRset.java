@@ -0,0 +1,197 @@
+package ru.mainnika.libs.net.dns;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Набор записей с общими именем, типом и классом. TTL у всех записей набора
+ * одинаковый (RFC 2181, раздел 5.2), при добавлении берется минимальный.
+ *
+ * @author MainNika
+ */
+public final class RRset {
+
+    private final byte[] name;
+
+    private final int type;
+
+    private final int cl;
+
+    private long ttl;
+
+    private byte[][] rdatas;
+
+    private int size;
+
+    public RRset(byte[] name, int type, int cl, long ttl){
+        this.name = name;
+        this.type = type;
+        this.cl = cl;
+        this.ttl = ttl & 0xffffffffL;
+        this.rdatas = new byte[1][];
+        this.size = 0;
+    }
+
+    public byte[] getName() {
+        return name;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public int getCl() {
+        return cl;
+    }
+
+    public long getTtl() {
+        return ttl;
+    }
+
+    public RRset setTtl(long ttl) {
+        this.ttl = ttl & 0xffffffffL;
+        return this;
+    }
+
+    public int size(){
+        return size;
+    }
+
+    public byte[] getRdataAt(int index){
+        if (index >= size)
+            throw new IndexOutOfBoundsException("Only " + Integer.toString(size) + " contains");
+        return rdatas[index];
+    }
+
+    /* Добавить RDATA, канонические дубликаты игнорируются; возвращает true если набор изменился */
+    public boolean add(byte[] rdata, long ttl){
+        ttl &= 0xffffffffL;
+        if ((size == 0) || (ttl < this.ttl))
+            this.ttl = ttl;
+        if (indexOf(rdata) >= 0)
+            return false;
+        if (size == rdatas.length)
+            rdatas = Arrays.copyOf(rdatas, size * 2);
+        rdatas[size++] = rdata;
+        return true;
+    }
+
+    /* Удалить RDATA; возвращает true если запись была в наборе */
+    public boolean remove(byte[] rdata){
+        int index = indexOf(rdata);
+        if (index < 0)
+            return false;
+        System.arraycopy(rdatas, index + 1, rdatas, index, size - index - 1);
+        rdatas[--size] = null;
+        return true;
+    }
+
+    /* Номер RDATA, равной данной в каноническом виде; -1 если такой нет */
+    public int indexOf(byte[] rdata){
+        for (int i = 0; i < size; i++)
+            if (equalsCanonical(type, rdatas[i], rdata))
+                return i;
+        return -1;
+    }
+
+    /*
+     * Равенство RDATA в каноническом виде (RFC 4034, раздел 6.2, с поправкой
+     * RFC 6840 для NSEC): имена внутри RDATA сравниваются без учета регистра,
+     * остальные байты как есть. Так NS ns1.example. и NS NS1.EXAMPLE. - одна
+     * запись, а не две.
+     */
+    public static boolean equalsCanonical(int type, byte[] a, byte[] b){
+        if (a.length != b.length)
+            return false;
+        int off;
+        int names = 1;
+        switch (type){
+            case Type.NS:
+            case Type.CNAME:
+            case Type.PTR:
+            case Type.DNAME:
+                off = 0;
+                break;
+            case Type.MX:
+                off = 2;
+                break;
+            case Type.SRV:
+                off = 6;
+                break;
+            case Type.SOA:
+                off = 0;
+                names = 2;
+                break;
+            case Type.NAPTR:
+                // порядок и предпочтение, три строки, затем имя замены
+                off = 4;
+                for (int i = 0; (i < 3) && (off < a.length); i++)
+                    off += (a[off] & 0xff) + 1;
+                break;
+            case Type.RRSIG:
+                off = 18;
+                break;
+            default:
+                return Arrays.equals(a, b);
+        }
+        int end = a.length;
+        int p = Math.min(off, end);
+        for (int i = 0; i < p; i++)
+            if (a[i] != b[i])
+                return false;
+        for (int n = 0; (n < names) && (p >= 0); n++)
+            p = equalsName(a, b, p, end);
+        if (p < 0)
+            return false;
+        for (; p < end; p++)
+            if (a[p] != b[p])
+                return false;
+        return true;
+    }
+
+    /*
+     * Сравнение несжатых имен с позиции p без учета регистра; позиция после
+     * имени или -1 при различии. На метке неизвестного типа останавливается,
+     * остаток сравнивается побайтно.
+     */
+    private static int equalsName(byte[] a, byte[] b, int p, int end){
+        while (p < end){
+            int len = a[p] & 0xff;
+            if (len > 63)
+                return p;
+            if (a[p] != b[p])
+                return -1;
+            p++;
+            if (len == 0)
+                return p;
+            for (int k = 0; (k < len) && (p < end); k++, p++)
+                if (Wire.lower(a[p]) != Wire.lower(b[p]))
+                    return -1;
+        }
+        return p;
+    }
+
+    /* Копия набора, используется при изменении неизменяемых снимков */
+    public RRset copy(){
+        RRset ret = new RRset(name, type, cl, ttl);
+        ret.rdatas = Arrays.copyOf(rdatas, Math.max(1, size));
+        ret.size = size;
+        return ret;
+    }
+
+    /* Записи набора, владелец можно подменить (синтез по wildcard) */
+    public void toRecords(byte[] owner, ArrayList<ResourceRecord> buffer){
+        for (int i = 0; i < size; i++)
+            buffer.add(new ResourceRecord(owner, type, cl, ttl, rdatas[i]));
+    }
+
+    public void toRecords(ArrayList<ResourceRecord> buffer){
+        toRecords(name, buffer);
+    }
+
+    @Override
+    public String toString() {
+        return Wire.toString(name) + " " + Long.toString(ttl) + " " + Type.classNameOf(cl)
+                + " " + Type.nameOf(type) + " [" + Integer.toString(size) + "]";
+    }
+}
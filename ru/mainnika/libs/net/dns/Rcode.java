@@ -0,0 +1,35 @@
+package ru.mainnika.libs.net.dns;
+
+/**
+ * Коды состояния ответа (поле RCODE заголовка).
+ *
+ * @author MainNika
+ */
+public final class Rcode {
+
+    public static final byte NOERROR = 0;
+    public static final byte FORMERR = 1;
+    public static final byte SERVFAIL = 2;
+    public static final byte NXDOMAIN = 3;
+    public static final byte NOTIMP = 4;
+    public static final byte REFUSED = 5;
+    public static final byte YXDOMAIN = 6;
+    public static final byte YXRRSET = 7;
+    public static final byte NXRRSET = 8;
+    public static final byte NOTAUTH = 9;
+    public static final byte NOTZONE = 10;
+
+    private static final String[] names = {
+        "NOERROR", "FORMERR", "SERVFAIL", "NXDOMAIN", "NOTIMP", "REFUSED",
+        "YXDOMAIN", "YXRRSET", "NXRRSET", "NOTAUTH", "NOTZONE"
+    };
+
+    private Rcode(){
+    }
+
+    public static String nameOf(int rcode){
+        if ((rcode >= 0) && (rcode < names.length))
+            return names[rcode];
+        return "RCODE" + Integer.toString(rcode);
+    }
+}
@@ -0,0 +1,94 @@
+package ru.mainnika.libs.net.dns;
+
+/**
+ * Ресурсная запись в байтовом представлении: несжатое имя владельца, тип,
+ * класс, TTL и RDATA. Используется хранилищами зон и кэшами, которым не
+ * нужна объектная модель {@link Dns}.
+ *
+ * @author MainNika
+ */
+public final class ResourceRecord {
+
+    /**
+     * Несжатое имя владельца.
+     */
+    private final byte[] name;
+    /**
+     * Тип записи.
+     */
+    private final int type;
+    /**
+     * Класс записи.
+     */
+    private final int cl;
+    /**
+     * Время жизни в секундах (беззнаковое 32-битное).
+     */
+    private final long ttl;
+    /**
+     * RDATA, имена внутри несжатые.
+     */
+    private final byte[] rdata;
+
+    public ResourceRecord(byte[] name, int type, int cl, long ttl, byte[] rdata){
+        this.name = name;
+        this.type = type;
+        this.cl = cl;
+        this.ttl = ttl & 0xffffffffL;
+        this.rdata = rdata;
+    }
+
+    public byte[] getName() {
+        return name;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public int getCl() {
+        return cl;
+    }
+
+    public long getTtl() {
+        return ttl;
+    }
+
+    public byte[] getRdata() {
+        return rdata;
+    }
+
+    /* Та же запись с другим именем владельца (синтез по wildcard) */
+    public ResourceRecord withName(byte[] name){
+        return new ResourceRecord(name, type, cl, ttl, rdata);
+    }
+
+    /* Та же запись с другим TTL */
+    public ResourceRecord withTtl(long ttl){
+        return new ResourceRecord(name, type, cl, ttl, rdata);
+    }
+
+    /* Размер записи в несжатом байтовом виде */
+    public int getSize(){
+        return name.length + 10 + rdata.length;
+    }
+
+    /* Записывает несжатую запись в буфер, возвращает смещение за ней */
+    public int writeTo(byte[] buf, int off){
+        System.arraycopy(name, 0, buf, off, name.length);
+        off += name.length;
+        Wire.put16(buf, off, type);
+        Wire.put16(buf, off + 2, cl);
+        Wire.put32(buf, off + 4, ttl);
+        Wire.put16(buf, off + 8, rdata.length);
+        off += 10;
+        System.arraycopy(rdata, 0, buf, off, rdata.length);
+        return off + rdata.length;
+    }
+
+    @Override
+    public String toString() {
+        return Wire.toString(name) + " " + Long.toString(ttl) + " " + Type.classNameOf(cl)
+                + " " + Type.nameOf(type) + " \\# " + Integer.toString(rdata.length);
+    }
+}
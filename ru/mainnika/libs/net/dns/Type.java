@@ -0,0 +1,120 @@
+package ru.mainnika.libs.net.dns;
+
+import java.util.HashMap;
+
+/**
+ * Числовые коды типов и классов ресурсных записей.
+ *
+ * @author MainNika
+ */
+public final class Type {
+
+    public static final int A = 1;
+    public static final int NS = 2;
+    public static final int CNAME = 5;
+    public static final int SOA = 6;
+    public static final int PTR = 12;
+    public static final int HINFO = 13;
+    public static final int MX = 15;
+    public static final int TXT = 16;
+    public static final int AAAA = 28;
+    public static final int SRV = 33;
+    public static final int NAPTR = 35;
+    public static final int DNAME = 39;
+    public static final int OPT = 41;
+    public static final int DS = 43;
+    public static final int SSHFP = 44;
+    public static final int RRSIG = 46;
+    public static final int NSEC = 47;
+    public static final int DNSKEY = 48;
+    public static final int NSEC3 = 50;
+    public static final int NSEC3PARAM = 51;
+    public static final int TLSA = 52;
+    public static final int SPF = 99;
+    public static final int IXFR = 251;
+    public static final int AXFR = 252;
+    public static final int ANY = 255;
+    public static final int CAA = 257;
+
+    public static final int CLASS_IN = 1;
+    public static final int CLASS_CH = 3;
+    public static final int CLASS_HS = 4;
+    public static final int CLASS_NONE = 254;
+    public static final int CLASS_ANY = 255;
+
+    private static final HashMap<String, Integer> byName = new HashMap<>();
+    private static final String[] byCode = new String[258];
+
+    static {
+        reg("A", A); reg("NS", NS); reg("CNAME", CNAME); reg("SOA", SOA);
+        reg("PTR", PTR); reg("HINFO", HINFO); reg("MX", MX); reg("TXT", TXT);
+        reg("AAAA", AAAA); reg("SRV", SRV); reg("NAPTR", NAPTR); reg("DNAME", DNAME);
+        reg("OPT", OPT); reg("DS", DS); reg("SSHFP", SSHFP); reg("RRSIG", RRSIG);
+        reg("NSEC", NSEC); reg("DNSKEY", DNSKEY); reg("NSEC3", NSEC3);
+        reg("NSEC3PARAM", NSEC3PARAM); reg("TLSA", TLSA); reg("SPF", SPF);
+        reg("IXFR", IXFR); reg("AXFR", AXFR); reg("ANY", ANY); reg("CAA", CAA);
+    }
+
+    private static void reg(String name, int code){
+        byName.put(name, code);
+        byCode[code] = name;
+    }
+
+    private Type(){
+    }
+
+    /* Код типа по мнемонике, поддерживается запись TYPEnnn (RFC 3597); -1 если тип неизвестен */
+    public static int forName(String name){
+        Integer code = byName.get(name.toUpperCase());
+        if (code != null)
+            return code;
+        if ((name.length() > 4) && name.regionMatches(true, 0, "TYPE", 0, 4)){
+            try{
+                int ret = Integer.parseInt(name.substring(4));
+                return ((ret >= 0) && (ret < 65536)) ? ret : -1;
+            }catch(NumberFormatException e){
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /* Мнемоника типа, для неизвестных кодов TYPEnnn */
+    public static String nameOf(int type){
+        if ((type >= 0) && (type < byCode.length) && (byCode[type] != null))
+            return byCode[type];
+        return "TYPE" + Integer.toString(type);
+    }
+
+    /* Код класса по мнемонике; -1 если это не класс */
+    public static int classForName(String name){
+        switch (name.toUpperCase()){
+            case "IN": return CLASS_IN;
+            case "CH": return CLASS_CH;
+            case "HS": return CLASS_HS;
+            case "NONE": return CLASS_NONE;
+            case "ANY": return CLASS_ANY;
+        }
+        if ((name.length() > 5) && name.regionMatches(true, 0, "CLASS", 0, 5)){
+            try{
+                int ret = Integer.parseInt(name.substring(5));
+                return ((ret >= 0) && (ret < 65536)) ? ret : -1;
+            }catch(NumberFormatException e){
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /* Мнемоника класса */
+    public static String classNameOf(int cl){
+        switch (cl){
+            case CLASS_IN: return "IN";
+            case CLASS_CH: return "CH";
+            case CLASS_HS: return "HS";
+            case CLASS_NONE: return "NONE";
+            case CLASS_ANY: return "ANY";
+        }
+        return "CLASS" + Integer.toString(cl);
+    }
+}
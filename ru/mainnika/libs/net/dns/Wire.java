@@ -0,0 +1,451 @@
+package ru.mainnika.libs.net.dns;
+
+import java.util.Arrays;
+
+/**
+ * Низкоуровневые операции над байтовым (wire) представлением DNS: чтение
+ * полей, распаковка сжатых имен и сравнение имен без учета регистра.
+ * Все имена, кроме явно оговоренных случаев, несжатые: последовательность
+ * меток длина+байты, завершенная нулевой меткой.
+ *
+ * Если при запуске добавлен модуль jdk.incubator.vector и собран класс
+ * WireVector из каталога исходников vector/, перевод в нижний регистр и
+ * сравнение имен и меток от {@link #VECTOR_MIN} байт идут через него;
+ * результаты не меняются. Основное дерево на модуль инкубатора не
+ * ссылается и собирается без него.
+ *
+ * @author MainNika
+ */
+public final class Wire {
+
+    /* Максимальная длина имени в байтовом виде */
+    public static final int MAX_NAME = 255;
+
+    /* Максимальное число меток в имени */
+    public static final int MAX_LABELS = 128;
+
+    /* Корневое имя */
+    public static final byte[] ROOT = { 0 };
+
+    /* Короче этого имена и метки обрабатываются скалярно */
+    public static final int VECTOR_MIN = 16;
+
+    /* Векторные операции или null; поле константное, вызовы через него девиртуализуются */
+    private static final WireKernel VECTOR = vector();
+
+    private Wire(){
+    }
+
+    private static WireKernel vector(){
+        if (!ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent())
+            return null;
+        try{
+            WireKernel ret = (WireKernel) Class.forName("ru.mainnika.libs.net.dns.WireVector")
+                    .getDeclaredConstructor().newInstance();
+            return (ret.width() >= VECTOR_MIN) ? ret : null;
+        }catch(ReflectiveOperationException | LinkageError e){
+            // класс не собран или модуль недоступен
+            return null;
+        }
+    }
+
+    /* Идут ли операции над именами через Vector API */
+    public static boolean isVectorized(){
+        return VECTOR != null;
+    }
+
+    public static int u8(byte[] b, int off){
+        return b[off] & 0xff;
+    }
+
+    public static int u16(byte[] b, int off){
+        return ((b[off] & 0xff) << 8) | (b[off + 1] & 0xff);
+    }
+
+    public static long u32(byte[] b, int off){
+        return ((long)(b[off] & 0xff) << 24) | ((b[off + 1] & 0xff) << 16)
+                | ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+    }
+
+    public static void put16(byte[] b, int off, int v){
+        b[off] = (byte) (v >> 8);
+        b[off + 1] = (byte) v;
+    }
+
+    public static void put32(byte[] b, int off, long v){
+        b[off] = (byte) (v >> 24);
+        b[off + 1] = (byte) (v >> 16);
+        b[off + 2] = (byte) (v >> 8);
+        b[off + 3] = (byte) v;
+    }
+
+    /* Смещение сразу за именем (возможно сжатым) внутри сообщения */
+    public static int skipName(byte[] msg, int off, int end) throws DnsException{
+        while (true){
+            if (off >= end)
+                throw new DnsException(DnsException.Kind.TRUNCATED, "Truncated name");
+            int len = msg[off] & 0xff;
+            if (len == 0)
+                return off + 1;
+            if ((len & 0xc0) == 0xc0){
+                if (off + 2 > end)
+                    throw new DnsException(DnsException.Kind.TRUNCATED, "Truncated name");
+                return off + 2;
+            }
+            if ((len & 0xc0) != 0)
+                throw new DnsException(DnsException.Kind.BAD_NAME, "Invalid label type");
+            off += len + 1;
+        }
+    }
+
+    public static int skipName(byte[] msg, int off) throws DnsException{
+        return skipName(msg, off, msg.length);
+    }
+
+    /* Распаковывает имя из сообщения в dst, возвращает длину несжатого имени */
+    public static int readName(byte[] msg, int off, int end, byte[] dst, int dstOff) throws DnsException{
+        int pos = dstOff;
+        int jumps = 0;
+        while (true){
+            if (off >= end)
+                throw new DnsException(DnsException.Kind.TRUNCATED, "Truncated name");
+            int len = msg[off] & 0xff;
+            if ((len & 0xc0) == 0xc0){
+                if (off + 2 > end)
+                    throw new DnsException(DnsException.Kind.TRUNCATED, "Truncated name");
+                if (++jumps > MAX_LABELS)
+                    throw new DnsException(DnsException.Kind.BAD_NAME, "Compression loop");
+                off = ((len & 0x3f) << 8) | (msg[off + 1] & 0xff);
+                continue;
+            }
+            if ((len & 0xc0) != 0)
+                throw new DnsException(DnsException.Kind.BAD_NAME, "Invalid label type");
+            if (pos - dstOff + len + 1 > MAX_NAME)
+                throw new DnsException(DnsException.Kind.BAD_NAME, "Name too long");
+            if (off + len + 1 > end)
+                throw new DnsException(DnsException.Kind.TRUNCATED, "Truncated name");
+            dst[pos++] = (byte) len;
+            if (len == 0)
+                return pos - dstOff;
+            System.arraycopy(msg, off + 1, dst, pos, len);
+            pos += len;
+            off += len + 1;
+        }
+    }
+
+    public static int readName(byte[] msg, int off, byte[] dst, int dstOff) throws DnsException{
+        return readName(msg, off, msg.length, dst, dstOff);
+    }
+
+    /* Распаковывает имя из сообщения в новый массив */
+    public static byte[] readName(byte[] msg, int off) throws DnsException{
+        byte[] buf = new byte[MAX_NAME];
+        int len = readName(msg, off, msg.length, buf, 0);
+        return Arrays.copyOf(buf, len);
+    }
+
+    /* Длина несжатого имени */
+    public static int nameLength(byte[] name, int off){
+        int pos = off;
+        while (name[pos] != 0)
+            pos += (name[pos] & 0xff) + 1;
+        return pos - off + 1;
+    }
+
+    /* Количество меток без учета корневой */
+    public static int labelCount(byte[] name, int off){
+        int ret = 0;
+        while (name[off] != 0){
+            off += (name[off] & 0xff) + 1;
+            ret++;
+        }
+        return ret;
+    }
+
+    /* Смещение родительского имени (отбрасывается первая метка) */
+    public static int parent(byte[] name, int off){
+        return (name[off] == 0) ? off : off + (name[off] & 0xff) + 1;
+    }
+
+    public static byte lower(byte b){
+        return ((b >= 'A') && (b <= 'Z')) ? (byte) (b + 32) : b;
+    }
+
+    /* Приводит несжатое имя к нижнему регистру на месте */
+    public static void toLowerCase(byte[] name, int off){
+        if (VECTOR != null){
+            int len = nameLength(name, off);
+            if (len >= VECTOR_MIN){
+                VECTOR.toLowerCase(name, off, off + len - 1);
+                return;
+            }
+        }
+        while (name[off] != 0){
+            int len = name[off] & 0xff;
+            for (int i = off + 1; i <= off + len; i++)
+                name[i] = lower(name[i]);
+            off += len + 1;
+        }
+    }
+
+    /* Сравнение двух несжатых имен без учета регистра ASCII */
+    public static boolean equalsIgnoreCase(byte[] a, int aOff, byte[] b, int bOff){
+        if (VECTOR != null){
+            int len = nameLength(a, aOff);
+            if (len >= VECTOR_MIN)
+                return (len == nameLength(b, bOff)) && (VECTOR.mismatch(a, aOff, b, bOff, len) < 0);
+        }
+        while (true){
+            int len = a[aOff] & 0xff;
+            if (len != (b[bOff] & 0xff))
+                return false;
+            if (len == 0)
+                return true;
+            for (int i = 1; i <= len; i++)
+                if (lower(a[aOff + i]) != lower(b[bOff + i]))
+                    return false;
+            aOff += len + 1;
+            bOff += len + 1;
+        }
+    }
+
+    public static boolean equalsIgnoreCase(byte[] a, byte[] b){
+        return equalsIgnoreCase(a, 0, b, 0);
+    }
+
+    /* Сравнение метки name[off] с меткой label[lOff] без учета регистра */
+    public static boolean labelEquals(byte[] name, int off, byte[] label, int lOff){
+        int len = name[off] & 0xff;
+        if (len != (label[lOff] & 0xff))
+            return false;
+        if ((VECTOR != null) && (len >= VECTOR_MIN))
+            return VECTOR.mismatch(name, off + 1, label, lOff + 1, len) < 0;
+        for (int i = 1; i <= len; i++)
+            if (lower(name[off + i]) != lower(label[lOff + i]))
+                return false;
+        return true;
+    }
+
+    /* Хэш метки без учета регистра */
+    public static int labelHash(byte[] name, int off){
+        int len = name[off] & 0xff;
+        int h = len;
+        for (int i = 1; i <= len; i++)
+            h = 31 * h + lower(name[off + i]);
+        return h ^ (h >>> 16);
+    }
+
+    /* Хэш несжатого имени без учета регистра */
+    public static int hashIgnoreCase(byte[] name, int off){
+        int h = 1;
+        while (true){
+            int len = name[off] & 0xff;
+            h = 31 * h + len;
+            if (len == 0)
+                return h ^ (h >>> 16);
+            for (int i = 1; i <= len; i++)
+                h = 31 * h + lower(name[off + i]);
+            off += len + 1;
+        }
+    }
+
+    /* Заполняет offsets смещениями меток, возвращает их количество */
+    public static int labelOffsets(byte[] name, int off, int[] offsets){
+        int ret = 0;
+        while (name[off] != 0){
+            offsets[ret++] = off;
+            off += (name[off] & 0xff) + 1;
+        }
+        return ret;
+    }
+
+    /* Каноническое упорядочивание имен (RFC 4034, раздел 6.1) */
+    public static int compareCanonical(byte[] a, int aOff, byte[] b, int bOff){
+        int[] la = new int[MAX_LABELS];
+        int[] lb = new int[MAX_LABELS];
+        int na = labelOffsets(a, aOff, la);
+        int nb = labelOffsets(b, bOff, lb);
+        while ((na > 0) && (nb > 0)){
+            int ret = compareLabel(a, la[--na], b, lb[--nb]);
+            if (ret != 0)
+                return ret;
+        }
+        return na - nb;
+    }
+
+    public static int compareCanonical(byte[] a, byte[] b){
+        return compareCanonical(a, 0, b, 0);
+    }
+
+    /* Сравнение меток как беззнаковых строк в нижнем регистре */
+    public static int compareLabel(byte[] a, int aOff, byte[] b, int bOff){
+        int alen = a[aOff] & 0xff;
+        int blen = b[bOff] & 0xff;
+        int len = Math.min(alen, blen);
+        if ((VECTOR != null) && (len >= VECTOR_MIN)){
+            int i = VECTOR.mismatch(a, aOff + 1, b, bOff + 1, len);
+            return (i < 0) ? alen - blen : (lower(a[aOff + 1 + i]) & 0xff) - (lower(b[bOff + 1 + i]) & 0xff);
+        }
+        for (int i = 1; i <= len; i++){
+            int ret = (lower(a[aOff + i]) & 0xff) - (lower(b[bOff + i]) & 0xff);
+            if (ret != 0)
+                return ret;
+        }
+        return alen - blen;
+    }
+
+    /* Является ли name поддоменом parent (или совпадает с ним) */
+    public static boolean isSubdomain(byte[] name, int off, byte[] parent, int pOff){
+        int skip = labelCount(name, off) - labelCount(parent, pOff);
+        if (skip < 0)
+            return false;
+        while (skip-- > 0)
+            off += (name[off] & 0xff) + 1;
+        return equalsIgnoreCase(name, off, parent, pOff);
+    }
+
+    public static boolean isSubdomain(byte[] name, byte[] parent){
+        return isSubdomain(name, 0, parent, 0);
+    }
+
+    /* Является ли первая метка имени меткой "*" */
+    public static boolean isWildcard(byte[] name, int off){
+        return (name[off] == 1) && (name[off + 1] == '*');
+    }
+
+    /* Склеивает относительную часть (без корневой метки) с суффиксом */
+    public static byte[] concat(byte[] prefix, int pOff, int pLen, byte[] suffix, int sOff) throws DnsException{
+        int sLen = nameLength(suffix, sOff);
+        if (pLen + sLen > MAX_NAME)
+            throw new DnsException(DnsException.Kind.BAD_NAME, "Name too long");
+        byte[] ret = new byte[pLen + sLen];
+        System.arraycopy(prefix, pOff, ret, 0, pLen);
+        System.arraycopy(suffix, sOff, ret, pLen, sLen);
+        return ret;
+    }
+
+    /* Копия несжатого имени, начиная со смещения */
+    public static byte[] copyName(byte[] name, int off){
+        return Arrays.copyOfRange(name, off, off + nameLength(name, off));
+    }
+
+    /* Абсолютное имя из текстового представления */
+    public static byte[] fromString(String name) throws DnsException{
+        return fromString(name, null);
+    }
+
+    /*
+     * Имя из текстового представления с поддержкой экранирования \X и \DDD.
+     * Имя без завершающей точки считается относительным и дополняется origin,
+     * если он задан.
+     */
+    public static byte[] fromString(String name, byte[] origin) throws DnsException{
+        if (name.equals("."))
+            return ROOT.clone();
+        if (name.equals("@")){
+            if (origin == null)
+                throw new DnsException("No origin for @");
+            return origin.clone();
+        }
+        byte[] buf = new byte[MAX_NAME + 1];
+        int pos = 0;
+        int labelStart = 0;
+        int labelLen = 0;
+        boolean absolute = false;
+        int length = name.length();
+        for (int i = 0; i < length; i++){
+            char c = name.charAt(i);
+            int b;
+            if (c == '\\'){
+                if (i + 1 >= length)
+                    throw new DnsException(DnsException.Kind.BAD_NAME, "Bad escape in " + name);
+                char n = name.charAt(++i);
+                if ((n >= '0') && (n <= '9')){
+                    if (i + 2 >= length)
+                        throw new DnsException(DnsException.Kind.BAD_NAME, "Bad escape in " + name);
+                    b = (n - '0') * 100 + (name.charAt(i + 1) - '0') * 10 + (name.charAt(i + 2) - '0');
+                    if (b > 255)
+                        throw new DnsException(DnsException.Kind.BAD_NAME, "Bad escape in " + name);
+                    i += 2;
+                }else{
+                    b = n;
+                }
+            }else if (c == '.'){
+                if (labelLen == 0)
+                    throw new DnsException(DnsException.Kind.BAD_NAME, "Empty label in " + name);
+                buf[labelStart] = (byte) labelLen;
+                labelLen = 0;
+                if (i + 1 == length){
+                    absolute = true;
+                    break;
+                }
+                continue;
+            }else{
+                b = c;
+            }
+            if (labelLen == 0){
+                labelStart = pos++;
+            }
+            if (++labelLen > 63)
+                throw new DnsException(DnsException.Kind.BAD_NAME, "Label too long in " + name);
+            if (pos >= MAX_NAME)
+                throw new DnsException(DnsException.Kind.BAD_NAME, "Name too long: " + name);
+            buf[pos++] = (byte) b;
+        }
+        if (labelLen > 0)
+            buf[labelStart] = (byte) labelLen;
+        if (absolute || (origin == null)){
+            if (pos + 1 > MAX_NAME)
+                throw new DnsException(DnsException.Kind.BAD_NAME, "Name too long: " + name);
+            buf[pos++] = 0;
+            return Arrays.copyOf(buf, pos);
+        }
+        return concat(buf, 0, pos, origin, 0);
+    }
+
+    /* Текстовое представление несжатого имени с завершающей точкой */
+    public static String toString(byte[] name, int off){
+        if (name[off] == 0)
+            return ".";
+        StringBuilder sb = new StringBuilder(64);
+        appendName(sb, name, off);
+        return sb.toString();
+    }
+
+    public static String toString(byte[] name){
+        return toString(name, 0);
+    }
+
+    /* Дописывает текстовое представление имени в sb */
+    public static void appendName(StringBuilder sb, byte[] name, int off){
+        if (name[off] == 0){
+            sb.append('.');
+            return;
+        }
+        while (name[off] != 0){
+            int len = name[off] & 0xff;
+            for (int i = off + 1; i <= off + len; i++)
+                appendEscaped(sb, name[i] & 0xff);
+            sb.append('.');
+            off += len + 1;
+        }
+    }
+
+    /* Экранирование одного байта метки */
+    public static void appendEscaped(StringBuilder sb, int b){
+        if ((b <= 0x20) || (b >= 0x7f)){
+            sb.append('\\');
+            if (b < 100)
+                sb.append('0');
+            if (b < 10)
+                sb.append('0');
+            sb.append(b);
+        }else{
+            switch (b){
+                case '.': case '\\': case '"': case '(': case ')': case ';': case '@': case '$':
+                    sb.append('\\');
+            }
+            sb.append((char) b);
+        }
+    }
+}
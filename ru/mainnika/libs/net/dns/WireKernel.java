@@ -0,0 +1,21 @@
+package ru.mainnika.libs.net.dns;
+
+/**
+ * Операции {@link Wire} над байтами имени, у которых есть векторный
+ * вариант. Реализация на jdk.incubator.vector лежит в отдельном каталоге
+ * исходников vector/ и подгружается по имени класса, поэтому основное
+ * дерево собирается и работает без модуля инкубатора.
+ *
+ * @author MainNika
+ */
+interface WireKernel {
+
+    /* Ширина шага в байтах */
+    int width();
+
+    /* Нижний регистр b[from, to) на месте */
+    void toLowerCase(byte[] b, int from, int to);
+
+    /* Индекс первого различия a[aOff..] и b[bOff..] без учета регистра на длине len или -1 */
+    int mismatch(byte[] a, int aOff, byte[] b, int bOff, int len);
+}
@@ -0,0 +1,308 @@
+package ru.mainnika.libs.net.dns.cache;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import ru.mainnika.libs.net.dns.RRset;
+import ru.mainnika.libs.net.dns.ResourceRecord;
+import ru.mainnika.libs.net.dns.Type;
+import ru.mainnika.libs.net.dns.Wire;
+
+/**
+ * Снимок кэша в файле для теплого перезапуска. Снимок пишется во временный
+ * файл и атомарно переименовывается, поэтому прерванная запись не портит
+ * предыдущий. Загрузка читает файл последовательно через отображение в
+ * память окнами и пропускает истекшие записи по заголовку, не разбирая их.
+ *
+ * Формат (все числа big-endian): заголовок 32 байта (магия, версия, число
+ * записей, время сохранения), затем записи. Запись: длина записи (4 байта),
+ * момент истечения в миллисекундах от эпохи (8), тип, класс, доверие,
+ * код ответа, длина имени и имя. Далее для набора: число RDATA и RDATA с
+ * 2-байтовой длиной; для отрицательного ответа: длина RDATA SOA (0, если SOA
+ * нет), TTL, имя владельца и RDATA SOA.
+ *
+ * @author MainNika
+ */
+public final class CacheSnapshot implements Closeable {
+
+    static final byte[] MAGIC = { 'D', 'N', 'S', 'C', 'A', 'C', 'H', 'E' };
+
+    static final int VERSION = 1;
+
+    static final int HEADER = 32;
+
+    /* Окно отображения при загрузке */
+    private static final long WINDOW = 64L << 20;
+
+    /* Записи крупнее не сохраняются: они должны помещаться в окно */
+    private static final int MAX_ENTRY = 1 << 20;
+
+    private static final int FLAG_NEGATIVE = 0x80;
+
+    /* Запись без RDATA с корневым именем */
+    private static final int MIN_ENTRY = 22;
+
+    private final RecordCache cache;
+
+    private final Path file;
+
+    private ScheduledExecutorService scheduler;
+
+    private Thread hook;
+
+    public CacheSnapshot(RecordCache cache, Path file){
+        this.cache = cache;
+        this.file = file;
+    }
+
+    /* Записывает живые записи кэша; возвращает их число */
+    public synchronized long save() throws IOException{
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        long count;
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)){
+            Writer writer = new Writer(channel);
+            cache.forEach(writer);
+            if (writer.error != null)
+                throw writer.error;
+            writer.flush();
+            count = writer.count;
+            ByteBuffer head = ByteBuffer.allocate(HEADER);
+            head.put(MAGIC).putInt(VERSION).putInt(0).putLong(count).putLong(System.currentTimeMillis()).flip();
+            channel.write(head, 0);
+            channel.force(false);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return count;
+    }
+
+    /* Загружает записи, которые еще не истекли; возвращает их число, 0 если файла нет */
+    public long load() throws IOException{
+        long now = System.currentTimeMillis();
+        long loaded = 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)){
+            long size = channel.size();
+            ByteBuffer head = ByteBuffer.allocate(HEADER);
+            if ((size < HEADER) || (channel.read(head, 0) != HEADER))
+                throw new IOException("Not a cache snapshot");
+            for (int i = 0; i < MAGIC.length; i++)
+                if (head.get(i) != MAGIC[i])
+                    throw new IOException("Not a cache snapshot");
+            if (head.getInt(8) != VERSION)
+                throw new IOException("Unsupported cache snapshot version " + Integer.toString(head.getInt(8)));
+            long count = head.getLong(16);
+            long base = HEADER;
+            MappedByteBuffer window = null;
+            for (long i = 0; i < count; i++){
+                if ((window == null) || (window.remaining() < 4) || (window.remaining() < window.getInt(window.position()))){
+                    base += (window == null) ? 0 : window.position();
+                    if (size - base < 4)
+                        throw new IOException("Truncated cache snapshot");
+                    window = channel.map(FileChannel.MapMode.READ_ONLY, base, Math.min(WINDOW, size - base));
+                    if (window.remaining() < window.getInt(0))
+                        throw new IOException("Truncated cache snapshot");
+                }
+                int start = window.position();
+                int length = window.getInt();
+                if (length < MIN_ENTRY)
+                    throw new IOException("Malformed cache snapshot");
+                if (window.getLong() > now){
+                    window.position(start);
+                    if (cache.put(read(window)))
+                        loaded++;
+                }
+                window.position(start + length);
+            }
+        }catch(NoSuchFileException e){
+            return 0;
+        }catch(RuntimeException e){
+            // длины внутри записи не сходятся с ее размером
+            throw new IOException("Malformed cache snapshot", e);
+        }
+        return loaded;
+    }
+
+    private static RecordCache.Entry read(ByteBuffer in) throws IOException{
+        in.getInt();
+        long expires = in.getLong();
+        int type = in.getShort() & 0xffff;
+        int cl = in.getShort() & 0xffff;
+        int rank = in.get() & 0xff;
+        int rcode = in.get() & 0xff;
+        byte[] name = name(in);
+        if ((rcode & FLAG_NEGATIVE) == 0){
+            RRset set = new RRset(name, type, cl, 0);
+            int n = in.getShort() & 0xffff;
+            long ttl = Math.max(0, (expires - System.currentTimeMillis()) / 1000);
+            for (int i = 0; i < n; i++)
+                set.add(bytes(in, in.getShort() & 0xffff), ttl);
+            return new RecordCache.Entry(name, type, cl, expires, rank, set, rcode, null);
+        }
+        int rdlength = in.getShort() & 0xffff;
+        ResourceRecord soa = null;
+        if (rdlength != 0){
+            long ttl = in.getInt() & 0xffffffffL;
+            byte[] owner = name(in);
+            soa = new ResourceRecord(owner, Type.SOA, cl, ttl, bytes(in, rdlength));
+        }
+        return new RecordCache.Entry(name, type, cl, expires, rank, null, rcode & ~FLAG_NEGATIVE, soa);
+    }
+
+    private static byte[] name(ByteBuffer in) throws IOException{
+        byte[] ret = bytes(in, in.get() & 0xff);
+        if ((ret.length == 0) || (Wire.nameLength(ret, 0) != ret.length))
+            throw new IOException("Malformed name in cache snapshot");
+        return ret;
+    }
+
+    private static byte[] bytes(ByteBuffer in, int length){
+        byte[] ret = new byte[length];
+        in.get(ret);
+        return ret;
+    }
+
+    /* ———————————————————— Расписание —————————————————————— */
+
+    /* Периодическое сохранение из фонового потока */
+    public synchronized CacheSnapshot schedule(long period, TimeUnit unit){
+        if (scheduler == null){
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "dns-cache-snapshot");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        scheduler.scheduleWithFixedDelay(() -> {
+            try{
+                save();
+            }catch(IOException e){
+                // следующее сохранение попробует снова, прежний снимок цел
+            }
+        }, period, period, unit);
+        return this;
+    }
+
+    /* Сохранение при остановке JVM */
+    public synchronized CacheSnapshot saveOnShutdown(){
+        if (hook == null){
+            hook = new Thread(() -> {
+                try{
+                    save();
+                }catch(IOException e){
+                    // при остановке сообщить некому
+                }
+            }, "dns-cache-snapshot-shutdown");
+            Runtime.getRuntime().addShutdownHook(hook);
+        }
+        return this;
+    }
+
+    /* Останавливает расписание и сохраняет снимок в последний раз */
+    @Override
+    public void close() throws IOException {
+        synchronized (this){
+            if (scheduler != null)
+                scheduler.shutdownNow();
+            scheduler = null;
+            if (hook != null){
+                try{
+                    Runtime.getRuntime().removeShutdownHook(hook);
+                }catch(IllegalStateException e){
+                    // JVM уже останавливается, хук сработает сам
+                }
+                hook = null;
+            }
+        }
+        save();
+    }
+
+    /**
+     * Последовательная запись в канал через один буфер.
+     */
+    private static final class Writer implements Consumer<RecordCache.Entry> {
+
+        private final FileChannel channel;
+
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(4 << 20);
+
+        private long position = HEADER;
+
+        private long count;
+
+        private IOException error;
+
+        private Writer(FileChannel channel){
+            this.channel = channel;
+        }
+
+        @Override
+        public void accept(RecordCache.Entry e) {
+            if (error != null)
+                return;
+            int size = size(e);
+            if (size > MAX_ENTRY)
+                return;
+            try{
+                if (buffer.remaining() < size)
+                    flush();
+                ByteBuffer out = buffer;
+                out.putInt(size).putLong(e.getExpires()).putShort((short) e.getType()).putShort((short) e.getCl())
+                        .put((byte) e.getRank()).put((byte) (e.getRcode() | (e.isNegative() ? FLAG_NEGATIVE : 0)));
+                putName(out, e.getName());
+                RRset set = e.getSet();
+                if (set != null){
+                    out.putShort((short) set.size());
+                    for (int i = 0; i < set.size(); i++){
+                        byte[] rdata = set.getRdataAt(i);
+                        out.putShort((short) rdata.length).put(rdata);
+                    }
+                }else if (e.getSoa() == null){
+                    out.putShort((short) 0);
+                }else{
+                    ResourceRecord soa = e.getSoa();
+                    out.putShort((short) soa.getRdata().length).putInt((int) soa.getTtl());
+                    putName(out, soa.getName());
+                    out.put(soa.getRdata());
+                }
+                count++;
+            }catch(IOException ex){
+                error = ex;
+            }
+        }
+
+        private static void putName(ByteBuffer out, byte[] name){
+            int length = Wire.nameLength(name, 0);
+            out.put((byte) length).put(name, 0, length);
+        }
+
+        private static int size(RecordCache.Entry e){
+            int ret = 4 + 8 + 2 + 2 + 1 + 1 + 1 + Wire.nameLength(e.getName(), 0) + 2;
+            RRset set = e.getSet();
+            if (set != null){
+                for (int i = 0; i < set.size(); i++)
+                    ret += 2 + set.getRdataAt(i).length;
+            }else if (e.getSoa() != null){
+                ret += 4 + 1 + Wire.nameLength(e.getSoa().getName(), 0) + e.getSoa().getRdata().length;
+            }
+            return ret;
+        }
+
+        private void flush() throws IOException{
+            buffer.flip();
+            while (buffer.hasRemaining())
+                position += channel.write(buffer, position);
+            buffer.clear();
+        }
+    }
+}
@@ -0,0 +1,351 @@
+package ru.mainnika.libs.net.dns.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import jdk.jfr.EventType;
+import ru.mainnika.libs.net.dns.RRset;
+import ru.mainnika.libs.net.dns.Rcode;
+import ru.mainnika.libs.net.dns.ResourceRecord;
+import ru.mainnika.libs.net.dns.Type;
+import ru.mainnika.libs.net.dns.Wire;
+import ru.mainnika.libs.net.dns.jfr.CacheLookupEvent;
+
+/**
+ * Кэш наборов записей и отрицательных ответов. Ключ - имя без учета
+ * регистра и тип; NXDOMAIN хранится на все имя под типом 0. Время жизни
+ * хранится как абсолютный момент истечения в миллисекундах от эпохи, поэтому
+ * записи переживают сохранение и загрузку. Данные с меньшим доверием не
+ * заменяют более надежные, пока те не истекли (RFC 2181, раздел 5.4.1).
+ *
+ * @author MainNika
+ */
+public final class RecordCache {
+
+    /* Доверие к данным по убыванию надежности источника */
+    public static final int RANK_GLUE = 1;
+    public static final int RANK_AUTHORITY = 2;
+    public static final int RANK_ANSWER = 3;
+    public static final int RANK_AUTH_ANSWER = 4;
+
+    private static final EventType LOOKUP_EVENT = EventType.getEventType(CacheLookupEvent.class);
+
+    /* Тип ключа для NXDOMAIN: отсутствует имя целиком */
+    static final int NAME = 0;
+
+    private final ConcurrentHashMap<Key, Entry> map = new ConcurrentHashMap<>();
+
+    private final int maxEntries;
+
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    private volatile long maxTtl = 86400;
+
+    private volatile long maxNegativeTtl = 10800;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    public RecordCache(int maxEntries){
+        this.maxEntries = maxEntries;
+    }
+
+    /* Верхняя граница TTL положительных записей в секундах */
+    public RecordCache setMaxTtl(long maxTtl) {
+        this.maxTtl = maxTtl;
+        return this;
+    }
+
+    public RecordCache setMaxNegativeTtl(long maxNegativeTtl) {
+        this.maxNegativeTtl = maxNegativeTtl;
+        return this;
+    }
+
+    /*
+     * Набор записей или отрицательный ответ для имени и типа; null, если в
+     * кэше ничего нет или запись истекла. NXDOMAIN на имя возвращается для
+     * любого типа.
+     */
+    public Entry get(byte[] name, int type){
+        // событие создается только при включенной записи: поиск идет на каждый запрос
+        CacheLookupEvent event = LOOKUP_EVENT.isEnabled() ? new CacheLookupEvent() : null;
+        if (event != null)
+            event.begin();
+        long now = System.currentTimeMillis();
+        Key key = Key.of(name, type);
+        Entry ret = map.get(key);
+        if ((ret == null) || (ret.expires <= now)){
+            Entry nx = map.get(key.with(NAME));
+            if ((nx != null) && (nx.expires > now))
+                ret = nx;
+        }
+        String outcome;
+        if (ret == null){
+            outcome = CacheLookupEvent.MISS;
+        }else if (ret.expires <= now){
+            outcome = CacheLookupEvent.EXPIRED;
+            map.remove(key, ret);
+            ret = null;
+        }else{
+            outcome = ret.isNegative() ? CacheLookupEvent.NEGATIVE : CacheLookupEvent.HIT;
+        }
+        if (ret == null)
+            misses.increment();
+        else
+            hits.increment();
+        if (event == null)
+            return ret;
+        event.end();
+        if (event.shouldCommit()){
+            event.setQuestion(name, type);
+            event.outcome = outcome;
+            event.ttl = (ret == null) ? 0 : ret.getTtl(now);
+            event.commit();
+        }
+        return ret;
+    }
+
+    /* Положительный набор; false, если в кэше уже есть более надежные живые данные */
+    public boolean put(RRset set, int rank){
+        return put(entry(set, rank));
+    }
+
+    /*
+     * Отрицательный ответ: NXDOMAIN на все имя или NODATA на тип. TTL берется
+     * из SOA по RFC 2308: меньшее из TTL записи и поля MINIMUM.
+     */
+    public boolean putNegative(byte[] name, int type, int rcode, ResourceRecord soa, int rank){
+        return put(negative(name, type, rcode, soa, rank));
+    }
+
+    /* Запись для набора с ограничениями TTL этого кэша, без вставки */
+    public Entry entry(RRset set, int rank){
+        long ttl = Math.min(set.getTtl(), maxTtl);
+        return new Entry(set.getName(), set.getType(), set.getCl(), expiry(ttl), rank, set, Rcode.NOERROR, null);
+    }
+
+    /* Запись для отрицательного ответа, как в {@link #putNegative}, без вставки */
+    public Entry negative(byte[] name, int type, int rcode, ResourceRecord soa, int rank){
+        long ttl = maxNegativeTtl;
+        if (soa != null){
+            byte[] rdata = soa.getRdata();
+            ttl = Math.min(ttl, Math.min(soa.getTtl(), Wire.u32(rdata, rdata.length - 4)));
+        }
+        int keyType = (rcode == Rcode.NXDOMAIN) ? NAME : type;
+        return new Entry(name, keyType, Type.CLASS_IN, expiry(ttl), rank, null, rcode, soa);
+    }
+
+    /* Вставка готовой записи, например из снимка */
+    public boolean put(Entry entry){
+        long now = System.currentTimeMillis();
+        if (entry.expires <= now)
+            return false;
+        Key key = new Key(entry.name, entry.type);
+        while (true){
+            Entry old = map.get(key);
+            if ((old != null) && (old.expires > now) && (old.rank > entry.rank))
+                return false;
+            if ((old == null) ? (map.putIfAbsent(key, entry) == null) : map.replace(key, old, entry))
+                break;
+        }
+        if (map.size() > maxEntries)
+            evict(now);
+        return true;
+    }
+
+    private static long expiry(long ttl){
+        return System.currentTimeMillis() + ttl * 1000;
+    }
+
+    public void remove(byte[] name, int type){
+        map.remove(Key.of(name, type));
+    }
+
+    /* Удаляет истекшие записи, при переполнении - еще десятую часть */
+    private void evict(long now){
+        if (!evicting.compareAndSet(false, true))
+            return;
+        try{
+            purge(now);
+            int excess = map.size() - maxEntries * 9 / 10;
+            for (Iterator<Entry> it = map.values().iterator(); it.hasNext() && (excess > 0); excess--){
+                it.next();
+                it.remove();
+            }
+        }finally{
+            evicting.set(false);
+        }
+    }
+
+    public void purge(){
+        purge(System.currentTimeMillis());
+    }
+
+    private void purge(long now){
+        map.values().removeIf(e -> e.expires <= now);
+    }
+
+    public int size(){
+        return map.size();
+    }
+
+    public void clear(){
+        map.clear();
+    }
+
+    /* Обход живых записей, порядок не определен */
+    public void forEach(Consumer<Entry> action){
+        long now = System.currentTimeMillis();
+        for (Entry e : map.values())
+            if (e.expires > now)
+                action.accept(e);
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Запись кэша: положительный набор или отрицательный ответ с SOA.
+     */
+    public static final class Entry {
+
+        private final byte[] name;
+
+        private final int type;
+
+        private final int cl;
+
+        private final long expires;
+
+        private final int rank;
+
+        private final RRset set;
+
+        private final int rcode;
+
+        private final ResourceRecord soa;
+
+        public Entry(byte[] name, int type, int cl, long expires, int rank, RRset set, int rcode, ResourceRecord soa){
+            this.name = Wire.copyName(name, 0);
+            Wire.toLowerCase(this.name, 0);
+            this.type = type;
+            this.cl = cl;
+            this.expires = expires;
+            this.rank = rank;
+            this.set = set;
+            this.rcode = rcode;
+            this.soa = soa;
+        }
+
+        public byte[] getName() {
+            return name;
+        }
+
+        /* Тип набора; 0 для NXDOMAIN */
+        public int getType() {
+            return type;
+        }
+
+        public int getCl() {
+            return cl;
+        }
+
+        /* Момент истечения в миллисекундах от эпохи */
+        public long getExpires() {
+            return expires;
+        }
+
+        public int getRank() {
+            return rank;
+        }
+
+        /* Набор записей, null для отрицательного ответа */
+        public RRset getSet() {
+            return set;
+        }
+
+        public boolean isNegative() {
+            return set == null;
+        }
+
+        /* NXDOMAIN или NOERROR (NODATA) для отрицательного ответа */
+        public int getRcode() {
+            return rcode;
+        }
+
+        public ResourceRecord getSoa() {
+            return soa;
+        }
+
+        /* Оставшееся время жизни в секундах */
+        public long getTtl(long now){
+            return Math.max(0, (expires - now) / 1000);
+        }
+
+        /* Записи набора (или SOA отрицательного ответа) с оставшимся TTL */
+        public void toRecords(long now, ArrayList<ResourceRecord> buffer){
+            long ttl = getTtl(now);
+            if (set != null){
+                for (int i = 0; i < set.size(); i++)
+                    buffer.add(new ResourceRecord(set.getName(), set.getType(), set.getCl(), ttl, set.getRdataAt(i)));
+            }else if (soa != null){
+                buffer.add(soa.withTtl(Math.min(ttl, soa.getTtl())));
+            }
+        }
+
+        @Override
+        public String toString() {
+            return Wire.toString(name) + " " + Type.nameOf(type) + " rank " + Integer.toString(rank)
+                    + ((set != null) ? " " + set : " " + Rcode.nameOf(rcode));
+        }
+    }
+
+    private static final class Key {
+
+        private final byte[] name;
+
+        private final int type;
+
+        private final int hash;
+
+        /* Имя уже в нижнем регистре */
+        private Key(byte[] lower, int type){
+            this.name = lower;
+            this.type = type;
+            this.hash = Arrays.hashCode(lower) * 31 + type;
+        }
+
+        private static Key of(byte[] name, int type){
+            byte[] lower = Wire.copyName(name, 0);
+            Wire.toLowerCase(lower, 0);
+            return new Key(lower, type);
+        }
+
+        private Key with(int type){
+            return new Key(name, type);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key k = (Key) o;
+            return (type == k.type) && Arrays.equals(name, k.name);
+        }
+    }
+}
@@ -0,0 +1,491 @@
+package ru.mainnika.libs.net.dns.cluster;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.crypto.Mac;
+import ru.mainnika.libs.net.dns.DnsException;
+import ru.mainnika.libs.net.dns.RRset;
+import ru.mainnika.libs.net.dns.ResourceRecord;
+import ru.mainnika.libs.net.dns.Wire;
+import ru.mainnika.libs.net.dns.cache.RecordCache;
+import ru.mainnika.libs.net.dns.resolver.Resolver;
+import ru.mainnika.libs.net.dns.server.UdpServer;
+
+/**
+ * Кэш, распределенный между узлами резолверов. Владелец ключа (имя, тип)
+ * выбирается по {@link HashRing}: свои ключи узел хранит в обычном
+ * {@link RecordCache}, за чужими обращается к владельцу и кладет ответ в
+ * небольшой ближний кэш с коротким временем жизни. Разрешенный узлом ответ
+ * на чужой ключ уходит владельцу, так что каждое имя спрашивается у
+ * внешних серверов один раз на кластер, а память кэшей не дублируется.
+ * Отрицательный ответ размещается по типу вопроса, как он и ищется.
+ *
+ * Узлы обмениваются сообщениями {@link ClusterProtocol} по UDP; ответ,
+ * который не помещается в датаграмму, и такой же PUT идут по TCP на тот же
+ * порт. Недоступный владелец считается промахом: узел разрешает имя сам.
+ * Сообщения принимаются только с адресов узлов кольца и только с верной
+ * подписью общим ключом кластера. Принятая запись не получает доверия выше
+ * {@link RecordCache#RANK_ANSWER} и живет не дольше, чем позволяют
+ * ограничения TTL своего кэша.
+ *
+ * @author MainNika
+ */
+public final class ClusterCache implements Closeable {
+
+    private final RecordCache local;
+
+    private final RecordCache near;
+
+    private final HashRing ring;
+
+    private final int self;
+
+    private final DatagramSocket socket;
+
+    private final ServerSocket acceptor;
+
+    private final Thread[] threads = new Thread[2];
+
+    /* Подпись сообщений ключом кластера, свой Mac на поток */
+    private final ThreadLocal<Mac> mac;
+
+    private volatile long nearTtl = TimeUnit.SECONDS.toMillis(5);
+
+    private volatile int timeout = 100;
+
+    private volatile boolean running;
+
+    private final LongAdder nearHits = new LongAdder();
+
+    private final LongAdder remoteHits = new LongAdder();
+
+    private final LongAdder remoteMisses = new LongAdder();
+
+    private final LongAdder errors = new LongAdder();
+
+    private final LongAdder served = new LongAdder();
+
+    private final LongAdder sent = new LongAdder();
+
+    private final LongAdder received = new LongAdder();
+
+    /*
+     * local - кэш своих ключей, self - адрес этого узла среди nodes; на нем
+     * же открываются сокеты UDP и TCP для других узлов. key - общий ключ
+     * подписи сообщений, одинаковый на всех узлах, не короче 16 байт.
+     */
+    public ClusterCache(RecordCache local, InetSocketAddress self, List<InetSocketAddress> nodes, int nearEntries, byte[] key) throws IOException{
+        if (key.length < 16)
+            throw new IllegalArgumentException("Cluster key must be at least 16 bytes");
+        byte[] secret = key.clone();
+        ClusterProtocol.mac(secret);
+        this.mac = ThreadLocal.withInitial(() -> ClusterProtocol.mac(secret));
+        this.local = local;
+        this.near = new RecordCache(nearEntries);
+        this.ring = new HashRing(nodes);
+        this.self = ring.indexOf(self);
+        if (this.self < 0)
+            throw new IllegalArgumentException("Node " + self + " is not in the cluster");
+        this.socket = new DatagramSocket(self);
+        try{
+            this.acceptor = new ServerSocket(self.getPort(), 64, self.getAddress());
+        }catch(IOException e){
+            socket.close();
+            throw e;
+        }
+    }
+
+    /* Сколько хранится в ближнем кэше чужая запись */
+    public ClusterCache setNearTtl(long ttl, TimeUnit unit) {
+        this.nearTtl = unit.toMillis(ttl);
+        return this;
+    }
+
+    /* Срок ожидания ответа владельца; за ним запрос считается промахом */
+    public ClusterCache setTimeout(long timeout, TimeUnit unit) {
+        this.timeout = (int) Math.max(1, unit.toMillis(timeout));
+        return this;
+    }
+
+    public HashRing getRing() {
+        return ring;
+    }
+
+    public RecordCache getLocal() {
+        return local;
+    }
+
+    public RecordCache getNear() {
+        return near;
+    }
+
+    /* Чужие ключи, найденные в ближнем кэше */
+    public long getNearHits() {
+        return nearHits.sum();
+    }
+
+    /* Чужие ключи, полученные от владельца */
+    public long getRemoteHits() {
+        return remoteHits.sum();
+    }
+
+    /* Чужие ключи, которых нет и у владельца */
+    public long getRemoteMisses() {
+        return remoteMisses.sum();
+    }
+
+    /* Неудачные обмены с другими узлами */
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    /* Запросов GET от других узлов */
+    public long getServed() {
+        return served.sum();
+    }
+
+    /* Записей, отправленных владельцам */
+    public long getSent() {
+        return sent.sum();
+    }
+
+    /* Записей, принятых от других узлов */
+    public long getReceived() {
+        return received.sum();
+    }
+
+    public synchronized ClusterCache start(){
+        if (running)
+            return this;
+        running = true;
+        threads[0] = new Thread(this::serve, "dns-cluster");
+        threads[1] = new Thread(this::accept, "dns-cluster-tcp");
+        for (Thread t : threads){
+            t.setDaemon(true);
+            t.start();
+        }
+        return this;
+    }
+
+    /* ———————————————————— Кэш —————————————————————— */
+
+    /*
+     * Запись для имени и типа, как {@link RecordCache#get}: свой ключ - из
+     * локального кэша, чужой - из ближнего кэша или от владельца.
+     */
+    public RecordCache.Entry get(byte[] name, int type){
+        int owner = ring.owner(name, type);
+        if (owner == self)
+            return local.get(name, type);
+        RecordCache.Entry ret = near.get(name, type);
+        if (ret != null){
+            nearHits.increment();
+            return ret;
+        }
+        try{
+            ret = fetch(ring.getNodes().get(owner), name, type);
+        }catch(IOException | DnsException e){
+            errors.increment();
+            return null;
+        }
+        if (ret == null){
+            remoteMisses.increment();
+            return null;
+        }
+        remoteHits.increment();
+        near.put(nearCopy(ret));
+        return ret;
+    }
+
+    /* Положительный набор, как {@link RecordCache#put(RRset, int)} */
+    public boolean put(RRset set, int rank){
+        return route(local.entry(set, rank), set.getName(), set.getType());
+    }
+
+    /* Отрицательный ответ на вопрос (name, type), как {@link RecordCache#putNegative} */
+    public boolean putNegative(byte[] name, int type, int rcode, ResourceRecord soa, int rank){
+        return route(local.negative(name, type, rcode, soa, rank), name, type);
+    }
+
+    /* Свой ключ кладется в локальный кэш, чужой - в ближний и владельцу */
+    private boolean route(RecordCache.Entry entry, byte[] name, int type){
+        int owner = ring.owner(name, type);
+        if (owner == self)
+            return local.put(entry);
+        near.put(nearCopy(entry));
+        long now = System.currentTimeMillis();
+        int len = ClusterProtocol.HEADER + ClusterProtocol.size(entry);
+        byte[] msg = new byte[len + ClusterProtocol.TRAILER];
+        ClusterProtocol.header(msg, ClusterProtocol.PUT, 0);
+        ClusterProtocol.putEntry(msg, ClusterProtocol.HEADER, len, entry, now);
+        ClusterProtocol.sign(mac.get(), msg, len, now);
+        InetSocketAddress address = ring.getNodes().get(owner);
+        try{
+            if (msg.length <= ClusterProtocol.MAX_UDP)
+                socket.send(new DatagramPacket(msg, msg.length, address));
+            else if (msg.length <= ClusterProtocol.MAX_TCP)
+                tcp(address, msg);
+            else
+                return true;
+            sent.increment();
+        }catch(IOException e){
+            errors.increment();
+        }
+        return true;
+    }
+
+    private RecordCache.Entry nearCopy(RecordCache.Entry e){
+        long expires = Math.min(e.getExpires(), System.currentTimeMillis() + nearTtl);
+        return new RecordCache.Entry(e.getName(), e.getType(), e.getCl(), expires, e.getRank(), e.getSet(), e.getRcode(), e.getSoa());
+    }
+
+    /*
+     * Запись другого узла в пределах своего кэша: доверие не выше ответа,
+     * срок не дальше ограничений maxTtl и maxNegativeTtl локального кэша.
+     */
+    private RecordCache.Entry capped(RecordCache.Entry e){
+        int rank = Math.min(e.getRank(), RecordCache.RANK_ANSWER);
+        RecordCache.Entry limit = e.isNegative()
+                ? local.negative(e.getName(), e.getType(), e.getRcode(), e.getSoa(), rank)
+                : local.entry(e.getSet(), rank);
+        long expires = Math.min(e.getExpires(), limit.getExpires());
+        return new RecordCache.Entry(e.getName(), e.getType(), e.getCl(), expires, rank, e.getSet(), e.getRcode(), e.getSoa());
+    }
+
+    /* ———————————————————— Клиент —————————————————————— */
+
+    /* Запись владельца; null - у владельца ее нет */
+    private RecordCache.Entry fetch(InetSocketAddress owner, byte[] name, int type) throws IOException, DnsException{
+        int id = ThreadLocalRandom.current().nextInt(65536);
+        byte[] query = ClusterProtocol.get(mac.get(), id, name, type, System.currentTimeMillis());
+        byte[] reply = udp(owner, query, id);
+        int op = ClusterProtocol.op(reply, reply.length);
+        if (op == ClusterProtocol.LARGE){
+            reply = tcp(owner, query);
+            op = ClusterProtocol.op(reply, reply.length);
+        }
+        if ((op < 0) || (ClusterProtocol.id(reply) != id))
+            throw new DnsException("Mismatched cluster reply");
+        switch (op){
+            case ClusterProtocol.HIT:
+                return capped(ClusterProtocol.readEntry(reply, ClusterProtocol.HEADER, reply.length, System.currentTimeMillis()));
+            case ClusterProtocol.MISS:
+                return null;
+            default:
+                throw new DnsException("Unexpected cluster reply");
+        }
+    }
+
+    private byte[] udp(InetSocketAddress address, byte[] query, int id) throws IOException{
+        // с адреса своего узла: владелец отвечает только узлам кольца
+        try (DatagramSocket s = new DatagramSocket(new InetSocketAddress(ring.getNodes().get(self).getAddress(), 0))){
+            s.setSoTimeout(timeout);
+            s.connect(address);
+            s.send(new DatagramPacket(query, query.length));
+            byte[] buf = new byte[ClusterProtocol.MAX_UDP];
+            long deadline = System.currentTimeMillis() + timeout;
+            while (true){
+                DatagramPacket packet = new DatagramPacket(buf, buf.length);
+                s.receive(packet);
+                // запоздавшие ответы на прежние запросы и неподписанные датаграммы пропускаем
+                int len = ClusterProtocol.verify(mac.get(), buf, packet.getLength(), System.currentTimeMillis());
+                if ((ClusterProtocol.op(buf, len) > 0) && (ClusterProtocol.id(buf) == id)){
+                    byte[] ret = new byte[len];
+                    System.arraycopy(buf, 0, ret, 0, len);
+                    return ret;
+                }
+                int left = (int) (deadline - System.currentTimeMillis());
+                if (left <= 0)
+                    throw new SocketTimeoutException();
+                s.setSoTimeout(left);
+            }
+        }
+    }
+
+    private byte[] tcp(InetSocketAddress address, byte[] msg) throws IOException{
+        try (Socket s = new Socket()){
+            s.bind(new InetSocketAddress(ring.getNodes().get(self).getAddress(), 0));
+            s.connect(address, timeout);
+            s.setSoTimeout(timeout);
+            OutputStream out = s.getOutputStream();
+            byte[] frame = new byte[msg.length + 2];
+            Wire.put16(frame, 0, msg.length);
+            System.arraycopy(msg, 0, frame, 2, msg.length);
+            out.write(frame);
+            out.flush();
+            DataInputStream in = new DataInputStream(s.getInputStream());
+            byte[] ret = new byte[in.readUnsignedShort()];
+            in.readFully(ret);
+            int len = ClusterProtocol.verify(mac.get(), ret, ret.length, System.currentTimeMillis());
+            if (len < 0)
+                throw new IOException("Unauthenticated cluster reply");
+            return Arrays.copyOf(ret, len);
+        }
+    }
+
+    /* ———————————————————— Сервер —————————————————————— */
+
+    private void serve(){
+        byte[] in = new byte[ClusterProtocol.MAX_UDP];
+        byte[] out = new byte[ClusterProtocol.MAX_UDP];
+        DatagramPacket packet = new DatagramPacket(in, in.length);
+        while (running){
+            try{
+                packet.setData(in);
+                socket.receive(packet);
+                if (!member(packet.getAddress()))
+                    continue;
+                int len = answer(in, packet.getLength(), out, false);
+                if (len > 0)
+                    socket.send(new DatagramPacket(out, len, packet.getSocketAddress()));
+            }catch(IOException e){
+                if (socket.isClosed())
+                    return;
+            }
+        }
+    }
+
+    private void accept(){
+        byte[] in = new byte[ClusterProtocol.MAX_TCP];
+        byte[] out = new byte[ClusterProtocol.MAX_TCP + 2];
+        while (running){
+            try (Socket s = acceptor.accept()){
+                if (!member(s.getInetAddress()))
+                    continue;
+                s.setSoTimeout(timeout);
+                DataInputStream din = new DataInputStream(s.getInputStream());
+                int len = din.readUnsignedShort();
+                din.readFully(in, 0, len);
+                len = answer(in, len, out, true);
+                if (len > 0){
+                    // ответ собран со смещением 2 под длину
+                    System.arraycopy(out, 0, out, 2, len);
+                    Wire.put16(out, 0, len);
+                    s.getOutputStream().write(out, 0, len + 2);
+                }
+            }catch(IOException e){
+                if (acceptor.isClosed())
+                    return;
+            }
+        }
+    }
+
+    /* Подписанный ответ на сообщение узла в out; длина ответа, 0 - без ответа */
+    private int answer(byte[] in, int len, byte[] out, boolean tcp){
+        long now = System.currentTimeMillis();
+        Mac mac = this.mac.get();
+        len = ClusterProtocol.verify(mac, in, len, now);
+        if (len < 0){
+            errors.increment();
+            return 0;
+        }
+        int ret = reply(in, len, out, tcp, now);
+        return (ret > 0) ? ClusterProtocol.sign(mac, out, ret, now) : 0;
+    }
+
+    private int reply(byte[] in, int len, byte[] out, boolean tcp, long now){
+        int op = ClusterProtocol.op(in, len);
+        int id = (op < 0) ? 0 : ClusterProtocol.id(in);
+        try{
+            switch (op){
+                case ClusterProtocol.GET: {
+                    if (len < ClusterProtocol.HEADER + 3)
+                        return 0;
+                    int type = Wire.u16(in, ClusterProtocol.HEADER);
+                    byte[] name = ClusterProtocol.name(in, ClusterProtocol.HEADER + 2, len);
+                    served.increment();
+                    RecordCache.Entry entry = local.get(name, type);
+                    if (entry == null)
+                        return ClusterProtocol.header(out, ClusterProtocol.MISS, id);
+                    int max = (tcp ? ClusterProtocol.MAX_TCP : ClusterProtocol.MAX_UDP) - ClusterProtocol.TRAILER;
+                    int end = ClusterProtocol.putEntry(out, ClusterProtocol.HEADER, max, entry, now);
+                    if (end < 0)
+                        return ClusterProtocol.header(out, ClusterProtocol.LARGE, id);
+                    ClusterProtocol.header(out, ClusterProtocol.HIT, id);
+                    return end;
+                }
+                case ClusterProtocol.PUT:
+                    local.put(capped(ClusterProtocol.readEntry(in, ClusterProtocol.HEADER, len, now)));
+                    received.increment();
+                    return tcp ? ClusterProtocol.header(out, ClusterProtocol.ACK, id) : 0;
+                default:
+                    return 0;
+            }
+        }catch(DnsException e){
+            errors.increment();
+            return 0;
+        }
+    }
+
+    private boolean member(InetAddress address){
+        for (InetSocketAddress node : ring.getNodes())
+            if (address.equals(node.getAddress()))
+                return true;
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        socket.close();
+        acceptor.close();
+    }
+
+    /*
+     * Использование: ClusterCache self nodes upstream port key-file
+     * self - адрес узла в кластере (127.0.0.1:5301), nodes - адреса всех узлов
+     * через запятую, upstream - авторитетный сервер, с которого начинается
+     * разрешение, port - порт UDP для клиентов, key-file - файл с общим
+     * ключом кластера (например, head -c 32 /dev/urandom). Раз в секунду печатает
+     * попадания и обмены кластера.
+     */
+    public static void main(String[] args) throws Exception{
+        PrintStream out = System.out;
+        if (args.length < 5){
+            out.println("usage: ClusterCache self-host:port node-host:port,... upstream-host:port client-port key-file");
+            return;
+        }
+        InetSocketAddress self = address(args[0]);
+        ArrayList<InetSocketAddress> nodes = new ArrayList<>();
+        for (String node : args[1].split(","))
+            nodes.add(address(node));
+        InetSocketAddress upstream = address(args[2]);
+        byte[] key = Files.readAllBytes(Paths.get(args[4]));
+        RecordCache cache = new RecordCache(1000000);
+        try (ClusterCache cluster = new ClusterCache(cache, self, nodes, 10000, key).start();
+             UdpServer server = new UdpServer(new InetSocketAddress("127.0.0.1", Integer.parseInt(args[3])),
+                     new Resolver(cache, List.of(upstream.getAddress())).setPort(upstream.getPort()).setCluster(cluster), 4).start()){
+            out.printf("node %s of %s, clients on %s%n", self, cluster.getRing(), server.getLocalAddress());
+            while (true){
+                Thread.sleep(1000);
+                out.printf("local %d entries (hits %d, misses %d), near hits %d, remote hits %d, misses %d, errors %d,"
+                        + " served %d, sent %d, received %d%n", cache.size(), cache.getHits(), cache.getMisses(),
+                        cluster.getNearHits(), cluster.getRemoteHits(), cluster.getRemoteMisses(), cluster.getErrors(),
+                        cluster.getServed(), cluster.getSent(), cluster.getReceived());
+            }
+        }
+    }
+
+    private static InetSocketAddress address(String s){
+        int colon = s.lastIndexOf(':');
+        return new InetSocketAddress(s.substring(0, colon), Integer.parseInt(s.substring(colon + 1)));
+    }
+}
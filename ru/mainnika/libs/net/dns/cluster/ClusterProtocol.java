@@ -0,0 +1,244 @@
+package ru.mainnika.libs.net.dns.cluster;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import ru.mainnika.libs.net.dns.DnsException;
+import ru.mainnika.libs.net.dns.RRset;
+import ru.mainnika.libs.net.dns.Rcode;
+import ru.mainnika.libs.net.dns.ResourceRecord;
+import ru.mainnika.libs.net.dns.Type;
+import ru.mainnika.libs.net.dns.Wire;
+import ru.mainnika.libs.net.dns.cache.RecordCache;
+
+/**
+ * Сообщения между узлами кластерного кэша. Заголовок 4 байта: магия,
+ * операция и идентификатор запроса. GET несет тип и несжатое имя; HIT и
+ * PUT несут запись кэша, MISS, LARGE и ACK - только заголовок.
+ *
+ * Запись: тип ключа (2 байта), доверие (1), флаги и код ответа (1),
+ * оставшееся время жизни в миллисекундах (4), имя ключа, число записей (2)
+ * и сами записи в формате DNS без сжатия, с оставшимся TTL. У набора это
+ * его записи, у отрицательного ответа - SOA, если она есть. Время
+ * передается остатком, а не моментом истечения.
+ *
+ * Каждое сообщение подписано общим ключом кластера: за телом идут время
+ * отправки в секундах (4 байта) и HMAC-SHA256 заголовка, тела и времени,
+ * усеченный до 16 байт. Сообщение без верной подписи или со временем дальше
+ * {@link #FUDGE} от своего отбрасывается, как у TSIG (RFC 8945), поэтому
+ * часы узлов должны совпадать с этой точностью.
+ *
+ * @author MainNika
+ */
+final class ClusterProtocol {
+
+    static final int MAGIC = 0xdc;
+
+    /* Операции */
+    static final int GET = 1;
+    static final int PUT = 2;
+    static final int HIT = 3;
+    static final int MISS = 4;
+    /* Ответ не помещается в датаграмму, запрос нужно повторить по TCP */
+    static final int LARGE = 5;
+    /* Подтверждение PUT по TCP */
+    static final int ACK = 6;
+
+    static final int HEADER = 4;
+
+    /* Наибольшая датаграмма: без фрагментации в большинстве сетей, как у EDNS */
+    static final int MAX_UDP = 1232;
+
+    static final int MAX_TCP = 65535;
+
+    /* Подпись в конце сообщения: время и усеченный HMAC */
+    static final int TRAILER = 4 + 16;
+
+    /* Допустимое расхождение часов узлов, секунды */
+    static final int FUDGE = 300;
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private static final int FLAG_NEGATIVE = 0x80;
+
+    private ClusterProtocol(){
+    }
+
+    static int header(byte[] buf, int op, int id){
+        buf[0] = (byte) MAGIC;
+        buf[1] = (byte) op;
+        Wire.put16(buf, 2, id);
+        return HEADER;
+    }
+
+    /* Операция сообщения; -1, если это не сообщение кластера */
+    static int op(byte[] buf, int len){
+        if ((len < HEADER) || ((buf[0] & 0xff) != MAGIC))
+            return -1;
+        return buf[1] & 0xff;
+    }
+
+    static int id(byte[] buf){
+        return Wire.u16(buf, 2);
+    }
+
+    static byte[] get(Mac mac, int id, byte[] name, int type, long now){
+        int len = Wire.nameLength(name, 0);
+        byte[] ret = new byte[HEADER + 2 + len + TRAILER];
+        header(ret, GET, id);
+        Wire.put16(ret, HEADER, type);
+        System.arraycopy(name, 0, ret, HEADER + 2, len);
+        sign(mac, ret, HEADER + 2 + len, now);
+        return ret;
+    }
+
+    /* HMAC для ключа кластера; экземпляр Mac не потокобезопасен */
+    static Mac mac(byte[] key){
+        try{
+            Mac ret = Mac.getInstance(ALGORITHM);
+            ret.init(new SecretKeySpec(key, ALGORITHM));
+            return ret;
+        }catch(GeneralSecurityException e){
+            throw new IllegalStateException("No " + ALGORITHM, e);
+        }
+    }
+
+    /* Дописывает подпись за сообщением длиной len; длина с подписью */
+    static int sign(Mac mac, byte[] buf, int len, long now){
+        Wire.put32(buf, len, now / 1000);
+        mac.update(buf, 0, len + 4);
+        byte[] digest = mac.doFinal();
+        System.arraycopy(digest, 0, buf, len + 4, TRAILER - 4);
+        return len + TRAILER;
+    }
+
+    /* Проверяет подпись сообщения длиной len; длина без подписи или -1 */
+    static int verify(Mac mac, byte[] buf, int len, long now){
+        if (len < HEADER + TRAILER)
+            return -1;
+        int end = len - TRAILER + 4;
+        long time = Wire.u32(buf, end - 4);
+        if (Math.abs(now / 1000 - time) > FUDGE)
+            return -1;
+        mac.update(buf, 0, end);
+        byte[] digest = mac.doFinal();
+        // сравнение без раннего выхода, чтобы время не выдавало совпавшую часть
+        int diff = 0;
+        for (int i = 0; i < TRAILER - 4; i++)
+            diff |= digest[i] ^ buf[end + i];
+        return (diff == 0) ? len - TRAILER : -1;
+    }
+
+    /* Размер записи кэша в сообщении */
+    static int size(RecordCache.Entry entry){
+        int ret = 10 + entry.getName().length;
+        RRset set = entry.getSet();
+        if (set != null){
+            ret += set.size() * (set.getName().length + 10);
+            for (int i = 0; i < set.size(); i++)
+                ret += set.getRdataAt(i).length;
+        }else if (entry.getSoa() != null){
+            ret += entry.getSoa().getSize();
+        }
+        return ret;
+    }
+
+    /* Записывает запись кэша с off; смещение за ней или -1, если не помещается до end */
+    static int putEntry(byte[] buf, int off, int end, RecordCache.Entry entry, long now){
+        if (off + size(entry) > end)
+            return -1;
+        long left = Math.max(0, entry.getExpires() - now);
+        long ttl = left / 1000;
+        RRset set = entry.getSet();
+        Wire.put16(buf, off, entry.getType());
+        buf[off + 2] = (byte) entry.getRank();
+        buf[off + 3] = (byte) ((entry.isNegative() ? FLAG_NEGATIVE : 0) | (entry.getRcode() & 0xf));
+        Wire.put32(buf, off + 4, left);
+        byte[] name = entry.getName();
+        System.arraycopy(name, 0, buf, off + 8, name.length);
+        off += 8 + name.length;
+        if (set != null){
+            Wire.put16(buf, off, set.size());
+            off += 2;
+            for (int i = 0; i < set.size(); i++)
+                off = new ResourceRecord(set.getName(), set.getType(), set.getCl(), ttl, set.getRdataAt(i)).writeTo(buf, off);
+        }else if (entry.getSoa() != null){
+            Wire.put16(buf, off, 1);
+            ResourceRecord soa = entry.getSoa();
+            off = soa.withTtl(Math.min(ttl, soa.getTtl())).writeTo(buf, off + 2);
+        }else{
+            Wire.put16(buf, off, 0);
+            off += 2;
+        }
+        return off;
+    }
+
+    /* Запись кэша из сообщения, начиная с off */
+    static RecordCache.Entry readEntry(byte[] buf, int off, int end, long now) throws DnsException{
+        if (off + 8 > end)
+            throw new DnsException("Truncated cluster entry");
+        int type = Wire.u16(buf, off);
+        int rank = buf[off + 2] & 0xff;
+        int flags = buf[off + 3] & 0xff;
+        long expires = now + Wire.u32(buf, off + 4);
+        off += 8;
+        byte[] name = name(buf, off, end);
+        off += name.length;
+        if (off + 2 > end)
+            throw new DnsException("Truncated cluster entry");
+        int count = Wire.u16(buf, off);
+        off += 2;
+        boolean negative = (flags & FLAG_NEGATIVE) != 0;
+        if (negative ? (count > 1) : (count == 0))
+            throw new DnsException("Invalid cluster entry");
+        RRset set = null;
+        ResourceRecord soa = null;
+        for (int i = 0; i < count; i++){
+            byte[] owner = name(buf, off, end);
+            off += owner.length;
+            if (off + 10 > end)
+                throw new DnsException("Truncated cluster record");
+            int rrType = Wire.u16(buf, off);
+            int cl = Wire.u16(buf, off + 2);
+            long ttl = Wire.u32(buf, off + 4);
+            int rdlength = Wire.u16(buf, off + 8);
+            off += 10;
+            if (off + rdlength > end)
+                throw new DnsException("Truncated cluster record");
+            byte[] rdata = Arrays.copyOfRange(buf, off, off + rdlength);
+            off += rdlength;
+            if (negative){
+                if (rrType != Type.SOA)
+                    throw new DnsException("Negative cluster entry without SOA");
+                soa = new ResourceRecord(owner, rrType, cl, ttl, rdata);
+                continue;
+            }
+            if ((rrType != type) || !Wire.equalsIgnoreCase(owner, name))
+                throw new DnsException("Cluster record does not match its entry");
+            if (set == null)
+                set = new RRset(owner, rrType, cl, ttl);
+            set.add(rdata, ttl);
+        }
+        if (negative)
+            return new RecordCache.Entry(name, type, Type.CLASS_IN, expires, rank, null, flags & 0xf, soa);
+        return new RecordCache.Entry(name, type, set.getCl(), expires, rank, set, Rcode.NOERROR, null);
+    }
+
+    /* Несжатое имя из сообщения */
+    static byte[] name(byte[] buf, int off, int end) throws DnsException{
+        int pos = off;
+        while (true){
+            if (pos >= end)
+                throw new DnsException("Truncated name");
+            int len = buf[pos] & 0xff;
+            if (len > 63)
+                throw new DnsException("Invalid label type");
+            pos += len + 1;
+            if (pos - off > Wire.MAX_NAME)
+                throw new DnsException("Name too long");
+            if (len == 0)
+                return Arrays.copyOfRange(buf, off, pos);
+        }
+    }
+}
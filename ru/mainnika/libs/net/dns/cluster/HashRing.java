@@ -0,0 +1,134 @@
+package ru.mainnika.libs.net.dns.cluster;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import ru.mainnika.libs.net.dns.Wire;
+
+/**
+ * Кольцо согласованного хэширования узлов кластера. Каждый узел занимает
+ * replicas точек на кольце, ключ (имя без учета регистра, тип) принадлежит
+ * первому узлу по часовой стрелке от хэша ключа. При добавлении или уходе
+ * узла меняется владелец примерно у 1/N ключей. Хэш не зависит от процесса,
+ * поэтому все узлы, построившие кольцо из одного списка, согласны во
+ * владельцах. Кольцо неизменяемо и потокобезопасно.
+ *
+ * @author MainNika
+ */
+public final class HashRing {
+
+    public static final int REPLICAS = 128;
+
+    private static final long FNV_BASIS = 0xcbf29ce484222325L;
+
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final List<InetSocketAddress> nodes;
+
+    /* Точки кольца по возрастанию и номера их узлов */
+    private final long[] points;
+
+    private final int[] owners;
+
+    public HashRing(List<InetSocketAddress> nodes){
+        this(nodes, REPLICAS);
+    }
+
+    public HashRing(List<InetSocketAddress> nodes, int replicas){
+        if (nodes.isEmpty())
+            throw new IllegalArgumentException("Cluster has no nodes");
+        this.nodes = List.copyOf(nodes);
+        long[][] pairs = new long[nodes.size() * replicas][];
+        for (int i = 0; i < nodes.size(); i++){
+            String id = id(nodes.get(i));
+            for (int r = 0; r < replicas; r++){
+                byte[] b = (id + "#" + Integer.toString(r)).getBytes(StandardCharsets.US_ASCII);
+                pairs[i * replicas + r] = new long[] { mix(fnv(b)), i };
+            }
+        }
+        Arrays.sort(pairs, (a, b) -> Long.compare(a[0], b[0]));
+        points = new long[pairs.length];
+        owners = new int[pairs.length];
+        for (int i = 0; i < pairs.length; i++){
+            points[i] = pairs[i][0];
+            owners[i] = (int) pairs[i][1];
+        }
+    }
+
+    /* Узлы в порядке списка, из которого построено кольцо */
+    public List<InetSocketAddress> getNodes() {
+        return nodes;
+    }
+
+    public int indexOf(InetSocketAddress node){
+        String id = id(node);
+        for (int i = 0; i < nodes.size(); i++)
+            if (id(nodes.get(i)).equals(id))
+                return i;
+        return -1;
+    }
+
+    /* Номер узла-владельца ключа */
+    public int owner(byte[] name, int type){
+        long h = FNV_BASIS;
+        for (int off = 0; name[off] != 0; off += (name[off] & 0xff) + 1){
+            h = (h ^ (name[off] & 0xff)) * FNV_PRIME;
+            for (int i = off + 1; i <= off + (name[off] & 0xff); i++)
+                h = (h ^ (Wire.lower(name[i]) & 0xff)) * FNV_PRIME;
+        }
+        h = (h ^ (type >>> 8)) * FNV_PRIME;
+        h = (h ^ (type & 0xff)) * FNV_PRIME;
+        int i = Arrays.binarySearch(points, mix(h));
+        if (i < 0)
+            i = -i - 1;
+        return owners[(i == points.length) ? 0 : i];
+    }
+
+    public InetSocketAddress ownerAddress(byte[] name, int type){
+        return nodes.get(owner(name, type));
+    }
+
+    /* Доля кольца каждого узла, для проверки равномерности */
+    public double[] shares(){
+        double[] ret = new double[nodes.size()];
+        for (int i = 0; i < points.length; i++){
+            long prev = (i == 0) ? points[points.length - 1] : points[i - 1];
+            // беззнаковая длина дуги до точки, первая дуга проходит через ноль
+            ret[owners[i]] += ((points[i] - prev) >>> 1) / (double) (Long.MAX_VALUE);
+        }
+        return ret;
+    }
+
+    /* Имя узла в хэше: адрес без имени хоста, чтобы не зависеть от разрешения */
+    private static String id(InetSocketAddress node){
+        String host = (node.getAddress() != null) ? node.getAddress().getHostAddress() : node.getHostString();
+        return host + ":" + Integer.toString(node.getPort());
+    }
+
+    private static long fnv(byte[] b){
+        long h = FNV_BASIS;
+        for (int i = 0; i < b.length; i++)
+            h = (h ^ (b[i] & 0xff)) * FNV_PRIME;
+        return h;
+    }
+
+    /* Перемешивание murmur3 fmix64: FNV плохо разносит близкие ключи по кольцу */
+    private static long mix(long h){
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        ArrayList<String> ret = new ArrayList<>();
+        for (InetSocketAddress node : nodes)
+            ret.add(id(node));
+        return "HashRing" + ret;
+    }
+}
@@ -0,0 +1,181 @@
+package ru.mainnika.libs.net.dns.dnssec;
+
+import ru.mainnika.libs.net.dns.RRset;
+import ru.mainnika.libs.net.dns.Type;
+import ru.mainnika.libs.net.dns.Wire;
+
+/**
+ * Сборка входа подписи (RFC 4034, раздел 3.1.8.1) в переиспользуемый
+ * буфер: RDATA RRSIG без подписи, затем записи набора в каноническом виде
+ * и каноническом порядке. Канонические RDATA пишутся один раз во второй
+ * буфер и сортируются по смещениям, так что на набор не создается ни одного
+ * объекта. Экземпляр не потокобезопасен.
+ *
+ * @author MainNika
+ */
+final class Canonical {
+
+    private byte[] buf = new byte[4096];
+
+    private byte[] rdata = new byte[4096];
+
+    private int[] offsets = new int[32];
+
+    private int[] lengths = new int[32];
+
+    private int[] order = new int[32];
+
+    byte[] getBuffer() {
+        return buf;
+    }
+
+    /*
+     * Вход подписи набора set по RRSIG с подписываемой частью header[0, signed).
+     * Возвращает длину входа в {@link #getBuffer()}.
+     */
+    int signingInput(RRset set, byte[] header, int signed){
+        int count = set.size();
+        if (offsets.length < count){
+            offsets = new int[count];
+            lengths = new int[count];
+            order = new int[count];
+        }
+        int pos = 0;
+        for (int i = 0; i < count; i++){
+            byte[] r = set.getRdataAt(i);
+            rdata = ensure(rdata, pos + r.length);
+            offsets[i] = pos;
+            lengths[i] = r.length;
+            pos = write(set.getType(), r, rdata, pos);
+            order[i] = i;
+        }
+        sort(count);
+
+        byte[] owner = set.getName();
+        int labels = header[3] & 0xff;
+        int ownerLabels = Wire.labelCount(owner, 0);
+        int ownerOff = 0;
+        // владелец, раскрытый из шаблона, подписан как "*." и labels правых меток
+        for (int i = labels; i < ownerLabels; i++)
+            ownerOff = Wire.parent(owner, ownerOff);
+        int ownerLen = Wire.nameLength(owner, ownerOff) + ((labels < ownerLabels) ? 2 : 0);
+
+        int size = signed;
+        for (int i = 0; i < count; i++)
+            size += ownerLen + 10 + lengths[i];
+        buf = ensure(buf, size);
+        System.arraycopy(header, 0, buf, 0, signed);
+        Wire.toLowerCase(buf, 18);
+        pos = signed;
+        int prev = -1;
+        for (int k = 0; k < count; k++){
+            int i = order[k];
+            // одинаковые RDATA входят в набор один раз
+            if ((prev >= 0) && (compare(prev, i) == 0))
+                continue;
+            prev = i;
+            int start = pos;
+            if (labels < ownerLabels){
+                buf[pos++] = 1;
+                buf[pos++] = '*';
+            }
+            int len = Wire.nameLength(owner, ownerOff);
+            System.arraycopy(owner, ownerOff, buf, pos, len);
+            Wire.toLowerCase(buf, start);
+            pos += len;
+            Wire.put16(buf, pos, set.getType());
+            Wire.put16(buf, pos + 2, set.getCl());
+            System.arraycopy(header, 4, buf, pos + 4, 4);
+            Wire.put16(buf, pos + 8, lengths[i]);
+            pos += 10;
+            System.arraycopy(rdata, offsets[i], buf, pos, lengths[i]);
+            pos += lengths[i];
+        }
+        return pos;
+    }
+
+    private static byte[] ensure(byte[] b, int size){
+        if (b.length >= size)
+            return b;
+        byte[] ret = new byte[Math.max(size, b.length * 2)];
+        System.arraycopy(b, 0, ret, 0, b.length);
+        return ret;
+    }
+
+    /* Вставками: в наборе обычно единицы записей */
+    private void sort(int count){
+        for (int i = 1; i < count; i++){
+            int v = order[i];
+            int j = i - 1;
+            while ((j >= 0) && (compare(order[j], v) > 0)){
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = v;
+        }
+    }
+
+    private int compare(int a, int b){
+        int ao = offsets[a];
+        int bo = offsets[b];
+        int len = Math.min(lengths[a], lengths[b]);
+        for (int i = 0; i < len; i++){
+            int ret = (rdata[ao + i] & 0xff) - (rdata[bo + i] & 0xff);
+            if (ret != 0)
+                return ret;
+        }
+        return lengths[a] - lengths[b];
+    }
+
+    /*
+     * Копирует RDATA в dst и переводит в нижний регистр имена внутри нее для
+     * типов из RFC 4034, раздел 6.2, с поправкой RFC 6840: имена в NSEC не
+     * меняются. Возвращает позицию после RDATA.
+     */
+    static int write(int type, byte[] r, byte[] dst, int pos){
+        System.arraycopy(r, 0, dst, pos, r.length);
+        int end = pos + r.length;
+        switch (type){
+            case Type.NS:
+            case Type.CNAME:
+            case Type.PTR:
+            case Type.DNAME:
+                lower(dst, pos, end);
+                break;
+            case Type.MX:
+                lower(dst, pos + 2, end);
+                break;
+            case Type.SRV:
+                lower(dst, pos + 6, end);
+                break;
+            case Type.SOA:
+                lower(dst, lower(dst, pos, end), end);
+                break;
+            case Type.NAPTR: {
+                // порядок и предпочтение, три строки, затем имя замены
+                int off = pos + 4;
+                for (int i = 0; (i < 3) && (off < end); i++)
+                    off += (dst[off] & 0xff) + 1;
+                lower(dst, off, end);
+                break;
+            }
+            case Type.RRSIG:
+                lower(dst, pos + 18, end);
+                break;
+        }
+        return end;
+    }
+
+    /* Нижний регистр несжатого имени с позиции off; возвращает позицию после имени */
+    private static int lower(byte[] b, int off, int end){
+        while ((off < end) && (b[off] != 0)){
+            int len = b[off] & 0xff;
+            if (len > 63)
+                return end;
+            for (int i = off + 1; (i <= off + len) && (i < end); i++)
+                b[i] = Wire.lower(b[i]);
+            off += len + 1;
+        }
+        return off + 1;
+    }
+}
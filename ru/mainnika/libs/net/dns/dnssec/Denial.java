@@ -0,0 +1,403 @@
+package ru.mainnika.libs.net.dns.dnssec;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+import ru.mainnika.libs.net.dns.ResourceRecord;
+import ru.mainnika.libs.net.dns.Type;
+import ru.mainnika.libs.net.dns.Wire;
+
+/**
+ * Доказательства отсутствия по уже проверенным записям NSEC (RFC 4035,
+ * раздел 5.4) и NSEC3 (RFC 5155, раздел 8). Методы только сопоставляют
+ * имена и битовые карты типов; подписи проверяет {@link Validator}.
+ *
+ * @author MainNika
+ */
+final class Denial {
+
+    /* Больше итераций NSEC3 считается небезопасным ответом (RFC 9276) */
+    static final int MAX_ITERATIONS = 150;
+
+    static final int NSEC3_SHA1 = 1;
+
+    static final int NSEC3_OPT_OUT = 0x01;
+
+    /* Итог проверки: доказано, не доказано или доказана небезопасная делегация */
+    static final int NONE = 0;
+    static final int PROVEN = 1;
+    static final int INSECURE = 2;
+
+    private Denial(){
+    }
+
+    /* ———————————————————— Битовые карты —————————————————————— */
+
+    /* Есть ли тип в битовой карте, начинающейся с off (RFC 4034, раздел 4.1.2) */
+    static boolean hasType(byte[] rdata, int off, int type){
+        int window = type >> 8;
+        int bit = type & 0xff;
+        while (off + 2 <= rdata.length){
+            int w = rdata[off] & 0xff;
+            int len = rdata[off + 1] & 0xff;
+            if (w == window)
+                return (bit / 8 < len) && (off + 2 + bit / 8 < rdata.length)
+                        && ((rdata[off + 2 + bit / 8] & (0x80 >> (bit & 7))) != 0);
+            off += 2 + len;
+        }
+        return false;
+    }
+
+    /* ———————————————————— NSEC —————————————————————— */
+
+    private static int nsecBitmap(byte[] rdata){
+        return Wire.nameLength(rdata, 0);
+    }
+
+    /* Лежит ли имя строго между владельцем и следующим именем NSEC */
+    static boolean covers(ResourceRecord nsec, byte[] name){
+        byte[] owner = nsec.getName();
+        byte[] next = nsec.getRdata();
+        if (Wire.compareCanonical(owner, name) >= 0)
+            return false;
+        if (Wire.compareCanonical(owner, 0, next, 0) < 0)
+            return Wire.compareCanonical(name, 0, next, 0) < 0;
+        // последняя запись цепочки указывает на вершину зоны
+        return Wire.isSubdomain(name, 0, next, 0);
+    }
+
+    /* NSEC владельца выше делегации не доказывает ничего ниже нее */
+    private static boolean usableFor(ResourceRecord nsec, byte[] name){
+        byte[] owner = nsec.getName();
+        byte[] rdata = nsec.getRdata();
+        if (!Wire.isSubdomain(name, owner) || Wire.equalsIgnoreCase(name, owner))
+            return true;
+        int off = nsecBitmap(rdata);
+        if (hasType(rdata, off, Type.DNAME))
+            return false;
+        return !hasType(rdata, off, Type.NS) || hasType(rdata, off, Type.SOA);
+    }
+
+    private static ResourceRecord matching(List<ResourceRecord> nsecs, byte[] name){
+        for (ResourceRecord rr : nsecs)
+            if (Wire.equalsIgnoreCase(rr.getName(), name))
+                return rr;
+        return null;
+    }
+
+    private static ResourceRecord covering(List<ResourceRecord> nsecs, byte[] name){
+        for (ResourceRecord rr : nsecs)
+            if (covers(rr, name) && usableFor(rr, name))
+                return rr;
+        return null;
+    }
+
+    /* Общий предок имени с владельцем или следующим именем, более длинный из двух */
+    static byte[] encloser(ResourceRecord nsec, byte[] name){
+        byte[] a = common(name, nsec.getName());
+        byte[] b = common(name, nsec.getRdata());
+        return (Wire.labelCount(a, 0) >= Wire.labelCount(b, 0)) ? a : b;
+    }
+
+    private static byte[] common(byte[] name, byte[] other){
+        int off = 0;
+        while (!Wire.isSubdomain(other, 0, name, off))
+            off = Wire.parent(name, off);
+        return Wire.copyName(name, off);
+    }
+
+    static byte[] wildcard(byte[] encloser){
+        byte[] ret = new byte[Wire.nameLength(encloser, 0) + 2];
+        ret[0] = 1;
+        ret[1] = '*';
+        System.arraycopy(encloser, 0, ret, 2, ret.length - 2);
+        return ret;
+    }
+
+    /* Имени нет, и шаблона в ближайшем предке тоже нет */
+    static int nsecNxdomain(List<ResourceRecord> nsecs, byte[] name){
+        ResourceRecord nsec = covering(nsecs, name);
+        if (nsec == null)
+            return NONE;
+        byte[] wildcard = wildcard(encloser(nsec, name));
+        return (covering(nsecs, wildcard) != null) ? PROVEN : NONE;
+    }
+
+    /*
+     * Имя есть, но без типа type и без CNAME; либо имени нет, а совпавший
+     * шаблон без этого типа. Для DS делегация без DS дает INSECURE.
+     */
+    static int nsecNodata(List<ResourceRecord> nsecs, byte[] name, int type){
+        ResourceRecord nsec = matching(nsecs, name);
+        if (nsec != null){
+            byte[] rdata = nsec.getRdata();
+            int off = nsecBitmap(rdata);
+            if (hasType(rdata, off, type) || hasType(rdata, off, Type.CNAME))
+                return NONE;
+            if (type == Type.DS){
+                if (hasType(rdata, off, Type.SOA) && (name[0] != 0))
+                    return NONE;
+                return hasType(rdata, off, Type.NS) ? INSECURE : PROVEN;
+            }
+            // ответ со стороны родителя про тип дочерней зоны не годится
+            if (hasType(rdata, off, Type.NS) && !hasType(rdata, off, Type.SOA))
+                return NONE;
+            return PROVEN;
+        }
+        // пустой нетерминал: следующее имя ниже запрошенного
+        for (ResourceRecord rr : nsecs)
+            if (covers(rr, name) && Wire.isSubdomain(rr.getRdata(), name) && !Wire.equalsIgnoreCase(rr.getRdata(), name))
+                return PROVEN;
+        ResourceRecord cover = covering(nsecs, name);
+        if (cover == null)
+            return NONE;
+        ResourceRecord wild = matching(nsecs, wildcard(encloser(cover, name)));
+        if (wild == null)
+            return NONE;
+        byte[] rdata = wild.getRdata();
+        int off = nsecBitmap(rdata);
+        return (hasType(rdata, off, type) || hasType(rdata, off, Type.CNAME)) ? NONE : PROVEN;
+    }
+
+    /* Для ответа из шаблона: самого имени нет */
+    static boolean nsecWildcard(List<ResourceRecord> nsecs, byte[] name){
+        return covering(nsecs, name) != null;
+    }
+
+    /* ———————————————————— NSEC3 —————————————————————— */
+
+    private static final byte[] BASE32HEX = "0123456789abcdefghijklmnopqrstuv".getBytes();
+
+    static int nsec3Iterations(ResourceRecord nsec3){
+        return Wire.u16(nsec3.getRdata(), 2);
+    }
+
+    /* Хэш NSEC3 имени (RFC 5155, раздел 5) с параметрами из записи */
+    static byte[] hash(byte[] name, ResourceRecord nsec3){
+        byte[] rdata = nsec3.getRdata();
+        return hash(name, rdata, 5, rdata[4] & 0xff, Wire.u16(rdata, 2));
+    }
+
+    static byte[] hash(byte[] name, byte[] salt, int saltOff, int saltLength, int iterations){
+        byte[] lower = Wire.copyName(name, 0);
+        Wire.toLowerCase(lower, 0);
+        try{
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            md.update(lower);
+            md.update(salt, saltOff, saltLength);
+            byte[] ret = md.digest();
+            for (int i = 0; i < iterations; i++){
+                md.update(ret);
+                md.update(salt, saltOff, saltLength);
+                ret = md.digest();
+            }
+            return ret;
+        }catch(GeneralSecurityException e){
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /* Хэш из первой метки владельца NSEC3 или null, если это не base32hex */
+    static byte[] ownerHash(ResourceRecord nsec3){
+        byte[] owner = nsec3.getName();
+        int len = owner[0] & 0xff;
+        if (len == 0)
+            return null;
+        byte[] ret = new byte[len * 5 / 8];
+        int bits = 0;
+        int acc = 0;
+        int pos = 0;
+        for (int i = 1; i <= len; i++){
+            int c = Wire.lower(owner[i]);
+            int v = (c >= '0' && c <= '9') ? c - '0' : (c >= 'a' && c <= 'v') ? c - 'a' + 10 : -1;
+            if (v < 0)
+                return null;
+            acc = (acc << 5) | v;
+            bits += 5;
+            if (bits >= 8){
+                bits -= 8;
+                ret[pos++] = (byte) (acc >> bits);
+            }
+        }
+        return ret;
+    }
+
+    /* Метка base32hex для хэша */
+    static byte[] label(byte[] hash){
+        int len = (hash.length * 8 + 4) / 5;
+        byte[] ret = new byte[len + 1];
+        ret[0] = (byte) len;
+        int acc = 0;
+        int bits = 0;
+        int pos = 1;
+        for (byte b : hash){
+            acc = (acc << 8) | (b & 0xff);
+            bits += 8;
+            while (bits >= 5){
+                bits -= 5;
+                ret[pos++] = BASE32HEX[(acc >> bits) & 31];
+            }
+        }
+        if (bits > 0)
+            ret[pos] = BASE32HEX[(acc << (5 - bits)) & 31];
+        return ret;
+    }
+
+    private static int nextOffset(byte[] rdata){
+        return 5 + (rdata[4] & 0xff);
+    }
+
+    private static int bitmapOffset(byte[] rdata){
+        int next = nextOffset(rdata);
+        return next + 1 + (rdata[next] & 0xff);
+    }
+
+    private static boolean hashMatches(ResourceRecord nsec3, byte[] hash){
+        byte[] owner = ownerHash(nsec3);
+        return (owner != null) && Arrays.equals(owner, hash);
+    }
+
+    private static boolean hashCovers(ResourceRecord nsec3, byte[] hash){
+        byte[] owner = ownerHash(nsec3);
+        if (owner == null)
+            return false;
+        byte[] rdata = nsec3.getRdata();
+        int next = nextOffset(rdata);
+        int nlen = rdata[next] & 0xff;
+        int a = Arrays.compareUnsigned(owner, hash);
+        int b = Arrays.compareUnsigned(hash, 0, hash.length, rdata, next + 1, next + 1 + nlen);
+        int c = Arrays.compareUnsigned(owner, 0, owner.length, rdata, next + 1, next + 1 + nlen);
+        if (c < 0)
+            return (a < 0) && (b < 0);
+        // последняя запись цепочки
+        return (a < 0) || (b < 0);
+    }
+
+    /* Записи, годные для имени: SHA-1, в той же зоне, с допустимым числом итераций */
+    private static boolean applies(ResourceRecord nsec3, byte[] name){
+        byte[] rdata = nsec3.getRdata();
+        if ((rdata.length < 6) || ((rdata[0] & 0xff) != NSEC3_SHA1))
+            return false;
+        byte[] zone = Wire.copyName(nsec3.getName(), Wire.parent(nsec3.getName(), 0));
+        return Wire.isSubdomain(name, zone);
+    }
+
+    private static ResourceRecord match3(List<ResourceRecord> nsec3s, byte[] name){
+        for (ResourceRecord rr : nsec3s)
+            if (applies(rr, name) && hashMatches(rr, hash(name, rr)))
+                return rr;
+        return null;
+    }
+
+    private static ResourceRecord cover3(List<ResourceRecord> nsec3s, byte[] name){
+        for (ResourceRecord rr : nsec3s)
+            if (applies(rr, name) && hashCovers(rr, hash(name, rr)))
+                return rr;
+        return null;
+    }
+
+    /* Есть ли запись с числом итераций больше допустимого */
+    static boolean tooManyIterations(List<ResourceRecord> nsec3s){
+        for (ResourceRecord rr : nsec3s)
+            if ((rr.getRdata().length >= 4) && (nsec3Iterations(rr) > MAX_ITERATIONS))
+                return true;
+        return false;
+    }
+
+    /*
+     * Доказательство ближайшего предка (RFC 5155, раздел 8.3): предок с
+     * совпадающей записью и следующее за ним к name имя, покрытое другой.
+     */
+    private static Encloser closestEncloser(List<ResourceRecord> nsec3s, byte[] name){
+        int off = 0;
+        int prev = -1;
+        while (true){
+            byte[] candidate = Wire.copyName(name, off);
+            ResourceRecord match = match3(nsec3s, candidate);
+            if (match != null){
+                // само имя существует
+                if (prev < 0)
+                    return null;
+                byte[] rdata = match.getRdata();
+                int bm = bitmapOffset(rdata);
+                // предок выше делегации или DNAME не годится
+                if (hasType(rdata, bm, Type.DNAME) || (hasType(rdata, bm, Type.NS) && !hasType(rdata, bm, Type.SOA)))
+                    return null;
+                ResourceRecord cover = cover3(nsec3s, Wire.copyName(name, prev));
+                return (cover == null) ? null : new Encloser(candidate, cover);
+            }
+            if (name[off] == 0)
+                return null;
+            prev = off;
+            off = Wire.parent(name, off);
+        }
+    }
+
+    static int nsec3Nxdomain(List<ResourceRecord> nsec3s, byte[] name){
+        Encloser ce = closestEncloser(nsec3s, name);
+        if (ce == null)
+            return NONE;
+        if (cover3(nsec3s, wildcard(ce.name)) != null)
+            return PROVEN;
+        // под opt-out имя могло быть неподписанной делегацией
+        return optOut(ce.cover) ? INSECURE : NONE;
+    }
+
+    private static boolean optOut(ResourceRecord nsec3){
+        return (nsec3.getRdata()[1] & NSEC3_OPT_OUT) != 0;
+    }
+
+    static int nsec3Nodata(List<ResourceRecord> nsec3s, byte[] name, int type){
+        ResourceRecord match = match3(nsec3s, name);
+        if (match != null){
+            byte[] rdata = match.getRdata();
+            int bm = bitmapOffset(rdata);
+            if (hasType(rdata, bm, type) || hasType(rdata, bm, Type.CNAME))
+                return NONE;
+            if (type == Type.DS){
+                if (hasType(rdata, bm, Type.SOA) && (name[0] != 0))
+                    return NONE;
+                return hasType(rdata, bm, Type.NS) ? INSECURE : PROVEN;
+            }
+            if (hasType(rdata, bm, Type.NS) && !hasType(rdata, bm, Type.SOA))
+                return NONE;
+            return PROVEN;
+        }
+        Encloser ce = closestEncloser(nsec3s, name);
+        if (ce == null)
+            return NONE;
+        // DS под opt-out: делегация может быть неподписанной (RFC 5155, раздел 8.6)
+        if ((type == Type.DS) && optOut(ce.cover))
+            return INSECURE;
+        ResourceRecord wild = match3(nsec3s, wildcard(ce.name));
+        if (wild == null)
+            return NONE;
+        byte[] rdata = wild.getRdata();
+        int bm = bitmapOffset(rdata);
+        return (hasType(rdata, bm, type) || hasType(rdata, bm, Type.CNAME)) ? NONE : PROVEN;
+    }
+
+    /* Для ответа из шаблона: следующее за предком имя покрыто (RFC 5155, раздел 8.8) */
+    static boolean nsec3Wildcard(List<ResourceRecord> nsec3s, byte[] name, int labels){
+        int off = 0;
+        for (int i = Wire.labelCount(name, 0); i > labels + 1; i--)
+            off = Wire.parent(name, off);
+        return cover3(nsec3s, Wire.copyName(name, off)) != null;
+    }
+
+    /**
+     * Ближайший существующий предок и запись, покрывающая следующее имя.
+     */
+    private static final class Encloser {
+
+        private final byte[] name;
+
+        private final ResourceRecord cover;
+
+        private Encloser(byte[] name, ResourceRecord cover){
+            this.name = name;
+            this.cover = cover;
+        }
+    }
+}
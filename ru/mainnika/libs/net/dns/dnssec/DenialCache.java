@@ -0,0 +1,424 @@
+package ru.mainnika.libs.net.dns.dnssec;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import ru.mainnika.libs.net.dns.Message;
+import ru.mainnika.libs.net.dns.Rcode;
+import ru.mainnika.libs.net.dns.ResourceRecord;
+import ru.mainnika.libs.net.dns.Type;
+import ru.mainnika.libs.net.dns.Wire;
+import ru.mainnika.libs.net.dns.cache.RecordCache;
+
+/**
+ * Агрессивное использование кэшированных NSEC и NSEC3 (RFC 8198). Из
+ * отрицательных ответов, прошедших {@link Validator}, берутся записи
+ * NSEC/NSEC3 секции авторитетных и раскладываются по зонам: NSEC - в
+ * порядке канонических имен владельцев, NSEC3 - по хэшу владельца. Запрос
+ * имени, попавшего в уже известный диапазон, получает NXDOMAIN или NODATA
+ * без обращения к серверам: соседние записи находятся поиском по
+ * упорядоченному индексу и проверяются тем же кодом, что и доказательства
+ * в ответах ({@link Denial}).
+ *
+ * Так отсекаются запросы случайных поддоменов: одна запись NSEC покрывает
+ * все имена между двумя существующими, и повторять запрос к серверу для
+ * каждого нового имени не нужно. Синтезированные ответы в {@link RecordCache}
+ * не попадают и не вытесняют из него настоящие данные.
+ *
+ * Время жизни записи - меньшее из ее TTL, TTL и поля MINIMUM SOA зоны
+ * (RFC 9077). Записи NSEC3 с opt-out и с числом итераций больше
+ * {@link Denial#MAX_ITERATIONS} не сохраняются: первые не доказывают
+ * отсутствия неподписанных делегаций, вторые дороги для каждого запроса.
+ *
+ * Экземпляр потокобезопасен.
+ *
+ * @author MainNika
+ */
+public final class DenialCache {
+
+    private final Validator validator;
+
+    private final ConcurrentHashMap<Name, Zone> zones = new ConcurrentHashMap<>();
+
+    private final AtomicInteger size = new AtomicInteger();
+
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    private volatile int maxEntries = 100000;
+
+    private volatile long maxTtl = 10800;
+
+    private final LongAdder stored = new LongAdder();
+
+    private final LongAdder nxdomain = new LongAdder();
+
+    private final LongAdder nodata = new LongAdder();
+
+    private final LongAdder rejected = new LongAdder();
+
+    /* Ответы проверяются validator перед тем, как их NSEC попадут в кэш */
+    public DenialCache(Validator validator){
+        this.validator = validator;
+    }
+
+    /* Предел числа записей NSEC и NSEC3 во всех зонах */
+    public DenialCache setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+        return this;
+    }
+
+    /* Верхняя граница времени хранения в секундах */
+    public DenialCache setMaxTtl(long maxTtl) {
+        this.maxTtl = maxTtl;
+        return this;
+    }
+
+    public int size(){
+        return size.get();
+    }
+
+    /* Записей NSEC и NSEC3, принятых из ответов */
+    public long getStored() {
+        return stored.sum();
+    }
+
+    /* Синтезированных NXDOMAIN */
+    public long getNxdomain() {
+        return nxdomain.sum();
+    }
+
+    /* Синтезированных NODATA */
+    public long getNodata() {
+        return nodata.sum();
+    }
+
+    /* Отрицательных ответов, не прошедших проверку */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    public void clear(){
+        zones.clear();
+        size.set(0);
+    }
+
+    /* ———————————————————— Сохранение —————————————————————— */
+
+    /*
+     * Сохраняет NSEC и NSEC3 отрицательного ответа, если он проверен как
+     * SECURE. Записи должны принадлежать зоне SOA из того же ответа.
+     * Возвращает true, если что-то сохранено.
+     */
+    public boolean add(Message m){
+        int rcode = m.getRcode();
+        if ((rcode != Rcode.NOERROR) && (rcode != Rcode.NXDOMAIN))
+            return false;
+        ResourceRecord soa = null;
+        boolean proofs = false;
+        for (ResourceRecord rr : m.getAuthorities()){
+            if (rr.getType() == Type.SOA)
+                soa = rr;
+            else if ((rr.getType() == Type.NSEC) || (rr.getType() == Type.NSEC3))
+                proofs = true;
+        }
+        if ((soa == null) || !proofs)
+            return false;
+        if (validator.validate(m).getStatus() != Validator.Status.SECURE){
+            rejected.increment();
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        byte[] rdata = soa.getRdata();
+        long ttl = Math.min(maxTtl, Math.min(soa.getTtl(), Wire.u32(rdata, rdata.length - 4)));
+        Zone zone = zones.computeIfAbsent(Name.of(soa.getName()), Zone::new);
+        zone.soa = soa;
+        zone.soaExpires = now + ttl * 1000;
+        boolean ret = false;
+        for (ResourceRecord rr : m.getAuthorities()){
+            long expires = now + Math.min(ttl, rr.getTtl()) * 1000;
+            if ((rr.getType() == Type.NSEC) && Wire.isSubdomain(rr.getName(), zone.name))
+                ret |= putNsec(zone, rr, expires);
+            else if (rr.getType() == Type.NSEC3)
+                ret |= putNsec3(zone, rr, expires);
+        }
+        if (size.get() > maxEntries)
+            evict(now);
+        return ret;
+    }
+
+    private boolean putNsec(Zone zone, ResourceRecord rr, long expires){
+        byte[] rdata = rr.getRdata();
+        if ((rdata.length == 0) || !Wire.isSubdomain(rdata, zone.name))
+            return false;
+        byte[] owner = Wire.copyName(rr.getName(), 0);
+        Wire.toLowerCase(owner, 0);
+        if (zone.nsec.put(owner, new Stored(rr, expires)) == null)
+            size.incrementAndGet();
+        stored.increment();
+        return true;
+    }
+
+    private boolean putNsec3(Zone zone, ResourceRecord rr, long expires){
+        byte[] rdata = rr.getRdata();
+        if ((rdata.length < 6) || ((rdata[0] & 0xff) != Denial.NSEC3_SHA1) || ((rdata[1] & Denial.NSEC3_OPT_OUT) != 0)
+                || (Denial.nsec3Iterations(rr) > Denial.MAX_ITERATIONS))
+            return false;
+        // владелец - одна метка хэша прямо под вершиной зоны
+        if (!Wire.equalsIgnoreCase(rr.getName(), Wire.parent(rr.getName(), 0), zone.name, 0))
+            return false;
+        byte[] hash = Denial.ownerHash(rr);
+        if (hash == null)
+            return false;
+        byte[] params = Arrays.copyOf(rdata, 5 + (rdata[4] & 0xff));
+        params[1] = 0;
+        Chain chain = zone.nsec3;
+        if ((chain == null) || !Arrays.equals(chain.params, params)){
+            // параметры цепочки сменились: старая цепочка больше не нужна
+            chain = new Chain(params);
+            Chain old = zone.nsec3;
+            zone.nsec3 = chain;
+            if (old != null)
+                size.addAndGet(-old.hashes.size());
+        }
+        if (chain.hashes.put(hash, new Stored(rr, expires)) == null)
+            size.incrementAndGet();
+        stored.increment();
+        return true;
+    }
+
+    /* ———————————————————— Синтез —————————————————————— */
+
+    /*
+     * Отрицательный ответ для имени и типа из кэшированных диапазонов:
+     * запись кэша с кодом NXDOMAIN или NOERROR (NODATA) и SOA зоны; null,
+     * если отсутствие не доказано и нужно спрашивать сервер.
+     */
+    public RecordCache.Entry get(byte[] name, int type){
+        long now = System.currentTimeMillis();
+        int off = 0;
+        while (true){
+            Zone zone = zones.get(Name.of(Wire.copyName(name, off)));
+            if ((zone != null) && (zone.soaExpires > now)){
+                RecordCache.Entry ret = synthesize(zone, name, type, now);
+                if (ret != null)
+                    return ret;
+            }
+            if (name[off] == 0)
+                return null;
+            off = Wire.parent(name, off);
+        }
+    }
+
+    private RecordCache.Entry synthesize(Zone zone, byte[] name, int type, long now){
+        ArrayList<ResourceRecord> used = new ArrayList<>(3);
+        long[] expires = { zone.soaExpires };
+        int rcode = -1;
+        if (!zone.nsec.isEmpty()){
+            Stored cover = floor(zone.nsec, name, now);
+            if (cover != null){
+                used.add(cover.rr);
+                expires[0] = Math.min(expires[0], cover.expires);
+                if (!Wire.equalsIgnoreCase(cover.rr.getName(), name) && Denial.covers(cover.rr, name)){
+                    Stored wild = floor(zone.nsec, Denial.wildcard(Denial.encloser(cover.rr, name)), now);
+                    if ((wild != null) && (wild != cover)){
+                        used.add(wild.rr);
+                        expires[0] = Math.min(expires[0], wild.expires);
+                    }
+                }
+                if (Denial.nsecNxdomain(used, name) == Denial.PROVEN)
+                    rcode = Rcode.NXDOMAIN;
+                else if (Denial.nsecNodata(used, name, type) == Denial.PROVEN)
+                    rcode = Rcode.NOERROR;
+            }
+        }
+        Chain chain = zone.nsec3;
+        if ((rcode < 0) && (chain != null) && !chain.hashes.isEmpty()){
+            used.clear();
+            expires[0] = zone.soaExpires;
+            if (nsec3(zone, chain, name, now, used, expires)){
+                if (Denial.nsec3Nxdomain(used, name) == Denial.PROVEN)
+                    rcode = Rcode.NXDOMAIN;
+                else if (Denial.nsec3Nodata(used, name, type) == Denial.PROVEN)
+                    rcode = Rcode.NOERROR;
+            }
+        }
+        if (rcode < 0)
+            return null;
+        if (rcode == Rcode.NXDOMAIN)
+            nxdomain.increment();
+        else
+            nodata.increment();
+        return new RecordCache.Entry(name, type, Type.CLASS_IN, expires[0], RecordCache.RANK_AUTH_ANSWER, null, rcode, zone.soa);
+    }
+
+    /*
+     * Записи NSEC3 для доказательства: от имени к вершине зоны хэш каждого
+     * предка и ближайшая запись не выше него, до первого совпадения
+     * (ближайшего существующего предка), затем запись для шаблона под ним.
+     */
+    private boolean nsec3(Zone zone, Chain chain, byte[] name, long now, ArrayList<ResourceRecord> used, long[] expires){
+        byte[] params = chain.params;
+        int iterations = Wire.u16(params, 2);
+        int saltLength = params[4] & 0xff;
+        int off = 0;
+        while (true){
+            byte[] candidate = Wire.copyName(name, off);
+            byte[] hash = Denial.hash(candidate, params, 5, saltLength, iterations);
+            Stored s = floor(chain.hashes, hash, now);
+            if (s == null)
+                return false;
+            if (!used.contains(s.rr))
+                used.add(s.rr);
+            expires[0] = Math.min(expires[0], s.expires);
+            if (Arrays.equals(Denial.ownerHash(s.rr), hash)){
+                if (off == 0)
+                    return true;
+                Stored wild = floor(chain.hashes, Denial.hash(Denial.wildcard(candidate), params, 5, saltLength, iterations), now);
+                if (wild == null)
+                    return false;
+                if (!used.contains(wild.rr))
+                    used.add(wild.rr);
+                expires[0] = Math.min(expires[0], wild.expires);
+                return true;
+            }
+            if (Wire.equalsIgnoreCase(name, off, zone.name, 0))
+                return false;
+            off = Wire.parent(name, off);
+        }
+    }
+
+    /*
+     * Ближайшая запись с ключом не больше key; перед первой - последняя,
+     * она замыкает цепочку. Истекшая запись удаляется и считается промахом.
+     */
+    private <K> Stored floor(ConcurrentSkipListMap<K, Stored> map, K key, long now){
+        Map.Entry<K, Stored> e = map.floorEntry(key);
+        if (e == null)
+            e = map.lastEntry();
+        if (e == null)
+            return null;
+        Stored ret = e.getValue();
+        if (ret.expires <= now){
+            if (map.remove(e.getKey(), ret))
+                size.decrementAndGet();
+            return null;
+        }
+        return ret;
+    }
+
+    /* Удаляет истекшие записи, при переполнении - зоны целиком, пока не станет меньше 9/10 предела */
+    private void evict(long now){
+        if (!evicting.compareAndSet(false, true))
+            return;
+        try{
+            for (Zone zone : zones.values()){
+                int removed = 0;
+                for (Map.Entry<byte[], Stored> e : zone.nsec.entrySet())
+                    if ((e.getValue().expires <= now) && zone.nsec.remove(e.getKey(), e.getValue()))
+                        removed++;
+                Chain chain = zone.nsec3;
+                if (chain != null)
+                    for (Map.Entry<byte[], Stored> e : chain.hashes.entrySet())
+                        if ((e.getValue().expires <= now) && chain.hashes.remove(e.getKey(), e.getValue()))
+                            removed++;
+                size.addAndGet(-removed);
+                if ((zone.soaExpires <= now) && zone.nsec.isEmpty() && ((chain == null) || chain.hashes.isEmpty()))
+                    zones.remove(zone.key, zone);
+            }
+            for (Zone zone : zones.values()){
+                if (size.get() <= maxEntries * 9 / 10)
+                    break;
+                if (zones.remove(zone.key, zone)){
+                    Chain chain = zone.nsec3;
+                    size.addAndGet(-zone.nsec.size() - ((chain != null) ? chain.hashes.size() : 0));
+                }
+            }
+        }finally{
+            evicting.set(false);
+        }
+    }
+
+    /**
+     * Записи одной зоны: NSEC по каноническому порядку владельцев и цепочка
+     * NSEC3 с последними увиденными параметрами.
+     */
+    private static final class Zone {
+
+        private final Name key;
+
+        private final byte[] name;
+
+        private final ConcurrentSkipListMap<byte[], Stored> nsec = new ConcurrentSkipListMap<>(Wire::compareCanonical);
+
+        private volatile Chain nsec3;
+
+        private volatile ResourceRecord soa;
+
+        private volatile long soaExpires;
+
+        private Zone(Name key){
+            this.key = key;
+            this.name = key.name;
+        }
+    }
+
+    /**
+     * Цепочка NSEC3: алгоритм, итерации и соль (флаги обнулены) и записи
+     * по хэшу владельца в беззнаковом порядке.
+     */
+    private static final class Chain {
+
+        private final byte[] params;
+
+        private final ConcurrentSkipListMap<byte[], Stored> hashes = new ConcurrentSkipListMap<>(Arrays::compareUnsigned);
+
+        private Chain(byte[] params){
+            this.params = params;
+        }
+    }
+
+    private static final class Stored {
+
+        private final ResourceRecord rr;
+
+        private final long expires;
+
+        private Stored(ResourceRecord rr, long expires){
+            this.rr = rr;
+            this.expires = expires;
+        }
+    }
+
+    private static final class Name {
+
+        private final byte[] name;
+
+        private final int hash;
+
+        private Name(byte[] name){
+            this.name = name;
+            this.hash = Arrays.hashCode(name);
+        }
+
+        private static Name of(byte[] name){
+            byte[] lower = Wire.copyName(name, 0);
+            Wire.toLowerCase(lower, 0);
+            return new Name(lower);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return (o instanceof Name) && Arrays.equals(name, ((Name) o).name);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package ru.mainnika.libs.net.dns.dnssec;
+
+import java.math.BigInteger;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.EdECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import ru.mainnika.libs.net.dns.DnsException;
+import ru.mainnika.libs.net.dns.Wire;
+
+/**
+ * Алгоритмы DNSSEC и преобразование ключей DNSKEY в ключи JCA и обратно.
+ * Поддерживаются RSA с SHA-1, SHA-256 и SHA-512, ECDSA на кривых P-256 и
+ * P-384 и Ed25519 (RFC 5702, 6605, 8080); все проверки идут средствами JDK.
+ *
+ * @author MainNika
+ */
+public final class Keys {
+
+    public static final int RSASHA1 = 5;
+    public static final int RSASHA1_NSEC3_SHA1 = 7;
+    public static final int RSASHA256 = 8;
+    public static final int RSASHA512 = 10;
+    public static final int ECDSAP256SHA256 = 13;
+    public static final int ECDSAP384SHA384 = 14;
+    public static final int ED25519 = 15;
+
+    /* Алгоритмы дайджеста DS */
+    public static final int DIGEST_SHA1 = 1;
+    public static final int DIGEST_SHA256 = 2;
+    public static final int DIGEST_SHA384 = 4;
+
+    /* Флаги DNSKEY */
+    public static final int FLAG_ZONE = 0x0100;
+    public static final int FLAG_SEP = 0x0001;
+    public static final int FLAG_REVOKE = 0x0080;
+
+    public static final int PROTOCOL = 3;
+
+    /* Префикс SubjectPublicKeyInfo для сырого ключа Ed25519 */
+    private static final byte[] ED25519_PREFIX = {
+        0x30, 0x2a, 0x30, 0x05, 0x06, 0x03, 0x2b, 0x65, 0x70, 0x03, 0x21, 0x00
+    };
+
+    private static final ECParameterSpec P256 = curve("secp256r1");
+
+    private static final ECParameterSpec P384 = curve("secp384r1");
+
+    private Keys(){
+    }
+
+    private static ECParameterSpec curve(String name){
+        try{
+            AlgorithmParameters params = AlgorithmParameters.getInstance("EC");
+            params.init(new ECGenParameterSpec(name));
+            return params.getParameterSpec(ECParameterSpec.class);
+        }catch(GeneralSecurityException e){
+            return null;
+        }
+    }
+
+    /* Можно ли проверять подписи этого алгоритма */
+    public static boolean isSupported(int algorithm){
+        switch (algorithm){
+            case RSASHA1:
+            case RSASHA1_NSEC3_SHA1:
+            case RSASHA256:
+            case RSASHA512:
+            case ED25519:
+                return true;
+            case ECDSAP256SHA256:
+                return P256 != null;
+            case ECDSAP384SHA384:
+                return P384 != null;
+        }
+        return false;
+    }
+
+    /* Имя алгоритма подписи JCA; подписи ECDSA в DNSSEC - это r и s подряд (RFC 6605) */
+    public static String signatureName(int algorithm) throws DnsException{
+        switch (algorithm){
+            case RSASHA1:
+            case RSASHA1_NSEC3_SHA1:
+                return "SHA1withRSA";
+            case RSASHA256:
+                return "SHA256withRSA";
+            case RSASHA512:
+                return "SHA512withRSA";
+            case ECDSAP256SHA256:
+                return "SHA256withECDSAinP1363Format";
+            case ECDSAP384SHA384:
+                return "SHA384withECDSAinP1363Format";
+            case ED25519:
+                return "Ed25519";
+        }
+        throw new DnsException("Unsupported DNSSEC algorithm " + Integer.toString(algorithm));
+    }
+
+    public static int flags(byte[] dnskey){
+        return Wire.u16(dnskey, 0);
+    }
+
+    public static int algorithm(byte[] dnskey){
+        return dnskey[3] & 0xff;
+    }
+
+    /* Метка ключа (RFC 4034, приложение B) */
+    public static int keyTag(byte[] dnskey){
+        long ac = 0;
+        for (int i = 0; i < dnskey.length; i++)
+            ac += ((i & 1) == 0) ? (dnskey[i] & 0xff) << 8 : (dnskey[i] & 0xff);
+        ac += (ac >> 16) & 0xffff;
+        return (int) (ac & 0xffff);
+    }
+
+    /* Дайджест DS ключа владельца owner: хэш имени в нижнем регистре и RDATA DNSKEY */
+    public static byte[] digest(byte[] owner, byte[] dnskey, int digestType) throws DnsException{
+        String name;
+        switch (digestType){
+            case DIGEST_SHA1:
+                name = "SHA-1";
+                break;
+            case DIGEST_SHA256:
+                name = "SHA-256";
+                break;
+            case DIGEST_SHA384:
+                name = "SHA-384";
+                break;
+            default:
+                throw new DnsException("Unsupported DS digest " + Integer.toString(digestType));
+        }
+        byte[] lower = Wire.copyName(owner, 0);
+        Wire.toLowerCase(lower, 0);
+        try{
+            MessageDigest md = MessageDigest.getInstance(name);
+            md.update(lower);
+            md.update(dnskey);
+            return md.digest();
+        }catch(GeneralSecurityException e){
+            throw new DnsException("Digest " + name + " is not available");
+        }
+    }
+
+    /* RDATA DS для ключа */
+    public static byte[] ds(byte[] owner, byte[] dnskey, int digestType) throws DnsException{
+        byte[] digest = digest(owner, dnskey, digestType);
+        byte[] ret = new byte[4 + digest.length];
+        Wire.put16(ret, 0, keyTag(dnskey));
+        ret[2] = dnskey[3];
+        ret[3] = (byte) digestType;
+        System.arraycopy(digest, 0, ret, 4, digest.length);
+        return ret;
+    }
+
+    /* Соответствует ли RDATA DS ключу владельца owner */
+    public static boolean matches(byte[] ds, byte[] owner, byte[] dnskey) throws DnsException{
+        if ((ds.length < 4) || (Wire.u16(ds, 0) != keyTag(dnskey)) || ((ds[2] & 0xff) != algorithm(dnskey)))
+            return false;
+        byte[] digest = digest(owner, dnskey, ds[3] & 0xff);
+        return Arrays.equals(ds, 4, ds.length, digest, 0, digest.length);
+    }
+
+    public static boolean isDigestSupported(int digestType){
+        return (digestType == DIGEST_SHA1) || (digestType == DIGEST_SHA256) || (digestType == DIGEST_SHA384);
+    }
+
+    /* Открытый ключ JCA из RDATA DNSKEY */
+    public static PublicKey publicKey(byte[] dnskey) throws DnsException{
+        if ((dnskey.length < 5) || ((dnskey[2] & 0xff) != PROTOCOL))
+            throw new DnsException("Malformed DNSKEY");
+        int off = 4;
+        int len = dnskey.length - off;
+        try{
+            switch (algorithm(dnskey)){
+                case RSASHA1:
+                case RSASHA1_NSEC3_SHA1:
+                case RSASHA256:
+                case RSASHA512: {
+                    // длина экспоненты: один байт или ноль и два байта (RFC 3110)
+                    int elen = dnskey[off++] & 0xff;
+                    if (elen == 0){
+                        if (off + 2 > dnskey.length)
+                            throw new DnsException("Malformed RSA key");
+                        elen = Wire.u16(dnskey, off);
+                        off += 2;
+                    }
+                    if ((elen == 0) || (off + elen >= dnskey.length))
+                        throw new DnsException("Malformed RSA key");
+                    BigInteger e = new BigInteger(1, Arrays.copyOfRange(dnskey, off, off + elen));
+                    BigInteger n = new BigInteger(1, Arrays.copyOfRange(dnskey, off + elen, dnskey.length));
+                    return KeyFactory.getInstance("RSA").generatePublic(new RSAPublicKeySpec(n, e));
+                }
+                case ECDSAP256SHA256:
+                    return ec(dnskey, off, len, 32, P256);
+                case ECDSAP384SHA384:
+                    return ec(dnskey, off, len, 48, P384);
+                case ED25519: {
+                    if (len != 32)
+                        throw new DnsException("Malformed Ed25519 key");
+                    byte[] spki = Arrays.copyOf(ED25519_PREFIX, ED25519_PREFIX.length + 32);
+                    System.arraycopy(dnskey, off, spki, ED25519_PREFIX.length, 32);
+                    return KeyFactory.getInstance("Ed25519").generatePublic(new X509EncodedKeySpec(spki));
+                }
+            }
+        }catch(GeneralSecurityException e){
+            throw new DnsException("Bad DNSKEY: " + e.getMessage());
+        }
+        throw new DnsException("Unsupported DNSSEC algorithm " + Integer.toString(algorithm(dnskey)));
+    }
+
+    private static PublicKey ec(byte[] dnskey, int off, int len, int size, ECParameterSpec spec) throws GeneralSecurityException, DnsException{
+        if ((spec == null) || (len != size * 2))
+            throw new DnsException("Malformed ECDSA key");
+        BigInteger x = new BigInteger(1, Arrays.copyOfRange(dnskey, off, off + size));
+        BigInteger y = new BigInteger(1, Arrays.copyOfRange(dnskey, off + size, off + size * 2));
+        return KeyFactory.getInstance("EC").generatePublic(new ECPublicKeySpec(new ECPoint(x, y), spec));
+    }
+
+    /* RDATA DNSKEY для открытого ключа JCA */
+    public static byte[] dnskey(PublicKey key, int flags, int algorithm) throws DnsException{
+        byte[] material;
+        if (key instanceof RSAPublicKey){
+            byte[] e = unsigned(((RSAPublicKey) key).getPublicExponent());
+            byte[] n = unsigned(((RSAPublicKey) key).getModulus());
+            int prefix = (e.length > 255) ? 3 : 1;
+            material = new byte[prefix + e.length + n.length];
+            if (prefix == 1){
+                material[0] = (byte) e.length;
+            }else{
+                Wire.put16(material, 1, e.length);
+            }
+            System.arraycopy(e, 0, material, prefix, e.length);
+            System.arraycopy(n, 0, material, prefix + e.length, n.length);
+        }else if (key instanceof ECPublicKey){
+            int size = (algorithm == ECDSAP384SHA384) ? 48 : 32;
+            ECPoint w = ((ECPublicKey) key).getW();
+            material = new byte[size * 2];
+            fixed(w.getAffineX(), material, 0, size);
+            fixed(w.getAffineY(), material, size, size);
+        }else if (key instanceof EdECPublicKey){
+            byte[] spki = key.getEncoded();
+            material = Arrays.copyOfRange(spki, spki.length - 32, spki.length);
+        }else{
+            throw new DnsException("Unsupported key " + key.getAlgorithm());
+        }
+        byte[] ret = new byte[4 + material.length];
+        Wire.put16(ret, 0, flags);
+        ret[2] = PROTOCOL;
+        ret[3] = (byte) algorithm;
+        System.arraycopy(material, 0, ret, 4, material.length);
+        return ret;
+    }
+
+    private static byte[] unsigned(BigInteger v){
+        byte[] ret = v.toByteArray();
+        return (ret[0] == 0) && (ret.length > 1) ? Arrays.copyOfRange(ret, 1, ret.length) : ret;
+    }
+
+    private static void fixed(BigInteger v, byte[] dst, int off, int size){
+        byte[] b = unsigned(v);
+        System.arraycopy(b, 0, dst, off + size - b.length, b.length);
+    }
+}
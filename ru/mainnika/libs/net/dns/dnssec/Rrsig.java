@@ -0,0 +1,119 @@
+package ru.mainnika.libs.net.dns.dnssec;
+
+import java.util.Arrays;
+import ru.mainnika.libs.net.dns.DnsException;
+import ru.mainnika.libs.net.dns.Type;
+import ru.mainnika.libs.net.dns.Wire;
+
+/**
+ * Разобранная RDATA записи RRSIG (RFC 4034, раздел 3). Подпись не
+ * копируется: поля ссылаются на исходный массив.
+ *
+ * @author MainNika
+ */
+public final class Rrsig {
+
+    private final byte[] rdata;
+
+    private final int signerLength;
+
+    private Rrsig(byte[] rdata, int signerLength){
+        this.rdata = rdata;
+        this.signerLength = signerLength;
+    }
+
+    public static Rrsig parse(byte[] rdata) throws DnsException{
+        if (rdata.length < 19)
+            throw new DnsException("Truncated RRSIG");
+        int len = Wire.skipName(rdata, 18, rdata.length) - 18;
+        if (18 + len >= rdata.length)
+            throw new DnsException("RRSIG without signature");
+        return new Rrsig(rdata, len);
+    }
+
+    /* RDATA RRSIG без подписи: поля 18 байт и имя подписавшего */
+    public static byte[] header(int covered, int algorithm, int labels, long originalTtl, long expiration, long inception,
+            int keyTag, byte[] signer){
+        int len = Wire.nameLength(signer, 0);
+        byte[] ret = new byte[18 + len];
+        Wire.put16(ret, 0, covered);
+        ret[2] = (byte) algorithm;
+        ret[3] = (byte) labels;
+        Wire.put32(ret, 4, originalTtl);
+        Wire.put32(ret, 8, expiration);
+        Wire.put32(ret, 12, inception);
+        Wire.put16(ret, 16, keyTag);
+        System.arraycopy(signer, 0, ret, 18, len);
+        Wire.toLowerCase(ret, 18);
+        return ret;
+    }
+
+    public int getTypeCovered() {
+        return Wire.u16(rdata, 0);
+    }
+
+    public int getAlgorithm() {
+        return rdata[2] & 0xff;
+    }
+
+    public int getLabels() {
+        return rdata[3] & 0xff;
+    }
+
+    public long getOriginalTtl() {
+        return Wire.u32(rdata, 4);
+    }
+
+    /* Срок действия в секундах от эпохи по модулю 2^32 */
+    public long getExpiration() {
+        return Wire.u32(rdata, 8);
+    }
+
+    public long getInception() {
+        return Wire.u32(rdata, 12);
+    }
+
+    public int getKeyTag() {
+        return Wire.u16(rdata, 16);
+    }
+
+    public byte[] getSigner() {
+        return Arrays.copyOfRange(rdata, 18, 18 + signerLength);
+    }
+
+    /* Длина подписываемой части RDATA */
+    public int getSignedLength() {
+        return 18 + signerLength;
+    }
+
+    public byte[] getRdata() {
+        return rdata;
+    }
+
+    public byte[] getSignature() {
+        return Arrays.copyOfRange(rdata, 18 + signerLength, rdata.length);
+    }
+
+    /* Является ли signer предком имени name или совпадает с ним */
+    public boolean isSignerOf(byte[] name){
+        return Wire.isSubdomain(name, 0, rdata, 18);
+    }
+
+    /* Сравнение времени по арифметике серийных номеров (RFC 4034, раздел 3.1.5) */
+    public boolean isValidAt(long seconds){
+        int now = (int) seconds;
+        return (now - (int) getInception() >= 0) && ((int) getExpiration() - now >= 0);
+    }
+
+    /* Секунд до истечения подписи, по модулю 2^32 */
+    public long secondsLeft(long seconds){
+        return (int) getExpiration() - (int) seconds;
+    }
+
+    @Override
+    public String toString() {
+        return Type.nameOf(getTypeCovered()) + " " + Integer.toString(getAlgorithm()) + " " + Integer.toString(getLabels())
+                + " " + Long.toString(getOriginalTtl()) + " " + Integer.toString(getKeyTag()) + " "
+                + Wire.toString(rdata, 18);
+    }
+}
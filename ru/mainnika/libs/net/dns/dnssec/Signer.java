@@ -0,0 +1,112 @@
+package ru.mainnika.libs.net.dns.dnssec;
+
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.util.concurrent.TimeUnit;
+import ru.mainnika.libs.net.dns.DnsException;
+import ru.mainnika.libs.net.dns.RRset;
+import ru.mainnika.libs.net.dns.ResourceRecord;
+import ru.mainnika.libs.net.dns.Type;
+import ru.mainnika.libs.net.dns.Wire;
+import ru.mainnika.libs.net.dns.zone.MasterFileParser;
+
+/**
+ * Подпись наборов записей закрытым ключом зоны. Вход подписи собирается тем
+ * же кодом, что и при проверке, поэтому подписанные локально зоны годятся
+ * как тестовый материал для {@link Validator}. Экземпляр не потокобезопасен.
+ *
+ * @author MainNika
+ */
+public final class Signer {
+
+    private final byte[] zone;
+
+    private final byte[] dnskey;
+
+    private final PrivateKey key;
+
+    private final Canonical canonical = new Canonical();
+
+    private long inception = System.currentTimeMillis() / 1000 - 3600;
+
+    private long expiration = inception + TimeUnit.DAYS.toSeconds(30);
+
+    /* zone - имя подписывающей зоны, dnskey - RDATA открытой части ключа */
+    public Signer(byte[] zone, byte[] dnskey, PrivateKey key){
+        this.zone = Wire.copyName(zone, 0);
+        Wire.toLowerCase(this.zone, 0);
+        this.dnskey = dnskey.clone();
+        this.key = key;
+    }
+
+    /* Срок действия подписей в секундах от эпохи */
+    public Signer setValidity(long inception, long expiration) {
+        this.inception = inception;
+        this.expiration = expiration;
+        return this;
+    }
+
+    public byte[] getDnskey() {
+        return dnskey.clone();
+    }
+
+    /* RRSIG для набора */
+    public ResourceRecord sign(RRset set) throws DnsException{
+        byte[] owner = set.getName();
+        int labels = Wire.labelCount(owner, 0) - (Wire.isWildcard(owner, 0) ? 1 : 0);
+        byte[] header = Rrsig.header(set.getType(), Keys.algorithm(dnskey), labels, set.getTtl(), expiration, inception,
+                Keys.keyTag(dnskey), zone);
+        int length = canonical.signingInput(set, header, header.length);
+        byte[] signature;
+        try{
+            Signature s = Signature.getInstance(Keys.signatureName(Keys.algorithm(dnskey)));
+            s.initSign(key);
+            s.update(canonical.getBuffer(), 0, length);
+            signature = s.sign();
+        }catch(GeneralSecurityException e){
+            throw new DnsException("Signing failed: " + e.getMessage());
+        }
+        byte[] rdata = new byte[header.length + signature.length];
+        System.arraycopy(header, 0, rdata, 0, header.length);
+        System.arraycopy(signature, 0, rdata, header.length, signature.length);
+        return new ResourceRecord(owner, Type.RRSIG, set.getCl(), set.getTtl(), rdata);
+    }
+
+    /* RDATA NSEC: следующее имя и битовая карта типов */
+    public static byte[] nsec(byte[] next, int... types){
+        int len = Wire.nameLength(next, 0);
+        byte[] bitmap = MasterFileParser.typeBitmap(types);
+        byte[] ret = new byte[len + bitmap.length];
+        System.arraycopy(next, 0, ret, 0, len);
+        System.arraycopy(bitmap, 0, ret, len, bitmap.length);
+        return ret;
+    }
+
+    /* Владелец NSEC3 для имени: хэш base32hex первой меткой под зоной */
+    public static byte[] nsec3Owner(byte[] name, byte[] zone, byte[] salt, int iterations) throws DnsException{
+        byte[] hash = nsec3Hash(name, salt, iterations);
+        byte[] label = Denial.label(hash);
+        return Wire.concat(label, 0, label.length, zone, 0);
+    }
+
+    /* Хэш NSEC3 имени с солью и числом итераций (RFC 5155, раздел 5) */
+    public static byte[] nsec3Hash(byte[] name, byte[] salt, int iterations){
+        return Denial.hash(name, salt, 0, salt.length, iterations);
+    }
+
+    /* RDATA NSEC3 с SHA-1: флаги, итерации, соль, следующий хэш и битовая карта */
+    public static byte[] nsec3(int flags, int iterations, byte[] salt, byte[] nextHash, int... types){
+        byte[] bitmap = MasterFileParser.typeBitmap(types);
+        byte[] ret = new byte[6 + salt.length + nextHash.length + bitmap.length];
+        ret[0] = Denial.NSEC3_SHA1;
+        ret[1] = (byte) flags;
+        Wire.put16(ret, 2, iterations);
+        ret[4] = (byte) salt.length;
+        System.arraycopy(salt, 0, ret, 5, salt.length);
+        ret[5 + salt.length] = (byte) nextHash.length;
+        System.arraycopy(nextHash, 0, ret, 6 + salt.length, nextHash.length);
+        System.arraycopy(bitmap, 0, ret, 6 + salt.length + nextHash.length, bitmap.length);
+        return ret;
+    }
+}
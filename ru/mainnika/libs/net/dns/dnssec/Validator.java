@@ -0,0 +1,737 @@
+package ru.mainnika.libs.net.dns.dnssec;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import ru.mainnika.libs.net.dns.DnsException;
+import ru.mainnika.libs.net.dns.Message;
+import ru.mainnika.libs.net.dns.RRset;
+import ru.mainnika.libs.net.dns.Rcode;
+import ru.mainnika.libs.net.dns.ResourceRecord;
+import ru.mainnika.libs.net.dns.Type;
+import ru.mainnika.libs.net.dns.Wire;
+import ru.mainnika.libs.net.dns.zone.MasterFileParser;
+
+/**
+ * Проверка ответов DNSSEC (RFC 4035, раздел 5) по цепочке доверия от
+ * якорей. Ключи зоны подписавшего запрашиваются через {@link Source} вместе
+ * с DS из родительской зоны; DS в свою очередь проверяется ключами родителя,
+ * и так до якоря. Неподписанные данные считаются небезопасными, только если
+ * выше них доказана делегация без DS; для этого DS запрашивается от якоря
+ * вниз по меткам имени.
+ *
+ * Проверенные ключи зон и проверенные подписи кэшируются до меньшего из TTL
+ * и срока подписи, так что каждая подпись проверяется криптографически один
+ * раз за время жизни, а не на каждый запрос. Подпись из кэша принимается,
+ * только если вход подписи совпадает побайтно.
+ *
+ * Экземпляр потокобезопасен.
+ *
+ * @author MainNika
+ */
+public final class Validator {
+
+    /* DS корневых ключей KSK-2017 и KSK-2024 (https://data.iana.org/root-anchors/) */
+    private static final String ROOT_ANCHORS =
+            ". 86400 IN DS 20326 8 2 E06D44B80B8F1D39A95C0B0D7C65D08458E880409BBC683457104237C7F8EC8D\n"
+            + ". 86400 IN DS 38696 8 2 683D2D0ACB8C9B712A1948B27F741219298D0A450D612C483AF444A4C0FB2B16\n";
+
+    /* Сколько хранить неудачу проверки ключей зоны (RFC 4035, раздел 4.7) */
+    private static final long BOGUS_TTL = 60;
+
+    /* Вложенность проверки цепочки */
+    private static final int MAX_DEPTH = 32;
+
+    /* Длина цепочки CNAME внутри ответа */
+    private static final int MAX_CNAME = 8;
+
+    /**
+     * Источник ответов для ключей и DS. Ответ должен нести записи RRSIG и
+     * NSEC/NSEC3, то есть запросы идут с битом DO.
+     */
+    public interface Source {
+
+        Message query(byte[] name, int type) throws DnsException;
+    }
+
+    /* Итог проверки по возрастанию тяжести (RFC 4033, раздел 5) */
+    public enum Status {
+        SECURE, INSECURE, INDETERMINATE, BOGUS
+    }
+
+    private final Source source;
+
+    private final ConcurrentHashMap<Name, List<ResourceRecord>> anchors = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<Name, Keyset> keysets = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<Signed, Verified> verified = new ConcurrentHashMap<>();
+
+    private final ThreadLocal<Canonical> canonical = ThreadLocal.withInitial(Canonical::new);
+
+    /* Зоны, ключи которых сейчас проверяются в этом потоке */
+    private final ThreadLocal<HashSet<Name>> pending = ThreadLocal.withInitial(HashSet::new);
+
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    private volatile int maxEntries = 100000;
+
+    private volatile long maxTtl = 86400;
+
+    private final LongAdder verifications = new LongAdder();
+
+    private final LongAdder hits = new LongAdder();
+
+    public Validator(Source source){
+        this.source = source;
+    }
+
+    /* Предел числа проверенных подписей в кэше */
+    public Validator setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+        return this;
+    }
+
+    /* Верхняя граница времени хранения ключей и подписей в секундах */
+    public Validator setMaxTtl(long maxTtl) {
+        this.maxTtl = maxTtl;
+        return this;
+    }
+
+    /* Якорь доверия: запись DS или DNSKEY */
+    public Validator addTrustAnchor(ResourceRecord anchor){
+        if ((anchor.getType() != Type.DS) && (anchor.getType() != Type.DNSKEY))
+            throw new IllegalArgumentException("Trust anchor must be DS or DNSKEY");
+        anchors.computeIfAbsent(Name.of(anchor.getName()), k -> new ArrayList<>()).add(anchor);
+        keysets.remove(Name.of(anchor.getName()));
+        return this;
+    }
+
+    /* Якоря из текста в формате зоны; остальные типы пропускаются */
+    public Validator addTrustAnchors(Reader in) throws IOException, DnsException{
+        MasterFileParser parser = new MasterFileParser(in, Wire.ROOT);
+        for (ResourceRecord rr = parser.next(); rr != null; rr = parser.next())
+            if ((rr.getType() == Type.DS) || (rr.getType() == Type.DNSKEY))
+                addTrustAnchor(rr);
+        return this;
+    }
+
+    /* Якоря корневой зоны IANA */
+    public Validator addRootAnchors(){
+        try{
+            return addTrustAnchors(new StringReader(ROOT_ANCHORS));
+        }catch(IOException | DnsException e){
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /* Криптографических проверок подписей */
+    public long getVerifications() {
+        return verifications.sum();
+    }
+
+    /* Подписей, принятых из кэша без проверки */
+    public long getCacheHits() {
+        return hits.sum();
+    }
+
+    public void clear(){
+        keysets.clear();
+        verified.clear();
+    }
+
+    /* ———————————————————— Проверка ответа —————————————————————— */
+
+    /*
+     * Проверяет ответ: наборы секции ответов, цепочку CNAME, а для ответа из
+     * шаблона и отрицательного ответа - доказательства NSEC/NSEC3 из секции
+     * авторитетных.
+     */
+    public Result validate(Message m){
+        return check(m, 0);
+    }
+
+    private Result check(Message m, int depth){
+        Result ret = new Result();
+        long now = System.currentTimeMillis();
+        byte[] qname = m.getQname();
+        if (qname == null){
+            ret.update(Status.BOGUS, "No question");
+            return ret;
+        }
+        int qtype = m.getQtype();
+        ArrayList<ResourceRecord> sigs = new ArrayList<>();
+        ArrayList<RRset> answers = sets(m.getAnswers(), sigs);
+        ArrayList<RRset> authorities = sets(m.getAuthorities(), sigs);
+
+        // наборы ответа, в том числе раскрытые из шаблона
+        ArrayList<byte[]> expanded = new ArrayList<>();
+        ArrayList<Integer> expandedLabels = new ArrayList<>();
+        for (RRset set : answers){
+            Rrsig sig = verify(set, sigs, now, ret, depth);
+            if ((sig != null) && (sig.getLabels() < Wire.labelCount(set.getName(), 0) - (Wire.isWildcard(set.getName(), 0) ? 1 : 0))){
+                expanded.add(set.getName());
+                expandedLabels.add(sig.getLabels());
+            }
+        }
+
+        byte[] sname = qname;
+        boolean found = false;
+        for (int hop = 0; (hop <= MAX_CNAME) && !found; hop++){
+            byte[] next = null;
+            for (RRset set : answers){
+                if (!Wire.equalsIgnoreCase(set.getName(), sname))
+                    continue;
+                if ((set.getType() == qtype) || (qtype == Type.ANY))
+                    found = true;
+                else if (set.getType() == Type.CNAME)
+                    next = set.getRdataAt(0);
+            }
+            if (found || (next == null))
+                break;
+            sname = next;
+        }
+        boolean negative = !found || (m.getRcode() == Rcode.NXDOMAIN);
+        if (!negative && expanded.isEmpty())
+            return ret;
+
+        // доказательства берутся только из проверенных наборов
+        ArrayList<ResourceRecord> nsecs = new ArrayList<>();
+        ArrayList<ResourceRecord> nsec3s = new ArrayList<>();
+        boolean soa = false;
+        for (RRset set : authorities){
+            int type = set.getType();
+            if ((type != Type.SOA) && (type != Type.NSEC) && (type != Type.NSEC3))
+                continue;
+            Result r = new Result();
+            verify(set, sigs, now, r, depth);
+            ret.update(r.status, r.reason);
+            if (type == Type.SOA)
+                soa = true;
+            else if (r.status == Status.SECURE)
+                set.toRecords((type == Type.NSEC) ? nsecs : nsec3s);
+        }
+        if (ret.status != Status.SECURE)
+            return ret;
+
+        for (int i = 0; i < expanded.size(); i++){
+            byte[] owner = expanded.get(i);
+            if (!Denial.nsecWildcard(nsecs, owner) && !Denial.nsec3Wildcard(nsec3s, owner, expandedLabels.get(i)))
+                ret.update(Status.BOGUS, "No proof for wildcard answer " + Wire.toString(owner));
+        }
+        if (!negative)
+            return ret;
+        if (nsecs.isEmpty() && nsec3s.isEmpty()){
+            if (!soa)
+                ret.update(unsigned(sname, qtype, depth), "Negative answer without SOA for " + Wire.toString(sname));
+            else
+                ret.update(Status.BOGUS, "Negative answer without NSEC for " + Wire.toString(sname));
+            return ret;
+        }
+        if (Denial.tooManyIterations(nsec3s)){
+            ret.update(Status.INSECURE, "Too many NSEC3 iterations");
+            return ret;
+        }
+        int proof;
+        if (m.getRcode() == Rcode.NXDOMAIN){
+            proof = Math.max(Denial.nsecNxdomain(nsecs, sname), Denial.nsec3Nxdomain(nsec3s, sname));
+        }else{
+            proof = Math.max(Denial.nsecNodata(nsecs, sname, qtype), Denial.nsec3Nodata(nsec3s, sname, qtype));
+        }
+        if (proof == Denial.NONE)
+            ret.update(Status.BOGUS, "Denial of existence not proven for " + Wire.toString(sname));
+        else if (proof == Denial.INSECURE)
+            ret.update(Status.INSECURE, "Insecure delegation at " + Wire.toString(sname));
+        return ret;
+    }
+
+    /* Группирует записи в наборы; RRSIG уходят в sigs */
+    private static ArrayList<RRset> sets(List<ResourceRecord> records, ArrayList<ResourceRecord> sigs){
+        ArrayList<RRset> ret = new ArrayList<>();
+        for (ResourceRecord rr : records){
+            if (rr.getType() == Type.RRSIG){
+                sigs.add(rr);
+                continue;
+            }
+            RRset set = null;
+            for (RRset s : ret)
+                if ((s.getType() == rr.getType()) && (s.getCl() == rr.getCl()) && Wire.equalsIgnoreCase(s.getName(), rr.getName()))
+                    set = s;
+            if (set == null){
+                set = new RRset(rr.getName(), rr.getType(), rr.getCl(), rr.getTtl());
+                ret.add(set);
+            }
+            set.add(rr.getRdata(), rr.getTtl());
+        }
+        return ret;
+    }
+
+    /*
+     * Проверяет набор по его подписям. Возвращает подпись, которой набор
+     * подтвержден, или null; итог записывается в result.
+     */
+    private Rrsig verify(RRset set, List<ResourceRecord> sigs, long now, Result result, int depth){
+        byte[] owner = set.getName();
+        long seconds = now / 1000;
+        boolean signed = false;
+        String reason = null;
+        for (ResourceRecord rr : sigs){
+            if ((rr.getCl() != set.getCl()) || !Wire.equalsIgnoreCase(rr.getName(), owner))
+                continue;
+            Rrsig sig;
+            try{
+                sig = Rrsig.parse(rr.getRdata());
+            }catch(DnsException e){
+                continue;
+            }
+            if (sig.getTypeCovered() != set.getType())
+                continue;
+            signed = true;
+            byte[] signer = sig.getSigner();
+            // DS подписывается родительской зоной
+            if (!sig.isSignerOf(owner) || ((set.getType() == Type.DS) && Wire.equalsIgnoreCase(signer, owner))){
+                reason = "Bad signer " + Wire.toString(signer) + " for " + Wire.toString(owner);
+                continue;
+            }
+            if (sig.getLabels() > Wire.labelCount(owner, 0) - (Wire.isWildcard(owner, 0) ? 1 : 0)){
+                reason = "Bad label count in RRSIG for " + Wire.toString(owner);
+                continue;
+            }
+            if (!sig.isValidAt(seconds)){
+                reason = "RRSIG for " + Wire.toString(owner) + " is outside its validity period";
+                continue;
+            }
+            if (!Keys.isSupported(sig.getAlgorithm())){
+                reason = "Unsupported algorithm " + Integer.toString(sig.getAlgorithm());
+                continue;
+            }
+            Keyset keys = keys(signer, depth + 1);
+            if ((keys.status == Status.INSECURE) || (keys.status == Status.INDETERMINATE)){
+                result.update(keys.status, keys.reason);
+                return null;
+            }
+            if (keys.status != Status.SECURE){
+                reason = keys.reason;
+                continue;
+            }
+            if (verifies(set, sig, keys.keys, now))
+                return sig;
+            reason = "RRSIG for " + Wire.toString(owner) + " " + Type.nameOf(set.getType()) + " does not verify";
+        }
+        if (!signed){
+            Status status = unsigned(owner, set.getType(), depth);
+            result.update(status, "No RRSIG for " + Wire.toString(owner) + " " + Type.nameOf(set.getType()));
+            return null;
+        }
+        result.update(Status.BOGUS, reason);
+        return null;
+    }
+
+    /* Криптографическая проверка с кэшем проверенных подписей */
+    private boolean verifies(RRset set, Rrsig sig, List<Key> keys, long now){
+        Canonical c = canonical.get();
+        int length = c.signingInput(set, sig.getRdata(), sig.getSignedLength());
+        byte[] input = c.getBuffer();
+        Signed signed = new Signed(sig.getSignature());
+        Verified v = verified.get(signed);
+        if ((v != null) && (v.expires > now) && Arrays.equals(v.input, 0, v.input.length, input, 0, length)){
+            hits.increment();
+            return true;
+        }
+        for (Key key : keys){
+            if ((key.tag != sig.getKeyTag()) || (key.algorithm != sig.getAlgorithm()))
+                continue;
+            verifications.increment();
+            try{
+                Signature s = Signature.getInstance(Keys.signatureName(key.algorithm));
+                s.initVerify(key.key);
+                s.update(input, 0, length);
+                if (!s.verify(signed.signature))
+                    continue;
+            }catch(GeneralSecurityException | DnsException e){
+                continue;
+            }
+            long ttl = Math.min(Math.min(set.getTtl(), sig.getOriginalTtl()), Math.min(maxTtl, sig.secondsLeft(now / 1000)));
+            verified.put(signed, new Verified(Arrays.copyOf(input, length), now + ttl * 1000));
+            if (verified.size() > maxEntries)
+                evict(now);
+            return true;
+        }
+        return false;
+    }
+
+    private void evict(long now){
+        if (!evicting.compareAndSet(false, true))
+            return;
+        try{
+            verified.values().removeIf(v -> v.expires <= now);
+            int excess = verified.size() - maxEntries * 9 / 10;
+            for (Iterator<Verified> it = verified.values().iterator(); it.hasNext() && (excess > 0); excess--){
+                it.next();
+                it.remove();
+            }
+        }finally{
+            evicting.set(false);
+        }
+    }
+
+    /*
+     * Итог для неподписанных данных имени: INSECURE, если от якоря до имени
+     * доказана делегация без DS, иначе BOGUS. DS запрашивается по меткам от
+     * якоря вниз; сам набор DS имени проверяется только до родителя.
+     */
+    private Status unsigned(byte[] name, int type, int depth){
+        int[] offsets = new int[Wire.MAX_LABELS];
+        int count = Wire.labelOffsets(name, 0, offsets);
+        int anchor = -1;
+        for (int i = 0; (i <= count) && (anchor < 0); i++)
+            if (anchors.containsKey(Name.of(Wire.copyName(name, (i < count) ? offsets[i] : Wire.nameLength(name, 0) - 1))))
+                anchor = i;
+        if (anchor < 0)
+            return Status.INDETERMINATE;
+        int last = (type == Type.DS) ? 1 : 0;
+        for (int i = anchor; i >= last; i--){
+            byte[] zone = Wire.copyName(name, (i < count) ? offsets[i] : Wire.nameLength(name, 0) - 1);
+            Keyset keys = keys(zone, depth + 1);
+            if (keys.noCut)
+                continue;
+            if (keys.status != Status.SECURE)
+                return keys.status;
+        }
+        return Status.BOGUS;
+    }
+
+    /* ———————————————————— Ключи зон —————————————————————— */
+
+    /* Проверенные ключи зоны или причина, по которой их нет */
+    private Keyset keys(byte[] zone, int depth){
+        Name name = Name.of(zone);
+        long now = System.currentTimeMillis();
+        Keyset ret = keysets.get(name);
+        if ((ret != null) && (ret.expires > now))
+            return ret;
+        HashSet<Name> busy = pending.get();
+        if ((depth > MAX_DEPTH) || !busy.add(name))
+            return new Keyset(Status.BOGUS, "Trust chain loop at " + Wire.toString(zone), now);
+        try{
+            List<ResourceRecord> anchor = anchors.get(name);
+            ret = (anchor != null) ? fromAnchor(name.name, anchor) : fromParent(name.name, depth);
+        }finally{
+            busy.remove(name);
+        }
+        keysets.put(name, ret);
+        return ret;
+    }
+
+    private Keyset fromAnchor(byte[] zone, List<ResourceRecord> anchor){
+        ArrayList<byte[]> ds = new ArrayList<>();
+        ArrayList<byte[]> dnskeys = new ArrayList<>();
+        for (ResourceRecord rr : anchor){
+            if (rr.getType() == Type.DS)
+                ds.add(rr.getRdata());
+            else
+                dnskeys.add(rr.getRdata());
+        }
+        return trust(zone, ds, dnskeys, maxTtl);
+    }
+
+    /* Ключи зоны через DS из родителя */
+    private Keyset fromParent(byte[] zone, int depth){
+        long now = System.currentTimeMillis();
+        if (zone[0] == 0)
+            return new Keyset(Status.INDETERMINATE, "No trust anchor", now + maxTtl * 1000);
+        Message m;
+        try{
+            m = source.query(zone, Type.DS);
+        }catch(DnsException e){
+            return new Keyset(Status.BOGUS, "DS lookup for " + Wire.toString(zone) + " failed: " + e.getMessage(), now + BOGUS_TTL * 1000);
+        }
+        ArrayList<ResourceRecord> sigs = new ArrayList<>();
+        RRset ds = null;
+        for (RRset set : sets(m.getAnswers(), sigs))
+            if ((set.getType() == Type.DS) && Wire.equalsIgnoreCase(set.getName(), zone))
+                ds = set;
+        if (ds == null){
+            // DS нет: либо делегация без подписи, либо это вовсе не разрез зоны
+            Result r = check(m, depth);
+            if (r.status == Status.SECURE)
+                return Keyset.noCut(zone, now + negativeTtl(m) * 1000);
+            return new Keyset(r.status, r.reason, now + ((r.status == Status.INSECURE) ? negativeTtl(m) : BOGUS_TTL) * 1000);
+        }
+        Result r = new Result();
+        if (verify(ds, sigs, now, r, depth) == null)
+            return new Keyset(r.status, r.reason, now + ((r.status == Status.INSECURE) ? ds.getTtl() : BOGUS_TTL) * 1000);
+        ArrayList<byte[]> digests = new ArrayList<>();
+        for (int i = 0; i < ds.size(); i++)
+            digests.add(ds.getRdataAt(i));
+        return trust(zone, digests, new ArrayList<>(), ds.getTtl());
+    }
+
+    private long negativeTtl(Message m){
+        long ret = maxTtl;
+        for (ResourceRecord rr : m.getAuthorities())
+            ret = Math.min(ret, rr.getTtl());
+        return ret;
+    }
+
+    /*
+     * Набор DNSKEY зоны, подписанный ключом, который совпадает с одним из DS
+     * или с одним из ключей-якорей.
+     */
+    private Keyset trust(byte[] zone, List<byte[]> ds, List<byte[]> anchorKeys, long ttl){
+        long now = System.currentTimeMillis();
+        boolean usable = !anchorKeys.isEmpty();
+        for (byte[] d : ds)
+            if ((d.length > 4) && Keys.isSupported(d[2] & 0xff) && Keys.isDigestSupported(d[3] & 0xff))
+                usable = true;
+        // все DS с неизвестными алгоритмами: зона считается неподписанной (RFC 4035, раздел 5.2)
+        if (!usable)
+            return new Keyset(Status.INSECURE, "No supported DS algorithm for " + Wire.toString(zone), now + ttl * 1000);
+        Message m;
+        try{
+            m = source.query(zone, Type.DNSKEY);
+        }catch(DnsException e){
+            return new Keyset(Status.BOGUS, "DNSKEY lookup for " + Wire.toString(zone) + " failed: " + e.getMessage(), now + BOGUS_TTL * 1000);
+        }
+        ArrayList<ResourceRecord> sigs = new ArrayList<>();
+        RRset dnskeys = null;
+        for (RRset set : sets(m.getAnswers(), sigs))
+            if ((set.getType() == Type.DNSKEY) && Wire.equalsIgnoreCase(set.getName(), zone))
+                dnskeys = set;
+        if (dnskeys == null)
+            return new Keyset(Status.BOGUS, "No DNSKEY for " + Wire.toString(zone), now + BOGUS_TTL * 1000);
+
+        // ключи, подтвержденные родителем или якорем
+        ArrayList<Key> trusted = new ArrayList<>();
+        ArrayList<Key> zoneKeys = new ArrayList<>();
+        for (int i = 0; i < dnskeys.size(); i++){
+            byte[] rdata = dnskeys.getRdataAt(i);
+            Key key = Key.of(rdata);
+            if (key == null)
+                continue;
+            zoneKeys.add(key);
+            boolean confirmed = false;
+            for (byte[] a : anchorKeys)
+                confirmed |= Arrays.equals(a, rdata);
+            for (byte[] d : ds){
+                try{
+                    confirmed |= Keys.matches(d, zone, rdata);
+                }catch(DnsException e){
+                    // неподдерживаемый дайджест
+                }
+            }
+            if (confirmed)
+                trusted.add(key);
+        }
+        if (trusted.isEmpty())
+            return new Keyset(Status.BOGUS, "No DNSKEY of " + Wire.toString(zone) + " matches its DS", now + BOGUS_TTL * 1000);
+        long seconds = now / 1000;
+        for (ResourceRecord rr : sigs){
+            if (!Wire.equalsIgnoreCase(rr.getName(), zone))
+                continue;
+            Rrsig sig;
+            try{
+                sig = Rrsig.parse(rr.getRdata());
+            }catch(DnsException e){
+                continue;
+            }
+            if ((sig.getTypeCovered() != Type.DNSKEY) || !Wire.equalsIgnoreCase(sig.getSigner(), zone) || !sig.isValidAt(seconds))
+                continue;
+            if (verifies(dnskeys, sig, trusted, now)){
+                long life = Math.min(Math.min(ttl, dnskeys.getTtl()), Math.min(maxTtl, sig.secondsLeft(seconds)));
+                return new Keyset(zoneKeys, now + life * 1000);
+            }
+        }
+        return new Keyset(Status.BOGUS, "DNSKEY set of " + Wire.toString(zone) + " is not signed by a trusted key", now + BOGUS_TTL * 1000);
+    }
+
+    /**
+     * Итог проверки и причина для отказа.
+     */
+    public static final class Result {
+
+        private Status status = Status.SECURE;
+
+        private String reason;
+
+        private void update(Status status, String reason){
+            if (status.ordinal() > this.status.ordinal()){
+                this.status = status;
+                this.reason = reason;
+            }
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public boolean isSecure() {
+            return status == Status.SECURE;
+        }
+
+        /* Причина для всех итогов, кроме SECURE */
+        public String getReason() {
+            return reason;
+        }
+
+        @Override
+        public String toString() {
+            return (reason == null) ? status.name() : status.name() + ": " + reason;
+        }
+    }
+
+    /**
+     * Имя в нижнем регистре как ключ таблиц.
+     */
+    private static final class Name {
+
+        private final byte[] name;
+
+        private final int hash;
+
+        private Name(byte[] name){
+            this.name = name;
+            this.hash = Arrays.hashCode(name);
+        }
+
+        private static Name of(byte[] name){
+            byte[] lower = Wire.copyName(name, 0);
+            Wire.toLowerCase(lower, 0);
+            return new Name(lower);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return (o instanceof Name) && Arrays.equals(name, ((Name) o).name);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * Открытый ключ зоны, готовый к проверке.
+     */
+    private static final class Key {
+
+        private final int tag;
+
+        private final int algorithm;
+
+        private final PublicKey key;
+
+        private Key(int tag, int algorithm, PublicKey key){
+            this.tag = tag;
+            this.algorithm = algorithm;
+            this.key = key;
+        }
+
+        /* null для ключей, которые не являются ключами зоны или не разбираются */
+        private static Key of(byte[] dnskey){
+            if ((dnskey.length < 5) || ((Keys.flags(dnskey) & Keys.FLAG_ZONE) == 0) || ((Keys.flags(dnskey) & Keys.FLAG_REVOKE) != 0))
+                return null;
+            if (!Keys.isSupported(Keys.algorithm(dnskey)))
+                return null;
+            try{
+                return new Key(Keys.keyTag(dnskey), Keys.algorithm(dnskey), Keys.publicKey(dnskey));
+            }catch(DnsException e){
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Ключи зоны или итог, из-за которого их нет.
+     */
+    private static final class Keyset {
+
+        private final Status status;
+
+        private final List<Key> keys;
+
+        private final String reason;
+
+        private final long expires;
+
+        /* Доказано, что разреза зоны здесь нет */
+        private final boolean noCut;
+
+        private Keyset(List<Key> keys, long expires){
+            this.status = Status.SECURE;
+            this.keys = keys;
+            this.reason = null;
+            this.expires = expires;
+            this.noCut = false;
+        }
+
+        private Keyset(Status status, String reason, long expires){
+            this(status, reason, expires, false);
+        }
+
+        private Keyset(Status status, String reason, long expires, boolean noCut){
+            this.status = status;
+            this.keys = List.of();
+            this.reason = reason;
+            this.expires = expires;
+            this.noCut = noCut;
+        }
+
+        /* Подписавший с таким именем не может быть зоной */
+        private static Keyset noCut(byte[] zone, long expires){
+            return new Keyset(Status.BOGUS, "No zone cut at " + Wire.toString(zone), expires, true);
+        }
+    }
+
+    /**
+     * Подпись как ключ кэша проверенных наборов.
+     */
+    private static final class Signed {
+
+        private final byte[] signature;
+
+        private final int hash;
+
+        private Signed(byte[] signature){
+            this.signature = signature;
+            this.hash = Arrays.hashCode(signature);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return (o instanceof Signed) && Arrays.equals(signature, ((Signed) o).signature);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * Проверенный вход подписи и момент, до которого проверка действует.
+     */
+    private static final class Verified {
+
+        private final byte[] input;
+
+        private final long expires;
+
+        private Verified(byte[] input, long expires){
+            this.input = input;
+            this.expires = expires;
+        }
+    }
+}
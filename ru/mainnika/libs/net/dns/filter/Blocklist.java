@@ -0,0 +1,501 @@
+package ru.mainnika.libs.net.dns.filter;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import ru.mainnika.libs.net.dns.Dns;
+import ru.mainnika.libs.net.dns.DnsException;
+import ru.mainnika.libs.net.dns.ResourceRecord;
+import ru.mainnika.libs.net.dns.Type;
+import ru.mainnika.libs.net.dns.Wire;
+import ru.mainnika.libs.net.dns.zone.MasterFileParser;
+
+/**
+ * Неизменяемый список блокировки имен вне кучи. Каждое имя хранится одним
+ * 8-байтовым слотом открытой хэш-таблицы: 40 бит отпечатка хэша имени и два
+ * 12-битных номера политики - для самого имени и для всех его поддоменов.
+ * Хэш имени считается по меткам справа налево, поэтому проверка всех
+ * суффиксов имени запроса занимает один проход и не выделяет память.
+ * Десятки миллионов имен занимают несколько сотен мегабайт прямой памяти
+ * и не нагружают сборщик мусора.
+ *
+ * @author MainNika
+ */
+public final class Blocklist {
+
+    private static final byte[] MAGIC = { 'D', 'N', 'S', 'B', 'L', 'K', '1', 0 };
+
+    /* Слотов в одном сегменте прямой памяти (1 ГБ) */
+    private static final int SEGMENT_SHIFT = 27;
+
+    private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+
+    /* Предельное число различных политик (12 бит, 0 - нет политики) */
+    private static final int MAX_POLICIES = 4095;
+
+    private static final long ROOT = mix(0x2545f4914f6cdd1dL);
+
+    private final ByteBuffer[] segments;
+
+    private final long mask;
+
+    private final long size;
+
+    private final Policy[] policies;
+
+    private final ThreadLocal<Matcher> matchers = ThreadLocal.withInitial(this::matcher);
+
+    private Blocklist(ByteBuffer[] segments, long capacity, long size, Policy[] policies){
+        this.segments = segments;
+        this.mask = capacity - 1;
+        this.size = size;
+        this.policies = policies;
+    }
+
+    /* Количество имен в списке */
+    public long size(){
+        return size;
+    }
+
+    /* Объем прямой памяти под таблицу */
+    public long getMemory(){
+        return (mask + 1) * 8;
+    }
+
+    /* Новый сопоставитель со своими буферами, по одному на поток */
+    public Matcher matcher(){
+        return new Matcher();
+    }
+
+    /* Проверка имени сопоставителем текущего потока */
+    public Policy match(byte[] name, int off){
+        return matchers.get().match(name, off);
+    }
+
+    public Policy match(Dns.Query query){
+        return matchers.get().match(query);
+    }
+
+    /* ———————————————————— Хэширование —————————————————————— */
+
+    private static long mix(long z){
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return z ^ (z >>> 33);
+    }
+
+    /* FNV-1a метки в нижнем регистре */
+    private static long label(byte[] name, int off){
+        int len = name[off] & 0xff;
+        long h = 0xcbf29ce484222325L ^ len;
+        for (int i = 1; i <= len; i++)
+            h = (h ^ (Wire.lower(name[off + i]) & 0xff)) * 0x100000001b3L;
+        return h;
+    }
+
+    /* Хэш суффикса по хэшу родителя и хэшу первой метки */
+    private static long step(long parent, long label){
+        return mix(parent * 0x9e3779b97f4a7c15L + label);
+    }
+
+    private static long fingerprint(long h){
+        long ret = h >>> 24;
+        return (ret == 0) ? 1 : ret;
+    }
+
+    /* Хэш всего несжатого имени */
+    static long hash(byte[] name, int off){
+        int[] offsets = new int[Wire.MAX_LABELS];
+        int n = Wire.labelOffsets(name, off, offsets);
+        long h = ROOT;
+        for (int i = n - 1; i >= 0; i--)
+            h = step(h, label(name, offsets[i]));
+        return h;
+    }
+
+    private long slot(long index){
+        return segments[(int) (index >>> SEGMENT_SHIFT)].getLong((int) (index & SEGMENT_MASK) << 3);
+    }
+
+    /* Слот имени с хэшем h или 0 */
+    private long probe(long h){
+        long fp = fingerprint(h);
+        long index = h & mask;
+        while (true){
+            long v = slot(index);
+            if (v == 0)
+                return 0;
+            if ((v >>> 24) == fp)
+                return v;
+            index = (index + 1) & mask;
+        }
+    }
+
+    /**
+     * Сопоставитель имен с собственными буферами. Не потокобезопасен,
+     * проверки через него не выделяют память.
+     */
+    public final class Matcher {
+
+        private final int[] offsets = new int[Wire.MAX_LABELS];
+
+        private final byte[] name = new byte[Wire.MAX_NAME + 64];
+
+        private Matcher(){
+        }
+
+        /*
+         * Политика для несжатого имени: точное совпадение важнее
+         * поддоменного, из поддоменных побеждает самый длинный суффикс.
+         */
+        public Policy match(byte[] qname, int off){
+            int n = Wire.labelOffsets(qname, off, offsets);
+            long h = ROOT;
+            Policy ret = null;
+            for (int i = n - 1; i >= 0; i--){
+                h = step(h, label(qname, offsets[i]));
+                long v = probe(h);
+                if (v == 0)
+                    continue;
+                if (i == 0){
+                    int exact = (int) ((v >>> 12) & 0xfff);
+                    if (exact != 0)
+                        return policies[exact];
+                }else{
+                    int sub = (int) (v & 0xfff);
+                    if (sub != 0)
+                        ret = policies[sub];
+                }
+            }
+            return ret;
+        }
+
+        /* Имя вопроса прямо из пакета, сжатие допускается */
+        public Policy match(byte[] msg, int off, int end) throws DnsException{
+            Wire.readName(msg, off, end, name, 0);
+            return match(name, 0);
+        }
+
+        /* Первый вопрос пакета в байтовом виде */
+        public Policy matchPacket(byte[] msg, int length) throws DnsException{
+            if ((length < 12) || (Wire.u16(msg, 4) == 0))
+                return null;
+            return match(msg, 12, length);
+        }
+
+        /* Имя вопроса из разобранного пакета */
+        public Policy match(Dns.Query query){
+            query.getWireName(name, 0);
+            return match(name, 0);
+        }
+    }
+
+    /* ———————————————————— Хранение в файле —————————————————————— */
+
+    /* Сохраняет таблицу в файл для последующего open() */
+    public void save(Path file) throws IOException{
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)){
+            DataOutputStream out = new DataOutputStream(Channels.newOutputStream(channel));
+            out.write(MAGIC);
+            out.writeLong(mask + 1);
+            out.writeLong(size);
+            out.writeShort(policies.length);
+            for (int i = 1; i < policies.length; i++){
+                Policy p = policies[i];
+                ResourceRecord[] rewrite = p.getRewrite();
+                out.writeByte(p.getAction().ordinal());
+                out.writeShort(rewrite.length);
+                for (ResourceRecord rr : rewrite){
+                    out.writeShort(rr.getType());
+                    out.writeShort(rr.getCl());
+                    out.writeInt((int) rr.getTtl());
+                    out.writeShort(rr.getRdata().length);
+                    out.write(rr.getRdata());
+                }
+            }
+            out.flush();
+            long start = (channel.position() + 7) & ~7L;
+            for (ByteBuffer segment : segments){
+                ByteBuffer dup = segment.duplicate();
+                dup.clear();
+                while (dup.hasRemaining())
+                    start += channel.write(dup, start);
+            }
+        }
+    }
+
+    /* Отображает сохраненную таблицу в память только для чтения */
+    public static Blocklist open(Path file) throws IOException{
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)){
+            DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC))
+                throw new IOException("Not a blocklist");
+            long capacity = in.readLong();
+            long size = in.readLong();
+            Policy[] policies = new Policy[in.readUnsignedShort()];
+            long pos = MAGIC.length + 18;
+            for (int i = 1; i < policies.length; i++){
+                Policy.Action action = Policy.Action.values()[in.readUnsignedByte()];
+                ResourceRecord[] rewrite = new ResourceRecord[in.readUnsignedShort()];
+                pos += 3;
+                for (int k = 0; k < rewrite.length; k++){
+                    int type = in.readUnsignedShort();
+                    int cl = in.readUnsignedShort();
+                    long ttl = in.readInt() & 0xffffffffL;
+                    byte[] rdata = new byte[in.readUnsignedShort()];
+                    in.readFully(rdata);
+                    rewrite[k] = new ResourceRecord(Wire.ROOT, type, cl, ttl, rdata);
+                    pos += 10 + rdata.length;
+                }
+                policies[i] = constant(action, rewrite);
+            }
+            long start = (pos + 7) & ~7L;
+            if (channel.size() < start + capacity * 8)
+                throw new IOException("Truncated blocklist");
+            ByteBuffer[] segments = new ByteBuffer[(int) ((capacity + SEGMENT_MASK) >>> SEGMENT_SHIFT)];
+            for (int i = 0; i < segments.length; i++){
+                long from = (long) i << SEGMENT_SHIFT;
+                long slots = Math.min(SEGMENT_MASK + 1, capacity - from);
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start + from * 8, slots * 8);
+            }
+            return new Blocklist(segments, capacity, size, policies);
+        }
+    }
+
+    private static Policy constant(Policy.Action action, ResourceRecord[] rewrite){
+        switch (action){
+            case NXDOMAIN: return Policy.NXDOMAIN;
+            case NODATA: return Policy.NODATA;
+            case PASSTHRU: return Policy.PASSTHRU;
+            case DROP: return Policy.DROP;
+            default: return Policy.rewrite(rewrite);
+        }
+    }
+
+    /* ———————————————————— Сборка —————————————————————— */
+
+    /**
+     * Сборщик списка. Держит в куче полные 64-битные хэши имен и номера
+     * политик (12 байт на слот), строки имен не хранятся.
+     */
+    public static final class Builder {
+
+        private long[] keys;
+
+        private int[] codes;
+
+        private int size;
+
+        private final ArrayList<Policy> policies = new ArrayList<>();
+
+        private final HashMap<Policy, Integer> policyIndex = new HashMap<>();
+
+        public Builder(){
+            keys = new long[1024];
+            codes = new int[1024];
+            policies.add(null);
+        }
+
+        public int size(){
+            return size;
+        }
+
+        private int policy(Policy p) throws DnsException{
+            Integer ret = policyIndex.get(p);
+            if (ret != null)
+                return ret;
+            if (policies.size() > MAX_POLICIES)
+                throw new DnsException("Too many distinct policies");
+            policies.add(p);
+            policyIndex.put(p, policies.size() - 1);
+            return policies.size() - 1;
+        }
+
+        /* Политика только для самого имени */
+        public Builder add(byte[] name, Policy p) throws DnsException{
+            put(hash(name, 0), policy(p) << 12, 0xfff000);
+            return this;
+        }
+
+        /* Политика для всех поддоменов имени, но не для него самого */
+        public Builder addSubdomains(byte[] name, Policy p) throws DnsException{
+            put(hash(name, 0), policy(p), 0xfff);
+            return this;
+        }
+
+        /* Политика для имени и всех его поддоменов */
+        public Builder addDomain(byte[] name, Policy p) throws DnsException{
+            int code = policy(p);
+            put(hash(name, 0), (code << 12) | code, 0xffffff);
+            return this;
+        }
+
+        /* Запись "*.name" задает поддомены, иначе имя и поддомены */
+        public Builder add(String name, Policy p) throws DnsException{
+            if (name.startsWith("*."))
+                return addSubdomains(Wire.fromString(name.substring(2)), p);
+            return addDomain(Wire.fromString(name), p);
+        }
+
+        /*
+         * Простой список: по имени в строке, комментарии после '#', формат
+         * hosts-файла ("0.0.0.0 name") тоже принимается.
+         */
+        public Builder addList(Reader in, Policy p) throws IOException, DnsException{
+            BufferedReader reader = (in instanceof BufferedReader) ? (BufferedReader) in : new BufferedReader(in, 1 << 16);
+            String line;
+            while ((line = reader.readLine()) != null){
+                int hash = line.indexOf('#');
+                if (hash >= 0)
+                    line = line.substring(0, hash);
+                line = line.trim();
+                if (line.isEmpty())
+                    continue;
+                int space = line.lastIndexOf(' ');
+                if (space < 0)
+                    space = line.lastIndexOf('\t');
+                String name = (space < 0) ? line : line.substring(space + 1);
+                if (name.equals("localhost") || name.equals("localhost.localdomain"))
+                    continue;
+                add(name.endsWith(".") ? name : name + ".", p);
+            }
+            return this;
+        }
+
+        /*
+         * Зона политик в формате RPZ: CNAME . - NXDOMAIN, CNAME *. - NODATA,
+         * CNAME rpz-passthru. и rpz-drop. - пропуск и сброс, остальные записи
+         * подставляются в ответ. Владелец "*.name" задает поддомены.
+         */
+        public Builder addRpz(MasterFileParser parser, byte[] origin) throws IOException, DnsException{
+            byte[] pending = null;
+            ArrayList<ResourceRecord> rewrite = new ArrayList<>();
+            ResourceRecord rr;
+            while ((rr = parser.next()) != null){
+                if ((rr.getType() == Type.SOA) || (rr.getType() == Type.NS))
+                    continue;
+                if ((pending != null) && !Wire.equalsIgnoreCase(pending, rr.getName())){
+                    rpz(pending, origin, rewrite);
+                    rewrite.clear();
+                }
+                pending = rr.getName();
+                rewrite.add(rr);
+            }
+            if (pending != null)
+                rpz(pending, origin, rewrite);
+            return this;
+        }
+
+        private static final byte[] RPZ_NODATA = { 1, '*', 0 };
+        private static final byte[] RPZ_PASSTHRU = { 12, 'r', 'p', 'z', '-', 'p', 'a', 's', 's', 't', 'h', 'r', 'u', 0 };
+        private static final byte[] RPZ_DROP = { 8, 'r', 'p', 'z', '-', 'd', 'r', 'o', 'p', 0 };
+
+        private void rpz(byte[] owner, byte[] origin, ArrayList<ResourceRecord> records) throws DnsException{
+            if (!Wire.isSubdomain(owner, 0, origin, 0))
+                throw new DnsException("Out of policy zone: " + Wire.toString(owner));
+            int length = owner.length - origin.length;
+            if (length == 0)
+                return;
+            boolean wildcard = Wire.isWildcard(owner, 0);
+            int from = wildcard ? 2 : 0;
+            byte[] name = Wire.concat(owner, from, length - from, Wire.ROOT, 0);
+            Policy p;
+            ResourceRecord first = records.get(0);
+            if ((records.size() == 1) && (first.getType() == Type.CNAME)){
+                byte[] target = first.getRdata();
+                if (Arrays.equals(target, Wire.ROOT)){
+                    p = Policy.NXDOMAIN;
+                }else if (Wire.equalsIgnoreCase(target, RPZ_NODATA)){
+                    p = Policy.NODATA;
+                }else if (Wire.equalsIgnoreCase(target, RPZ_PASSTHRU)){
+                    p = Policy.PASSTHRU;
+                }else if (Wire.equalsIgnoreCase(target, RPZ_DROP)){
+                    p = Policy.DROP;
+                }else{
+                    p = Policy.rewrite(first);
+                }
+            }else{
+                p = Policy.rewrite(records.toArray(new ResourceRecord[0]));
+            }
+            if (wildcard){
+                addSubdomains(name, p);
+            }else{
+                add(name, p);
+            }
+        }
+
+        private void put(long h, int code, int fieldMask){
+            if ((size + 1) * 10 > keys.length * 7)
+                grow();
+            int m = keys.length - 1;
+            int index = (int) (h & m);
+            while (codes[index] != 0){
+                if (keys[index] == h){
+                    codes[index] = (codes[index] & ~fieldMask) | code;
+                    return;
+                }
+                index = (index + 1) & m;
+            }
+            keys[index] = h;
+            codes[index] = code;
+            size++;
+        }
+
+        private void grow(){
+            long[] oldKeys = keys;
+            int[] oldCodes = codes;
+            keys = new long[oldKeys.length * 2];
+            codes = new int[oldCodes.length * 2];
+            int m = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++){
+                if (oldCodes[i] == 0)
+                    continue;
+                int index = (int) (oldKeys[i] & m);
+                while (codes[index] != 0)
+                    index = (index + 1) & m;
+                keys[index] = oldKeys[i];
+                codes[index] = oldCodes[i];
+            }
+        }
+
+        /* Переносит таблицу в прямую память с заполнением не выше 0.7 */
+        public Blocklist build(){
+            long capacity = Long.highestOneBit(Math.max(16, (long) size * 10 / 7)) << 1;
+            ByteBuffer[] segments = new ByteBuffer[(int) ((capacity + SEGMENT_MASK) >>> SEGMENT_SHIFT)];
+            for (int i = 0; i < segments.length; i++){
+                long slots = Math.min(SEGMENT_MASK + 1, capacity - ((long) i << SEGMENT_SHIFT));
+                segments[i] = ByteBuffer.allocateDirect((int) (slots * 8));
+            }
+            long m = capacity - 1;
+            for (int i = 0; i < keys.length; i++){
+                if (codes[i] == 0)
+                    continue;
+                long h = keys[i];
+                long index = h & m;
+                while (true){
+                    ByteBuffer segment = segments[(int) (index >>> SEGMENT_SHIFT)];
+                    int at = (int) (index & SEGMENT_MASK) << 3;
+                    if (segment.getLong(at) == 0){
+                        segment.putLong(at, (fingerprint(h) << 24) | (codes[i] & 0xffffff));
+                        break;
+                    }
+                    index = (index + 1) & m;
+                }
+            }
+            return new Blocklist(segments, capacity, size, policies.toArray(new Policy[0]));
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package ru.mainnika.libs.net.dns.filter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import ru.mainnika.libs.net.dns.Dns;
+import ru.mainnika.libs.net.dns.DnsException;
+import ru.mainnika.libs.net.dns.Rcode;
+import ru.mainnika.libs.net.dns.ResourceRecord;
+import ru.mainnika.libs.net.dns.Type;
+
+/**
+ * Действие фильтра для совпавшего имени. Политики неизменяемые и создаются
+ * один раз при сборке списка, поэтому проверка запроса их не выделяет.
+ *
+ * @author MainNika
+ */
+public final class Policy {
+
+    public enum Action {
+        /** Ответить NXDOMAIN */
+        NXDOMAIN,
+        /** Ответить пустым NOERROR */
+        NODATA,
+        /** Пропустить запрос без изменений */
+        PASSTHRU,
+        /** Не отвечать */
+        DROP,
+        /** Ответить подставленными записями */
+        REWRITE
+    }
+
+    public static final Policy NXDOMAIN = new Policy(Action.NXDOMAIN, null);
+
+    public static final Policy NODATA = new Policy(Action.NODATA, null);
+
+    public static final Policy PASSTHRU = new Policy(Action.PASSTHRU, null);
+
+    public static final Policy DROP = new Policy(Action.DROP, null);
+
+    private final Action action;
+
+    /* Шаблоны подставляемых записей, имя владельца заменяется именем запроса */
+    private final ResourceRecord[] rewrite;
+
+    private Policy(Action action, ResourceRecord[] rewrite){
+        this.action = action;
+        this.rewrite = rewrite;
+    }
+
+    /* Политика подмены ответа; имя владельца в шаблонах не используется */
+    public static Policy rewrite(ResourceRecord... records){
+        return new Policy(Action.REWRITE, records.clone());
+    }
+
+    public Action getAction() {
+        return action;
+    }
+
+    /* Шаблоны подставляемых записей */
+    public ResourceRecord[] getRewrite() {
+        return (rewrite == null) ? new ResourceRecord[0] : rewrite.clone();
+    }
+
+    /* Ответ на запрос по политике; null для PASSTHRU и DROP */
+    public Dns respond(Dns request) throws DnsException{
+        if ((action == Action.PASSTHRU) || (action == Action.DROP))
+            return null;
+        Dns response = new Dns();
+        response.setId(request.getId()).setOpcode(request.getOpcode()).setQr().setRa();
+        if (request.issetRd())
+            response.setRd();
+        if (request.getQdcount() == 0)
+            return response.setRcode(Rcode.FORMERR);
+        Dns.Query query = request.getQueryAt(0);
+        byte[] qname = query.getWireName();
+        int qtype = query.getType() & 0xffff;
+        response.addQuery(qname, qtype, query.getCl() & 0xffff);
+        switch (action){
+            case NXDOMAIN:
+                return response.setRcode(Rcode.NXDOMAIN);
+            case NODATA:
+                return response.setRcode(Rcode.NOERROR);
+            default:
+        }
+        ArrayList<ResourceRecord> answers = new ArrayList<>(rewrite.length);
+        for (ResourceRecord rr : rewrite)
+            if (rr.getType() == Type.CNAME)
+                answers.add(rr.withName(qname));
+        if (answers.isEmpty())
+            for (ResourceRecord rr : rewrite)
+                if ((rr.getType() == qtype) || (qtype == Type.ANY))
+                    answers.add(rr.withName(qname));
+        for (ResourceRecord rr : answers)
+            response.addAnswer(rr);
+        return response.setRcode(Rcode.NOERROR);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Policy))
+            return false;
+        Policy p = (Policy) o;
+        if ((action != p.action) || ((rewrite == null) != (p.rewrite == null)))
+            return false;
+        if (rewrite == null)
+            return true;
+        if (rewrite.length != p.rewrite.length)
+            return false;
+        for (int i = 0; i < rewrite.length; i++){
+            if ((rewrite[i].getType() != p.rewrite[i].getType())
+                    || (rewrite[i].getTtl() != p.rewrite[i].getTtl())
+                    || !Arrays.equals(rewrite[i].getRdata(), p.rewrite[i].getRdata()))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int ret = action.hashCode();
+        if (rewrite != null)
+            for (ResourceRecord rr : rewrite)
+                ret = 31 * ret + Arrays.hashCode(rr.getRdata());
+        return ret;
+    }
+
+    @Override
+    public String toString() {
+        return (rewrite == null) ? action.toString() : action + Arrays.toString(rewrite);
+    }
+}
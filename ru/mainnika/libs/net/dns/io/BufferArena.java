@@ -0,0 +1,181 @@
+package ru.mainnika.libs.net.dns.io;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Арена прямых буферов для ввода-вывода пакетов. Буферы четырех классов
+ * размера нарезаются из блоков прямой памяти по мегабайту; освобожденный
+ * буфер попадает в кэш потока, а при его переполнении половина кэша
+ * уходит в общий список класса. Получение и возврат в пределах кэша
+ * потока обходятся без блокировок и без создания объектов. Память арены
+ * в систему не возвращается; буферы в кэше завершившегося потока арене
+ * больше не достаются, поэтому арена рассчитана на долгоживущие потоки.
+ *
+ * В отладочном режиме арена помнит, где был получен каждый выданный
+ * буфер, и бросает {@link IllegalStateException} на повторный возврат и
+ * возврат чужого буфера. Невозвращенные буферы печатает
+ * {@link #reportLeaks(PrintStream)}. Режим включается до начала работы:
+ * буферы, полученные до включения, арена не узнает.
+ *
+ * @author MainNika
+ */
+public final class BufferArena {
+
+    /* Классы размеров: UDP без EDNS, рекомендуемый размер EDNS (DNS Flag Day 2020), TCP, наибольшее сообщение */
+    public static final int SMALL = 512;
+    public static final int EDNS = 1232;
+    public static final int MEDIUM = 4096;
+    public static final int LARGE = 65536;
+
+    private static final int[] SIZES = { SMALL, EDNS, MEDIUM, LARGE };
+
+    /* Блок прямой памяти, из которого нарезается класс */
+    private static final int SLAB = 1 << 20;
+
+    /* Сколько буферов одного класса держит кэш потока */
+    private static final int CACHE = 32;
+
+    private static final BufferArena instance = new BufferArena();
+
+    private final SizeClass[] classes = new SizeClass[SIZES.length];
+
+    private final ThreadLocal<Cache> caches = ThreadLocal.withInitial(Cache::new);
+
+    private final AtomicLong reserved = new AtomicLong();
+
+    /* Выданные буферы и место выдачи; только в отладочном режиме */
+    private final Map<ByteBuffer, Throwable> outstanding = new IdentityHashMap<>();
+
+    private volatile boolean debug;
+
+    public BufferArena(){
+        for (int i = 0; i < SIZES.length; i++)
+            classes[i] = new SizeClass(SIZES[i]);
+    }
+
+    /* Общая арена процесса */
+    public static BufferArena get(){
+        return instance;
+    }
+
+    public BufferArena setDebug(boolean debug) {
+        this.debug = debug;
+        return this;
+    }
+
+    public boolean isDebug() {
+        return debug;
+    }
+
+    /* Байт прямой памяти, занятой блоками арены */
+    public long getReserved() {
+        return reserved.get();
+    }
+
+    /*
+     * Буфер емкостью не меньше size из наименьшего подходящего класса,
+     * позиция 0, предел равен емкости. Больше {@link #LARGE} байт арена не
+     * выдает.
+     */
+    public ByteBuffer acquire(int size){
+        int c = classOf(size);
+        if (c < 0)
+            throw new IllegalArgumentException("Buffer of " + Integer.toString(size) + " bytes is too large");
+        Cache cache = caches.get();
+        if (cache.counts[c] == 0)
+            classes[c].refill(cache, c);
+        ByteBuffer ret = cache.stacks[c][--cache.counts[c]];
+        cache.stacks[c][cache.counts[c]] = null;
+        ret.clear();
+        if (debug)
+            synchronized (outstanding){
+                outstanding.put(ret, new Throwable("Buffer of " + Integer.toString(ret.capacity()) + " bytes acquired by "
+                        + Thread.currentThread().getName()));
+            }
+        return ret;
+    }
+
+    /* Возвращает буфер в кэш текущего потока; буфер можно вернуть из любого потока */
+    public void release(ByteBuffer buf){
+        int c = classOf(buf.capacity());
+        if (debug){
+            synchronized (outstanding){
+                if (outstanding.remove(buf) == null)
+                    throw new IllegalStateException("Buffer released twice or not acquired from this arena");
+            }
+        }else if ((c < 0) || (SIZES[c] != buf.capacity()) || !buf.isDirect()){
+            return;
+        }
+        Cache cache = caches.get();
+        if (cache.counts[c] == CACHE)
+            classes[c].spill(cache, c);
+        cache.stacks[c][cache.counts[c]++] = buf;
+    }
+
+    /* Число невозвращенных буферов; в отладочном режиме печатает место получения каждого */
+    public int reportLeaks(PrintStream out){
+        synchronized (outstanding){
+            for (Throwable where : outstanding.values())
+                where.printStackTrace(out);
+            return outstanding.size();
+        }
+    }
+
+    private static int classOf(int size){
+        for (int i = 0; i < SIZES.length; i++)
+            if (size <= SIZES[i])
+                return i;
+        return -1;
+    }
+
+    /* ———————————————————— Секция вложенных классов —————————————————————— */
+
+    /* Кэш потока: стек буферов на каждый класс */
+    private static final class Cache {
+
+        private final ByteBuffer[][] stacks = new ByteBuffer[SIZES.length][CACHE];
+
+        private final int[] counts = new int[SIZES.length];
+    }
+
+    /* Общий список свободных буферов одного класса */
+    private final class SizeClass {
+
+        private final int size;
+
+        private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+
+        private SizeClass(int size){
+            this.size = size;
+        }
+
+        /* Переносит в пустой кэш потока половину его емкости, при нехватке нарезает новый блок */
+        private synchronized void refill(Cache cache, int c){
+            if (free.size() < CACHE / 2)
+                carve();
+            while ((cache.counts[c] < CACHE / 2) && !free.isEmpty())
+                cache.stacks[c][cache.counts[c]++] = free.pop();
+        }
+
+        /* Забирает из полного кэша потока половину буферов */
+        private synchronized void spill(Cache cache, int c){
+            while (cache.counts[c] > CACHE / 2){
+                free.push(cache.stacks[c][--cache.counts[c]]);
+                cache.stacks[c][cache.counts[c]] = null;
+            }
+        }
+
+        private void carve(){
+            int count = Math.max(CACHE / 2, SLAB / size);
+            ByteBuffer slab = ByteBuffer.allocateDirect(count * size);
+            reserved.addAndGet(slab.capacity());
+            for (int i = 0; i < count; i++)
+                free.push(slab.slice(i * size, size));
+        }
+    }
+}
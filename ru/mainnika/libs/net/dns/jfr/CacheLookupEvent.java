@@ -0,0 +1,28 @@
+package ru.mainnika.libs.net.dns.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/**
+ * Поиск в кэше записей.
+ *
+ * @author MainNika
+ */
+@Name("ru.mainnika.libs.net.dns.CacheLookup")
+@Label("DNS Cache Lookup")
+@Description("Поиск набора записей в кэше")
+@Threshold("50 us")
+public final class CacheLookupEvent extends MessageEvent {
+
+    public static final String HIT = "HIT";
+    public static final String MISS = "MISS";
+    public static final String NEGATIVE = "NEGATIVE";
+    public static final String EXPIRED = "EXPIRED";
+
+    @Label("Remaining TTL")
+    @Timespan(Timespan.SECONDS)
+    public long ttl;
+}
@@ -0,0 +1,18 @@
+package ru.mainnika.libs.net.dns.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * Разбор пакета из массива байт.
+ *
+ * @author MainNika
+ */
+@Name("ru.mainnika.libs.net.dns.Decode")
+@Label("DNS Decode")
+@Description("Разбор сообщения из проводного формата")
+@Threshold("100 us")
+public final class DecodeEvent extends MessageEvent {
+}
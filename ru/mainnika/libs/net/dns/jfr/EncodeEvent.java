@@ -0,0 +1,18 @@
+package ru.mainnika.libs.net.dns.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * Сборка пакета в массив байт.
+ *
+ * @author MainNika
+ */
+@Name("ru.mainnika.libs.net.dns.Encode")
+@Label("DNS Encode")
+@Description("Сборка сообщения в проводной формат")
+@Threshold("100 us")
+public final class EncodeEvent extends MessageEvent {
+}
@@ -0,0 +1,58 @@
+package ru.mainnika.libs.net.dns.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import ru.mainnika.libs.net.dns.Rcode;
+import ru.mainnika.libs.net.dns.Type;
+import ru.mainnika.libs.net.dns.Wire;
+
+/**
+ * Общие поля событий, описывающих одно сообщение: идентификатор, первый
+ * вопрос, размер и итог. Заполняются только после shouldCommit(), поэтому
+ * строки не создаются, если событие не пишется.
+ *
+ * @author MainNika
+ */
+@Category({"DNS"})
+public abstract class MessageEvent extends Event {
+
+    @Label("Message ID")
+    public int id;
+
+    @Label("Query Name")
+    public String qname;
+
+    @Label("Query Type")
+    public String qtype;
+
+    @Label("Size")
+    @DataAmount
+    public int size;
+
+    @Label("Response")
+    public boolean response;
+
+    @Label("Response Code")
+    public String rcode;
+
+    @Label("Outcome")
+    @Description("OK или класс ошибки")
+    public String outcome;
+
+    /* Вопрос в проводном формате */
+    public void setQuestion(byte[] wireName, int type){
+        qname = (wireName == null) ? null : Wire.toString(wireName);
+        qtype = (type < 0) ? null : Type.nameOf(type);
+    }
+
+    public void setRcode(int rcode){
+        this.rcode = Rcode.nameOf(rcode);
+    }
+
+    public void setOutcome(Throwable e){
+        outcome = (e == null) ? "OK" : e.getClass().getSimpleName();
+    }
+}
@@ -0,0 +1,37 @@
+package ru.mainnika.libs.net.dns.jfr;
+
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * Запрос к вышестоящему серверу от отправки до ответа или таймаута.
+ * Поле size хранит размер запроса, responseSize - размер ответа.
+ *
+ * @author MainNika
+ */
+@Name("ru.mainnika.libs.net.dns.UpstreamQuery")
+@Label("DNS Upstream Query")
+@Description("Запрос к вышестоящему серверу")
+@Threshold("10 ms")
+public final class UpstreamQueryEvent extends MessageEvent {
+
+    public static final String TIMEOUT = "TIMEOUT";
+    public static final String TRUNCATED = "TRUNCATED";
+    public static final String SEND_ERROR = "SEND_ERROR";
+
+    @Label("Server")
+    public String server;
+
+    @Label("Transport")
+    public String transport;
+
+    @Label("Attempt")
+    public int attempt;
+
+    @Label("Response Size")
+    @DataAmount
+    public int responseSize;
+}
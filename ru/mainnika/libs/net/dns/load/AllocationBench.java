@@ -0,0 +1,102 @@
+package ru.mainnika.libs.net.dns.load;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import ru.mainnika.libs.net.dns.Dns;
+import ru.mainnika.libs.net.dns.ResourceRecord;
+import ru.mainnika.libs.net.dns.Type;
+
+/**
+ * Счетчик выделений памяти на пакет для цикла разбора и сборки через пул
+ * {@link Dns#acquire()}. Байты берутся из счетчика выделений потока JVM
+ * (com.sun.management.ThreadMXBean), поэтому меряется ровно цикл, без
+ * шума других потоков. Запросы берутся из {@link Corpus}, к каждому
+ * строится ответ с записью A, чтобы разбирались и секции ответа.
+ *
+ * В установившемся режиме acquire/fromRaw/getRaw(dst)/release должен
+ * выделять 0 байт на пакет; события JFR при выключенной записи тоже не
+ * создаются.
+ *
+ * @author MainNika
+ */
+public final class AllocationBench {
+
+    private final byte[][] packets;
+
+    private final byte[] out = new byte[65536];
+
+    private final com.sun.management.ThreadMXBean threads;
+
+    private AllocationBench(byte[][] packets){
+        this.packets = packets;
+        this.threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    }
+
+    /* Запросы корпуса и ответы на них с одной записью A */
+    private static byte[][] packets(Corpus corpus) throws Exception{
+        byte[][] ret = new byte[corpus.size() * 2][];
+        for (int i = 0; i < corpus.size(); i++){
+            byte[] query = corpus.get(i);
+            Dns response = new Dns().fromRaw(query);
+            Dns.Query q = response.getQueryAt(0);
+            response.setQr();
+            response.addAnswer(new ResourceRecord(q.getWireName(), Type.A, Type.CLASS_IN, 300,
+                    new byte[]{ 10, 0, (byte) (i >> 8), (byte) i }));
+            ret[i * 2] = query;
+            ret[i * 2 + 1] = response.getRaw();
+        }
+        return ret;
+    }
+
+    /* Один проход по всем пакетам; encode - собирать ли пакет обратно */
+    private long pass(boolean encode) throws Exception{
+        long sum = 0;
+        for (byte[] packet : packets){
+            Dns dns = Dns.acquire();
+            dns.fromRaw(packet);
+            sum += dns.getId();
+            if (encode)
+                sum += dns.getRaw(out, 0);
+            dns.release();
+        }
+        return sum;
+    }
+
+    private void measure(PrintStream out, String label, boolean encode, int iterations) throws Exception{
+        for (int i = 0; i < Math.max(1, iterations / 10); i++)
+            pass(encode);
+        long bytes = threads.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        long sum = 0;
+        for (int i = 0; i < iterations; i++)
+            sum += pass(encode);
+        long nanos = System.nanoTime() - start;
+        bytes = threads.getCurrentThreadAllocatedBytes() - bytes;
+        double count = (double) iterations * packets.length;
+        out.printf("%-14s %10.2f bytes/packet %10.1f ns/packet  (%d)%n", label, bytes / count, nanos / count, sum & 0xff);
+    }
+
+    public static void main(String[] args) throws Exception{
+        PrintStream out = System.out;
+        if ((args.length < 2) || !Arrays.asList("--pcap", "--generate").contains(args[0])){
+            out.println("usage: AllocationBench (--pcap file | --generate suffix) [--iterations N]");
+            return;
+        }
+        int iterations = 200;
+        for (int i = 2; i + 1 < args.length; i += 2){
+            switch (args[i]){
+                case "--iterations": iterations = Integer.parseInt(args[i + 1]); break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        Corpus corpus = args[0].equals("--pcap")
+                ? Corpus.fromPcap(Paths.get(args[1]), 53, 10000)
+                : Corpus.generate(args[1], 1000, 1000, 1);
+        AllocationBench bench = new AllocationBench(packets(corpus));
+        out.printf("%d packets, %d iterations%n", bench.packets.length, iterations);
+        bench.measure(out, "decode", false, iterations);
+        bench.measure(out, "decode+encode", true, iterations);
+    }
+}
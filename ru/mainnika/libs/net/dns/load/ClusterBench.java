@@ -0,0 +1,126 @@
+package ru.mainnika.libs.net.dns.load;
+
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.DatagramChannel;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import ru.mainnika.libs.net.dns.Type;
+import ru.mainnika.libs.net.dns.Wire;
+import ru.mainnika.libs.net.dns.cache.RecordCache;
+import ru.mainnika.libs.net.dns.cluster.ClusterCache;
+import ru.mainnika.libs.net.dns.resolver.Resolver;
+
+/**
+ * Несколько узлов резолвера в одном процессе, каждый со своим
+ * {@link RecordCache}, против подставного сервера зоны example.test. на
+ * loopback. Запросы к одному набору имен случайно распределяются между
+ * узлами, как за балансировщиком. Узлы работают сначала каждый со своим
+ * кэшем, затем объединенные в {@link ClusterCache} на адресах 127.0.0.N
+ * с общим портом и общим ключом, созданным при запуске.
+ *
+ * Печатает число запросов к серверу зоны, долю ответов из кэша и сколько
+ * записей хранят все узлы вместе. Без кластера каждое имя спрашивается у
+ * сервера каждым узлом и хранится на каждом; в кластере - примерно один
+ * раз на кластер.
+ *
+ * @author MainNika
+ */
+public final class ClusterBench {
+
+    private static final String SOA = "@ IN SOA ns hostmaster 1 3600 600 86400 300\n@ IN NS ns\nns IN A 127.0.0.1\n";
+
+    private ClusterBench(){
+    }
+
+    private static StubZone zone(int hosts) throws Exception{
+        StringBuilder records = new StringBuilder(SOA);
+        for (int i = 0; i < hosts; i++)
+            records.append('h').append(i).append(" IN A 10.0.").append(i >> 8 & 0xff).append('.').append(i & 0xff).append('\n');
+        return new StubZone("example.test.").add(records.toString());
+    }
+
+    /* Свободный порт для узлов кластера: занимается и сразу освобождается */
+    private static int port() throws Exception{
+        try (ServerSocket probe = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"))){
+            return probe.getLocalPort();
+        }
+    }
+
+    private static void run(PrintStream out, int count, int hosts, int rounds, boolean clustered) throws Exception{
+        StubZone zone = zone(hosts);
+        List<ClusterCache> clusters = new ArrayList<>();
+        try (DatagramChannel channel = zone.serve(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0))){
+            int upstream = ((InetSocketAddress) channel.getLocalAddress()).getPort();
+            int port = port();
+            List<InetSocketAddress> nodes = new ArrayList<>();
+            for (int i = 0; i < count; i++)
+                nodes.add(new InetSocketAddress(InetAddress.getByName("127.0.0." + Integer.toString(11 + i)), port));
+            byte[] key = new byte[32];
+            new SecureRandom().nextBytes(key);
+            RecordCache[] caches = new RecordCache[count];
+            Resolver[] resolvers = new Resolver[count];
+            for (int i = 0; i < count; i++){
+                caches[i] = new RecordCache(100000);
+                resolvers[i] = new Resolver(caches[i], List.of(InetAddress.getByName("127.0.0.1"))).setPort(upstream);
+                if (clustered){
+                    ClusterCache cluster = new ClusterCache(caches[i], nodes.get(i), nodes, 1000, key).start();
+                    clusters.add(cluster);
+                    resolvers[i].setCluster(cluster);
+                }
+            }
+
+            Random random = new Random(1);
+            int queries = rounds * hosts;
+            int failed = 0;
+            long before = zone.getQueries();
+            long start = System.nanoTime();
+            for (int i = 0; i < queries; i++){
+                byte[] name = Wire.fromString("h" + Integer.toString(random.nextInt(hosts)) + ".example.test.");
+                if (resolvers[random.nextInt(count)].resolve(name, Type.A).getAnswers().isEmpty())
+                    failed++;
+            }
+            long nanos = System.nanoTime() - start;
+            long upstreamQueries = zone.getQueries() - before;
+            long entries = 0;
+            for (RecordCache cache : caches)
+                entries += cache.size();
+            out.printf("%-12s %d nodes, %d queries for %d names, %d failed, %.1f us each: upstream %d, cached %.1f%%, entries %d%n",
+                    clustered ? "cluster" : "independent", count, queries, hosts, failed, nanos / 1e3 / queries,
+                    upstreamQueries, 100.0 * (queries - upstreamQueries) / queries, entries);
+            for (ClusterCache cluster : clusters)
+                out.printf("  node %d: near hits %d, remote hits %d, misses %d, errors %d, served %d, sent %d, received %d%n",
+                        clusters.indexOf(cluster), cluster.getNearHits(), cluster.getRemoteHits(), cluster.getRemoteMisses(),
+                        cluster.getErrors(), cluster.getServed(), cluster.getSent(), cluster.getReceived());
+        }finally{
+            for (ClusterCache cluster : clusters)
+                cluster.close();
+        }
+    }
+
+    /* Использование: ClusterBench [--nodes N] [--names N] [--rounds N] */
+    public static void main(String[] args) throws Exception{
+        PrintStream out = System.out;
+        if ((args.length % 2) != 0){
+            out.println("usage: ClusterBench [--nodes N] [--names N] [--rounds N]");
+            return;
+        }
+        int count = 3;
+        int hosts = 2000;
+        int rounds = 5;
+        for (int i = 0; i + 1 < args.length; i += 2){
+            switch (args[i]){
+                case "--nodes": count = Integer.parseInt(args[i + 1]); break;
+                case "--names": hosts = Integer.parseInt(args[i + 1]); break;
+                case "--rounds": rounds = Integer.parseInt(args[i + 1]); break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        run(out, count, hosts, rounds, false);
+        run(out, count, hosts, rounds, true);
+    }
+}
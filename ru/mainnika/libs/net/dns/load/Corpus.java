@@ -0,0 +1,75 @@
+package ru.mainnika.libs.net.dns.load;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import ru.mainnika.libs.net.dns.Dns;
+import ru.mainnika.libs.net.dns.DnsException;
+import ru.mainnika.libs.net.dns.Type;
+import ru.mainnika.libs.net.dns.pcap.PcapFile;
+
+/**
+ * Набор запросов для нагрузки в байтовом виде. Запросы отправляются как
+ * есть, меняется только идентификатор.
+ *
+ * @author MainNika
+ */
+public final class Corpus {
+
+    private final ArrayList<byte[]> queries;
+
+    private Corpus(ArrayList<byte[]> queries){
+        this.queries = queries;
+    }
+
+    /* Запросы к порту port из захвата, не больше limit (0 - без ограничения) */
+    public static Corpus fromPcap(Path file, int port, int limit) throws IOException{
+        ArrayList<byte[]> ret = new ArrayList<>();
+        try (PcapFile pcap = PcapFile.open(file)){
+            PcapFile.Cursor cursor = pcap.cursor();
+            while (cursor.next() && ((limit <= 0) || (ret.size() < limit))){
+                int off = cursor.payload();
+                if ((off < 0) || (cursor.getDestinationPort() != port) || (cursor.getPayloadLength() < 12))
+                    continue;
+                if ((cursor.getData()[off + 2] & 0x80) != 0)
+                    continue;
+                ret.add(Arrays.copyOfRange(cursor.getData(), off, off + cursor.getPayloadLength()));
+            }
+        }
+        if (ret.isEmpty())
+            throw new IOException("No queries to port " + Integer.toString(port) + " in " + file);
+        return new Corpus(ret);
+    }
+
+    /*
+     * Синтетические запросы к names именам вида wN.suffix. Распределение
+     * имен скошенное (малые N чаще), типы: 70% A, 25% AAAA, 5% MX.
+     */
+    public static Corpus generate(String suffix, int names, int count, long seed) throws DnsException{
+        Random random = new Random(seed);
+        ArrayList<byte[]> ret = new ArrayList<>(count);
+        for (int i = 0; i < count; i++){
+            int n = (int) (names * Math.pow(random.nextDouble(), 3));
+            int r = random.nextInt(100);
+            int type = (r < 70) ? Type.A : (r < 95) ? Type.AAAA : Type.MX;
+            try{
+                ret.add(new Dns().setRd().addQuery("w" + Integer.toString(n) + "." + suffix, type, Type.CLASS_IN).getRaw());
+            }catch(DnsException e){
+                throw e;
+            }catch(Exception e){
+                throw new DnsException("Cannot build query: " + e.getMessage());
+            }
+        }
+        return new Corpus(ret);
+    }
+
+    public int size(){
+        return queries.size();
+    }
+
+    public byte[] get(int index){
+        return queries.get(index);
+    }
+}
@@ -0,0 +1,105 @@
+package ru.mainnika.libs.net.dns.load;
+
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.spec.ECGenParameterSpec;
+import java.util.List;
+import java.util.Random;
+import ru.mainnika.libs.net.dns.Rcode;
+import ru.mainnika.libs.net.dns.ResourceRecord;
+import ru.mainnika.libs.net.dns.Type;
+import ru.mainnika.libs.net.dns.Wire;
+import ru.mainnika.libs.net.dns.cache.RecordCache;
+import ru.mainnika.libs.net.dns.dnssec.DenialCache;
+import ru.mainnika.libs.net.dns.dnssec.Keys;
+import ru.mainnika.libs.net.dns.dnssec.Signer;
+import ru.mainnika.libs.net.dns.dnssec.Validator;
+import ru.mainnika.libs.net.dns.resolver.Resolver;
+
+/**
+ * Поток запросов случайных поддоменов к локально подписанной зоне через
+ * {@link Resolver} с {@link DenialCache} и без него. Зона подписывается
+ * ключом ECDSA P-256, созданным при запуске, цепочкой NSEC или NSEC3 и
+ * отдается {@link StubZone} на loopback; ключ зоны - якорь доверия
+ * {@link Validator}.
+ *
+ * Без кэша отрицаний каждое новое имя - запрос к серверу. С ним после
+ * нескольких ответов цепочка из пары записей покрывает все случайные имена,
+ * и NXDOMAIN синтезируется локально: запросов к серверу становится на
+ * порядки меньше, чем имен.
+ *
+ * @author MainNika
+ */
+public final class DenialBench {
+
+    private static final String ZONE = "test.";
+
+    private static final String RECORDS =
+            "@ IN SOA ns hostmaster 1 3600 600 86400 300\n"
+            + "@ IN NS ns\n"
+            + "ns IN A 127.0.0.1\n"
+            + "a IN A 192.0.2.1\n"
+            + "m IN TXT \"m\"\n"
+            + "www IN A 192.0.2.2\n";
+
+    private DenialBench(){
+    }
+
+    private static void run(PrintStream out, boolean nsec3, boolean cached, int count) throws Exception{
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        KeyPair pair = generator.generateKeyPair();
+        byte[] origin = Wire.fromString(ZONE);
+        byte[] dnskey = Keys.dnskey(pair.getPublic(), Keys.FLAG_ZONE | Keys.FLAG_SEP, Keys.ECDSAP256SHA256);
+        StubZone zone = new StubZone(ZONE).add(RECORDS).sign(new Signer(origin, dnskey, pair.getPrivate()), nsec3);
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        try (DatagramChannel channel = zone.serve(new InetSocketAddress(loopback, 0))){
+            Resolver resolver = new Resolver(new RecordCache(1000000), List.of(loopback))
+                    .setPort(((InetSocketAddress) channel.getLocalAddress()).getPort())
+                    .setDnssec(true);
+            Validator validator = new Validator(resolver::query)
+                    .addTrustAnchor(new ResourceRecord(origin, Type.DNSKEY, Type.CLASS_IN, 300, dnskey));
+            DenialCache denial = new DenialCache(validator);
+            if (cached)
+                resolver.setDenialCache(denial);
+            // ключи и первое доказательство отсутствия
+            resolver.resolve(Wire.fromString("www." + ZONE), Type.A);
+            resolver.resolve(Wire.fromString("a." + ZONE), Type.AAAA);
+            Random random = new Random(1);
+            char[] label = new char[10];
+            long before = zone.getQueries();
+            long start = System.nanoTime();
+            int nxdomain = 0;
+            for (int i = 0; i < count; i++){
+                for (int k = 0; k < label.length; k++)
+                    label[k] = (char) ('a' + random.nextInt(26));
+                if (resolver.resolve(Wire.fromString(new String(label) + "." + ZONE), Type.A).getRcode() == Rcode.NXDOMAIN)
+                    nxdomain++;
+            }
+            long nanos = System.nanoTime() - start;
+            out.printf("%-5s %-13s %d names, %d NXDOMAIN, %d upstream queries, %.1f us/name; synthesized %d NXDOMAIN,"
+                    + " %d NODATA, stored %d, rejected %d, signatures checked %d%n",
+                    nsec3 ? "NSEC3" : "NSEC", cached ? "denial cache" : "no cache", count, nxdomain,
+                    zone.getQueries() - before, nanos / 1e3 / count, denial.getNxdomain(), denial.getNodata(),
+                    denial.getStored(), denial.getRejected(), validator.getVerifications());
+        }
+    }
+
+    /* Использование: DenialBench [--names N] */
+    public static void main(String[] args) throws Exception{
+        PrintStream out = System.out;
+        if ((args.length != 0) && ((args.length != 2) || !args[0].equals("--names"))){
+            out.println("usage: DenialBench [--names N]");
+            return;
+        }
+        int count = (args.length == 2) ? Integer.parseInt(args[1]) : 10000;
+        for (boolean nsec3 : new boolean[]{ false, true }){
+            run(out, nsec3, false, count);
+            run(out, nsec3, true, count);
+        }
+    }
+}
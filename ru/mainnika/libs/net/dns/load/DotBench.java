@@ -0,0 +1,155 @@
+package ru.mainnika.libs.net.dns.load;
+
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.KeyStore;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+import ru.mainnika.libs.net.dns.Dns;
+import ru.mainnika.libs.net.dns.Type;
+import ru.mainnika.libs.net.dns.Wire;
+import ru.mainnika.libs.net.dns.server.ZoneHandler;
+import ru.mainnika.libs.net.dns.tls.DotClient;
+import ru.mainnika.libs.net.dns.tls.DotServer;
+import ru.mainnika.libs.net.dns.tls.Tls;
+import ru.mainnika.libs.net.dns.zone.Zone;
+
+/**
+ * {@link DotServer} и {@link DotClient} в одном процессе на loopback.
+ * Хранилище с самоподписанным сертификатом берется из аргументов или
+ * создается во временном файле через keytool из текущей JDK (та же
+ * команда, что в описании {@link Tls}); оно служит и ключом сервера, и
+ * доверенным сертификатом клиента.
+ *
+ * Печатает три числа: полные рукопожатия в секунду (у каждого соединения
+ * свой клиентский контекст, возобновлять нечего), рукопожатия с
+ * возобновлением по билету и запросы в секунду по постоянным соединениям
+ * с конвейером. Счетчики сервера показывают, сколько рукопожатий
+ * приходится на запрос в каждом режиме.
+ *
+ * @author MainNika
+ */
+public final class DotBench {
+
+    private static final String PASSWORD = "changeit";
+
+    private static final String RECORDS = "$TTL 300\n@ IN SOA ns hostmaster 1 3600 600 86400 300\n@ IN NS ns\n"
+            + "ns IN A 127.0.0.1\nwww IN A 192.0.2.1\n";
+
+    private DotBench(){
+    }
+
+    /* Временное хранилище PKCS12 с ключом EC P-256 для localhost и 127.0.0.1 */
+    private static Path keystore() throws Exception{
+        Path dir = Files.createTempDirectory("dotbench");
+        Path file = dir.resolve("dot.p12");
+        String keytool = Paths.get(System.getProperty("java.home"), "bin", "keytool").toString();
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "dot", "-keyalg", "EC", "-groupname", "secp256r1",
+                "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1", "-validity", "1",
+                "-keystore", file.toString(), "-storepass", PASSWORD)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        if (process.waitFor() != 0)
+            throw new IllegalStateException("keytool failed with exit code " + process.exitValue());
+        file.toFile().deleteOnExit();
+        dir.toFile().deleteOnExit();
+        return file;
+    }
+
+    /* Использование: DotBench [keystore.p12 password] [--connections N] [--pipeline N] [--duration s] */
+    public static void main(String[] args) throws Exception{
+        PrintStream out = System.out;
+        int first = ((args.length >= 2) && !args[0].startsWith("--")) ? 2 : 0;
+        if (((args.length - first) % 2) != 0){
+            out.println("usage: DotBench [keystore.p12 password] [--connections N] [--pipeline N] [--duration s]");
+            return;
+        }
+        int count = 4;
+        int depth = 64;
+        long duration = 3;
+        for (int i = first; i + 1 < args.length; i += 2){
+            switch (args[i]){
+                case "--connections": count = Integer.parseInt(args[i + 1]); break;
+                case "--pipeline": depth = Integer.parseInt(args[i + 1]); break;
+                case "--duration": duration = Long.parseLong(args[i + 1]); break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        Path file = (first != 0) ? Paths.get(args[0]) : keystore();
+        char[] password = (first != 0) ? args[1].toCharArray() : PASSWORD.toCharArray();
+        KeyStore store = Tls.load(file, password);
+        if (first == 0)
+            out.printf("generated self-signed keystore %s%n", file);
+
+        Zone zone = Zone.load(new StringReader(RECORDS), Wire.fromString("example.test."));
+        InetSocketAddress bind = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0);
+        Dns request = new Dns().setRd().addQuery("www.example.test.", Type.A, Type.CLASS_IN);
+        try (DotServer server = new DotServer(bind, Tls.context(store, password), new ZoneHandler(zone), 1)){
+            server.start();
+            InetSocketAddress target = server.getLocalAddress();
+            out.printf("server %s%n", target);
+
+            // полные рукопожатия: новый клиентский контекст на каждое соединение
+            long handshakes = server.getHandshakes();
+            long resumed = server.getResumed();
+            long queries = server.getQueries();
+            long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(duration);
+            long nanos = 0;
+            long n = 0;
+            while (System.nanoTime() < end){
+                SSLContext context = Tls.context(store, password);
+                try (DotClient client = new DotClient(target, context, null, 1)){
+                    long start = System.nanoTime();
+                    client.query(request);
+                    nanos += System.nanoTime() - start;
+                }
+                n++;
+            }
+            out.printf("full handshakes/s %.1f; server: %d handshakes, %d resumed, %d queries%n", n / (nanos / 1e9),
+                    server.getHandshakes() - handshakes, server.getResumed() - resumed, server.getQueries() - queries);
+
+            // возобновление: один контекст, соединение закрывается после каждого ответа
+            SSLContext context = Tls.context(store, password);
+            try (DotClient client = new DotClient(target, context, null, count)){
+                handshakes = server.getHandshakes();
+                resumed = server.getResumed();
+                queries = server.getQueries();
+                long start = System.nanoTime();
+                end = start + TimeUnit.SECONDS.toNanos(duration);
+                n = 0;
+                while (System.nanoTime() < end){
+                    client.query(request);
+                    client.closeIdle();
+                    n++;
+                }
+                double elapsed = (System.nanoTime() - start) / 1e9;
+                out.printf("resumed handshakes/s %.1f; server: %d handshakes, %d resumed, %d queries%n", n / elapsed,
+                        server.getHandshakes() - handshakes, server.getResumed() - resumed, server.getQueries() - queries);
+
+                // постоянные соединения с конвейером
+                handshakes = server.getHandshakes();
+                queries = server.getQueries();
+                long answered = client.getAnswered();
+                start = System.nanoTime();
+                end = start + TimeUnit.SECONDS.toNanos(duration);
+                CompletableFuture<?>[] batch = new CompletableFuture<?>[count * depth];
+                while (System.nanoTime() < end){
+                    for (int i = 0; i < batch.length; i++)
+                        batch[i] = client.forward(request);
+                    CompletableFuture.allOf(batch).get();
+                }
+                elapsed = (System.nanoTime() - start) / 1e9;
+                out.printf("queries/s %.1f over %d connections, pipeline %d; server: %d handshakes, %d queries%n",
+                        (client.getAnswered() - answered) / elapsed, count, depth,
+                        server.getHandshakes() - handshakes, server.getQueries() - queries);
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package ru.mainnika.libs.net.dns.load;
+
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import ru.mainnika.libs.net.dns.Dns;
+import ru.mainnika.libs.net.dns.DnsException;
+import ru.mainnika.libs.net.dns.Type;
+import ru.mainnika.libs.net.dns.metrics.Histogram;
+import ru.mainnika.libs.net.dns.resolver.Forwarder;
+import ru.mainnika.libs.net.dns.resolver.Upstream;
+
+/**
+ * {@link Forwarder} против подставных вышестоящих серверов на loopback с
+ * внесенными задержками: быстрый, быстрый с потерей части ответов и
+ * медленный. Для сравнения те же запросы идут по кругу через отдельные
+ * пересыльщики с одним сервером, как при выборе round-robin.
+ *
+ * Печатает процентили задержки и распределение запросов по серверам: с
+ * выбором по SRTT основная доля уходит быстрому серверу, потери
+ * отыгрываются дублированием, и медленный сервер не портит хвост.
+ *
+ * @author MainNika
+ */
+public final class ForwarderBench {
+
+    private static final String RECORDS = "@ IN SOA ns hostmaster 1 3600 600 86400 300\n@ IN NS ns\nns IN A 127.0.0.1\n";
+
+    private ForwarderBench(){
+    }
+
+    /* Запросы по очереди через forwarders по кругу; печатает задержки и число неудач */
+    private static void run(PrintStream out, String label, List<Forwarder> forwarders, int count) throws DnsException{
+        Histogram histogram = new Histogram();
+        int failed = 0;
+        for (int i = 0; i < count; i++){
+            Dns request = new Dns().genId().setRd().addQuery("w" + Integer.toString(i) + ".test.", Type.A, Type.CLASS_IN);
+            long start = System.nanoTime();
+            try{
+                forwarders.get(i % forwarders.size()).query(request);
+                histogram.record(System.nanoTime() - start);
+            }catch(DnsException e){
+                failed++;
+            }
+        }
+        long[] latency = histogram.snapshot();
+        out.printf("%-12s failed %d, latency ms: mean %.2f, p50 %.2f, p90 %.2f, p99 %.2f, max %.2f%n", label, failed,
+                Histogram.mean(latency) / 1e6, Histogram.percentile(latency, 0.5) / 1e6, Histogram.percentile(latency, 0.9) / 1e6,
+                Histogram.percentile(latency, 0.99) / 1e6, Histogram.percentile(latency, 1.0) / 1e6);
+    }
+
+    private static void print(PrintStream out, Forwarder forwarder){
+        for (Upstream u : forwarder.getUpstreams())
+            out.printf("  %s, sent %d, answered %d%n", u, u.getSent(), u.getAnswered());
+    }
+
+    /* Использование: ForwarderBench [--queries N] */
+    public static void main(String[] args) throws Exception{
+        PrintStream out = System.out;
+        if ((args.length != 0) && ((args.length != 2) || !args[0].equals("--queries"))){
+            out.println("usage: ForwarderBench [--queries N]");
+            return;
+        }
+        int count = (args.length == 2) ? Integer.parseInt(args[1]) : 1000;
+        StubZone[] upstreams = {
+            new StubZone("test.").add(RECORDS).setDelay(2, TimeUnit.MILLISECONDS),
+            new StubZone("test.").add(RECORDS).setDelay(1, TimeUnit.MILLISECONDS).setLoss(0.3),
+            new StubZone("test.").add(RECORDS).setDelay(30, TimeUnit.MILLISECONDS)
+        };
+        String[] names = { "fast 2 ms", "lossy 1 ms, 30% lost", "slow 30 ms" };
+        List<DatagramChannel> channels = new ArrayList<>();
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        List<Forwarder> single = new ArrayList<>();
+        try{
+            for (int i = 0; i < upstreams.length; i++){
+                DatagramChannel channel = upstreams[i].serve(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+                channels.add(channel);
+                addresses.add((InetSocketAddress) channel.getLocalAddress());
+                out.printf("upstream %s: %s%n", addresses.get(i), names[i]);
+            }
+            for (InetSocketAddress address : addresses)
+                single.add(new Forwarder(List.of(address)).setMaxAttempts(1).setTimeout(200, TimeUnit.MILLISECONDS));
+            run(out, "round-robin", single, count);
+
+            try (Forwarder forwarder = new Forwarder(addresses).setMaxAttempts(1).setTimeout(200, TimeUnit.MILLISECONDS)){
+                run(out, "srtt", List.of(forwarder), count);
+                print(out, forwarder);
+            }
+            try (Forwarder forwarder = new Forwarder(addresses).setMaxAttempts(2).setTimeout(200, TimeUnit.MILLISECONDS)){
+                run(out, "srtt+hedge", List.of(forwarder), count);
+                print(out, forwarder);
+            }
+        }finally{
+            for (Forwarder forwarder : single)
+                forwarder.close();
+            for (DatagramChannel channel : channels)
+                channel.close();
+        }
+    }
+}
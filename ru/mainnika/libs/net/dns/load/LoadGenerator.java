@@ -0,0 +1,291 @@
+package ru.mainnika.libs.net.dns.load;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import ru.mainnika.libs.net.dns.Rcode;
+import ru.mainnika.libs.net.dns.metrics.Histogram;
+
+/**
+ * Генератор нагрузки по UDP. Запросы из {@link Corpus} рассылаются по кругу
+ * через несколько неблокирующих сокетов из одного потока; ответы
+ * сопоставляются по идентификатору внутри сокета.
+ *
+ * При заданной частоте нагрузка открытая: запросы уходят по расписанию
+ * независимо от ответов, а задержка считается от запланированного времени
+ * отправки, чтобы медленный сервер не занижал процентили. Без частоты
+ * нагрузка замкнутая: в полете держится не больше inflight запросов.
+ *
+ * @author MainNika
+ */
+public final class LoadGenerator {
+
+    /* Признак свободного идентификатора */
+    private static final long FREE = Long.MIN_VALUE;
+
+    private static final int IDS = 65536;
+
+    private final InetSocketAddress target;
+
+    private final Corpus corpus;
+
+    private long rate;
+
+    private int inflight = 100;
+
+    private int sockets = 4;
+
+    private long duration = TimeUnit.SECONDS.toNanos(10);
+
+    private long count;
+
+    private long timeout = TimeUnit.SECONDS.toNanos(2);
+
+    public LoadGenerator(InetSocketAddress target, Corpus corpus){
+        this.target = target;
+        this.corpus = corpus;
+    }
+
+    /* Запросов в секунду; 0 - замкнутая нагрузка */
+    public LoadGenerator setRate(long rate) {
+        this.rate = rate;
+        return this;
+    }
+
+    /* Предел запросов в полете для замкнутой нагрузки */
+    public LoadGenerator setInflight(int inflight) {
+        this.inflight = Math.max(1, inflight);
+        return this;
+    }
+
+    public LoadGenerator setSockets(int sockets) {
+        this.sockets = Math.max(1, sockets);
+        return this;
+    }
+
+    public LoadGenerator setDuration(long duration, TimeUnit unit) {
+        this.duration = unit.toNanos(duration);
+        return this;
+    }
+
+    /* Сколько запросов отправить; 0 - ограничение только по времени */
+    public LoadGenerator setCount(long count) {
+        this.count = count;
+        return this;
+    }
+
+    public LoadGenerator setTimeout(long timeout, TimeUnit unit) {
+        this.timeout = unit.toNanos(timeout);
+        return this;
+    }
+
+    /* Состояние одного сокета: время отправки по идентификатору */
+    private static final class Slot {
+
+        private final DatagramChannel channel;
+
+        private final long[] sent = new long[IDS];
+
+        /* Старейший идентификатор, который может быть в полете */
+        private int head;
+
+        private int next;
+
+        private Slot(DatagramChannel channel){
+            this.channel = channel;
+            Arrays.fill(sent, FREE);
+        }
+    }
+
+    public Result run() throws IOException{
+        Result ret = new Result();
+        Histogram latency = new Histogram();
+        Slot[] slots = new Slot[sockets];
+        ByteBuffer out = ByteBuffer.allocateDirect(65536);
+        ByteBuffer in = ByteBuffer.allocateDirect(65536);
+        try (Selector selector = Selector.open()){
+            for (int i = 0; i < sockets; i++){
+                DatagramChannel channel = DatagramChannel.open();
+                channel.configureBlocking(false);
+                channel.connect(target);
+                slots[i] = new Slot(channel);
+                channel.register(selector, SelectionKey.OP_READ, slots[i]);
+            }
+            long start = System.nanoTime();
+            long end = start + duration;
+            long interval = (rate > 0) ? Math.max(1, 1000000000L / rate) : 0;
+            long scheduled = start;
+            long pending = 0;
+            int query = 0;
+            int socket = 0;
+            while (true){
+                long now = System.nanoTime();
+                boolean sending = (now < end) && ((count == 0) || (ret.sent + ret.blocked < count));
+                if (!sending && ((pending == 0) || (now - Math.max(end, scheduled) > timeout)))
+                    break;
+                while (sending && ((rate > 0) ? (scheduled <= now) : (pending < inflight))){
+                    long at = (rate > 0) ? scheduled : now;
+                    scheduled += interval;
+                    Slot slot = null;
+                    for (int i = 0; (i < sockets) && (slot == null); i++){
+                        Slot s = slots[(socket + i) % sockets];
+                        if (s.sent[s.next] == FREE)
+                            slot = s;
+                    }
+                    socket = (socket + 1) % sockets;
+                    if ((count != 0) && (ret.sent + ret.blocked >= count))
+                        break;
+                    if (slot == null){
+                        ret.blocked++;
+                        break;
+                    }
+                    byte[] q = corpus.get(query);
+                    query = (query + 1) % corpus.size();
+                    out.clear();
+                    out.put((byte) (slot.next >> 8)).put((byte) slot.next).put(q, 2, q.length - 2).flip();
+                    if (slot.channel.write(out) == 0){
+                        ret.blocked++;
+                        if (rate == 0)
+                            break;
+                        continue;
+                    }
+                    slot.sent[slot.next] = at;
+                    slot.next = (slot.next + 1) & (IDS - 1);
+                    ret.sent++;
+                    pending++;
+                }
+                long wait = (rate > 0) ? scheduled - System.nanoTime() : TimeUnit.MILLISECONDS.toNanos(10);
+                if (wait > TimeUnit.MILLISECONDS.toNanos(1))
+                    selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+                else
+                    selector.selectNow();
+                now = System.nanoTime();
+                for (SelectionKey key : selector.selectedKeys()){
+                    Slot slot = (Slot) key.attachment();
+                    while (true){
+                        in.clear();
+                        if (slot.channel.read(in) <= 0)
+                            break;
+                        if ((in.position() < 12) || ((in.get(2) & 0x80) == 0)){
+                            ret.unexpected++;
+                            continue;
+                        }
+                        int id = ((in.get(0) & 0xff) << 8) | (in.get(1) & 0xff);
+                        if (slot.sent[id] == FREE){
+                            ret.late++;
+                            continue;
+                        }
+                        latency.record(now - slot.sent[id]);
+                        slot.sent[id] = FREE;
+                        ret.received++;
+                        ret.rcodes[in.get(3) & 0xf]++;
+                        pending--;
+                    }
+                }
+                selector.selectedKeys().clear();
+                for (Slot slot : slots){
+                    while (slot.head != slot.next){
+                        long at = slot.sent[slot.head];
+                        if (at != FREE){
+                            if (now - at <= timeout)
+                                break;
+                            slot.sent[slot.head] = FREE;
+                            ret.lost++;
+                            pending--;
+                        }
+                        slot.head = (slot.head + 1) & (IDS - 1);
+                    }
+                }
+            }
+            ret.elapsed = System.nanoTime() - start;
+        }finally{
+            for (Slot slot : slots)
+                if (slot != null)
+                    slot.channel.close();
+        }
+        ret.latency = latency.snapshot();
+        return ret;
+    }
+
+    /**
+     * Итог прогона. Задержки в наносекундах, корзины описываются
+     * {@link Histogram}.
+     */
+    public static final class Result {
+        public long sent;
+        public long received;
+        /** Не дождались ответа за таймаут */
+        public long lost;
+        /** Ответ пришел после таймаута */
+        public long late;
+        /** Не ответ или слишком короткий пакет */
+        public long unexpected;
+        /** Нет свободного идентификатора или буфер сокета полон */
+        public long blocked;
+        public long elapsed;
+        public final long[] rcodes = new long[16];
+        public long[] latency;
+
+        public double getThroughput(){
+            return (elapsed > 0) ? received * 1e9 / elapsed : 0;
+        }
+
+        public long getPercentile(double q){
+            return Histogram.percentile(latency, q);
+        }
+
+        public void print(Appendable out) throws IOException{
+            out.append(String.format("sent %d, received %d, lost %d (%.3f%%), late %d, unexpected %d, blocked %d%n",
+                    sent, received, lost, (sent > 0) ? 100.0 * lost / sent : 0.0, late, unexpected, blocked));
+            out.append(String.format("elapsed %.3f s, throughput %.1f qps%n", elapsed / 1e9, getThroughput()));
+            out.append("rcode");
+            for (int i = 0; i < rcodes.length; i++)
+                if (rcodes[i] > 0)
+                    out.append(' ').append(Rcode.nameOf(i)).append('=').append(Long.toString(rcodes[i]));
+            out.append('\n');
+            out.append(String.format("latency us: mean %.1f, p50 %.1f, p90 %.1f, p99 %.1f, p99.9 %.1f, p99.99 %.1f, max %.1f%n",
+                    Histogram.mean(latency) / 1e3, getPercentile(0.5) / 1e3, getPercentile(0.9) / 1e3, getPercentile(0.99) / 1e3,
+                    getPercentile(0.999) / 1e3, getPercentile(0.9999) / 1e3, getPercentile(1.0) / 1e3));
+        }
+    }
+
+    /*
+     * Использование: LoadGenerator host:port (--pcap file | --generate suffix)
+     * [--qps N] [--inflight N] [--sockets N] [--duration s] [--count N] [--timeout ms]
+     */
+    public static void main(String[] args) throws Exception{
+        PrintStream out = System.out;
+        if (args.length < 3){
+            out.println("usage: LoadGenerator host:port (--pcap file | --generate suffix) [--qps N] [--inflight N]"
+                    + " [--sockets N] [--duration s] [--count N] [--timeout ms]");
+            return;
+        }
+        int colon = args[0].lastIndexOf(':');
+        InetSocketAddress target = new InetSocketAddress(args[0].substring(0, colon), Integer.parseInt(args[0].substring(colon + 1)));
+        Corpus corpus = args[1].equals("--pcap")
+                ? Corpus.fromPcap(Paths.get(args[2]), 53, 1000000)
+                : Corpus.generate(args[2], 100000, 1000000, 1);
+        LoadGenerator gen = new LoadGenerator(target, corpus);
+        for (int i = 3; i + 1 < args.length; i += 2){
+            long v = Long.parseLong(args[i + 1]);
+            switch (args[i]){
+                case "--qps": gen.setRate(v); break;
+                case "--inflight": gen.setInflight((int) v); break;
+                case "--sockets": gen.setSockets((int) v); break;
+                case "--duration": gen.setDuration(v, TimeUnit.SECONDS); break;
+                case "--count": gen.setCount(v); break;
+                case "--timeout": gen.setTimeout(v, TimeUnit.MILLISECONDS); break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        out.printf("%d queries in corpus, target %s%n", corpus.size(), target);
+        gen.run().print(out);
+    }
+}
@@ -0,0 +1,113 @@
+package ru.mainnika.libs.net.dns.load;
+
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import ru.mainnika.libs.net.dns.Dns;
+import ru.mainnika.libs.net.dns.server.Admission;
+import ru.mainnika.libs.net.dns.server.Handler;
+import ru.mainnika.libs.net.dns.server.Responses;
+import ru.mainnika.libs.net.dns.server.UdpServer;
+
+/**
+ * Перегрузка {@link UdpServer} на loopback с {@link Admission} и без него.
+ * Обработчик изображает медленный бэкенд: slots одновременных обращений по
+ * cost микросекунд, остальные ждут своей очереди, так что емкость сервера
+ * slots / cost запросов в секунду независимо от числа рабочих потоков.
+ * {@link LoadGenerator} дает открытую нагрузку в overload раз выше емкости.
+ *
+ * Без допуска лишние запросы копятся в буфере сокета и в очереди к
+ * бэкенду, и задержка растет до таймаута клиента. С допуском адаптивный
+ * предел опускается к числу слотов бэкенда, лишнее отсекается очередями и
+ * сроком, а задержка отвеченных запросов остается в пределах срока.
+ *
+ * @author MainNika
+ */
+public final class OverloadBench {
+
+    private final Semaphore backend;
+
+    private final long cost;
+
+    private OverloadBench(int slots, long cost){
+        this.backend = new Semaphore(slots);
+        this.cost = cost;
+    }
+
+    private Handler handler(){
+        return (request, client, udp) -> {
+            Dns response = Responses.reply(request);
+            backend.acquireUninterruptibly();
+            try{
+                long end = System.nanoTime() + cost;
+                for (long left = cost; left > 0; left = end - System.nanoTime())
+                    LockSupport.parkNanos(left);
+            }finally{
+                backend.release();
+            }
+            return response;
+        };
+    }
+
+    private void run(PrintStream out, String label, Admission admission, int threads, long rate, int seconds, Corpus corpus) throws Exception{
+        UdpServer server = new UdpServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), handler(), threads);
+        server.setAdmission(admission).start();
+        try{
+            out.printf("%n%s, %d qps offered%n", label, rate);
+            LoadGenerator.Result result = new LoadGenerator(server.getLocalAddress(), corpus)
+                    .setRate(rate)
+                    .setDuration(seconds, TimeUnit.SECONDS)
+                    .setTimeout(2, TimeUnit.SECONDS)
+                    .run();
+            result.print(out);
+            if (admission != null)
+                out.printf("admission: admitted %d, expired %d, limited %d, overflowed %d, limit %d%n",
+                        admission.getAdmitted(), admission.getExpired(), admission.getLimited(),
+                        admission.getOverflowed(), admission.getLimit());
+        }finally{
+            server.close();
+        }
+    }
+
+    /*
+     * Использование: OverloadBench [--cost us] [--slots N] [--threads N]
+     * [--overload x] [--deadline ms] [--duration s]
+     */
+    public static void main(String[] args) throws Exception{
+        PrintStream out = System.out;
+        if ((args.length % 2) != 0){
+            out.println("usage: OverloadBench [--cost us] [--slots N] [--threads N] [--overload x] [--deadline ms] [--duration s]");
+            return;
+        }
+        long cost = 1000;
+        int slots = 4;
+        int threads = 32;
+        double overload = 3.0;
+        long deadline = 100;
+        int duration = 10;
+        for (int i = 0; i + 1 < args.length; i += 2){
+            switch (args[i]){
+                case "--cost": cost = Long.parseLong(args[i + 1]); break;
+                case "--slots": slots = Integer.parseInt(args[i + 1]); break;
+                case "--threads": threads = Integer.parseInt(args[i + 1]); break;
+                case "--overload": overload = Double.parseDouble(args[i + 1]); break;
+                case "--deadline": deadline = Long.parseLong(args[i + 1]); break;
+                case "--duration": duration = Integer.parseInt(args[i + 1]); break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        long capacity = slots * 1000000L / cost;
+        long rate = (long) (capacity * overload);
+        Corpus corpus = Corpus.generate("overload.test", 1000, 10000, 1);
+        OverloadBench bench = new OverloadBench(slots, TimeUnit.MICROSECONDS.toNanos(cost));
+        out.printf("backend %d slots x %d us = %d qps, %d worker threads, deadline %d ms%n", slots, cost, capacity, threads, deadline);
+        bench.run(out, "without admission", null, threads, rate, duration, corpus);
+        Admission admission = new Admission()
+                .setDeadline(deadline, TimeUnit.MILLISECONDS)
+                .setLimits(1, threads);
+        bench.run(out, "with admission", admission, threads, rate, duration, corpus);
+    }
+}
@@ -0,0 +1,110 @@
+package ru.mainnika.libs.net.dns.load;
+
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import ru.mainnika.libs.net.dns.Rcode;
+import ru.mainnika.libs.net.dns.ResourceRecord;
+import ru.mainnika.libs.net.dns.Type;
+import ru.mainnika.libs.net.dns.Wire;
+import ru.mainnika.libs.net.dns.cache.RecordCache;
+import ru.mainnika.libs.net.dns.resolver.Resolver;
+
+/**
+ * Итеративное разрешение через локальную иерархию подставных серверов:
+ * корень, test., example.test. и other.test., каждая зона на своем адресе
+ * 127.0.0.N с общим портом, делегирования с клеем. В example.test. есть
+ * CNAME в other.test., так что проверяется и проход по цепочке через
+ * зоны.
+ *
+ * Для каждого режима (с минимизацией имени и без) печатает ответы и число
+ * запросов к каждому серверу: первое имя спускается от корня, следующие
+ * начинаются с закэшированного разреза example.test., и к корню и test.
+ * больше не обращаются.
+ *
+ * @author MainNika
+ */
+public final class ResolverBench {
+
+    private static final String SOA = "@ IN SOA ns hostmaster 1 3600 600 86400 300\n@ IN NS ns\n";
+
+    private ResolverBench(){
+    }
+
+    private static StubZone[] zones(int hosts) throws Exception{
+        StubZone root = new StubZone(".").add("@ IN SOA ns.root. hostmaster.root. 1 3600 600 86400 300\n"
+                + "@ IN NS ns.root.\nns.root. IN A 127.0.0.1\n"
+                + "test. IN NS ns.test.\nns.test. IN A 127.0.0.2\n");
+        StubZone test = new StubZone("test.").add(SOA + "ns IN A 127.0.0.2\n"
+                + "example IN NS ns.example\nns.example IN A 127.0.0.3\n"
+                + "other IN NS ns.other\nns.other IN A 127.0.0.4\n");
+        StringBuilder records = new StringBuilder(SOA + "ns IN A 127.0.0.3\nwww IN A 192.0.2.1\nalias IN CNAME www.other.test.\n");
+        for (int i = 0; i < hosts; i++)
+            records.append('h').append(i).append(" IN A 10.0.").append(i >> 8 & 0xff).append('.').append(i & 0xff).append('\n');
+        StubZone example = new StubZone("example.test.").add(records.toString());
+        StubZone other = new StubZone("other.test.").add(SOA + "ns IN A 127.0.0.4\nwww IN A 192.0.2.2\n");
+        return new StubZone[]{ root, test, example, other };
+    }
+
+    private static String counts(StubZone[] zones, long[] before){
+        StringBuilder ret = new StringBuilder();
+        for (int i = 0; i < zones.length; i++){
+            long n = zones[i].getQueries();
+            ret.append(' ').append(Wire.toString(zones[i].getOrigin())).append('=').append(n - before[i]);
+            before[i] = n;
+        }
+        return ret.toString();
+    }
+
+    private static void run(PrintStream out, boolean minimise, int hosts) throws Exception{
+        StubZone[] zones = zones(hosts);
+        List<DatagramChannel> channels = new ArrayList<>();
+        try{
+            DatagramChannel first = zones[0].serve(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+            channels.add(first);
+            int port = ((InetSocketAddress) first.getLocalAddress()).getPort();
+            for (int i = 1; i < zones.length; i++)
+                channels.add(zones[i].serve(new InetSocketAddress(InetAddress.getByName("127.0.0." + Integer.toString(i + 1)), port)));
+            Resolver resolver = new Resolver(new RecordCache(100000), List.of(InetAddress.getByName("127.0.0.1")))
+                    .setPort(port)
+                    .setQnameMinimisation(minimise);
+            long[] before = new long[zones.length];
+            out.printf("%nqname minimisation %s%n", minimise ? "on" : "off");
+            for (String name : new String[]{ "www.example.test.", "alias.example.test.", "nx.example.test." }){
+                Resolver.Resolution r = resolver.resolve(Wire.fromString(name), Type.A);
+                StringBuilder answers = new StringBuilder();
+                for (ResourceRecord rr : r.getAnswers()){
+                    String rdata = (rr.getType() == Type.CNAME)
+                            ? Wire.toString(rr.getRdata()) : InetAddress.getByAddress(rr.getRdata()).getHostAddress();
+                    answers.append(answers.length() > 0 ? ", " : "").append(Type.nameOf(rr.getType())).append(' ').append(rdata);
+                }
+                out.printf("%-20s %-8s [%s]  queries:%s%n", name, Rcode.nameOf(r.getRcode()), answers, counts(zones, before));
+            }
+            int failed = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < hosts; i++)
+                if (resolver.resolve(Wire.fromString("h" + Integer.toString(i) + ".example.test."), Type.A).getAnswers().isEmpty())
+                    failed++;
+            long nanos = System.nanoTime() - start;
+            out.printf("%d new names, %d failed, %.1f us each  queries:%s%n", hosts, failed, nanos / 1e3 / hosts, counts(zones, before));
+        }finally{
+            for (DatagramChannel channel : channels)
+                channel.close();
+        }
+    }
+
+    /* Использование: ResolverBench [--names N] */
+    public static void main(String[] args) throws Exception{
+        PrintStream out = System.out;
+        if ((args.length != 0) && ((args.length != 2) || !args[0].equals("--names"))){
+            out.println("usage: ResolverBench [--names N]");
+            return;
+        }
+        int hosts = (args.length == 2) ? Integer.parseInt(args[1]) : 1000;
+        run(out, false, hosts);
+        run(out, true, hosts);
+    }
+}
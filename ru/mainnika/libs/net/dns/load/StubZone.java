@@ -0,0 +1,473 @@
+package ru.mainnika.libs.net.dns.load;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import ru.mainnika.libs.net.dns.DnsException;
+import ru.mainnika.libs.net.dns.Message;
+import ru.mainnika.libs.net.dns.RRset;
+import ru.mainnika.libs.net.dns.Rcode;
+import ru.mainnika.libs.net.dns.ResourceRecord;
+import ru.mainnika.libs.net.dns.Type;
+import ru.mainnika.libs.net.dns.Wire;
+import ru.mainnika.libs.net.dns.dnssec.Signer;
+import ru.mainnika.libs.net.dns.zone.MasterFileParser;
+
+/**
+ * Авторитетная зона в памяти для стендов на loopback. Отвечает по UDP на
+ * вопросы к своим именам, отдает направления на делегированные зоны с
+ * клеем и, если подписана, RRSIG и доказательства отсутствия NSEC или
+ * NSEC3 (RFC 4035, раздел 3.1; RFC 5155, раздел 7.2). Записи задаются
+ * строками мастер-файла относительно origin, ключ - через {@link Signer}.
+ *
+ * Это подставной сервер, а не {@link ru.mainnika.libs.net.dns.server.ZoneHandler}:
+ * без wildcard и без TCP, ответ больше размера EDNS запроса уходит пустым
+ * с TC. Задержка и потеря ответов изображают медленные и ненадежные
+ * серверы.
+ *
+ * @author MainNika
+ */
+final class StubZone {
+
+    private static final long DEFAULT_TTL = 300;
+
+    private static final byte[] SALT = new byte[0];
+
+    private static final byte[] WILDCARD = { 1, '*' };
+
+    /* Имя и его наборы; подписи наборов по покрываемому типу */
+    private static final class Node {
+        final TreeMap<Integer, RRset> sets = new TreeMap<>();
+        final TreeMap<Integer, ResourceRecord> sigs = new TreeMap<>();
+    }
+
+    private final byte[] origin;
+
+    private final int originLabels;
+
+    /* Имена зоны в каноническом порядке, включая пустые промежуточные */
+    private final TreeMap<byte[], Node> names = new TreeMap<>(Wire::compareCanonical);
+
+    /* Владельцы цепочки NSEC */
+    private final TreeMap<byte[], Node> chain = new TreeMap<>(Wire::compareCanonical);
+
+    /* Записи NSEC3 по хэшу владельца */
+    private final TreeMap<byte[], Node> hashed = new TreeMap<>(Arrays::compareUnsigned);
+
+    private boolean nsec3;
+
+    private long delay;
+
+    private double loss;
+
+    private ScheduledExecutorService timer;
+
+    private final LongAdder queries = new LongAdder();
+
+    StubZone(String origin) throws DnsException{
+        this.origin = Wire.fromString(origin);
+        Wire.toLowerCase(this.origin, 0);
+        this.originLabels = Wire.labelCount(this.origin, 0);
+    }
+
+    byte[] getOrigin() {
+        return origin.clone();
+    }
+
+    /* Запросов, полученных сервером зоны */
+    long getQueries() {
+        return queries.sum();
+    }
+
+    /* Задержка каждого ответа */
+    StubZone setDelay(long delay, TimeUnit unit) {
+        this.delay = unit.toNanos(delay);
+        return this;
+    }
+
+    /* Доля запросов, оставленных без ответа, от 0 до 1 */
+    StubZone setLoss(double loss) {
+        this.loss = loss;
+        return this;
+    }
+
+    /* Записи в формате мастер-файла; имена относительно origin, TTL по умолчанию 300 */
+    StubZone add(String text) throws IOException, DnsException{
+        MasterFileParser parser = new MasterFileParser(new StringReader(text), origin).setDefaultTtl(DEFAULT_TTL);
+        for (ResourceRecord rr = parser.next(); rr != null; rr = parser.next())
+            add(rr);
+        return this;
+    }
+
+    /* Запись, собранная кодом: DS, DNSKEY и другие RDATA без текстового вида под рукой */
+    StubZone add(ResourceRecord rr) throws DnsException{
+        byte[] name = lower(rr.getName());
+        if (!Wire.isSubdomain(name, origin))
+            throw new DnsException("Out of zone " + Wire.toString(name));
+        Node node = node(name);
+        RRset set = node.sets.get(rr.getType());
+        if (set == null){
+            set = new RRset(name, rr.getType(), rr.getCl(), rr.getTtl());
+            node.sets.put(rr.getType(), set);
+        }
+        set.add(rr.getRdata(), rr.getTtl());
+        return this;
+    }
+
+    /* Узел имени; недостающие предки до origin появляются пустыми */
+    private Node node(byte[] name){
+        Node ret = names.get(name);
+        if (ret != null)
+            return ret;
+        ret = new Node();
+        names.put(name, ret);
+        if (Wire.labelCount(name, 0) > originLabels)
+            node(suffix(name, 1));
+        return ret;
+    }
+
+    private static byte[] lower(byte[] name){
+        byte[] ret = Wire.copyName(name, 0);
+        Wire.toLowerCase(ret, 0);
+        return ret;
+    }
+
+    private static byte[] suffix(byte[] name, int count){
+        int off = 0;
+        for (int i = 0; i < count; i++)
+            off = Wire.parent(name, off);
+        return Wire.copyName(name, off);
+    }
+
+    /* Верхний разрез зоны на пути от origin к имени, включая само имя; null - имя в зоне */
+    private byte[] cut(byte[] name){
+        for (int i = Wire.labelCount(name, 0) - originLabels - 1; i >= 0; i--){
+            byte[] candidate = suffix(name, i);
+            Node node = names.get(candidate);
+            if ((node != null) && node.sets.containsKey(Type.NS))
+                return candidate;
+        }
+        return null;
+    }
+
+    /* ———————————————————— Подпись —————————————————————— */
+
+    /*
+     * Подписывает зону: DNSKEY в вершине, цепочка NSEC или NSEC3 (SHA-1,
+     * без соли и без итераций, RFC 9276) и RRSIG на каждый авторитетный
+     * набор. NS делегирований и клей не подписываются. Записи после
+     * подписи не добавляются.
+     */
+    StubZone sign(Signer signer, boolean nsec3) throws DnsException{
+        this.nsec3 = nsec3;
+        add(new ResourceRecord(origin, Type.DNSKEY, Type.CLASS_IN, DEFAULT_TTL, signer.getDnskey()));
+        if (nsec3)
+            add(new ResourceRecord(origin, Type.NSEC3PARAM, Type.CLASS_IN, 0, new byte[]{ 1, 0, 0, 0, 0 }));
+        long ttl = minimum();
+        ArrayList<byte[]> owners = new ArrayList<>();
+        for (Map.Entry<byte[], Node> e : names.entrySet()){
+            byte[] cut = cut(e.getKey());
+            // клей под разрезом в цепочку не входит, пустые имена - только в NSEC3
+            if (((cut != null) && !Arrays.equals(cut, e.getKey())) || (!nsec3 && e.getValue().sets.isEmpty()))
+                continue;
+            owners.add(e.getKey());
+        }
+        if (!nsec3){
+            for (int i = 0; i < owners.size(); i++){
+                byte[] name = owners.get(i);
+                Node node = names.get(name);
+                RRset set = new RRset(name, Type.NSEC, Type.CLASS_IN, ttl);
+                set.add(Signer.nsec(owners.get((i + 1) % owners.size()), types(node, cut(name) != null, true)), ttl);
+                node.sets.put(Type.NSEC, set);
+                chain.put(name, node);
+            }
+        }else{
+            TreeMap<byte[], byte[]> hashes = new TreeMap<>(Arrays::compareUnsigned);
+            for (byte[] name : owners)
+                hashes.put(Signer.nsec3Hash(name, SALT, 0), name);
+            ArrayList<byte[]> order = new ArrayList<>(hashes.keySet());
+            for (int i = 0; i < order.size(); i++){
+                byte[] name = hashes.get(order.get(i));
+                byte[] owner = Signer.nsec3Owner(name, origin, SALT, 0);
+                RRset set = new RRset(owner, Type.NSEC3, Type.CLASS_IN, ttl);
+                set.add(Signer.nsec3(0, 0, SALT, order.get((i + 1) % order.size()), types(names.get(name), cut(name) != null, false)), ttl);
+                Node node = new Node();
+                node.sets.put(Type.NSEC3, set);
+                node.sigs.put(Type.NSEC3, signer.sign(set));
+                hashed.put(order.get(i), node);
+            }
+        }
+        for (Map.Entry<byte[], Node> e : names.entrySet()){
+            byte[] cut = cut(e.getKey());
+            boolean delegation = (cut != null) && Arrays.equals(cut, e.getKey());
+            if ((cut != null) && !delegation)
+                continue;
+            for (RRset set : e.getValue().sets.values())
+                if (!delegation || (set.getType() != Type.NS))
+                    e.getValue().sigs.put(set.getType(), signer.sign(set));
+        }
+        return this;
+    }
+
+    /* Типы имени для битовой карты; у делегирования только NS, DS и сама цепочка */
+    private static int[] types(Node node, boolean delegation, boolean nsec){
+        ArrayList<Integer> ret = new ArrayList<>();
+        for (int type : node.sets.keySet())
+            if (!delegation || (type == Type.NS) || (type == Type.DS))
+                ret.add(type);
+        if (nsec){
+            ret.add(Type.NSEC);
+            ret.add(Type.RRSIG);
+        }else if (!node.sets.isEmpty() && (!delegation || node.sets.containsKey(Type.DS))){
+            ret.add(Type.RRSIG);
+        }
+        return ret.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /* TTL отрицательных ответов: поле MINIMUM SOA (RFC 2308) */
+    private long minimum() throws DnsException{
+        Node apex = names.get(origin);
+        RRset soa = (apex != null) ? apex.sets.get(Type.SOA) : null;
+        if (soa == null)
+            throw new DnsException("No SOA at " + Wire.toString(origin));
+        byte[] rdata = soa.getRdataAt(0);
+        return Math.min(soa.getTtl(), Wire.u32(rdata, rdata.length - 4));
+    }
+
+    /* ———————————————————— Ответы —————————————————————— */
+
+    /* Ответ на запрос в формате DNS без сжатия */
+    byte[] respond(Message q){
+        queries.increment();
+        byte[] qname = q.getQname();
+        int qtype = q.getQtype();
+        ArrayList<ResourceRecord> an = new ArrayList<>();
+        ArrayList<ResourceRecord> ns = new ArrayList<>();
+        ArrayList<ResourceRecord> ar = new ArrayList<>();
+        int rcode = Rcode.NOERROR;
+        boolean aa = false;
+        if ((qname == null) || !Wire.isSubdomain(qname, origin)){
+            rcode = Rcode.REFUSED;
+        }else{
+            byte[] cut = cut(qname);
+            // DS отвечает родительская сторона разреза
+            if ((cut != null) && !((qtype == Type.DS) && Arrays.equals(cut, qname))){
+                referral(cut, ns, ar);
+            }else{
+                aa = true;
+                rcode = answer(qname, qtype, an, ns);
+            }
+        }
+        return encode(q, rcode, aa, an, ns, ar);
+    }
+
+    private int answer(byte[] qname, int qtype, List<ResourceRecord> an, List<ResourceRecord> ns){
+        Node node = names.get(qname);
+        if (node == null){
+            byte[] encloser = suffix(qname, 1);
+            while (!names.containsKey(encloser))
+                encloser = suffix(encloser, 1);
+            soa(ns);
+            if (nsec3){
+                proof(ns, nsec3(encloser));
+                int depth = Wire.labelCount(qname, 0) - Wire.labelCount(encloser, 0) - 1;
+                proof(ns, nsec3(suffix(qname, depth)));
+            }else{
+                proof(ns, nsec(qname));
+            }
+            byte[] wildcard = wildcard(encloser);
+            proof(ns, nsec3 ? nsec3(wildcard) : nsec(wildcard));
+            return Rcode.NXDOMAIN;
+        }
+        if (node.sets.containsKey(qtype)){
+            put(an, node, qtype);
+        }else if (node.sets.containsKey(Type.CNAME)){
+            put(an, node, Type.CNAME);
+        }else{
+            soa(ns);
+            proof(ns, nsec3 ? nsec3(qname) : nsec(qname));
+        }
+        return Rcode.NOERROR;
+    }
+
+    private void referral(byte[] cut, List<ResourceRecord> ns, List<ResourceRecord> ar){
+        Node node = names.get(cut);
+        put(ns, node, Type.NS);
+        if (node.sets.containsKey(Type.DS))
+            put(ns, node, Type.DS);
+        else
+            proof(ns, nsec3 ? nsec3(cut) : nsec(cut));
+        RRset servers = node.sets.get(Type.NS);
+        for (int i = 0; i < servers.size(); i++){
+            Node glue = names.get(servers.getRdataAt(i));
+            if ((glue == null) || !Wire.isSubdomain(servers.getRdataAt(i), origin))
+                continue;
+            put(ar, glue, Type.A);
+            put(ar, glue, Type.AAAA);
+        }
+    }
+
+    private void soa(List<ResourceRecord> ns){
+        put(ns, names.get(origin), Type.SOA);
+    }
+
+    /* NSEC владельца имени или предшествующего ему по кругу; null без подписи */
+    private Node nsec(byte[] name){
+        if (chain.isEmpty())
+            return null;
+        Map.Entry<byte[], Node> e = chain.floorEntry(name);
+        return ((e != null) ? e : chain.lastEntry()).getValue();
+    }
+
+    /* NSEC3 с хэшем имени или покрывающий его по кругу; null без подписи */
+    private Node nsec3(byte[] name){
+        if (hashed.isEmpty())
+            return null;
+        Map.Entry<byte[], Node> e = hashed.floorEntry(Signer.nsec3Hash(name, SALT, 0));
+        return ((e != null) ? e : hashed.lastEntry()).getValue();
+    }
+
+    private static byte[] wildcard(byte[] name){
+        try{
+            return Wire.concat(WILDCARD, 0, WILDCARD.length, name, 0);
+        }catch(DnsException e){
+            // имя на пределе длины: wildcard под ним невозможен
+            return name;
+        }
+    }
+
+    /* Запись NSEC или NSEC3 с подписью, если ее еще нет в секции */
+    private static void proof(List<ResourceRecord> ns, Node node){
+        if (node == null)
+            return;
+        int type = node.sets.containsKey(Type.NSEC3) ? Type.NSEC3 : Type.NSEC;
+        byte[] owner = node.sets.get(type).getName();
+        for (ResourceRecord rr : ns)
+            if ((rr.getType() == type) && Arrays.equals(rr.getName(), owner))
+                return;
+        put(ns, node, type);
+    }
+
+    private static void put(List<ResourceRecord> section, Node node, int type){
+        RRset set = node.sets.get(type);
+        if (set == null)
+            return;
+        for (int i = 0; i < set.size(); i++)
+            section.add(new ResourceRecord(set.getName(), type, set.getCl(), set.getTtl(), set.getRdataAt(i)));
+        ResourceRecord sig = node.sigs.get(type);
+        if (sig != null)
+            section.add(sig);
+    }
+
+    private static byte[] encode(Message q, int rcode, boolean aa, List<ResourceRecord> an, List<ResourceRecord> ns,
+            List<ResourceRecord> ar){
+        byte[] qname = (q.getQname() != null) ? q.getQname() : new byte[1];
+        int question = (q.getQname() != null) ? 1 : 0;
+        int edns = (q.getUdpSize() > 0) ? 11 : 0;
+        int max = Math.max(512, q.getUdpSize());
+        int size = 12 + question * (qname.length + 4) + edns;
+        for (List<ResourceRecord> section : List.of(an, ns, ar))
+            for (ResourceRecord rr : section)
+                size += rr.getSize();
+        boolean tc = size > max;
+        if (tc){
+            an = ns = ar = List.of();
+            size = 12 + question * (qname.length + 4) + edns;
+        }
+        byte[] ret = new byte[size];
+        byte[] raw = q.getRaw();
+        ret[0] = raw[0];
+        ret[1] = raw[1];
+        ret[2] = (byte) (0x80 | (raw[2] & 0x79) | (aa ? 0x04 : 0) | (tc ? 0x02 : 0));
+        ret[3] = (byte) rcode;
+        Wire.put16(ret, 4, question);
+        Wire.put16(ret, 6, an.size());
+        Wire.put16(ret, 8, ns.size());
+        Wire.put16(ret, 10, ar.size() + ((edns > 0) ? 1 : 0));
+        int off = 12;
+        if (question > 0){
+            System.arraycopy(qname, 0, ret, off, qname.length);
+            off += qname.length;
+            Wire.put16(ret, off, q.getQtype());
+            Wire.put16(ret, off + 2, q.getQclass());
+            off += 4;
+        }
+        for (List<ResourceRecord> section : List.of(an, ns, ar))
+            for (ResourceRecord rr : section)
+                off = rr.writeTo(ret, off);
+        if (edns > 0){
+            Wire.put16(ret, off + 1, Type.OPT);
+            Wire.put16(ret, off + 3, Math.min(max, 1232));
+            Wire.put32(ret, off + 5, q.isDnssecOk() ? 0x8000 : 0);
+        }
+        return ret;
+    }
+
+    /* ———————————————————— Сервер —————————————————————— */
+
+    /* Отвечает на запросы по UDP в потоке-демоне, пока канал не закрыт */
+    DatagramChannel serve(InetSocketAddress bind) throws IOException{
+        DatagramChannel channel = DatagramChannel.open().bind(bind);
+        Thread thread = new Thread(() -> loop(channel), "dns-stub-" + Wire.toString(origin));
+        thread.setDaemon(true);
+        thread.start();
+        return channel;
+    }
+
+    private void loop(DatagramChannel channel){
+        ByteBuffer in = ByteBuffer.allocate(65535);
+        while (channel.isOpen()){
+            byte[] out;
+            SocketAddress client;
+            try{
+                in.clear();
+                client = channel.receive(in);
+                Message q = Message.parse(Arrays.copyOf(in.array(), in.position()));
+                if (q.isResponse() || ((loss > 0) && (ThreadLocalRandom.current().nextDouble() < loss)))
+                    continue;
+                out = respond(q);
+            }catch(DnsException e){
+                continue;
+            }catch(IOException e){
+                return;
+            }
+            if (delay > 0){
+                timer().schedule(() -> send(channel, out, client), delay, TimeUnit.NANOSECONDS);
+            }else{
+                send(channel, out, client);
+            }
+        }
+    }
+
+    private synchronized ScheduledExecutorService timer(){
+        if (timer == null){
+            timer = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread thread = new Thread(r, "dns-stub-delay");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return timer;
+    }
+
+    private static void send(DatagramChannel channel, byte[] out, SocketAddress client){
+        try{
+            channel.send(ByteBuffer.wrap(out), client);
+        }catch(IOException e){
+            // канал закрыт
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package ru.mainnika.libs.net.dns.load;
+
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.List;
+import ru.mainnika.libs.net.dns.Message;
+import ru.mainnika.libs.net.dns.Rcode;
+import ru.mainnika.libs.net.dns.ResourceRecord;
+import ru.mainnika.libs.net.dns.Type;
+import ru.mainnika.libs.net.dns.Wire;
+import ru.mainnika.libs.net.dns.cache.RecordCache;
+import ru.mainnika.libs.net.dns.dnssec.Keys;
+import ru.mainnika.libs.net.dns.dnssec.Signer;
+import ru.mainnika.libs.net.dns.dnssec.Validator;
+import ru.mainnika.libs.net.dns.resolver.Resolver;
+
+/**
+ * Проверка цепочки доверия на локально подписанной иерархии. Корень
+ * подписан ECDSA P-256, test. - RSA 2048, example.test. - Ed25519 с NSEC3;
+ * ключи создаются при запуске, якорь - DNSKEY корня. Каждая зона
+ * отдается {@link StubZone} на своем адресе 127.0.0.N с общим портом.
+ * Рядом делегированы bad.test. с DS от чужого ключа и plain.test. без DS.
+ *
+ * Печатает итог проверки ответов и отрицательного ответа, затем время
+ * проверки с пустым кэшем {@link Validator} (ключи и DS запрашиваются и
+ * проверяются заново) и с прогретым: повторная проверка того же ответа не
+ * должна проверять ни одной подписи.
+ *
+ * @author MainNika
+ */
+public final class ValidatorBench {
+
+    private static final String SOA = "@ IN SOA ns hostmaster 1 3600 600 86400 300\n@ IN NS ns\n";
+
+    private ValidatorBench(){
+    }
+
+    private static KeyPair keys(String algorithm) throws Exception{
+        KeyPairGenerator generator = KeyPairGenerator.getInstance(algorithm);
+        if (algorithm.equals("EC"))
+            generator.initialize(new ECGenParameterSpec("secp256r1"));
+        else if (algorithm.equals("RSA"))
+            generator.initialize(2048);
+        return generator.generateKeyPair();
+    }
+
+    private static Signer signer(String zone, KeyPair pair, int algorithm) throws Exception{
+        byte[] dnskey = Keys.dnskey(pair.getPublic(), Keys.FLAG_ZONE | Keys.FLAG_SEP, algorithm);
+        return new Signer(Wire.fromString(zone), dnskey, pair.getPrivate());
+    }
+
+    /* Делегирование child в parent: NS, клей и DS, если ключ ребенка задан */
+    private static void delegate(StubZone parent, String child, String address, Signer signer) throws Exception{
+        parent.add(child + " IN NS ns." + child + "\nns." + child + " IN A " + address + "\n");
+        if (signer != null){
+            byte[] owner = Wire.fromString(child);
+            parent.add(new ResourceRecord(owner, Type.DS, Type.CLASS_IN, 300, Keys.ds(owner, signer.getDnskey(), Keys.DIGEST_SHA256)));
+        }
+    }
+
+    private static void check(PrintStream out, Resolver resolver, Validator validator, String name, int type) throws Exception{
+        Message m = resolver.query(Wire.fromString(name), type);
+        out.printf("%-22s %-5s %-9s %s%n", name, Type.nameOf(type), Rcode.nameOf(m.getRcode()), validator.validate(m));
+    }
+
+    /* Использование: ValidatorBench [--iterations N] */
+    public static void main(String[] args) throws Exception{
+        PrintStream out = System.out;
+        if ((args.length != 0) && ((args.length != 2) || !args[0].equals("--iterations"))){
+            out.println("usage: ValidatorBench [--iterations N]");
+            return;
+        }
+        int iterations = (args.length == 2) ? Integer.parseInt(args[1]) : 10000;
+
+        Signer root = signer(".", keys("EC"), Keys.ECDSAP256SHA256);
+        Signer test = signer("test.", keys("RSA"), Keys.RSASHA256);
+        Signer example = signer("example.test.", keys("Ed25519"), Keys.ED25519);
+        Signer bad = signer("bad.test.", keys("EC"), Keys.ECDSAP256SHA256);
+        Signer stranger = signer("bad.test.", keys("EC"), Keys.ECDSAP256SHA256);
+
+        StubZone rootZone = new StubZone(".").add("@ IN SOA ns.root. hostmaster.root. 1 3600 600 86400 300\n"
+                + "@ IN NS ns.root.\nns.root. IN A 127.0.0.1\n");
+        delegate(rootZone, "test.", "127.0.0.2", test);
+        StubZone testZone = new StubZone("test.").add(SOA + "ns IN A 127.0.0.2\n");
+        delegate(testZone, "example.test.", "127.0.0.3", example);
+        delegate(testZone, "bad.test.", "127.0.0.4", stranger);
+        delegate(testZone, "plain.test.", "127.0.0.5", null);
+        StubZone exampleZone = new StubZone("example.test.").add(SOA + "ns IN A 127.0.0.3\nwww IN A 192.0.2.1\n");
+        StubZone badZone = new StubZone("bad.test.").add(SOA + "ns IN A 127.0.0.4\nwww IN A 192.0.2.2\n");
+        StubZone plainZone = new StubZone("plain.test.").add(SOA + "ns IN A 127.0.0.5\nwww IN A 192.0.2.3\n");
+        rootZone.sign(root, false);
+        testZone.sign(test, false);
+        exampleZone.sign(example, true);
+        badZone.sign(bad, false);
+
+        List<DatagramChannel> channels = new ArrayList<>();
+        try{
+            DatagramChannel first = rootZone.serve(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+            channels.add(first);
+            int port = ((InetSocketAddress) first.getLocalAddress()).getPort();
+            StubZone[] zones = { testZone, exampleZone, badZone, plainZone };
+            for (int i = 0; i < zones.length; i++)
+                channels.add(zones[i].serve(new InetSocketAddress(InetAddress.getByName("127.0.0." + Integer.toString(i + 2)), port)));
+
+            Resolver resolver = new Resolver(new RecordCache(100000), List.of(InetAddress.getByName("127.0.0.1")))
+                    .setPort(port)
+                    .setDnssec(true);
+            Validator validator = new Validator(resolver::query)
+                    .addTrustAnchor(new ResourceRecord(Wire.ROOT, Type.DNSKEY, Type.CLASS_IN, 300, root.getDnskey()));
+            check(out, resolver, validator, "www.example.test.", Type.A);
+            check(out, resolver, validator, "nx.example.test.", Type.A);
+            check(out, resolver, validator, "www.example.test.", Type.MX);
+            check(out, resolver, validator, "www.bad.test.", Type.A);
+            check(out, resolver, validator, "www.plain.test.", Type.A);
+
+            Message answer = resolver.query(Wire.fromString("www.example.test."), Type.A);
+            int cold = Math.max(1, iterations / 100);
+            long verifications = validator.getVerifications();
+            long start = System.nanoTime();
+            for (int i = 0; i < cold; i++){
+                validator.clear();
+                validator.validate(answer);
+            }
+            long nanos = System.nanoTime() - start;
+            out.printf("cold cache: %d validations, %.1f signatures and %.1f us each%n", cold,
+                    (double) (validator.getVerifications() - verifications) / cold, nanos / 1e3 / cold);
+            verifications = validator.getVerifications();
+            long hits = validator.getCacheHits();
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+                validator.validate(answer);
+            nanos = System.nanoTime() - start;
+            out.printf("warm cache: %d validations, %d signatures checked, %d cache hits, %.2f us each%n", iterations,
+                    validator.getVerifications() - verifications, validator.getCacheHits() - hits, nanos / 1e3 / iterations);
+        }finally{
+            for (DatagramChannel channel : channels)
+                channel.close();
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package ru.mainnika.libs.net.dns.log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Двоичный журнал запросов и ответов. Записи добавляются в сегмент,
+ * отображенный в память, без создания объектов и без блокировок: место под
+ * запись резервируется атомарным сдвигом позиции, длина записи пишется
+ * последней и служит признаком готовности. При заполнении сегмента
+ * создается следующий файл.
+ *
+ * Формат сегмента (big-endian): заголовок 64 байта (магия, версия, время
+ * создания), затем записи, выровненные на 8 байт. Запись: длина записи
+ * (u32), тип (u8), длина адреса (u8), порт (u16), время в наносекундах от
+ * эпохи (u64), адрес (16 байт), сообщение DNS. Нулевая длина - конец
+ * записанной части.
+ *
+ * @author MainNika
+ */
+public final class QueryLog implements Closeable {
+
+    /* Типы записей */
+    public static final int CLIENT_QUERY = 1;
+    public static final int CLIENT_RESPONSE = 2;
+    public static final int UPSTREAM_QUERY = 3;
+    public static final int UPSTREAM_RESPONSE = 4;
+
+    static final byte[] MAGIC = { 'D', 'N', 'S', 'Q', 'L', 'O', 'G', 0 };
+
+    static final int VERSION = 1;
+
+    static final int HEADER = 64;
+
+    static final int ENTRY = 32;
+
+    static final String SUFFIX = ".qlog";
+
+    private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+    /* Байты адресов клиентов потока, чтобы не копировать адрес на каждую запись */
+    private static final ThreadLocal<Address> ADDRESS = ThreadLocal.withInitial(Address::new);
+
+    private final Path dir;
+
+    private final String prefix;
+
+    private final int segmentSize;
+
+    private volatile Segment current;
+
+    private volatile boolean closed;
+
+    private int sequence;
+
+    private final LongAdder written = new LongAdder();
+
+    private final LongAdder dropped = new LongAdder();
+
+    /* Часы: стенное время на момент создания плюс монотонное смещение */
+    private final long wallBase = System.currentTimeMillis() * 1000000L;
+
+    private final long nanoBase = System.nanoTime();
+
+    public QueryLog(Path dir, String prefix, int segmentSize) throws IOException{
+        if ((segmentSize <= HEADER + ENTRY) || (segmentSize > (1 << 30)))
+            throw new IllegalArgumentException("Segment size out of range");
+        this.dir = dir;
+        this.prefix = prefix;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(dir);
+        List<Path> existing = QueryLogReader.segments(dir, prefix);
+        if (!existing.isEmpty())
+            sequence = sequenceOf(existing.get(existing.size() - 1), prefix) + 1;
+        current = create();
+    }
+
+    static int sequenceOf(Path file, String prefix){
+        String name = file.getFileName().toString();
+        return Integer.parseInt(name.substring(prefix.length() + 1, name.length() - SUFFIX.length()));
+    }
+
+    private Segment create() throws IOException{
+        Path file = dir.resolve(String.format("%s-%08d%s", prefix, sequence++, SUFFIX));
+        MappedByteBuffer buf;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)){
+            buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+        buf.put(0, MAGIC);
+        buf.putInt(8, VERSION);
+        buf.putLong(16, now());
+        return new Segment(file, buf);
+    }
+
+    private long now(){
+        return wallBase + (System.nanoTime() - nanoBase);
+    }
+
+    /* Переходит на новый сегмент, если seg все еще текущий */
+    private synchronized void rotate(Segment seg) throws IOException{
+        if (current == seg)
+            current = create();
+    }
+
+    /* Записывает сообщение msg[off, off+len); addr - 4 или 16 байт адреса или null */
+    public void log(int kind, byte[] addr, int port, byte[] msg, int off, int len) throws IOException{
+        int size = size(len);
+        if (size < 0)
+            return;
+        while (true){
+            Segment seg = current;
+            int pos = seg.position.getAndAdd(size);
+            if (pos + size <= segmentSize){
+                seg.buf.put(pos + ENTRY, msg, off, len);
+                commit(seg.buf, pos, kind, addr, port, len);
+                return;
+            }
+            rotate(seg);
+        }
+    }
+
+    /* Записывает сообщение из буфера от position до limit, позиция буфера не меняется */
+    public void log(int kind, byte[] addr, int port, ByteBuffer msg) throws IOException{
+        int len = msg.remaining();
+        int size = size(len);
+        if (size < 0)
+            return;
+        while (true){
+            Segment seg = current;
+            int pos = seg.position.getAndAdd(size);
+            if (pos + size <= segmentSize){
+                seg.buf.put(pos + ENTRY, msg, msg.position(), len);
+                commit(seg.buf, pos, kind, addr, port, len);
+                return;
+            }
+            rotate(seg);
+        }
+    }
+
+    /* Вариант с адресом сокета; байты адреса берутся из буфера потока */
+    public void log(int kind, InetSocketAddress client, byte[] msg, int off, int len) throws IOException{
+        log(kind, (client == null) ? null : ADDRESS.get().of(client.getAddress()), (client == null) ? 0 : client.getPort(), msg, off, len);
+    }
+
+    public void log(int kind, InetSocketAddress client, ByteBuffer msg) throws IOException{
+        log(kind, (client == null) ? null : ADDRESS.get().of(client.getAddress()), (client == null) ? 0 : client.getPort(), msg);
+    }
+
+    /* Место под запись с выравниванием или -1, если запись не влезет в сегмент или журнал закрыт */
+    private int size(int len){
+        int size = (ENTRY + len + 7) & ~7;
+        if (closed || (size > segmentSize - HEADER)){
+            dropped.increment();
+            return -1;
+        }
+        return size;
+    }
+
+    private void commit(MappedByteBuffer buf, int pos, int kind, byte[] addr, int port, int len){
+        buf.put(pos + 4, (byte) kind);
+        buf.put(pos + 5, (byte) ((addr == null) ? 0 : addr.length));
+        buf.putShort(pos + 6, (short) port);
+        buf.putLong(pos + 8, now());
+        if (addr != null)
+            buf.put(pos + 16, addr, 0, Math.min(addr.length, 16));
+        INT.setRelease(buf, pos, ENTRY + len);
+        written.increment();
+    }
+
+    /* Сбрасывает текущий сегмент на диск */
+    public void flush(){
+        current.buf.force();
+    }
+
+    public long getWritten() {
+        return written.sum();
+    }
+
+    /* Записи, не поместившиеся бы даже в пустой сегмент, и записи после закрытия */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public Path getCurrentSegment() {
+        return current.file;
+    }
+
+    /* Последующие записи не пишутся, а учитываются в {@link #getDropped()} */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        flush();
+    }
+
+    /*
+     * Байты адреса без копирования: IPv4 берется из hashCode, который у
+     * Inet4Address равен самому адресу; IPv6 копируется getAddress только
+     * при смене адреса, а канал отдает один и тот же объект для
+     * повторяющегося отправителя.
+     */
+    private static final class Address {
+
+        private final byte[] ipv4 = new byte[4];
+
+        private InetAddress last;
+
+        private byte[] ipv6;
+
+        private byte[] of(InetAddress addr){
+            if (addr instanceof Inet4Address){
+                int v = addr.hashCode();
+                ipv4[0] = (byte) (v >>> 24);
+                ipv4[1] = (byte) (v >>> 16);
+                ipv4[2] = (byte) (v >>> 8);
+                ipv4[3] = (byte) v;
+                return ipv4;
+            }
+            if (addr != last){
+                last = addr;
+                ipv6 = addr.getAddress();
+            }
+            return ipv6;
+        }
+    }
+
+    private static final class Segment {
+
+        private final Path file;
+
+        private final MappedByteBuffer buf;
+
+        private final AtomicInteger position = new AtomicInteger(HEADER);
+
+        private Segment(Path file, MappedByteBuffer buf){
+            this.file = file;
+            this.buf = buf;
+        }
+    }
+}
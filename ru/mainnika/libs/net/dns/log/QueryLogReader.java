@@ -0,0 +1,173 @@
+package ru.mainnika.libs.net.dns.log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import ru.mainnika.libs.net.dns.Dns;
+import ru.mainnika.libs.net.dns.DnsException;
+import ru.mainnika.libs.net.dns.text.ByteSink;
+import ru.mainnika.libs.net.dns.text.JsonFormat;
+import ru.mainnika.libs.net.dns.text.Presentation;
+
+/**
+ * Последовательное чтение сегмента журнала {@link QueryLog}. Сегмент,
+ * в который еще идет запись, читается до первой незавершенной записи;
+ * повторный вызов {@link #next()} после конца подхватит новые записи.
+ *
+ * @author MainNika
+ */
+public final class QueryLogReader {
+
+    private final MappedByteBuffer buf;
+
+    private int position = QueryLog.HEADER;
+
+    private int entry = -1;
+
+    private QueryLogReader(MappedByteBuffer buf) throws IOException{
+        this.buf = buf;
+        for (int i = 0; i < QueryLog.MAGIC.length; i++)
+            if (buf.get(i) != QueryLog.MAGIC[i])
+                throw new IOException("Not a query log segment");
+        if (buf.getInt(8) != QueryLog.VERSION)
+            throw new IOException("Unsupported query log version " + Integer.toString(buf.getInt(8)));
+    }
+
+    public static QueryLogReader open(Path segment) throws IOException{
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)){
+            return new QueryLogReader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /* Сегменты журнала с префиксом prefix в порядке записи */
+    public static List<Path> segments(Path dir, String prefix) throws IOException{
+        List<Path> ret = new ArrayList<>();
+        if (!Files.isDirectory(dir))
+            return ret;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, prefix + "-*" + QueryLog.SUFFIX)){
+            for (Path file : files)
+                ret.add(file);
+        }
+        ret.sort((a, b) -> Integer.compare(QueryLog.sequenceOf(a, prefix), QueryLog.sequenceOf(b, prefix)));
+        return ret;
+    }
+
+    /* Время создания сегмента в наносекундах от эпохи */
+    public long getCreated() {
+        return buf.getLong(16);
+    }
+
+    /* Переходит к следующей записи; false, если готовых записей больше нет */
+    public boolean next(){
+        int from = (entry < 0) ? position : entry + length();
+        if (from + QueryLog.ENTRY > buf.capacity())
+            return false;
+        int len = buf.getInt(from);
+        if ((len < QueryLog.ENTRY) || (from + len > buf.capacity()))
+            return false;
+        entry = from;
+        return true;
+    }
+
+    private int length(){
+        return (buf.getInt(entry) + 7) & ~7;
+    }
+
+    public int getKind() {
+        return buf.get(entry + 4);
+    }
+
+    public int getPort() {
+        return buf.getShort(entry + 6) & 0xffff;
+    }
+
+    public long getTime() {
+        return buf.getLong(entry + 8);
+    }
+
+    /* Адрес клиента или сервера, null если не записан */
+    public InetAddress getAddress() throws IOException{
+        int len = buf.get(entry + 5);
+        if (len == 0)
+            return null;
+        byte[] addr = new byte[len];
+        buf.get(entry + 16, addr);
+        return InetAddress.getByAddress(addr);
+    }
+
+    public InetSocketAddress getSocketAddress() throws IOException{
+        InetAddress addr = getAddress();
+        return (addr == null) ? null : new InetSocketAddress(addr, getPort());
+    }
+
+    public int getMessageLength() {
+        return buf.getInt(entry) - QueryLog.ENTRY;
+    }
+
+    /* Сообщение без копирования, только для чтения */
+    public ByteBuffer getMessageBuffer() {
+        return buf.slice(entry + QueryLog.ENTRY, getMessageLength());
+    }
+
+    public byte[] getMessage() {
+        byte[] ret = new byte[getMessageLength()];
+        buf.get(entry + QueryLog.ENTRY, ret);
+        return ret;
+    }
+
+    /* Разбирает сообщение текущей записи */
+    public Dns toDns() throws DnsException{
+        return new Dns().fromRaw(getMessage());
+    }
+
+    /*
+     * Использование: QueryLogReader dir prefix [--json]
+     * Печатает все записи журнала в stdout: сообщения как у dig или
+     * по строке JSON (RFC 8427) на сообщение.
+     */
+    public static void main(String[] args) throws Exception{
+        if (args.length < 2){
+            System.out.println("usage: QueryLogReader dir prefix [--json]");
+            return;
+        }
+        boolean json = (args.length > 2) && args[2].equals("--json");
+        Presentation text = json ? null : new Presentation();
+        JsonFormat format = json ? new JsonFormat() : null;
+        StringBuilder line = new StringBuilder(128);
+        long malformed = 0;
+        try (ByteSink out = new ByteSink(System.out)){
+            for (Path segment : segments(Paths.get(args[0]), args[1])){
+                QueryLogReader reader = open(segment);
+                while (reader.next()){
+                    try{
+                        if (json){
+                            format.write(reader.getMessageBuffer(), out);
+                            continue;
+                        }
+                        line.setLength(0);
+                        line.append(";; kind ").append(reader.getKind()).append(", time ").append(reader.getTime())
+                                .append(", peer ").append(reader.getSocketAddress()).append('\n');
+                        out.append(line);
+                        text.write(reader.getMessageBuffer(), out);
+                    }catch(DnsException e){
+                        // в тексте запись уже отмечена строкой ";; MALFORMED", в JSON Lines ее некуда вписать:
+                        // поврежденные записи считаются и итог уходит в stderr
+                        malformed++;
+                    }
+                }
+            }
+        }
+        if (malformed > 0)
+            System.err.println(malformed + " malformed records skipped");
+    }
+}
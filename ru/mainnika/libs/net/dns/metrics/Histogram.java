@@ -0,0 +1,118 @@
+package ru.mainnika.libs.net.dns.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Гистограмма задержек без блокировок. Корзины лог-линейные: 16 корзин на
+ * каждую степень двойки, относительная погрешность не хуже 6%. Счетчики
+ * разбиты на полосы по потокам, чтобы запись с разных ядер не делила одну
+ * кэш-линию.
+ *
+ * @author MainNika
+ */
+public final class Histogram {
+
+    /* Бит на подкорзину внутри степени двойки */
+    private static final int SUB_BITS = 4;
+
+    private static final int SUB = 1 << SUB_BITS;
+
+    /* Корзин на полосу: значения до 2^63 */
+    static final int BUCKETS = (64 - SUB_BITS + 1) * SUB;
+
+    private final AtomicLongArray[] stripes;
+
+    private final int mask;
+
+    public Histogram(){
+        int n = Integer.highestOneBit(Math.max(1, Math.min(16, Runtime.getRuntime().availableProcessors())));
+        stripes = new AtomicLongArray[n];
+        for (int i = 0; i < n; i++)
+            stripes[i] = new AtomicLongArray(BUCKETS);
+        mask = n - 1;
+    }
+
+    /* Номер корзины для значения */
+    static int bucket(long value){
+        if (value < SUB)
+            return (value < 0) ? 0 : (int) value;
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB - 1);
+        return (exp - SUB_BITS + 1) * SUB + sub;
+    }
+
+    /* Нижняя граница корзины */
+    static long lowerBound(int bucket){
+        if (bucket < SUB)
+            return bucket;
+        int exp = bucket / SUB + SUB_BITS - 1;
+        long sub = bucket % SUB;
+        return (1L << exp) | (sub << (exp - SUB_BITS));
+    }
+
+    /* Верхняя граница корзины (включительно) */
+    static long upperBound(int bucket){
+        return (bucket + 1 >= BUCKETS) ? Long.MAX_VALUE : lowerBound(bucket + 1) - 1;
+    }
+
+    public void record(long value){
+        stripes[(int) Thread.currentThread().getId() & mask].incrementAndGet(bucket(value));
+    }
+
+    /* Снимок счетчиков, сумма по полосам */
+    public long[] snapshot(){
+        long[] ret = new long[BUCKETS];
+        for (AtomicLongArray stripe : stripes)
+            for (int i = 0; i < BUCKETS; i++)
+                ret[i] += stripe.get(i);
+        return ret;
+    }
+
+    public void reset(){
+        for (AtomicLongArray stripe : stripes)
+            for (int i = 0; i < BUCKETS; i++)
+                stripe.set(i, 0);
+    }
+
+    /* Количество значений в снимке */
+    public static long count(long[] snapshot){
+        long ret = 0;
+        for (long c : snapshot)
+            ret += c;
+        return ret;
+    }
+
+    /* Процентиль по снимку, q от 0 до 1; верхняя граница корзины */
+    public static long percentile(long[] snapshot, double q){
+        long total = count(snapshot);
+        if (total == 0)
+            return 0;
+        long rank = (long) Math.ceil(q * total);
+        if (rank < 1)
+            rank = 1;
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++){
+            seen += snapshot[i];
+            if (seen >= rank)
+                return upperBound(i);
+        }
+        return upperBound(snapshot.length - 1);
+    }
+
+    /* Среднее по серединам корзин */
+    public static double mean(long[] snapshot){
+        long total = 0;
+        double sum = 0;
+        for (int i = 0; i < snapshot.length; i++){
+            if (snapshot[i] == 0)
+                continue;
+            total += snapshot[i];
+            sum += snapshot[i] * ((lowerBound(i) / 2.0) + (upperBound(i) / 2.0));
+        }
+        return (total == 0) ? 0 : sum / total;
+    }
+
+    public long percentile(double q){
+        return percentile(snapshot(), q);
+    }
+}
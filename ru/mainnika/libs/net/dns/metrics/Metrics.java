@@ -0,0 +1,319 @@
+package ru.mainnika.libs.net.dns.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import ru.mainnika.libs.net.dns.DnsException;
+import ru.mainnika.libs.net.dns.Rcode;
+import ru.mainnika.libs.net.dns.Type;
+
+/**
+ * Счетчики горячих путей разбора, сборки и обслуживания пакетов. Счетчики
+ * построены на {@link LongAdder}, задержки пишутся в {@link Histogram}.
+ * В выключенном состоянии горячий путь платит одним чтением статического
+ * флага {@link #enabled}: вызывающий код проверяет его до замера времени.
+ *
+ * @author MainNika
+ */
+public final class Metrics implements MetricsMXBean {
+
+    public static final String OBJECT_NAME = "ru.mainnika.libs.net.dns:type=Metrics";
+
+    /* Этапы, задержка которых измеряется */
+    public enum Stage {
+        DECODE, ENCODE, LOOKUP, FILTER, SERVE, UPSTREAM, QUEUE
+    }
+
+    /* Классы ошибок разбора */
+    public enum ParseError {
+        /** Пакет короче, чем требуют счетчики и длины */
+        TRUNCATED,
+        /** Недопустимая метка, сжатие или длина имени */
+        BAD_NAME,
+        /** Прочие ошибки формата */
+        MALFORMED;
+
+        /* Класс ошибки по типу исключения разборщика */
+        public static ParseError of(Throwable e){
+            switch (DnsException.kindOf(e)){
+                case TRUNCATED:
+                    return TRUNCATED;
+                case BAD_NAME:
+                    return BAD_NAME;
+                default:
+                    return MALFORMED;
+            }
+        }
+    }
+
+    /* Отдельные счетчики для типов до 256, остальные в последней ячейке */
+    private static final int QTYPES = 257;
+
+    /**
+     * Включен ли сбор; читается на горячем пути без синхронизации.
+     */
+    public static volatile boolean enabled;
+
+    private static final Metrics instance = new Metrics();
+
+    private final LongAdder decoded = new LongAdder();
+    private final LongAdder encoded = new LongAdder();
+    private final LongAdder bytesDecoded = new LongAdder();
+    private final LongAdder bytesEncoded = new LongAdder();
+    private final LongAdder compressionSaved = new LongAdder();
+    private final LongAdder[] errors = adders(ParseError.values().length);
+    private final LongAdder[] qtypes = adders(QTYPES);
+    private final LongAdder[] rcodes = adders(16);
+    private final Histogram[] latency;
+
+    private final ArrayList<ScheduledFuture<?>> exports = new ArrayList<>();
+
+    private ScheduledExecutorService scheduler;
+
+    private Metrics(){
+        latency = new Histogram[Stage.values().length];
+        for (int i = 0; i < latency.length; i++)
+            latency[i] = new Histogram();
+    }
+
+    private static LongAdder[] adders(int n){
+        LongAdder[] ret = new LongAdder[n];
+        for (int i = 0; i < n; i++)
+            ret[i] = new LongAdder();
+        return ret;
+    }
+
+    public static Metrics get(){
+        return instance;
+    }
+
+    public static boolean isEnabled(){
+        return enabled;
+    }
+
+    /* ———————————————————— Запись —————————————————————— */
+
+    /* Разобран пакет: размер, тип первого вопроса, код ответа, время */
+    public void decoded(int bytes, int qtype, int rcode, boolean response, long nanos){
+        decoded.increment();
+        bytesDecoded.add(bytes);
+        if (qtype >= 0)
+            qtypes[Math.min(qtype, QTYPES - 1)].increment();
+        if (response)
+            rcodes[rcode & 0xf].increment();
+        latency[Stage.DECODE.ordinal()].record(nanos);
+    }
+
+    /* Собран пакет: размер, экономия от сжатия имен, код ответа, время */
+    public void encoded(int bytes, int saved, int rcode, boolean response, long nanos){
+        encoded.increment();
+        bytesEncoded.add(bytes);
+        compressionSaved.add(saved);
+        if (response)
+            rcodes[rcode & 0xf].increment();
+        latency[Stage.ENCODE.ordinal()].record(nanos);
+    }
+
+    public void parseError(ParseError error){
+        errors[error.ordinal()].increment();
+    }
+
+    /* Класс ошибки по типу исключения разборщика */
+    public void parseError(Throwable e){
+        parseError(ParseError.of(e));
+    }
+
+    public void record(Stage stage, long nanos){
+        latency[stage.ordinal()].record(nanos);
+    }
+
+    public Histogram getHistogram(Stage stage){
+        return latency[stage.ordinal()];
+    }
+
+    /* ———————————————————— Чтение —————————————————————— */
+
+    @Override
+    public boolean isCollecting() {
+        return enabled;
+    }
+
+    @Override
+    public void setCollecting(boolean collecting) {
+        enabled = collecting;
+    }
+
+    @Override
+    public long getDecoded() {
+        return decoded.sum();
+    }
+
+    @Override
+    public long getEncoded() {
+        return encoded.sum();
+    }
+
+    @Override
+    public long getBytesDecoded() {
+        return bytesDecoded.sum();
+    }
+
+    @Override
+    public long getBytesEncoded() {
+        return bytesEncoded.sum();
+    }
+
+    @Override
+    public long getCompressionSaved() {
+        return compressionSaved.sum();
+    }
+
+    @Override
+    public Map<String, Long> getParseErrors() {
+        Map<String, Long> ret = new LinkedHashMap<>();
+        for (ParseError e : ParseError.values())
+            ret.put(e.name(), errors[e.ordinal()].sum());
+        return ret;
+    }
+
+    @Override
+    public Map<String, Long> getQtypes() {
+        Map<String, Long> ret = new LinkedHashMap<>();
+        for (int i = 0; i < QTYPES; i++){
+            long v = qtypes[i].sum();
+            if (v != 0)
+                ret.put((i == QTYPES - 1) ? "OTHER" : Type.nameOf(i), v);
+        }
+        return ret;
+    }
+
+    @Override
+    public Map<String, Long> getRcodes() {
+        Map<String, Long> ret = new LinkedHashMap<>();
+        for (int i = 0; i < rcodes.length; i++){
+            long v = rcodes[i].sum();
+            if (v != 0)
+                ret.put(Rcode.nameOf(i), v);
+        }
+        return ret;
+    }
+
+    @Override
+    public Map<String, Long> getLatencyP50() {
+        return percentiles(0.5);
+    }
+
+    @Override
+    public Map<String, Long> getLatencyP99() {
+        return percentiles(0.99);
+    }
+
+    @Override
+    public Map<String, Long> getLatencyP999() {
+        return percentiles(0.999);
+    }
+
+    private Map<String, Long> percentiles(double q){
+        Map<String, Long> ret = new LinkedHashMap<>();
+        for (Stage s : Stage.values())
+            ret.put(s.name(), latency[s.ordinal()].percentile(q));
+        return ret;
+    }
+
+    @Override
+    public void reset() {
+        decoded.reset();
+        encoded.reset();
+        bytesDecoded.reset();
+        bytesEncoded.reset();
+        compressionSaved.reset();
+        for (LongAdder a : errors)
+            a.reset();
+        for (LongAdder a : qtypes)
+            a.reset();
+        for (LongAdder a : rcodes)
+            a.reset();
+        for (Histogram h : latency)
+            h.reset();
+    }
+
+    /* Согласованный по времени снимок для экспорта */
+    public Snapshot snapshot(){
+        Snapshot ret = new Snapshot();
+        ret.time = System.currentTimeMillis();
+        ret.decoded = decoded.sum();
+        ret.encoded = encoded.sum();
+        ret.bytesDecoded = bytesDecoded.sum();
+        ret.bytesEncoded = bytesEncoded.sum();
+        ret.compressionSaved = compressionSaved.sum();
+        ret.errors = getParseErrors();
+        ret.qtypes = getQtypes();
+        ret.rcodes = getRcodes();
+        ret.latency = new LinkedHashMap<>();
+        for (Stage s : Stage.values())
+            ret.latency.put(s.name(), latency[s.ordinal()].snapshot());
+        return ret;
+    }
+
+    /* ———————————————————— Публикация —————————————————————— */
+
+    /* Регистрирует MXBean в платформенном MBeanServer */
+    public static void registerMBean() throws JMException{
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (!server.isRegistered(name))
+            server.registerMBean(instance, name);
+    }
+
+    /* Периодическая выгрузка снимков в экспортер из фонового потока */
+    public synchronized Metrics schedule(MetricsExporter exporter, long period, TimeUnit unit){
+        if (scheduler == null){
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "dns-metrics-export");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        exports.add(scheduler.scheduleAtFixedRate(() -> {
+            try{
+                exporter.export(snapshot());
+            }catch(Exception e){
+                // экспорт не должен останавливать расписание
+            }
+        }, period, period, unit));
+        return this;
+    }
+
+    /* Останавливает все выгрузки */
+    public synchronized void unschedule(){
+        for (ScheduledFuture<?> f : exports)
+            f.cancel(false);
+        exports.clear();
+    }
+
+    /**
+     * Снимок счетчиков. Гистограммы задержек в наносекундах, корзины
+     * описываются {@link Histogram}.
+     */
+    public static final class Snapshot {
+        public long time;
+        public long decoded;
+        public long encoded;
+        public long bytesDecoded;
+        public long bytesEncoded;
+        public long compressionSaved;
+        public Map<String, Long> errors;
+        public Map<String, Long> qtypes;
+        public Map<String, Long> rcodes;
+        public Map<String, long[]> latency;
+    }
+}
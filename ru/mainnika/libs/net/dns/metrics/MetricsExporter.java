@@ -0,0 +1,13 @@
+package ru.mainnika.libs.net.dns.metrics;
+
+import java.io.IOException;
+
+/**
+ * Получатель периодических снимков метрик.
+ *
+ * @author MainNika
+ */
+public interface MetricsExporter {
+
+    public void export(Metrics.Snapshot snapshot) throws IOException;
+}
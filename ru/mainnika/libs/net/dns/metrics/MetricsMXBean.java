@@ -0,0 +1,40 @@
+package ru.mainnika.libs.net.dns.metrics;
+
+import java.util.Map;
+
+/**
+ * Интерфейс управления метриками для JMX.
+ *
+ * @author MainNika
+ */
+public interface MetricsMXBean {
+
+    public boolean isCollecting();
+
+    public void setCollecting(boolean collecting);
+
+    public long getDecoded();
+
+    public long getEncoded();
+
+    public long getBytesDecoded();
+
+    public long getBytesEncoded();
+
+    public long getCompressionSaved();
+
+    public Map<String, Long> getParseErrors();
+
+    public Map<String, Long> getQtypes();
+
+    public Map<String, Long> getRcodes();
+
+    /* Задержки по этапам в наносекундах */
+    public Map<String, Long> getLatencyP50();
+
+    public Map<String, Long> getLatencyP99();
+
+    public Map<String, Long> getLatencyP999();
+
+    public void reset();
+}
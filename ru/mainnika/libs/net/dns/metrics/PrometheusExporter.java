@@ -0,0 +1,82 @@
+package ru.mainnika.libs.net.dns.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+
+/**
+ * Экспорт в текстовом формате Prometheus. Снимок пишется во временный файл
+ * и атомарно переименовывается, что подходит для textfile-коллектора.
+ *
+ * @author MainNika
+ */
+public final class PrometheusExporter implements MetricsExporter {
+
+    /* Границы корзин гистограмм в наносекундах */
+    private static final long[] BOUNDS = {
+        1000L, 2000L, 5000L, 10000L, 20000L, 50000L, 100000L, 200000L, 500000L,
+        1000000L, 2000000L, 5000000L, 10000000L, 50000000L, 100000000L, 500000000L, 1000000000L
+    };
+
+    private final Path file;
+
+    public PrometheusExporter(Path file){
+        this.file = file;
+    }
+
+    @Override
+    public void export(Metrics.Snapshot snapshot) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (Writer out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)){
+            format(snapshot, out);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /* Текстовое представление снимка */
+    public static void format(Metrics.Snapshot s, Appendable out) throws IOException{
+        counter(out, "dns_messages_decoded_total", s.decoded);
+        counter(out, "dns_messages_encoded_total", s.encoded);
+        counter(out, "dns_bytes_decoded_total", s.bytesDecoded);
+        counter(out, "dns_bytes_encoded_total", s.bytesEncoded);
+        counter(out, "dns_compression_saved_bytes_total", s.compressionSaved);
+        labeled(out, "dns_parse_errors_total", "class", s.errors);
+        labeled(out, "dns_qtype_total", "qtype", s.qtypes);
+        labeled(out, "dns_rcode_total", "rcode", s.rcodes);
+        out.append("# TYPE dns_stage_latency_seconds histogram\n");
+        for (Map.Entry<String, long[]> e : s.latency.entrySet()){
+            String stage = e.getKey().toLowerCase();
+            long[] buckets = e.getValue();
+            long total = Histogram.count(buckets);
+            for (long bound : BOUNDS){
+                long count = 0;
+                for (int i = 0; (i < buckets.length) && (Histogram.upperBound(i) <= bound); i++)
+                    count += buckets[i];
+                out.append("dns_stage_latency_seconds_bucket{stage=\"").append(stage).append("\",le=\"")
+                        .append(Double.toString(bound / 1e9)).append("\"} ").append(Long.toString(count)).append('\n');
+            }
+            out.append("dns_stage_latency_seconds_bucket{stage=\"").append(stage).append("\",le=\"+Inf\"} ")
+                    .append(Long.toString(total)).append('\n');
+            out.append("dns_stage_latency_seconds_sum{stage=\"").append(stage).append("\"} ")
+                    .append(Double.toString(Histogram.mean(buckets) * total / 1e9)).append('\n');
+            out.append("dns_stage_latency_seconds_count{stage=\"").append(stage).append("\"} ")
+                    .append(Long.toString(total)).append('\n');
+        }
+    }
+
+    private static void counter(Appendable out, String name, long value) throws IOException{
+        out.append("# TYPE ").append(name).append(" counter\n");
+        out.append(name).append(' ').append(Long.toString(value)).append('\n');
+    }
+
+    private static void labeled(Appendable out, String name, String label, Map<String, Long> values) throws IOException{
+        out.append("# TYPE ").append(name).append(" counter\n");
+        for (Map.Entry<String, Long> e : values.entrySet())
+            out.append(name).append('{').append(label).append("=\"").append(e.getKey()).append("\"} ")
+                    .append(Long.toString(e.getValue())).append('\n');
+    }
+}
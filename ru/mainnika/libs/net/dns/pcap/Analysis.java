@@ -0,0 +1,267 @@
+package ru.mainnika.libs.net.dns.pcap;
+
+import java.io.IOException;
+import java.time.Instant;
+import ru.mainnika.libs.net.dns.DnsException;
+import ru.mainnika.libs.net.dns.Rcode;
+import ru.mainnika.libs.net.dns.Type;
+import ru.mainnika.libs.net.dns.Wire;
+import ru.mainnika.libs.net.dns.metrics.Metrics;
+
+/**
+ * Агрегаты по части захвата. Объем не зависит от числа пакетов, части
+ * сливаются через {@link #merge(Analysis)}. Имена и типы вопросов считаются
+ * по запросам, коды ответа и размеры - по ответам.
+ *
+ * @author MainNika
+ */
+public final class Analysis {
+
+    /* Отдельные счетчики для типов до 256, остальные в последней ячейке */
+    private static final int QTYPES = 257;
+
+    /* Ширина корзины распределения размеров ответа */
+    private static final int SIZE_STEP = 32;
+
+    private static final int SIZES = 65536 / SIZE_STEP;
+
+    long packets;
+    long bytes;
+    long other;
+    long fragments;
+    long udp;
+    long tcp;
+    long queries;
+    long responses;
+    long truncatedFile;
+    long corrupt;
+    long misaligned;
+    final long[] malformed = new long[Metrics.ParseError.values().length];
+    final long[] qtypes = new long[QTYPES];
+    final long[] rcodes = new long[16];
+    final long[] sizes = new long[SIZES];
+    long firstTime = Long.MAX_VALUE;
+    long lastTime = Long.MIN_VALUE;
+    final TopNames names;
+
+    /* Границы обработанного диапазона файла, для проверки стыков частей */
+    long start;
+    long stop;
+
+    Analysis(int top){
+        names = new TopNames(top);
+    }
+
+    /* Учитывает пакет под курсором; msg и name - рабочие буферы вызывающего */
+    void add(PcapFile.Cursor cursor, int port, byte[] msg, byte[] name){
+        packets++;
+        bytes += cursor.getOriginal();
+        firstTime = Math.min(firstTime, cursor.getTime());
+        lastTime = Math.max(lastTime, cursor.getTime());
+        int off = cursor.payload();
+        if (off < 0){
+            if (cursor.isFragment())
+                fragments++;
+            else
+                other++;
+            return;
+        }
+        if ((cursor.getSourcePort() != port) && (cursor.getDestinationPort() != port)){
+            other++;
+            return;
+        }
+        if (cursor.getProtocol() == PcapFile.PROTO_UDP)
+            udp++;
+        else
+            tcp++;
+        int len = cursor.getPayloadLength();
+        System.arraycopy(cursor.getData(), off, msg, 0, len);
+        try{
+            message(msg, len, name);
+        }catch(DnsException e){
+            malformed[Metrics.ParseError.of(e).ordinal()]++;
+        }
+    }
+
+    private void message(byte[] msg, int len, byte[] name) throws DnsException{
+        if (len < 12)
+            throw new DnsException(DnsException.Kind.TRUNCATED, "Truncated header");
+        boolean response = (msg[2] & 0x80) != 0;
+        int opcode = (msg[2] & 0x78) >> 3;
+        int qd = Wire.u16(msg, 4);
+        int rr = Wire.u16(msg, 6) + Wire.u16(msg, 8) + Wire.u16(msg, 10);
+        if ((qd == 0) && (opcode == 0)){
+            malformed[Metrics.ParseError.MALFORMED.ordinal()]++;
+            return;
+        }
+        int off = 12;
+        int qtype = -1;
+        int nameLen = 0;
+        for (int i = 0; i < qd; i++){
+            if (i == 0){
+                nameLen = Wire.readName(msg, off, len, name, 0);
+                off = Wire.skipName(msg, off, len) + 4;
+                if (off > len)
+                    throw new DnsException(DnsException.Kind.TRUNCATED, "Truncated question");
+                qtype = Wire.u16(msg, off - 4);
+            }else{
+                off = Wire.skipName(msg, off, len) + 4;
+                if (off > len)
+                    throw new DnsException(DnsException.Kind.TRUNCATED, "Truncated question");
+            }
+        }
+        for (int i = 0; i < rr; i++){
+            off = Wire.skipName(msg, off, len) + 10;
+            if (off > len)
+                throw new DnsException(DnsException.Kind.TRUNCATED, "Truncated record");
+            off += Wire.u16(msg, off - 2);
+            if (off > len)
+                throw new DnsException(DnsException.Kind.TRUNCATED, "Truncated rdata");
+        }
+        if (response){
+            responses++;
+            rcodes[msg[3] & 0xf]++;
+            sizes[Math.min(len / SIZE_STEP, SIZES - 1)]++;
+        }else{
+            queries++;
+            if (qtype >= 0){
+                qtypes[Math.min(qtype, QTYPES - 1)]++;
+                Wire.toLowerCase(name, 0);
+                names.add(name, nameLen);
+            }
+        }
+    }
+
+    /* Сливает соседнюю часть, лежащую в файле сразу за этой */
+    void merge(Analysis next){
+        packets += next.packets;
+        bytes += next.bytes;
+        other += next.other;
+        fragments += next.fragments;
+        udp += next.udp;
+        tcp += next.tcp;
+        queries += next.queries;
+        responses += next.responses;
+        truncatedFile += next.truncatedFile;
+        corrupt += next.corrupt;
+        misaligned += next.misaligned + ((stop == next.start) ? 0 : 1);
+        for (int i = 0; i < malformed.length; i++)
+            malformed[i] += next.malformed[i];
+        for (int i = 0; i < QTYPES; i++)
+            qtypes[i] += next.qtypes[i];
+        for (int i = 0; i < rcodes.length; i++)
+            rcodes[i] += next.rcodes[i];
+        for (int i = 0; i < SIZES; i++)
+            sizes[i] += next.sizes[i];
+        firstTime = Math.min(firstTime, next.firstTime);
+        lastTime = Math.max(lastTime, next.lastTime);
+        names.merge(next.names);
+        stop = next.stop;
+    }
+
+    public long getPackets() {
+        return packets;
+    }
+
+    public long getQueries() {
+        return queries;
+    }
+
+    public long getResponses() {
+        return responses;
+    }
+
+    public long getMalformed(Metrics.ParseError error) {
+        return malformed[error.ordinal()];
+    }
+
+    /* Пакеты не DNS: другие порты, протоколы и канальные типы */
+    public long getOther() {
+        return other;
+    }
+
+    public long getFragments() {
+        return fragments;
+    }
+
+    public long getQtype(int qtype) {
+        return qtypes[Math.min(qtype, QTYPES - 1)];
+    }
+
+    public long getRcode(int rcode) {
+        return rcodes[rcode & 0xf];
+    }
+
+    /* Испорченные записи файла, пропущенные до следующего правдоподобного заголовка */
+    public long getCorrupt() {
+        return corrupt;
+    }
+
+    /* Части, стык которых не совпал при выравнивании; при 0 ни один пакет не потерян и не учтен дважды */
+    public long getMisaligned() {
+        return misaligned;
+    }
+
+    public TopNames getNames() {
+        return names;
+    }
+
+    /* Размер ответа, не меньше которого q-я доля ответов (с точностью до корзины) */
+    public int getResponseSize(double q){
+        long rank = Math.max(1, (long) Math.ceil(q * responses));
+        long seen = 0;
+        for (int i = 0; i < SIZES; i++){
+            seen += sizes[i];
+            if (seen >= rank)
+                return (i + 1) * SIZE_STEP - 1;
+        }
+        return 0;
+    }
+
+    /* Текстовый отчет */
+    public void print(Appendable out, int top) throws IOException{
+        out.append("packets ").append(Long.toString(packets)).append(", bytes ").append(Long.toString(bytes))
+                .append(", udp ").append(Long.toString(udp)).append(", tcp ").append(Long.toString(tcp))
+                .append(", other ").append(Long.toString(other)).append(", fragments ").append(Long.toString(fragments)).append('\n');
+        if (packets > 0){
+            double seconds = (lastTime - firstTime) / 1e9;
+            out.append("time ").append(Instant.ofEpochSecond(0, firstTime).toString()).append(" .. ")
+                    .append(Instant.ofEpochSecond(0, lastTime).toString())
+                    .append(String.format(" (%.1f s, %.1f qps)", seconds, (seconds > 0) ? queries / seconds : 0.0)).append('\n');
+        }
+        out.append("queries ").append(Long.toString(queries)).append(", responses ").append(Long.toString(responses)).append('\n');
+        out.append("malformed");
+        for (Metrics.ParseError e : Metrics.ParseError.values())
+            out.append(' ').append(e.name()).append('=').append(Long.toString(malformed[e.ordinal()]));
+        out.append('\n');
+        if (truncatedFile > 0)
+            out.append("capture ends in the middle of a record\n");
+        if (corrupt > 0)
+            out.append("warning: skipped ").append(Long.toString(corrupt)).append(" corrupt records\n");
+        if (misaligned > 0)
+            out.append("warning: ").append(Long.toString(misaligned)).append(" chunk boundaries did not align\n");
+        out.append("qtype\n");
+        for (int i = 0; i < QTYPES; i++)
+            if (qtypes[i] > 0)
+                share(out, (i == QTYPES - 1) ? "OTHER" : Type.nameOf(i), qtypes[i], queries);
+        out.append("rcode\n");
+        for (int i = 0; i < rcodes.length; i++)
+            if (rcodes[i] > 0)
+                share(out, Rcode.nameOf(i), rcodes[i], responses);
+        if (responses > 0)
+            out.append("response size p50 ").append(Integer.toString(getResponseSize(0.5)))
+                    .append(", p90 ").append(Integer.toString(getResponseSize(0.9)))
+                    .append(", p99 ").append(Integer.toString(getResponseSize(0.99)))
+                    .append(", max ").append(Integer.toString(getResponseSize(1.0))).append('\n');
+        out.append("top qnames");
+        if (names.getError() > 0)
+            out.append(" (counts may be high by up to ").append(Long.toString(names.getError())).append(')');
+        out.append('\n');
+        for (TopNames.Entry e : names.top(top))
+            share(out, e.name, e.count, queries);
+    }
+
+    private static void share(Appendable out, String name, long n, long total) throws IOException{
+        out.append(String.format("  %12d %6.2f%%  %s%n", n, (total > 0) ? 100.0 * n / total : 0.0, name));
+    }
+}
@@ -0,0 +1,135 @@
+package ru.mainnika.libs.net.dns.pcap;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import ru.mainnika.libs.net.dns.Wire;
+
+/**
+ * Параллельный разбор большого захвата. Файл делится на куски фиксированного
+ * размера, каждый кусок выравнивается на начало записи и разбирается своей
+ * задачей ForkJoinPool; агрегаты сливаются попарно при возврате задач.
+ * Разбор идет по байтам сообщения через {@link Wire}, без объектов Dns.
+ *
+ * @author MainNika
+ */
+public final class Analyzer {
+
+    private final Path file;
+
+    private long chunkSize = 64L << 20;
+
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
+    private int topSize = 10000;
+
+    private int port = 53;
+
+    public Analyzer(Path file){
+        this.file = file;
+    }
+
+    public Analyzer setChunkSize(long chunkSize) {
+        this.chunkSize = Math.max(PcapFile.RECORD, chunkSize);
+        return this;
+    }
+
+    public Analyzer setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+        return this;
+    }
+
+    /* Сколько имен удерживать для подсчета самых частых; больше - точнее */
+    public Analyzer setTopSize(int topSize) {
+        this.topSize = topSize;
+        return this;
+    }
+
+    public Analyzer setPort(int port) {
+        this.port = port;
+        return this;
+    }
+
+    public Analysis analyze() throws IOException{
+        try (PcapFile pcap = PcapFile.open(file)){
+            long chunks = Math.max(1, (pcap.getSize() + chunkSize - 1) / chunkSize);
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try{
+                return pool.invoke(new Task(pcap, 0, chunks));
+            }catch(UncheckedIOException e){
+                throw e.getCause();
+            }finally{
+                pool.shutdown();
+            }
+        }
+    }
+
+    private final class Task extends RecursiveTask<Analysis> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final PcapFile pcap;
+
+        private final long lo;
+
+        private final long hi;
+
+        private Task(PcapFile pcap, long lo, long hi){
+            this.pcap = pcap;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected Analysis compute() {
+            if (hi - lo > 1){
+                long mid = (lo + hi) >>> 1;
+                Task left = new Task(pcap, lo, mid);
+                left.fork();
+                Analysis right = new Task(pcap, mid, hi).compute();
+                Analysis ret = left.join();
+                ret.merge(right);
+                return ret;
+            }
+            try{
+                return chunk();
+            }catch(IOException e){
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private Analysis chunk() throws IOException{
+            Analysis ret = new Analysis(topSize);
+            long start = pcap.align(lo * chunkSize);
+            PcapFile.Cursor cursor = pcap.cursor(start, hi * chunkSize);
+            byte[] msg = new byte[65536];
+            byte[] name = new byte[Wire.MAX_NAME];
+            while (cursor.next())
+                ret.add(cursor, port, msg, name);
+            if (cursor.isTruncated())
+                ret.truncatedFile++;
+            ret.corrupt += cursor.getCorrupt();
+            ret.start = start;
+            ret.stop = Math.min(cursor.getNext(), pcap.getSize());
+            return ret;
+        }
+    }
+
+    /* Использование: Analyzer capture.pcap [число имен в отчете] */
+    public static void main(String[] args) throws IOException{
+        PrintStream out = System.out;
+        if (args.length < 1){
+            out.println("usage: Analyzer <capture.pcap> [top]");
+            return;
+        }
+        int top = (args.length > 1) ? Integer.parseInt(args[1]) : 20;
+        long t = System.nanoTime();
+        Analysis a = new Analyzer(Paths.get(args[0])).setTopSize(Math.max(10000, top * 10)).analyze();
+        a.print(out, top);
+        out.printf("analyzed in %d ms%n", (System.nanoTime() - t) / 1000000);
+    }
+}
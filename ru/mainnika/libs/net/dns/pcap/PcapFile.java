@@ -0,0 +1,424 @@
+package ru.mainnika.libs.net.dns.pcap;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Файл захвата в классическом формате pcap (микро- и наносекундный, любой
+ * порядок байт). Пакеты читаются курсорами через отображение файла в память
+ * окнами до 1 ГБ, поэтому размер файла не ограничен. Курсоры независимы и
+ * могут работать из разных потоков над разными диапазонами файла.
+ *
+ * @author MainNika
+ */
+public final class PcapFile implements Closeable {
+
+    public static final int LINKTYPE_NULL = 0;
+    public static final int LINKTYPE_ETHERNET = 1;
+    public static final int LINKTYPE_RAW = 101;
+    public static final int LINKTYPE_LOOP = 108;
+    public static final int LINKTYPE_LINUX_SLL = 113;
+    public static final int LINKTYPE_IPV4 = 228;
+    public static final int LINKTYPE_IPV6 = 229;
+    public static final int LINKTYPE_LINUX_SLL2 = 276;
+
+    public static final int PROTO_TCP = 6;
+    public static final int PROTO_UDP = 17;
+
+    /* Размер заголовка файла */
+    public static final int HEADER = 24;
+
+    /* Размер заголовка записи пакета */
+    public static final int RECORD = 16;
+
+    /* Предельный размер пакета, больше которого запись считается испорченной */
+    static final int MAX_PACKET = 262144;
+
+    /* Максимальный размер окна отображения */
+    private static final long WINDOW = 1L << 30;
+
+    /* Сколько подряд правдоподобных записей нужно для выравнивания */
+    private static final int ALIGN_DEPTH = 8;
+
+    private final FileChannel channel;
+
+    private final long size;
+
+    private final ByteOrder order;
+
+    private final boolean nanos;
+
+    private final int snaplen;
+
+    private final int linktype;
+
+    private PcapFile(FileChannel channel) throws IOException{
+        this.channel = channel;
+        this.size = channel.size();
+        ByteBuffer head = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+        if ((size < HEADER) || (channel.read(head, 0) < HEADER))
+            throw new IOException("Not a pcap file");
+        int magic = head.getInt(0);
+        if ((magic == 0xa1b2c3d4) || (magic == 0xa1b23c4d)){
+            order = ByteOrder.LITTLE_ENDIAN;
+        }else if ((magic == 0xd4c3b2a1) || (magic == 0x4d3cb2a1)){
+            order = ByteOrder.BIG_ENDIAN;
+            head.order(order);
+            magic = head.getInt(0);
+        }else if (magic == 0x0a0d0d0a){
+            throw new IOException("pcapng is not supported, convert with editcap -F pcap");
+        }else{
+            throw new IOException("Not a pcap file");
+        }
+        nanos = magic == 0xa1b23c4d;
+        snaplen = head.getInt(16);
+        linktype = head.getInt(20) & 0xffff;
+    }
+
+    public static PcapFile open(Path file) throws IOException{
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try{
+            return new PcapFile(channel);
+        }catch(IOException e){
+            channel.close();
+            throw e;
+        }
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public int getLinkType() {
+        return linktype;
+    }
+
+    public int getSnapLength() {
+        return snaplen;
+    }
+
+    public boolean isNanos() {
+        return nanos;
+    }
+
+    /* Курсор по всем пакетам файла */
+    public Cursor cursor(){
+        return new Cursor(HEADER, size);
+    }
+
+    /* Курсор по пакетам, записи которых начинаются в [start, end); start должен быть выровнен */
+    public Cursor cursor(long start, long end){
+        return new Cursor(Math.max(start, HEADER), Math.min(end, size));
+    }
+
+    /*
+     * Первое начало записи не раньше from. Формат не содержит маркеров, поэтому
+     * позиция подбирается по цепочке правдоподобных заголовков подряд.
+     */
+    public long align(long from) throws IOException{
+        if (from <= HEADER)
+            return HEADER;
+        ByteBuffer buf = ByteBuffer.allocate(RECORD).order(order);
+        for (long pos = from; pos < size; pos++)
+            if (plausible(buf, pos))
+                return pos;
+        return size;
+    }
+
+    private boolean plausible(ByteBuffer buf, long pos) throws IOException{
+        long first = -1;
+        for (int i = 0; i < ALIGN_DEPTH; i++){
+            if (pos == size)
+                return true;
+            if (pos + RECORD > size)
+                return false;
+            buf.clear();
+            if (channel.read(buf, pos) < RECORD)
+                return false;
+            long sec = buf.getInt(0) & 0xffffffffL;
+            long sub = buf.getInt(4) & 0xffffffffL;
+            long captured = buf.getInt(8) & 0xffffffffL;
+            long original = buf.getInt(12) & 0xffffffffL;
+            if (sub >= (nanos ? 1000000000L : 1000000L))
+                return false;
+            if ((captured > original) || (original > MAX_PACKET) || ((snaplen > 0) && (captured > snaplen)))
+                return false;
+            if (first < 0)
+                first = sec;
+            else if (Math.abs(sec - first) > 86400)
+                return false;
+            pos += RECORD + captured;
+        }
+        return pos <= size;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Последовательное чтение пакетов. Данные текущего пакета копируются в
+     * переиспользуемый буфер, поэтому чтение не создает объектов.
+     */
+    public final class Cursor {
+
+        private final long end;
+
+        private MappedByteBuffer window;
+
+        private long base;
+
+        private long position;
+
+        private long next;
+
+        private long time;
+
+        private int captured;
+
+        private int original;
+
+        private byte[] data = new byte[Math.max(65536, Math.min(snaplen, MAX_PACKET))];
+
+        private boolean truncated;
+
+        private long corrupt;
+
+        private int protocol;
+
+        private int sourcePort;
+
+        private int destinationPort;
+
+        private int payloadLength;
+
+        private boolean fragment;
+
+        private Cursor(long start, long end){
+            this.next = start;
+            this.end = end;
+        }
+
+        /* Переходит к следующему пакету; false в конце диапазона */
+        public boolean next() throws IOException{
+            long sec, sub, incl, orig;
+            while (true){
+                if (next >= end)
+                    return false;
+                if (next + RECORD > size){
+                    truncated = true;
+                    return false;
+                }
+                map(next, RECORD);
+                int off = (int) (next - base);
+                sec = window.getInt(off) & 0xffffffffL;
+                sub = window.getInt(off + 4) & 0xffffffffL;
+                incl = window.getInt(off + 8) & 0xffffffffL;
+                orig = window.getInt(off + 12) & 0xffffffffL;
+                if (incl <= MAX_PACKET)
+                    break;
+                // испорченная запись: учитывается и пропускается до следующего правдоподобного заголовка
+                corrupt++;
+                next = align(next + 1);
+            }
+            if (next + RECORD + incl > size){
+                truncated = true;
+                return false;
+            }
+            map(next, RECORD + (int) incl);
+            int off = (int) (next - base);
+            if (incl > data.length)
+                data = new byte[(int) incl];
+            window.get(off + RECORD, data, 0, (int) incl);
+            position = next;
+            next += RECORD + incl;
+            time = sec * 1000000000L + (nanos ? sub : sub * 1000L);
+            captured = (int) incl;
+            original = (int) Math.min(orig, Integer.MAX_VALUE);
+            protocol = 0;
+            return true;
+        }
+
+        /* Гарантирует, что [pos, pos+len) лежит в текущем окне */
+        private void map(long pos, int len) throws IOException{
+            if ((window != null) && (pos >= base) && (pos + len <= base + window.capacity()))
+                return;
+            long span = Math.min(WINDOW, size - pos);
+            window = channel.map(FileChannel.MapMode.READ_ONLY, pos, span);
+            window.order(order);
+            base = pos;
+        }
+
+        /*
+         * Разбирает заголовки канального, сетевого и транспортного уровней
+         * текущего пакета. Возвращает смещение полезной нагрузки UDP (для TCP -
+         * смещение сообщения DNS за 2-байтовой длиной) или -1.
+         */
+        public int payload(){
+            fragment = false;
+            protocol = 0;
+            int off;
+            int type;
+            switch (linktype){
+                case LINKTYPE_ETHERNET:
+                    off = 14;
+                    if (captured < off)
+                        return -1;
+                    type = u16(12);
+                    while (((type == 0x8100) || (type == 0x88a8)) && (captured >= off + 4)){
+                        type = u16(off + 2);
+                        off += 4;
+                    }
+                    if ((type != 0x0800) && (type != 0x86dd))
+                        return -1;
+                    break;
+                case LINKTYPE_NULL:
+                case LINKTYPE_LOOP:
+                    off = 4;
+                    break;
+                case LINKTYPE_RAW:
+                case LINKTYPE_IPV4:
+                case LINKTYPE_IPV6:
+                    off = 0;
+                    break;
+                case LINKTYPE_LINUX_SLL:
+                    off = 16;
+                    break;
+                case LINKTYPE_LINUX_SLL2:
+                    off = 20;
+                    break;
+                default:
+                    return -1;
+            }
+            if (captured <= off)
+                return -1;
+            int limit;
+            int version = (data[off] & 0xf0) >> 4;
+            if (version == 4){
+                if (captured < off + 20)
+                    return -1;
+                int ihl = (data[off] & 0xf) * 4;
+                limit = Math.min(captured, off + u16(off + 2));
+                int frag = u16(off + 6);
+                if ((frag & 0x3fff) != 0){
+                    fragment = true;
+                    return -1;
+                }
+                protocol = data[off + 9] & 0xff;
+                off += ihl;
+            }else if (version == 6){
+                if (captured < off + 40)
+                    return -1;
+                limit = Math.min(captured, off + 40 + u16(off + 4));
+                protocol = data[off + 6] & 0xff;
+                off += 40;
+                while ((protocol == 0) || (protocol == 43) || (protocol == 60) || (protocol == 44)){
+                    if (protocol == 44){
+                        fragment = true;
+                        return -1;
+                    }
+                    if (limit < off + 8)
+                        return -1;
+                    protocol = data[off] & 0xff;
+                    off += ((data[off + 1] & 0xff) + 1) * 8;
+                }
+            }else{
+                return -1;
+            }
+            if (protocol == PROTO_UDP){
+                if (limit < off + 8)
+                    return -1;
+                sourcePort = u16(off);
+                destinationPort = u16(off + 2);
+                payloadLength = Math.min(limit - off - 8, u16(off + 4) - 8);
+                return (payloadLength < 0) ? -1 : off + 8;
+            }
+            if (protocol == PROTO_TCP){
+                if (limit < off + 20)
+                    return -1;
+                sourcePort = u16(off);
+                destinationPort = u16(off + 2);
+                off += ((data[off + 12] & 0xf0) >> 4) * 4;
+                // берется только сообщение, начинающееся в этом сегменте и целиком в нем
+                if (limit < off + 2)
+                    return -1;
+                int len = u16(off);
+                if (limit < off + 2 + len)
+                    return -1;
+                payloadLength = len;
+                return off + 2;
+            }
+            return -1;
+        }
+
+        private int u16(int off){
+            return ((data[off] & 0xff) << 8) | (data[off + 1] & 0xff);
+        }
+
+        /* Смещение записи текущего пакета в файле */
+        public long getPosition() {
+            return position;
+        }
+
+        /* Смещение записи, с которой продолжится чтение */
+        public long getNext() {
+            return next;
+        }
+
+        /* Время захвата в наносекундах от эпохи */
+        public long getTime() {
+            return time;
+        }
+
+        public int getCaptured() {
+            return captured;
+        }
+
+        public int getOriginal() {
+            return original;
+        }
+
+        /* Байты текущего пакета начиная с канального заголовка */
+        public byte[] getData() {
+            return data;
+        }
+
+        /* Файл оборвался посреди записи */
+        public boolean isTruncated() {
+            return truncated;
+        }
+
+        /* Испорченные заголовки записей, пропущенные выравниванием */
+        public long getCorrupt() {
+            return corrupt;
+        }
+
+        public int getProtocol() {
+            return protocol;
+        }
+
+        public int getSourcePort() {
+            return sourcePort;
+        }
+
+        public int getDestinationPort() {
+            return destinationPort;
+        }
+
+        public int getPayloadLength() {
+            return payloadLength;
+        }
+
+        /* Пакет оказался фрагментом IP, нагрузка не собирается */
+        public boolean isFragment() {
+            return fragment;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package ru.mainnika.libs.net.dns.pcap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import ru.mainnika.libs.net.dns.Wire;
+
+/**
+ * Приближенный подсчет самых частых имен в ограниченной памяти, по схеме
+ * Space-Saving. Хранится не больше 2*capacity имен; при переполнении
+ * остаются capacity самых частых, а порог поднимается до наибольшего
+ * отброшенного счетчика. Новое имя начинает с порога: он мог быть набран
+ * до вытеснения. Поэтому счетчик имени не меньше настоящего и завышен не
+ * больше чем на свою ошибку {@link Entry#error}, а та не больше
+ * {@link #getError()}; имя не из списка встречалось не чаще порога.
+ *
+ * @author MainNika
+ */
+public final class TopNames {
+
+    private final int capacity;
+
+    /* Счетчик и ошибка имени */
+    private final HashMap<Key, long[]> counts = new HashMap<>();
+
+    /* Ключ для поиска без копирования имени */
+    private final Key probe = new Key();
+
+    /* Наибольший вытесненный счетчик */
+    private long floor;
+
+    public TopNames(int capacity){
+        this.capacity = Math.max(1, capacity);
+    }
+
+    /* Учитывает имя длиной len в нижнем регистре */
+    public void add(byte[] name, int len){
+        add(name, len, 1, 0);
+        if (counts.size() >= 2 * capacity)
+            prune();
+    }
+
+    /* n вхождений с ошибкой error; отсутствующее имя начинает с порога */
+    private void add(byte[] name, int len, long n, long error){
+        probe.set(name, len);
+        long[] count = counts.get(probe);
+        if (count != null){
+            count[0] += n;
+            count[1] += error;
+            return;
+        }
+        counts.put(new Key(Arrays.copyOf(name, len), probe.hash), new long[] { floor + n, floor + error });
+    }
+
+    /*
+     * Сливает счетчики другой части. Имя, которого нет в одной из частей,
+     * могло встречаться там до порога этой части, поэтому порог прибавляется
+     * к счетчику и к ошибке, а пороги частей складываются.
+     */
+    public void merge(TopNames other){
+        for (Map.Entry<Key, long[]> e : counts.entrySet()){
+            other.probe.set(e.getKey().name, e.getKey().len);
+            if (!other.counts.containsKey(other.probe)){
+                e.getValue()[0] += other.floor;
+                e.getValue()[1] += other.floor;
+            }
+        }
+        for (Map.Entry<Key, long[]> e : other.counts.entrySet())
+            add(e.getKey().name, e.getKey().len, e.getValue()[0], e.getValue()[1]);
+        floor += other.floor;
+        if (counts.size() >= 2 * capacity)
+            prune();
+    }
+
+    private void prune(){
+        List<Map.Entry<Key, long[]>> entries = sorted();
+        for (int i = capacity; i < entries.size(); i++){
+            floor = Math.max(floor, entries.get(i).getValue()[0]);
+            counts.remove(entries.get(i).getKey());
+        }
+    }
+
+    private List<Map.Entry<Key, long[]>> sorted(){
+        List<Map.Entry<Key, long[]>> ret = new ArrayList<>(counts.entrySet());
+        ret.sort((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]));
+        return ret;
+    }
+
+    /* Самые частые имена в порядке убывания */
+    public List<Entry> top(int n){
+        List<Map.Entry<Key, long[]>> entries = sorted();
+        List<Entry> ret = new ArrayList<>(Math.min(n, entries.size()));
+        for (int i = 0; (i < n) && (i < entries.size()); i++)
+            ret.add(new Entry(Wire.toString(entries.get(i).getKey().name), entries.get(i).getValue()[0], entries.get(i).getValue()[1]));
+        return ret;
+    }
+
+    public int size(){
+        return counts.size();
+    }
+
+    /* Наибольшее завышение счетчика; 0 - счет точный */
+    public long getError() {
+        return floor;
+    }
+
+    public static final class Entry {
+
+        public final String name;
+
+        public final long count;
+
+        /* Насколько count может быть больше настоящего */
+        public final long error;
+
+        private Entry(String name, long count, long error){
+            this.name = name;
+            this.count = count;
+            this.error = error;
+        }
+    }
+
+    private static final class Key {
+
+        private byte[] name;
+
+        private int len;
+
+        private int hash;
+
+        private Key(){
+        }
+
+        private Key(byte[] name, int hash){
+            this.name = name;
+            this.len = name.length;
+            this.hash = hash;
+        }
+
+        private void set(byte[] name, int len){
+            this.name = name;
+            this.len = len;
+            int h = 1;
+            for (int i = 0; i < len; i++)
+                h = 31 * h + name[i];
+            this.hash = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key k = (Key) o;
+            return (hash == k.hash) && Arrays.equals(name, 0, len, k.name, 0, k.len);
+        }
+    }
+}
@@ -0,0 +1,495 @@
+package ru.mainnika.libs.net.dns.resolver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import ru.mainnika.libs.net.dns.Dns;
+import ru.mainnika.libs.net.dns.DnsException;
+import ru.mainnika.libs.net.dns.Rcode;
+import ru.mainnika.libs.net.dns.Wire;
+import ru.mainnika.libs.net.dns.jfr.UpstreamQueryEvent;
+import ru.mainnika.libs.net.dns.metrics.Metrics;
+import ru.mainnika.libs.net.dns.server.Handler;
+
+/**
+ * Пересылка запросов пулу вышестоящих серверов по UDP. Сервер выбирается
+ * по наименьшей ожидаемой задержке (SRTT с поправкой на разброс и отказы),
+ * с небольшой долей случайных проб остальных серверов. Если ответ не пришел
+ * за срок, зависящий от статистики сервера, запрос дублируется на следующий
+ * сервер; побеждает первый годный ответ. Поздние ответы проигравших попыток
+ * тоже учитываются в статистике.
+ *
+ * Весь ввод-вывод идет в одном потоке через Selector; у каждого сервера
+ * свой подключенный канал и случайные идентификаторы запросов. Ответ
+ * принимается, только если совпадают идентификатор и вопрос.
+ *
+ * @author MainNika
+ */
+public final class Forwarder implements Handler, Closeable {
+
+    private static final int MAX_UPSTREAMS = 64;
+
+    private final Upstream[] upstreams;
+
+    private final Selector selector;
+
+    private final ConcurrentLinkedQueue<Query> submitted = new ConcurrentLinkedQueue<>();
+
+    /* Запросы и попытки в полете, только для потока ввода-вывода */
+    private final ArrayList<Query> queries = new ArrayList<>();
+
+    private final ArrayList<Attempt> attempts = new ArrayList<>();
+
+    private final Thread thread;
+
+    private volatile boolean running = true;
+
+    private volatile long timeout = TimeUnit.SECONDS.toNanos(2);
+
+    private volatile long minHedge = TimeUnit.MILLISECONDS.toNanos(5);
+
+    private volatile double exploration = 0.05;
+
+    private volatile int maxAttempts = 2;
+
+    public Forwarder(List<InetSocketAddress> servers) throws IOException{
+        if (servers.isEmpty() || (servers.size() > MAX_UPSTREAMS))
+            throw new IllegalArgumentException("From 1 to " + MAX_UPSTREAMS + " upstreams expected");
+        selector = Selector.open();
+        upstreams = new Upstream[servers.size()];
+        try{
+            for (int i = 0; i < upstreams.length; i++){
+                Upstream u = new Upstream(servers.get(i));
+                u.channel = DatagramChannel.open();
+                u.channel.configureBlocking(false);
+                u.channel.connect(u.getAddress());
+                u.channel.register(selector, SelectionKey.OP_READ, u);
+                upstreams[i] = u;
+            }
+        }catch(IOException e){
+            closeChannels();
+            throw e;
+        }
+        thread = new Thread(this::loop, "dns-forwarder");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /* Общий срок ожидания ответа */
+    public Forwarder setTimeout(long timeout, TimeUnit unit) {
+        this.timeout = unit.toNanos(timeout);
+        return this;
+    }
+
+    /* Нижняя граница срока, после которого запрос дублируется */
+    public Forwarder setMinHedgeDelay(long delay, TimeUnit unit) {
+        this.minHedge = unit.toNanos(delay);
+        return this;
+    }
+
+    /* Доля запросов, отправляемых случайному серверу вместо лучшего */
+    public Forwarder setExploration(double exploration) {
+        this.exploration = exploration;
+        return this;
+    }
+
+    /* Сколько серверов может получить один запрос; 1 - без дублирования */
+    public Forwarder setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = Math.max(1, Math.min(upstreams.length, maxAttempts));
+        return this;
+    }
+
+    public List<Upstream> getUpstreams() {
+        return List.of(upstreams);
+    }
+
+    /* Пересылает запрос; ответ приходит с идентификатором запроса */
+    public CompletableFuture<Dns> forward(Dns request){
+        Query q;
+        try{
+            q = new Query(request.getRaw());
+        }catch(Exception e){
+            return CompletableFuture.failedFuture(e);
+        }
+        if (!running)
+            return CompletableFuture.failedFuture(new DnsException("Forwarder is closed"));
+        submitted.add(q);
+        // close() мог завершиться между проверкой и вставкой: тогда очередь уже никто не разберет
+        if (!running && submitted.remove(q))
+            q.future.completeExceptionally(new DnsException("Forwarder is closed"));
+        selector.wakeup();
+        return q.future;
+    }
+
+    /* Блокирующий вариант {@link #forward(Dns)}; ждет не дольше срока запроса с запасом */
+    public Dns query(Dns request) throws DnsException{
+        try{
+            return forward(request).get(timeout + TimeUnit.SECONDS.toNanos(1), TimeUnit.NANOSECONDS);
+        }catch(TimeoutException e){
+            throw new DnsException("Upstream timeout");
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new DnsException("Interrupted");
+        }catch(ExecutionException e){
+            if (e.getCause() instanceof DnsException)
+                throw (DnsException) e.getCause();
+            throw new DnsException("Forwarding failed: " + e.getCause());
+        }
+    }
+
+    @Override
+    public Dns handle(Dns request, InetSocketAddress client, boolean udp) throws DnsException {
+        return query(request);
+    }
+
+    /* ———————————————————— Поток ввода-вывода —————————————————————— */
+
+    private void loop(){
+        ByteBuffer in = ByteBuffer.allocateDirect(65536);
+        while (running){
+            try{
+                long now = System.nanoTime();
+                Query q;
+                while ((q = submitted.poll()) != null){
+                    q.expire = now + timeout;
+                    queries.add(q);
+                    send(q, now);
+                }
+                long next = expire(now);
+                // срок округляется вверх: иначе остаток меньше миллисекунды крутит selectNow вхолостую
+                if (next > now)
+                    selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(next - now + 999_999)));
+                else
+                    selector.selectNow();
+                now = System.nanoTime();
+                for (SelectionKey key : selector.selectedKeys())
+                    receive((Upstream) key.attachment(), in, now);
+                selector.selectedKeys().clear();
+            }catch(IOException | RuntimeException e){
+                // ошибка одного сокета или запроса не останавливает единственный поток пересылки
+            }
+        }
+        DnsException closed = new DnsException("Forwarder is closed");
+        for (Query q : queries)
+            q.future.completeExceptionally(closed);
+        Query q;
+        while ((q = submitted.poll()) != null)
+            q.future.completeExceptionally(closed);
+    }
+
+    /* Таймауты попыток, дублирование и сроки запросов; возвращает время следующего события */
+    private long expire(long now) throws IOException{
+        long next = now + TimeUnit.SECONDS.toNanos(1);
+        for (Iterator<Attempt> it = attempts.iterator(); it.hasNext();){
+            Attempt a = it.next();
+            if (a.finished){
+                it.remove();
+            }else if (now - a.sent >= timeout){
+                a.upstream.failure(now - a.sent);
+                finish(a, now, 0, UpstreamQueryEvent.TIMEOUT);
+                a.query.outstanding--;
+                it.remove();
+            }else{
+                next = Math.min(next, a.sent + timeout);
+            }
+        }
+        for (Iterator<Query> it = queries.iterator(); it.hasNext();){
+            Query q = it.next();
+            if (q.future.isDone()){
+                it.remove();
+                continue;
+            }
+            boolean exhausted = q.attempts >= Math.min(maxAttempts, upstreams.length);
+            if ((now >= q.expire) || (exhausted && (q.outstanding == 0))){
+                fail(q, new DnsException("Upstream timeout"));
+                it.remove();
+                continue;
+            }
+            if (!exhausted && (now >= q.hedgeAt))
+                send(q, now);
+            next = Math.min(next, q.expire);
+            if (q.attempts < Math.min(maxAttempts, upstreams.length))
+                next = Math.min(next, q.hedgeAt);
+        }
+        return next;
+    }
+
+    /* Очередная попытка запроса на лучший из еще не опрошенных серверов */
+    private void send(Query q, long now) throws IOException{
+        Upstream u = select(q);
+        if (u == null){
+            q.attempts = maxAttempts;
+            return;
+        }
+        int id = freeId(u);
+        if (id < 0){
+            // все идентификаторы сервера заняты: завершается только этот запрос
+            fail(q, new DnsException("No free query id for " + u.getAddress()));
+            return;
+        }
+        Attempt a = new Attempt(q, u, id, now, ++q.attempts);
+        a.event.begin();
+        byte[] raw = q.raw.clone();
+        Wire.put16(raw, 0, id);
+        u.pending[id] = a;
+        attempts.add(a);
+        q.tried |= 1L << index(u);
+        q.outstanding++;
+        // срок дублирования не больше доли общего срока, чтобы следующей попытке хватило времени,
+        // и не позже срока лучшего сервера, чтобы пробы медленных серверов не портили хвост задержек
+        long max = timeout / Math.max(2, maxAttempts);
+        q.hedgeAt = now + Math.min(u.deadline(minHedge, max), best().deadline(minHedge, max));
+        u.sent();
+        try{
+            u.channel.write(ByteBuffer.wrap(raw));
+        }catch(IOException e){
+            // например, ICMP port unreachable от прошлого запроса: попытка завершается сразу,
+            // а не висит до таймаута, и запрос уходит следующему серверу
+            u.failure(0);
+            finish(a, now, 0, UpstreamQueryEvent.SEND_ERROR);
+            q.outstanding--;
+            if (q.attempts < Math.min(maxAttempts, upstreams.length))
+                send(q, now);
+            else if (q.outstanding == 0)
+                fail(q, new DnsException("Query to " + u.getAddress() + " failed: " + e.getMessage()));
+        }
+    }
+
+    private Upstream select(Query q){
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int untried = 0;
+        Upstream best = null;
+        for (Upstream u : upstreams){
+            if ((q.tried & (1L << index(u))) != 0)
+                continue;
+            untried++;
+            if ((best == null) || (u.expected() < best.expected()))
+                best = u;
+        }
+        if ((untried > 1) && (random.nextDouble() < exploration)){
+            int pick = random.nextInt(untried);
+            for (Upstream u : upstreams)
+                if (((q.tried & (1L << index(u))) == 0) && (pick-- == 0))
+                    return u;
+        }
+        return best;
+    }
+
+    private Upstream best(){
+        Upstream ret = upstreams[0];
+        for (Upstream u : upstreams)
+            if (u.expected() < ret.expected())
+                ret = u;
+        return ret;
+    }
+
+    private int index(Upstream u){
+        for (int i = 0; i < upstreams.length; i++)
+            if (upstreams[i] == u)
+                return i;
+        return -1;
+    }
+
+    /* Свободный идентификатор для сервера; -1, если заняты все 65536 */
+    private int freeId(Upstream u){
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < 16; i++){
+            int id = random.nextInt(65536);
+            if (u.pending[id] == null)
+                return id;
+        }
+        int start = random.nextInt(65536);
+        for (int i = 0; i < 65536; i++)
+            if (u.pending[(start + i) & 0xffff] == null)
+                return (start + i) & 0xffff;
+        return -1;
+    }
+
+    private void receive(Upstream u, ByteBuffer in, long now) throws IOException{
+        while (true){
+            in.clear();
+            int len;
+            try{
+                len = u.channel.read(in);
+            }catch(IOException e){
+                return;
+            }
+            if (len <= 0)
+                return;
+            if (len < 12)
+                continue;
+            byte[] raw = new byte[len];
+            in.flip();
+            in.get(raw);
+            Attempt a = u.pending[Wire.u16(raw, 0)];
+            if ((a == null) || ((raw[2] & 0x80) == 0) || !sameQuestion(a.query.raw, raw))
+                continue;
+            long rtt = now - a.sent;
+            int rcode = raw[3] & 0xf;
+            boolean usable = (rcode != Rcode.SERVFAIL) && (rcode != Rcode.REFUSED);
+            if (usable){
+                u.success(rtt);
+                if (Metrics.enabled)
+                    Metrics.get().record(Metrics.Stage.UPSTREAM, rtt);
+            }else{
+                u.failure(rtt);
+            }
+            finish(a, now, len, usable ? "OK" : Rcode.nameOf(rcode));
+            Query q = a.query;
+            q.outstanding--;
+            if (q.future.isDone())
+                continue;
+            Wire.put16(raw, 0, Wire.u16(q.raw, 0));
+            if (usable){
+                complete(q, raw);
+            }else{
+                q.fallback = raw;
+                q.hedgeAt = now;
+            }
+        }
+    }
+
+    /* Запрос без попыток в полете: ответ-отказ, если он был, иначе ошибка */
+    private void fail(Query q, DnsException e){
+        if (q.fallback != null)
+            complete(q, q.fallback);
+        else
+            q.future.completeExceptionally(e);
+    }
+
+    private void complete(Query q, byte[] raw){
+        try{
+            q.future.complete(new Dns().fromRaw(raw));
+        }catch(DnsException e){
+            q.future.completeExceptionally(e);
+        }
+    }
+
+    /* Освобождает идентификатор и пишет событие JFR */
+    private void finish(Attempt a, long now, int responseSize, String outcome){
+        a.finished = true;
+        a.upstream.pending[a.id] = null;
+        UpstreamQueryEvent event = a.event;
+        event.end();
+        if (!event.shouldCommit())
+            return;
+        byte[] raw = a.query.raw;
+        event.id = Wire.u16(raw, 0);
+        try{
+            event.setQuestion(Wire.readName(raw, 12), Wire.u16(raw, Wire.skipName(raw, 12)));
+        }catch(DnsException e){
+            // вопрос проверен при отправке
+        }
+        event.server = a.upstream.getAddress().toString();
+        event.transport = "udp";
+        event.attempt = a.number;
+        event.size = raw.length;
+        event.responseSize = responseSize;
+        event.outcome = outcome;
+        event.commit();
+    }
+
+    /* Вопрос ответа совпадает с вопросом запроса с точностью до регистра */
+    private static boolean sameQuestion(byte[] request, byte[] response){
+        try{
+            int end = Wire.skipName(response, 12, response.length) + 4;
+            if ((end > response.length) || (Wire.u16(response, 4) != 1) || ((response[12] & 0xc0) != 0))
+                return false;
+            int qend = Wire.skipName(request, 12) + 4;
+            if (qend - 12 != end - 12)
+                return false;
+            return Wire.equalsIgnoreCase(request, 12, response, 12)
+                    && (Wire.u16(request, qend - 4) == Wire.u16(response, end - 4))
+                    && (Wire.u16(request, qend - 2) == Wire.u16(response, end - 2));
+        }catch(DnsException e){
+            return false;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        try{
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        closeChannels();
+        selector.close();
+    }
+
+    private void closeChannels() throws IOException{
+        for (Upstream u : upstreams)
+            if ((u != null) && (u.channel != null))
+                u.channel.close();
+    }
+
+    /* Пересылаемый запрос */
+    static final class Query {
+
+        final byte[] raw;
+
+        final CompletableFuture<Dns> future = new CompletableFuture<>();
+
+        long expire;
+
+        long hedgeAt;
+
+        int attempts;
+
+        int outstanding;
+
+        /* Серверы, которым запрос уже отправлен, битовая маска */
+        long tried;
+
+        /* Ответ-отказ на случай, если годного ответа не будет */
+        byte[] fallback;
+
+        Query(byte[] raw) throws DnsException{
+            if ((raw.length < 12) || (Wire.u16(raw, 4) != 1))
+                throw new DnsException("Exactly one question expected");
+            Wire.skipName(raw, 12);
+            this.raw = raw;
+        }
+    }
+
+    /* Одна отправка запроса одному серверу */
+    static final class Attempt {
+
+        final Query query;
+
+        final Upstream upstream;
+
+        final int id;
+
+        final long sent;
+
+        final int number;
+
+        final UpstreamQueryEvent event = new UpstreamQueryEvent();
+
+        boolean finished;
+
+        Attempt(Query query, Upstream upstream, int id, long sent, int number){
+            this.query = query;
+            this.upstream = upstream;
+            this.id = id;
+            this.sent = sent;
+            this.number = number;
+        }
+    }
+}
@@ -0,0 +1,701 @@
+package ru.mainnika.libs.net.dns.resolver;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import ru.mainnika.libs.net.dns.Dns;
+import ru.mainnika.libs.net.dns.DnsException;
+import ru.mainnika.libs.net.dns.Message;
+import ru.mainnika.libs.net.dns.RRset;
+import ru.mainnika.libs.net.dns.Rcode;
+import ru.mainnika.libs.net.dns.ResourceRecord;
+import ru.mainnika.libs.net.dns.Type;
+import ru.mainnika.libs.net.dns.Wire;
+import ru.mainnika.libs.net.dns.cache.RecordCache;
+import ru.mainnika.libs.net.dns.cluster.ClusterCache;
+import ru.mainnika.libs.net.dns.dnssec.DenialCache;
+import ru.mainnika.libs.net.dns.jfr.UpstreamQueryEvent;
+import ru.mainnika.libs.net.dns.metrics.Metrics;
+import ru.mainnika.libs.net.dns.server.Handler;
+import ru.mainnika.libs.net.dns.server.Responses;
+
+/**
+ * Итеративный рекурсивный резолвер. Разрешение начинается с ближайшего
+ * известного по кэшу разреза зоны (или с корневых серверов), идет по
+ * делегированиям из секции авторитетных с адресами из секции дополнительных
+ * и следует по цепочкам CNAME. Делегирования, адреса серверов имен, ответы
+ * и отрицательные ответы кэшируются в {@link RecordCache}.
+ *
+ * Адреса из секции дополнительных принимаются, только если имя сервера
+ * лежит внутри делегируемой зоны (проверка bailiwick), и хранятся с низшим
+ * доверием. Адреса серверов вне зоны разрешаются отдельно, с ограничением
+ * глубины. Число запросов на одно разрешение ограничено.
+ *
+ * Запросы идут по UDP со случайными идентификатором и портом, без EDNS или
+ * с битом DO для DNSSEC; усеченный ответ повторяется по TCP. Порт серверов настраивается, чтобы
+ * иерархию можно было поднять на адресах 127.0.0.x без привилегий.
+ *
+ * С {@link ClusterCache} ответы, отрицательные ответы и адреса серверов имен
+ * ищутся и сохраняются в кэше кластера, а делегирования и клей остаются в
+ * своем кэше: они нужны каждому узлу для спуска по иерархии.
+ *
+ * С {@link DenialCache} (и {@link #setDnssec(boolean)}) проверенные NSEC и
+ * NSEC3 из отрицательных ответов отвечают на вопросы об именах внутри уже
+ * известных диапазонов без запросов к серверам (RFC 8198).
+ *
+ * @author MainNika
+ */
+public final class Resolver implements Handler {
+
+    /* Адреса IPv4 корневых серверов a-m */
+    private static final String[] ROOT_HINTS = {
+        "198.41.0.4", "170.247.170.2", "192.33.4.12", "199.7.91.13", "192.203.230.10", "192.5.5.241",
+        "192.112.36.4", "198.97.190.53", "192.36.148.17", "192.58.128.30", "193.0.14.129", "199.7.83.42",
+        "202.12.27.33"
+    };
+
+    private static final byte[] ROOT = {0};
+
+    /* Длина цепочки CNAME */
+    private static final int MAX_CNAME = 8;
+
+    /* Вложенность разрешения адресов серверов имен */
+    private static final int MAX_DEPTH = 4;
+
+    /* Размер буфера UDP в запросах с EDNS */
+    private static final int EDNS_SIZE = 1232;
+
+    /* Сколько серверов имен зоны разрешать, если для них нет адресов */
+    private static final int MAX_NS_LOOKUPS = 3;
+
+    private final RecordCache cache;
+
+    private final List<InetAddress> hints;
+
+    private volatile int port = 53;
+
+    private volatile int timeout = 1500;
+
+    private volatile int maxQueries = 64;
+
+    private volatile boolean minimise;
+
+    private volatile boolean dnssec;
+
+    private volatile ClusterCache cluster;
+
+    private volatile DenialCache denial;
+
+    public Resolver(RecordCache cache, List<InetAddress> hints){
+        if (hints.isEmpty())
+            throw new IllegalArgumentException("Root hints are empty");
+        this.cache = cache;
+        this.hints = List.copyOf(hints);
+    }
+
+    public Resolver(RecordCache cache){
+        this(cache, defaultHints());
+    }
+
+    public static List<InetAddress> defaultHints(){
+        ArrayList<InetAddress> ret = new ArrayList<>();
+        try{
+            for (String addr : ROOT_HINTS)
+                ret.add(InetAddress.getByName(addr));
+        }catch(UnknownHostException e){
+            throw new IllegalStateException(e);
+        }
+        return ret;
+    }
+
+    /* Порт всех серверов имен, 53 по умолчанию */
+    public Resolver setPort(int port) {
+        this.port = port;
+        return this;
+    }
+
+    /* Срок ожидания ответа одного сервера */
+    public Resolver setTimeout(long timeout, TimeUnit unit) {
+        this.timeout = (int) Math.max(1, unit.toMillis(timeout));
+        return this;
+    }
+
+    /* Предел числа запросов к серверам на одно разрешение */
+    public Resolver setMaxQueries(int maxQueries) {
+        this.maxQueries = maxQueries;
+        return this;
+    }
+
+    /* Минимизация имени в запросах (RFC 9156) */
+    public Resolver setQnameMinimisation(boolean minimise) {
+        this.minimise = minimise;
+        return this;
+    }
+
+    /* Запросы с битом DO: серверы отдают RRSIG, NSEC и NSEC3 */
+    public Resolver setDnssec(boolean dnssec) {
+        this.dnssec = dnssec;
+        return this;
+    }
+
+    /* Кэш кластера поверх своего; null - только свой кэш */
+    public Resolver setCluster(ClusterCache cluster) {
+        this.cluster = cluster;
+        return this;
+    }
+
+    /* Кэш доказательств отсутствия; null - без синтеза отрицательных ответов */
+    public Resolver setDenialCache(DenialCache denial) {
+        this.denial = denial;
+        return this;
+    }
+
+    public RecordCache getCache() {
+        return cache;
+    }
+
+    @Override
+    public Dns handle(Dns request, InetSocketAddress client, boolean udp) throws DnsException {
+        if (request.issetQr())
+            return null;
+        if (request.getOpcode() != 0)
+            return Responses.error(request, Rcode.NOTIMP);
+        if (request.getQdcount() != 1)
+            return Responses.error(request, Rcode.FORMERR);
+        Dns.Query query = request.getQueryAt(0);
+        Resolution resolution;
+        try{
+            resolution = resolve(query.getWireName(), query.getType() & 0xffff);
+        }catch(DnsException e){
+            return Responses.error(request, Rcode.SERVFAIL).setRa();
+        }
+        Dns response = Responses.reply(request).setRa().setRcode((byte) resolution.getRcode());
+        for (ResourceRecord rr : resolution.getAnswers())
+            response.addAnswer(rr);
+        for (ResourceRecord rr : resolution.getAuthorities())
+            response.addAuthority(rr);
+        return response;
+    }
+
+    /* Разрешает имя; исключение, если ни один сервер не дал годного ответа */
+    public Resolution resolve(byte[] qname, int qtype) throws DnsException{
+        byte[] name = Wire.copyName(qname, 0);
+        Wire.toLowerCase(name, 0);
+        boolean measure = Metrics.enabled;
+        long start = measure ? System.nanoTime() : 0;
+        Resolution ret = resolve(name, qtype, new Budget(maxQueries), 0);
+        if (measure)
+            Metrics.get().record(Metrics.Stage.LOOKUP, System.nanoTime() - start);
+        return ret;
+    }
+
+    /*
+     * Ответ авторитетного сервера на вопрос целиком, без кэша ответов и без
+     * прохода по CNAME. С {@link #setDnssec(boolean)} годится как источник
+     * ключей и DS для {@link ru.mainnika.libs.net.dns.dnssec.Validator}.
+     */
+    public Message query(byte[] qname, int qtype) throws DnsException{
+        byte[] name = Wire.copyName(qname, 0);
+        Wire.toLowerCase(name, 0);
+        return iterate(name, qtype, new Budget(maxQueries), 0);
+    }
+
+    private Resolution resolve(byte[] name, int qtype, Budget budget, int depth) throws DnsException{
+        Resolution ret = new Resolution();
+        for (int chain = 0; chain <= MAX_CNAME; chain++){
+            long now = System.currentTimeMillis();
+            RecordCache.Entry entry = lookup(name, qtype);
+            if (entry != null){
+                if (entry.isNegative()){
+                    ret.rcode = entry.getRcode();
+                    entry.toRecords(now, ret.authorities);
+                }else{
+                    entry.toRecords(now, ret.answers);
+                }
+                return ret;
+            }
+            RecordCache.Entry alias = (qtype != Type.CNAME) ? lookup(name, Type.CNAME) : null;
+            if ((alias != null) && !alias.isNegative()){
+                alias.toRecords(now, ret.answers);
+                name = alias.getSet().getRdataAt(0);
+                continue;
+            }
+            DenialCache denial = this.denial;
+            RecordCache.Entry proof = (denial != null) ? denial.get(name, qtype) : null;
+            if (proof != null){
+                ret.rcode = proof.getRcode();
+                proof.toRecords(now, ret.authorities);
+                return ret;
+            }
+            Message m = iterate(name, qtype, budget, depth);
+            byte[] target = follow(m.getAnswers(), name, qtype, ret.answers);
+            if (target == null)
+                return ret;
+            if (Wire.equalsIgnoreCase(target, name) || (m.getRcode() == Rcode.NXDOMAIN) || hasSoa(m)){
+                // цепочка закончилась в зоне ответившего сервера
+                ret.rcode = m.getRcode();
+                for (ResourceRecord rr : m.getAuthorities())
+                    if (rr.getType() == Type.SOA)
+                        ret.authorities.add(rr);
+                return ret;
+            }
+            name = target;
+        }
+        throw new DnsException("CNAME chain is too long");
+    }
+
+    /*
+     * Переносит в buffer записи ответа для name, проходя по CNAME внутри
+     * сообщения. Возвращает null, если ответ найден, иначе имя, на котором
+     * цепочка оборвалась.
+     */
+    private static byte[] follow(List<ResourceRecord> records, byte[] name, int qtype, ArrayList<ResourceRecord> buffer){
+        for (int hop = 0; hop <= MAX_CNAME; hop++){
+            boolean found = false;
+            byte[] next = null;
+            for (ResourceRecord rr : records){
+                if (!Wire.equalsIgnoreCase(rr.getName(), name))
+                    continue;
+                if ((rr.getType() == qtype) || (qtype == Type.ANY)){
+                    buffer.add(rr);
+                    found = true;
+                }else if ((rr.getType() == Type.CNAME) && (next == null)){
+                    buffer.add(rr);
+                    next = rr.getRdata();
+                }
+            }
+            if (found)
+                return null;
+            if (next == null)
+                return name;
+            name = next;
+        }
+        return name;
+    }
+
+    private static boolean hasSoa(Message m){
+        for (ResourceRecord rr : m.getAuthorities())
+            if (rr.getType() == Type.SOA)
+                return true;
+        return false;
+    }
+
+    /* ———————————————————— Итерация —————————————————————— */
+
+    /*
+     * Спуск по делегированиям от ближайшего известного разреза до сервера,
+     * который ответил на вопрос сам: ответом, NODATA или NXDOMAIN.
+     */
+    private Message iterate(byte[] name, int qtype, Budget budget, int depth) throws DnsException{
+        // DS хранится в родительской зоне
+        byte[] zone = closestCut((qtype == Type.DS) && (name[0] != 0) ? suffix(name, 1) : name);
+        byte[] known = zone;
+        while (true){
+            List<InetAddress> servers = servers(zone, budget, depth);
+            if (servers.isEmpty())
+                throw new DnsException("No reachable name servers for " + Wire.toString(zone));
+            byte[] sent = name;
+            int sentType = qtype;
+            if (minimise && (Wire.labelCount(known, 0) + 1 < Wire.labelCount(name, 0))){
+                sent = suffix(name, Wire.labelCount(name, 0) - Wire.labelCount(known, 0) - 1);
+                sentType = Type.A;
+            }
+            Message m = ask(servers, zone, sent, sentType, budget);
+            byte[] cut = referral(m, zone, sent);
+            if (cut != null){
+                cacheReferral(m, cut);
+                zone = cut;
+                known = cut;
+                continue;
+            }
+            if (sent != name){
+                if (m.getRcode() == Rcode.NXDOMAIN){
+                    // под несуществующим именем ничего нет (RFC 8020)
+                    cacheNegative(m, name, qtype);
+                    return m;
+                }
+                // промежуточное имя существует, но не является разрезом
+                known = sent;
+                continue;
+            }
+            cacheAnswer(m, zone, name, qtype);
+            return m;
+        }
+    }
+
+    /* Ближайший предок имени с живым NS-набором в кэше */
+    private byte[] closestCut(byte[] name){
+        int off = 0;
+        while (true){
+            byte[] candidate = (off == 0) ? name : suffix(name, off);
+            RecordCache.Entry ns = cache.get(candidate, Type.NS);
+            if ((ns != null) && !ns.isNegative())
+                return candidate;
+            if (candidate[0] == 0)
+                return ROOT;
+            off++;
+        }
+    }
+
+    /* Имя без count первых меток */
+    private static byte[] suffix(byte[] name, int count){
+        int off = 0;
+        for (int i = 0; i < count; i++)
+            off = Wire.parent(name, off);
+        return Wire.copyName(name, off);
+    }
+
+    /*
+     * Разрез из делегирования: NS без ответа и без SOA, владелец строго ниже
+     * текущей зоны и не ниже имени в запросе. null, если это не делегирование.
+     */
+    private static byte[] referral(Message m, byte[] zone, byte[] sent){
+        if ((m.getRcode() != Rcode.NOERROR) || !m.getAnswers().isEmpty())
+            return null;
+        for (ResourceRecord rr : m.getAuthorities()){
+            if (rr.getType() == Type.SOA)
+                return null;
+            byte[] owner = rr.getName();
+            if ((rr.getType() == Type.NS) && Wire.isSubdomain(sent, owner) && Wire.isSubdomain(owner, zone)
+                    && (Wire.labelCount(owner, 0) > Wire.labelCount(zone, 0))){
+                byte[] ret = Wire.copyName(owner, 0);
+                Wire.toLowerCase(ret, 0);
+                return ret;
+            }
+        }
+        return null;
+    }
+
+    /* Адреса серверов зоны: из кэша, иначе разрешением имен серверов */
+    private List<InetAddress> servers(byte[] zone, Budget budget, int depth) throws DnsException{
+        RecordCache.Entry ns = cache.get(zone, Type.NS);
+        if (((ns == null) || ns.isNegative()) && (zone[0] == 0))
+            return shuffled(new ArrayList<>(hints));
+        if ((ns == null) || ns.isNegative())
+            throw new DnsException("Delegation for " + Wire.toString(zone) + " expired");
+        RRset set = ns.getSet();
+        ArrayList<InetAddress> ret = new ArrayList<>();
+        for (int i = 0; i < set.size(); i++){
+            addresses(set.getRdataAt(i), Type.A, ret);
+            addresses(set.getRdataAt(i), Type.AAAA, ret);
+        }
+        if (!ret.isEmpty() || (depth >= MAX_DEPTH))
+            return shuffled(ret);
+        // адресов нет: разрешаем имена серверов вне зоны, для которых клей не нужен
+        int lookups = 0;
+        for (int i = 0; (i < set.size()) && ret.isEmpty() && (lookups < MAX_NS_LOOKUPS); i++){
+            byte[] host = set.getRdataAt(i);
+            if (Wire.isSubdomain(host, zone))
+                continue;
+            lookups++;
+            try{
+                Resolution r = resolve(host, Type.A, budget, depth + 1);
+                for (ResourceRecord rr : r.getAnswers())
+                    if ((rr.getType() == Type.A) && (rr.getRdata().length == 4))
+                        ret.add(InetAddress.getByAddress(rr.getRdata()));
+            }catch(DnsException | UnknownHostException e){
+                // пробуем следующий сервер
+            }
+        }
+        return shuffled(ret);
+    }
+
+    private void addresses(byte[] host, int type, ArrayList<InetAddress> buffer){
+        // клей лежит только в своем кэше
+        RecordCache.Entry entry = cache.get(host, type);
+        ClusterCache cluster = this.cluster;
+        if ((entry == null) && (cluster != null))
+            entry = cluster.get(host, type);
+        if ((entry == null) || entry.isNegative())
+            return;
+        RRset set = entry.getSet();
+        for (int i = 0; i < set.size(); i++){
+            try{
+                buffer.add(InetAddress.getByAddress(set.getRdataAt(i)));
+            }catch(UnknownHostException e){
+                // RDATA неверной длины
+            }
+        }
+    }
+
+    private static List<InetAddress> shuffled(List<InetAddress> list){
+        Collections.shuffle(list, ThreadLocalRandom.current());
+        return list;
+    }
+
+    /* Опрашивает серверы зоны по очереди до первого годного ответа */
+    private Message ask(List<InetAddress> servers, byte[] zone, byte[] name, int qtype, Budget budget) throws DnsException{
+        DnsException last = null;
+        for (InetAddress server : servers){
+            if (budget.left-- <= 0)
+                throw new DnsException("Query budget exhausted");
+            try{
+                Message m = exchange(server, name, qtype);
+                int rcode = m.getRcode();
+                if (lame(m, zone, name)){
+                    last = new DnsException("Server " + server.getHostAddress() + " is lame for " + Wire.toString(zone));
+                    continue;
+                }
+                if ((rcode == Rcode.NOERROR) || (rcode == Rcode.NXDOMAIN))
+                    return m;
+                last = new DnsException("Server " + server.getHostAddress() + " answered " + Rcode.nameOf(rcode));
+            }catch(DnsException e){
+                last = e;
+            }
+        }
+        throw (last != null) ? last : new DnsException("No name servers");
+    }
+
+    /* Пустой неавторитетный ответ без SOA и без делегирования вниз */
+    private static boolean lame(Message m, byte[] zone, byte[] name){
+        return (m.getRcode() == Rcode.NOERROR) && !m.isAuthoritative() && m.getAnswers().isEmpty()
+                && !hasSoa(m) && (referral(m, zone, name) == null);
+    }
+
+    /* Один запрос: UDP со случайным портом, повтор по TCP при усечении */
+    private Message exchange(InetAddress server, byte[] name, int qtype) throws DnsException{
+        int id = ThreadLocalRandom.current().nextInt(65536);
+        byte[] query = dnssec ? Message.query(id, name, qtype, false, EDNS_SIZE, true) : Message.query(id, name, qtype, false);
+        InetSocketAddress address = new InetSocketAddress(server, port);
+        UpstreamQueryEvent event = new UpstreamQueryEvent();
+        event.begin();
+        String transport = "udp";
+        String outcome = "OK";
+        Message ret = null;
+        try{
+            ret = udp(address, query, id, name, qtype);
+            if (ret.isTruncated()){
+                transport = "tcp";
+                ret = check(tcp(address, query), id, name, qtype);
+            }
+            return ret;
+        }catch(SocketTimeoutException e){
+            outcome = UpstreamQueryEvent.TIMEOUT;
+            throw new DnsException("Timeout from " + server.getHostAddress());
+        }catch(IOException e){
+            outcome = e.getClass().getSimpleName();
+            throw new DnsException("Query to " + server.getHostAddress() + " failed: " + e.getMessage());
+        }catch(DnsException e){
+            outcome = e.getMessage();
+            throw e;
+        }finally{
+            event.end();
+            if (event.shouldCommit()){
+                event.id = id;
+                event.setQuestion(name, qtype);
+                event.server = address.toString();
+                event.transport = transport;
+                event.attempt = 1;
+                event.size = query.length;
+                event.responseSize = (ret == null) ? 0 : ret.getLength();
+                event.outcome = outcome;
+                if (ret != null)
+                    event.setRcode(ret.getRcode());
+                event.commit();
+            }
+        }
+    }
+
+    /* Ответ по UDP; пакеты, не прошедшие {@link #check}, пропускаются до истечения срока */
+    private Message udp(InetSocketAddress address, byte[] query, int id, byte[] name, int qtype) throws IOException{
+        try (DatagramSocket socket = new DatagramSocket()){
+            socket.setSoTimeout(timeout);
+            socket.connect(address);
+            socket.send(new DatagramPacket(query, query.length));
+            byte[] buf = new byte[65535];
+            long deadline = System.currentTimeMillis() + timeout;
+            while (true){
+                DatagramPacket packet = new DatagramPacket(buf, buf.length);
+                socket.receive(packet);
+                // чужие и подложные пакеты не обрывают обмен: ответ сервера может прийти следом
+                if ((packet.getLength() >= 12) && (Wire.u16(buf, 0) == id)){
+                    try{
+                        return check(Arrays.copyOf(buf, packet.getLength()), id, name, qtype);
+                    }catch(DnsException e){
+                        // не ответ на этот вопрос
+                    }
+                }
+                int left = (int) (deadline - System.currentTimeMillis());
+                if (left <= 0)
+                    throw new SocketTimeoutException();
+                socket.setSoTimeout(left);
+            }
+        }
+    }
+
+    private byte[] tcp(InetSocketAddress address, byte[] query) throws IOException{
+        try (Socket socket = new Socket()){
+            socket.connect(address, timeout);
+            socket.setSoTimeout(timeout);
+            OutputStream out = socket.getOutputStream();
+            byte[] frame = new byte[query.length + 2];
+            Wire.put16(frame, 0, query.length);
+            System.arraycopy(query, 0, frame, 2, query.length);
+            out.write(frame);
+            out.flush();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            byte[] ret = new byte[in.readUnsignedShort()];
+            in.readFully(ret);
+            return ret;
+        }
+    }
+
+    /* Разбирает ответ и сверяет его с запросом */
+    private static Message check(byte[] raw, int id, byte[] name, int qtype) throws DnsException{
+        Message m = Message.parse(raw);
+        if (!m.isResponse() || (m.getId() != id))
+            throw new DnsException("Mismatched response");
+        if ((m.getQname() == null) || !Wire.equalsIgnoreCase(m.getQname(), name) || (m.getQtype() != qtype))
+            throw new DnsException("Response question does not match the query");
+        return m;
+    }
+
+    /* ———————————————————— Кэширование —————————————————————— */
+
+    /* NS разреза с доверием авторитетных и адреса из дополнительных внутри разреза как клей */
+    private void cacheReferral(Message m, byte[] cut){
+        store(m.getAuthorities(), Type.NS, cut, true, RecordCache.RANK_AUTHORITY);
+        store(m.getAdditionals(), Type.A, cut, false, RecordCache.RANK_GLUE);
+        store(m.getAdditionals(), Type.AAAA, cut, false, RecordCache.RANK_GLUE);
+    }
+
+    /*
+     * Ответ сервера зоны: записи вне зоны выбрасываются из сообщения. Из
+     * остальных кэшируется только цепочка от имени вопроса через CNAME:
+     * посторонние наборы в секции ответа сервер мог подложить, и ответом на
+     * свой вопрос они не являются. Отрицательные ответы тоже кэшируются.
+     */
+    private void cacheAnswer(Message m, byte[] zone, byte[] name, int qtype){
+        int rank = m.isAuthoritative() ? RecordCache.RANK_AUTH_ANSWER : RecordCache.RANK_ANSWER;
+        ArrayList<ResourceRecord> answers = m.getAnswers();
+        answers.removeIf(rr -> !Wire.isSubdomain(rr.getName(), zone));
+        ArrayList<ResourceRecord> chain = new ArrayList<>();
+        byte[] last = follow(answers, name, qtype, chain);
+        ArrayList<RRset> sets = new ArrayList<>();
+        for (ResourceRecord rr : chain){
+            RRset set = null;
+            for (RRset s : sets)
+                if ((s.getType() == rr.getType()) && Wire.equalsIgnoreCase(s.getName(), rr.getName()))
+                    set = s;
+            if (set == null){
+                set = new RRset(rr.getName(), rr.getType(), rr.getCl(), rr.getTtl());
+                sets.add(set);
+            }
+            set.add(rr.getRdata(), rr.getTtl());
+        }
+        ClusterCache cluster = this.cluster;
+        for (RRset set : sets){
+            if (cluster != null)
+                cluster.put(set, rank);
+            else
+                cache.put(set, rank);
+        }
+        if ((qtype == Type.ANY) || (m.getRcode() != Rcode.NOERROR) && (m.getRcode() != Rcode.NXDOMAIN))
+            return;
+        if ((last != null) && Wire.isSubdomain(last, zone) && ((m.getRcode() == Rcode.NXDOMAIN) || hasSoa(m)))
+            cacheNegative(m, last, qtype);
+    }
+
+    private void cacheNegative(Message m, byte[] name, int qtype){
+        ResourceRecord soa = null;
+        for (ResourceRecord rr : m.getAuthorities())
+            if ((rr.getType() == Type.SOA) && Wire.isSubdomain(name, rr.getName()))
+                soa = rr;
+        // без SOA отрицательный ответ не кэшируется (RFC 2308, раздел 5)
+        if (soa == null)
+            return;
+        int rank = m.isAuthoritative() ? RecordCache.RANK_AUTH_ANSWER : RecordCache.RANK_ANSWER;
+        DenialCache denial = this.denial;
+        if (denial != null)
+            denial.add(m);
+        ClusterCache cluster = this.cluster;
+        if (cluster != null)
+            cluster.putNegative(name, qtype, m.getRcode(), soa, rank);
+        else
+            cache.putNegative(name, qtype, m.getRcode(), soa, rank);
+    }
+
+    /*
+     * Ответ или отрицательный ответ из кэша кластера, если он есть, иначе из
+     * своего. Glue и NS из направлений (ранг ниже ответа, RFC 2181, 5.4.1)
+     * ответом не считаются: для них имя разрешается заново.
+     */
+    private RecordCache.Entry lookup(byte[] name, int type){
+        ClusterCache cluster = this.cluster;
+        RecordCache.Entry ret = (cluster != null) ? cluster.get(name, type) : cache.get(name, type);
+        return ((ret != null) && (ret.getRank() >= RecordCache.RANK_ANSWER)) ? ret : null;
+    }
+
+    /* Наборы записей типа type, владельцы которых внутри зоны (и равны ей, если exact) */
+    private void store(List<ResourceRecord> records, int type, byte[] zone, boolean exact, int rank){
+        RRset set = null;
+        for (ResourceRecord rr : records){
+            if ((rr.getType() != type) || !Wire.isSubdomain(rr.getName(), zone))
+                continue;
+            if (exact && !Wire.equalsIgnoreCase(rr.getName(), zone))
+                continue;
+            if ((set != null) && !Wire.equalsIgnoreCase(set.getName(), rr.getName())){
+                cache.put(set, rank);
+                set = null;
+            }
+            if (set == null)
+                set = new RRset(rr.getName(), type, rr.getCl(), rr.getTtl());
+            set.add(rr.getRdata(), rr.getTtl());
+        }
+        if (set != null)
+            cache.put(set, rank);
+    }
+
+    /* Остаток запросов на одно разрешение, общий для вложенных разрешений */
+    private static final class Budget {
+
+        private int left;
+
+        private Budget(int left){
+            this.left = left;
+        }
+    }
+
+    /**
+     * Результат разрешения: код ответа, записи ответа (с цепочкой CNAME)
+     * и SOA для отрицательного ответа.
+     */
+    public static final class Resolution {
+
+        private int rcode = Rcode.NOERROR;
+
+        private final ArrayList<ResourceRecord> answers = new ArrayList<>();
+
+        private final ArrayList<ResourceRecord> authorities = new ArrayList<>();
+
+        public int getRcode() {
+            return rcode;
+        }
+
+        public ArrayList<ResourceRecord> getAnswers() {
+            return answers;
+        }
+
+        public ArrayList<ResourceRecord> getAuthorities() {
+            return authorities;
+        }
+
+        @Override
+        public String toString() {
+            return Rcode.nameOf(rcode) + " AN:" + answers + " NS:" + authorities;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package ru.mainnika.libs.net.dns.resolver;
+
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Вышестоящий сервер и его статистика: сглаженное время ответа (SRTT),
+ * его разброс и оценка отказов. Обновляется только потоком ввода-вывода
+ * {@link Forwarder}, читается откуда угодно.
+ *
+ * @author MainNika
+ */
+public final class Upstream {
+
+    private static final int IDS = 65536;
+
+    private final InetSocketAddress address;
+
+    /* Сглаженное время ответа и разброс в наносекундах; 0 - еще не измерено */
+    private volatile double srtt;
+
+    private volatile double rttvar;
+
+    /* Затухающий счетчик отказов: +1 за отказ, вдвое меньше за успех */
+    private volatile double failures;
+
+    private volatile long sent;
+
+    private volatile long answered;
+
+    DatagramChannel channel;
+
+    /* Попытки в полете по идентификатору */
+    final Forwarder.Attempt[] pending = new Forwarder.Attempt[IDS];
+
+    Upstream(InetSocketAddress address){
+        this.address = address;
+    }
+
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    public double getSrtt() {
+        return srtt;
+    }
+
+    public double getRttVar() {
+        return rttvar;
+    }
+
+    public double getFailures() {
+        return failures;
+    }
+
+    public long getSent() {
+        return sent;
+    }
+
+    public long getAnswered() {
+        return answered;
+    }
+
+    /* Ожидаемая задержка с поправкой на отказы; неизмеренный сервер дешевле всех */
+    double expected(){
+        return (srtt + 4 * rttvar) * (1 + failures);
+    }
+
+    /* Через сколько наносекунд без ответа запрос дублируется на другой сервер */
+    long deadline(long min, long max){
+        if (srtt == 0)
+            return max;
+        return Math.max(min, Math.min(max, (long) (srtt + 4 * rttvar)));
+    }
+
+    void sent(){
+        sent++;
+    }
+
+    /* Оценка по RFC 6298 */
+    void success(long rtt){
+        answered++;
+        if (srtt == 0){
+            srtt = rtt;
+            rttvar = rtt / 2.0;
+        }else{
+            rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - rtt);
+            srtt = 0.875 * srtt + 0.125 * rtt;
+        }
+        failures = failures / 2;
+    }
+
+    /* Таймаут или ответ-отказ; elapsed учитывается как нижняя оценка времени ответа */
+    void failure(long elapsed){
+        failures = failures + 1;
+        if (elapsed > srtt)
+            srtt = (srtt == 0) ? elapsed : 0.875 * srtt + 0.125 * elapsed;
+    }
+
+    @Override
+    public String toString() {
+        return address + String.format(" srtt %.2f ms rttvar %.2f ms failures %.2f", srtt / 1e6, rttvar / 1e6, failures);
+    }
+}
@@ -0,0 +1,328 @@
+package ru.mainnika.libs.net.dns.server;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Допуск запросов к обработчику при перегрузке. Принятый пакет получает
+ * метку времени прихода и попадает в ограниченную очередь одного из
+ * рабочих потоков; пакет, пролежавший в очереди дольше срока, выбрасывается
+ * без разбора или получает REFUSED: клиент к этому времени уже повторил
+ * запрос, и ответ ему не нужен. Переполненные очереди отсекают пакеты
+ * сразу при приеме.
+ *
+ * Число одновременных вызовов обработчика ограничено адаптивным пределом
+ * (AIMD по задержке): пока задержка обработчика не больше целевой, а
+ * занята хотя бы половина предела, предел растет на единицу за каждые
+ * "предел" вызовов; когда задержка превышает наименьшую наблюдаемую в
+ * tolerance раз (и не меньше порога), предел умножается на backoff, не
+ * чаще раза за целевую задержку. Наименьшая
+ * задержка пересчитывается каждые 10 секунд, чтобы следовать за
+ * изменением обработчика. Пакет сверх предела обрабатывается так же, как
+ * просроченный.
+ *
+ * Один объект настраивает один сервер: очереди создаются при запуске
+ * сервера по числу его рабочих потоков.
+ *
+ * @author MainNika
+ */
+public final class Admission {
+
+    public enum Action {
+        /** Не отвечать */
+        DROP,
+        /** Ответить REFUSED без вызова обработчика */
+        REFUSED
+    }
+
+    /* Период пересчета наименьшей задержки, нс */
+    private static final long WINDOW = TimeUnit.SECONDS.toNanos(10);
+
+    private long deadline = TimeUnit.MILLISECONDS.toNanos(500);
+
+    private int capacity = 1024;
+
+    private Action action = Action.DROP;
+
+    private int minLimit = 1;
+
+    private int maxLimit = 1024;
+
+    private double tolerance = 2.0;
+
+    private double backoff = 0.9;
+
+    private long threshold = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /* Текущий предел; меняется под монитором, читается без него */
+    private volatile double limit = 16;
+
+    private final AtomicInteger inflight = new AtomicInteger();
+
+    private long minLatency = Long.MAX_VALUE;
+
+    private long windowMin = Long.MAX_VALUE;
+
+    private long windowStart;
+
+    private long lastDecrease;
+
+    private final LongAdder admitted = new LongAdder();
+
+    private final LongAdder expired = new LongAdder();
+
+    private final LongAdder limited = new LongAdder();
+
+    private final LongAdder overflowed = new LongAdder();
+
+    /* Сколько пакет может ждать обработчика с момента приема */
+    public Admission setDeadline(long deadline, TimeUnit unit) {
+        if (deadline <= 0)
+            throw new IllegalArgumentException("Deadline must be positive");
+        this.deadline = unit.toNanos(deadline);
+        return this;
+    }
+
+    /* Емкость очереди одного рабочего потока, округляется вверх до степени двойки */
+    public Admission setCapacity(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Capacity must be positive");
+        this.capacity = Integer.highestOneBit(Math.max(2, capacity - 1) << 1);
+        return this;
+    }
+
+    /* Что делать с просроченным или не допущенным пакетом */
+    public Admission setAction(Action action) {
+        this.action = action;
+        return this;
+    }
+
+    /* Границы адаптивного предела одновременных вызовов; начальный предел - min */
+    public Admission setLimits(int min, int max) {
+        if ((min < 1) || (max < min))
+            throw new IllegalArgumentException("Invalid concurrency limits");
+        this.minLimit = min;
+        this.maxLimit = max;
+        this.limit = min;
+        return this;
+    }
+
+    /*
+     * Задержка обработчика считается выросшей, если она больше наименьшей
+     * в tolerance раз и больше threshold; задержки в микросекунды не
+     * ограничивают, чтобы не реагировать на паузы планировщика.
+     */
+    public Admission setTolerance(double tolerance, long threshold, TimeUnit unit) {
+        if (tolerance <= 1.0)
+            throw new IllegalArgumentException("Tolerance must be greater than 1");
+        this.tolerance = tolerance;
+        this.threshold = unit.toNanos(threshold);
+        return this;
+    }
+
+    /* Множитель уменьшения предела, от 0 до 1 */
+    public Admission setBackoff(double backoff) {
+        if ((backoff <= 0.0) || (backoff >= 1.0))
+            throw new IllegalArgumentException("Backoff must be between 0 and 1");
+        this.backoff = backoff;
+        return this;
+    }
+
+    public long getDeadline() {
+        return deadline;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public Action getAction() {
+        return action;
+    }
+
+    public int getLimit() {
+        return (int) limit;
+    }
+
+    public int getInflight() {
+        return inflight.get();
+    }
+
+    /* Пакетов, переданных обработчику */
+    public long getAdmitted() {
+        return admitted.sum();
+    }
+
+    /* Пакетов, пролежавших в очереди дольше срока */
+    public long getExpired() {
+        return expired.sum();
+    }
+
+    /* Пакетов сверх предела одновременных вызовов */
+    public long getLimited() {
+        return limited.sum();
+    }
+
+    /* Пакетов, не поместившихся ни в одну очередь */
+    public long getOverflowed() {
+        return overflowed.sum();
+    }
+
+    /*
+     * Решение по пакету из очереди: true - пакет передается обработчику и
+     * после ответа нужно вызвать {@link #complete(long, long)}.
+     */
+    boolean admit(long arrival, long now){
+        if (now - arrival > deadline){
+            expired.increment();
+            return false;
+        }
+        while (true){
+            int n = inflight.get();
+            if (n >= (int) limit){
+                limited.increment();
+                return false;
+            }
+            if (inflight.compareAndSet(n, n + 1)){
+                admitted.increment();
+                return true;
+            }
+        }
+    }
+
+    void overflow(){
+        overflowed.increment();
+    }
+
+    /* Завершение допущенного вызова с задержкой обработчика latency */
+    void complete(long latency, long now){
+        int used = inflight.getAndDecrement();
+        synchronized (this){
+            if (now - windowStart > WINDOW){
+                if (windowMin != Long.MAX_VALUE)
+                    minLatency = windowMin;
+                windowMin = Long.MAX_VALUE;
+                windowStart = now;
+            }
+            if (latency < windowMin)
+                windowMin = latency;
+            if (latency < minLatency)
+                minLatency = latency;
+            long target = Math.max(threshold, (long) (minLatency * tolerance));
+            double l = limit;
+            if (latency > target){
+                if (now - lastDecrease > target){
+                    limit = Math.max(minLimit, l * backoff);
+                    lastDecrease = now;
+                }
+            }else if ((l < maxLimit) && (used * 2 >= l)){
+                // предел растет, только пока он действительно используется
+                limit = Math.min(maxLimit, l + 1.0 / l);
+            }
+        }
+    }
+
+    Queue[] queues(int count){
+        Queue[] ret = new Queue[count];
+        for (int i = 0; i < count; i++)
+            ret[i] = new Queue(capacity);
+        return ret;
+    }
+
+    /* ———————————————————— Очередь рабочего потока —————————————————————— */
+
+    /*
+     * Кольцевая очередь с одним писателем (поток приема) и одним читателем
+     * (рабочий поток). Читатель засыпает на пустой очереди, писатель будит
+     * его после записи.
+     */
+    static final class Queue {
+
+        private final ByteBuffer[] packets;
+
+        private final InetSocketAddress[] clients;
+
+        private final long[] arrivals;
+
+        private final int mask;
+
+        /* Следующий элемент для читателя и для писателя */
+        private volatile long head;
+
+        private volatile long tail;
+
+        private volatile Thread waiter;
+
+        private Queue(int capacity){
+            packets = new ByteBuffer[capacity];
+            clients = new InetSocketAddress[capacity];
+            arrivals = new long[capacity];
+            mask = capacity - 1;
+        }
+
+        /* Писатель: false, если очередь полна */
+        boolean offer(ByteBuffer packet, InetSocketAddress client, long arrival){
+            long t = tail;
+            if (t - head > mask)
+                return false;
+            int i = (int) t & mask;
+            packets[i] = packet;
+            clients[i] = client;
+            arrivals[i] = arrival;
+            tail = t + 1;
+            Thread w = waiter;
+            if (w != null)
+                LockSupport.unpark(w);
+            return true;
+        }
+
+        /* Читатель: ждет элемент не дольше timeout нс; false - очередь пуста */
+        boolean await(long timeout){
+            if (head != tail)
+                return true;
+            waiter = Thread.currentThread();
+            try{
+                if (head == tail)
+                    LockSupport.parkNanos(this, timeout);
+            }finally{
+                waiter = null;
+            }
+            return head != tail;
+        }
+
+        /* Читатель: первый элемент; действителен до {@link #remove()} */
+        ByteBuffer packet(){
+            return packets[(int) head & mask];
+        }
+
+        InetSocketAddress client(){
+            return clients[(int) head & mask];
+        }
+
+        long arrival(){
+            return arrivals[(int) head & mask];
+        }
+
+        /* Читатель: освобождает первый элемент */
+        void remove(){
+            long h = head;
+            int i = (int) h & mask;
+            packets[i] = null;
+            clients[i] = null;
+            head = h + 1;
+        }
+
+        /* Читатель: пакеты, оставшиеся после остановки */
+        ByteBuffer poll(){
+            if (head == tail)
+                return null;
+            ByteBuffer ret = packet();
+            remove();
+            return ret;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package ru.mainnika.libs.net.dns.server;
+
+import java.net.InetSocketAddress;
+import ru.mainnika.libs.net.dns.Dns;
+import ru.mainnika.libs.net.dns.DnsException;
+
+/**
+ * Обработчик запросов сервера. Вызывается из рабочих потоков сервера
+ * одновременно, поэтому должен быть потокобезопасным. Запрос действителен
+ * только до возврата из handle: сервер возвращает его в пул.
+ *
+ * @author MainNika
+ */
+public interface Handler {
+
+    /* Ответ на запрос или null, если отвечать не нужно; udp - запрос пришел по UDP */
+    public Dns handle(Dns request, InetSocketAddress client, boolean udp) throws DnsException;
+}
@@ -0,0 +1,235 @@
+package ru.mainnika.libs.net.dns.server;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import ru.mainnika.libs.net.dns.Wire;
+
+/**
+ * Ограничение частоты ответов (Response Rate Limiting). Ведра токенов
+ * различаются префиксом сети клиента и классом ответа: для ответов с
+ * данными - имя и тип вопроса, для NXDOMAIN и NODATA - зона, для
+ * делегирований - точка делегирования, для ошибок - только префикс.
+ *
+ * Таблица фиксированного размера без блокировок: каждое ведро - один
+ * long (32 бита отпечатка ключа, 16 бит баланса со знаком, 16 бит времени
+ * в секундах), обновляемый через CAS. Ключ ищется в группе из 4 соседних
+ * ячеек, при нехватке места вытесняется самое старое ведро. Проверка не
+ * выделяет память и выполняется до сборки ответа.
+ *
+ * @author MainNika
+ */
+public final class RateLimiter {
+
+    public enum Action {
+        /** Отправить ответ */
+        SEND,
+        /** Не отвечать */
+        DROP,
+        /** Отправить усеченный ответ с TC, чтобы настоящий клиент перешел на TCP */
+        SLIP
+    }
+
+    /* Классы ответа */
+    public static final int ANSWER = 0;
+    public static final int NODATA = 1;
+    public static final int NXDOMAIN = 2;
+    public static final int REFERRAL = 3;
+    public static final int ERROR = 4;
+
+    private static final int CLASSES = 5;
+
+    private static final int WAYS = 4;
+
+    private final AtomicLongArray table;
+
+    private final int mask;
+
+    private final int[] rates = new int[CLASSES];
+
+    private int window = 15;
+
+    private int slip = 2;
+
+    private int ipv4Prefix = 24;
+
+    private int ipv6Prefix = 56;
+
+    private final long epoch = System.nanoTime();
+
+    private final LongAdder limited = new LongAdder();
+
+    private final LongAdder slipped = new LongAdder();
+
+    /* size - число ведер, округляется вверх до степени двойки */
+    public RateLimiter(int size){
+        int n = Integer.highestOneBit(Math.max(WAYS, size - 1) << 1);
+        table = new AtomicLongArray(n);
+        mask = n - 1;
+    }
+
+    /* Ответов в секунду на ведро для ответов с данными, NODATA и делегирований; 0 - без ограничения */
+    public RateLimiter setResponsesPerSecond(int rate) {
+        rates[ANSWER] = check(rate, window);
+        rates[NODATA] = rates[ANSWER];
+        rates[REFERRAL] = rates[ANSWER];
+        return this;
+    }
+
+    public RateLimiter setNxdomainsPerSecond(int rate) {
+        rates[NXDOMAIN] = check(rate, window);
+        return this;
+    }
+
+    public RateLimiter setErrorsPerSecond(int rate) {
+        rates[ERROR] = check(rate, window);
+        return this;
+    }
+
+    /* За сколько секунд копится долг ведра; больше - дольше помнится атака */
+    public RateLimiter setWindow(int window) {
+        if ((window < 1) || (window > 3600))
+            throw new IllegalArgumentException("Window out of range");
+        for (int rate : rates)
+            check(rate, window);
+        this.window = window;
+        return this;
+    }
+
+    /* Каждый slip-й в среднем ограниченный ответ уходит усеченным; 0 - только отбрасывать */
+    public RateLimiter setSlip(int slip) {
+        this.slip = Math.max(0, slip);
+        return this;
+    }
+
+    public RateLimiter setPrefixLength(int ipv4, int ipv6) {
+        this.ipv4Prefix = Math.max(0, Math.min(32, ipv4));
+        this.ipv6Prefix = Math.max(0, Math.min(128, ipv6));
+        return this;
+    }
+
+    private static int check(int rate, int window){
+        if ((rate < 0) || ((long) rate * window > Short.MAX_VALUE))
+            throw new IllegalArgumentException("Rate times window must not exceed " + Short.MAX_VALUE);
+        return rate;
+    }
+
+    /*
+     * Решение по ответу клиенту addr (4 или 16 байт) класса cls; name[off] -
+     * ключевое имя класса (null для ошибок), qtype учитывается для ANSWER.
+     */
+    public Action check(byte[] addr, int cls, byte[] name, int off, int qtype){
+        int rate = rates[cls];
+        if (rate == 0)
+            return Action.SEND;
+        return check(hash(prefix(addr), cls, name, off, qtype), rate);
+    }
+
+    /*
+     * То же для адреса клиента. Адрес IPv4 берется из hashCode, который у
+     * Inet4Address равен самому адресу, поэтому проверка не копирует его
+     * байты; у IPv6 такого доступа нет, и адрес копируется getAddress.
+     */
+    public Action check(InetAddress addr, int cls, byte[] name, int off, int qtype){
+        int rate = rates[cls];
+        if (rate == 0)
+            return Action.SEND;
+        long h = (addr instanceof Inet4Address) ? prefix(addr.hashCode()) : prefix(addr.getAddress());
+        return check(hash(h, cls, name, off, qtype), rate);
+    }
+
+    private Action check(long h, int rate){
+        int fp = (int) (h >>> 32) | 1;
+        int now = (int) ((System.nanoTime() - epoch) / 1000000000L) & 0xffff;
+        int base = (int) h & mask & ~(WAYS - 1);
+        retry:
+        while (true){
+            int victim = base;
+            int oldest = -1;
+            long victimState = 0;
+            for (int i = 0; i < WAYS; i++){
+                long s = table.get(base + i);
+                if ((s != 0) && ((int) (s >>> 32) == fp)){
+                    int balance = balance(s, now, rate) - 1;
+                    if (balance < -rate * window)
+                        balance = -rate * window;
+                    if (!table.compareAndSet(base + i, s, pack(fp, balance, now)))
+                        continue retry;
+                    return decide(balance);
+                }
+                int age = (s == 0) ? Integer.MAX_VALUE : (now - (int) (s & 0xffff)) & 0xffff;
+                if (age > oldest){
+                    oldest = age;
+                    victim = base + i;
+                    victimState = s;
+                }
+            }
+            if ((oldest >= 0) && table.compareAndSet(victim, victimState, pack(fp, rate - 1, now)))
+                return Action.SEND;
+        }
+    }
+
+    /* Баланс ведра на момент now с учетом пополнения */
+    private int balance(long s, int now, int rate){
+        int balance = (short) (s >>> 16);
+        int elapsed = (now - (int) (s & 0xffff)) & 0xffff;
+        if (elapsed >= window)
+            return rate;
+        return (int) Math.min(rate, balance + (long) elapsed * rate);
+    }
+
+    private static long pack(int fp, int balance, int now){
+        return ((long) fp << 32) | ((long) (balance & 0xffff) << 16) | (now & 0xffff);
+    }
+
+    private Action decide(int balance){
+        if (balance >= 0)
+            return Action.SEND;
+        limited.increment();
+        if ((slip > 0) && ((slip == 1) || (ThreadLocalRandom.current().nextInt(slip) == 0))){
+            slipped.increment();
+            return Action.SLIP;
+        }
+        return Action.DROP;
+    }
+
+    /* Хэш префикса сети клиента */
+    private long prefix(byte[] addr){
+        int bits = (addr.length == 4) ? ipv4Prefix : ipv6Prefix;
+        long h = addr.length;
+        for (int i = 0; (i < addr.length) && (bits > 0); i++, bits -= 8)
+            h = h * 31 + (addr[i] & ((bits >= 8) ? 0xff : (0xff00 >> bits) & 0xff));
+        return h;
+    }
+
+    /* То же для адреса IPv4 в int, старший байт первый */
+    private long prefix(int addr){
+        int bits = ipv4Prefix;
+        long h = 4;
+        for (int i = 0; (i < 4) && (bits > 0); i++, bits -= 8)
+            h = h * 31 + ((addr >>> (24 - i * 8)) & ((bits >= 8) ? 0xff : (0xff00 >> bits) & 0xff));
+        return h;
+    }
+
+    private static long hash(long h, int cls, byte[] name, int off, int qtype){
+        h = h * 31 + cls;
+        if (cls == ANSWER)
+            h = h * 31 + qtype;
+        if (name != null)
+            h = h * 31 + Wire.hashIgnoreCase(name, off);
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+
+    /* Ответов, попавших под ограничение (отброшенных и усеченных) */
+    public long getLimited() {
+        return limited.sum();
+    }
+
+    public long getSlipped() {
+        return slipped.sum();
+    }
+}
@@ -0,0 +1,376 @@
+package ru.mainnika.libs.net.dns.server;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import ru.mainnika.libs.net.dns.Rcode;
+import ru.mainnika.libs.net.dns.ResourceRecord;
+import ru.mainnika.libs.net.dns.Type;
+import ru.mainnika.libs.net.dns.Wire;
+
+/**
+ * Ответ, собираемый прямо в буфере принятого запроса. Идентификатор и
+ * секция вопроса остаются на месте байт в байт, в заголовке меняются только
+ * флаги и счетчики, а записи дописываются сразу за вопросом поверх
+ * остальных байт запроса. Имена сжимаются указателями на суффиксы имени
+ * вопроса, прочие пишутся целиком. Если запись ответа или авторитетных не
+ * помещается, ответ становится пустым усеченным с флагом TC, как
+ * {@link Responses#truncated}; не поместившиеся дополнительные записи
+ * просто отбрасываются (RFC 2181, раздел 9).
+ *
+ * Запрос с EDNS (одна запись OPT версии 0 в дополнительной секции)
+ * получает в ответ свою OPT, и по UDP размер ответа ограничен размером,
+ * объявленным клиентом, а не 512 байтами (RFC 6891). Прочие запросы с
+ * записями в секциях, например с TSIG, отдаются разбору в Dns.
+ *
+ * Экземпляр переиспользуется и не потокобезопасен.
+ *
+ * @author MainNika
+ */
+public final class ResponseWriter {
+
+    /* Секции ответа; писать их можно только по порядку */
+    public static final int ANSWER = 0;
+    public static final int AUTHORITY = 1;
+    public static final int ADDITIONAL = 2;
+
+    /* Смещение имени вопроса в сообщении */
+    private static final int QNAME = 12;
+
+    /* Запись OPT без параметров: корневое имя, тип, класс, TTL и длина RDATA */
+    private static final int OPT_SIZE = 11;
+
+    /* Наибольший ответ по UDP без EDNS (RFC 1035) */
+    private static final int PLAIN_UDP = 512;
+
+    /* Копия имени вопроса для поиска и сжатия */
+    private final byte[] qname = new byte[Wire.MAX_NAME];
+
+    /* Смещения меток в qname */
+    private final int[] qlabels = new int[Wire.MAX_LABELS];
+
+    private int qlabelCount;
+
+    private int qtype;
+
+    private int qclass;
+
+    private final int[] counts = new int[3];
+
+    private ByteBuffer buf;
+
+    /* Конец секции вопроса */
+    private int question;
+
+    private int limit;
+
+    private int pos;
+
+    private int section;
+
+    private int rcode;
+
+    private boolean aa;
+
+    private boolean ra;
+
+    private boolean tc;
+
+    private boolean done;
+
+    /* В запросе была OPT: ответ тоже ее несет */
+    private boolean edns;
+
+    /* Бит DO запроса, копируется в ответ (RFC 3225) */
+    private boolean dnssecOk;
+
+    /* Размер UDP, объявляемый в OPT ответа */
+    private int ednsSize;
+
+    /*
+     * Начинает ответ в буфере с запросом от нуля до предела buf для
+     * потокового транспорта: размер ответа ограничен только max. Возвращает
+     * false и ничего не меняет, если это не стандартный запрос с одним
+     * несжатым вопросом и не больше чем одной OPT: такой нужно разобрать в
+     * {@link ru.mainnika.libs.net.dns.Dns}.
+     */
+    public boolean begin(ByteBuffer buf, int max){
+        return begin(buf, max, max, false);
+    }
+
+    /*
+     * То же для UDP: без EDNS ответ не больше 512 байт, с EDNS - не больше
+     * размера из OPT клиента и не больше max, который и объявляется в ответе.
+     */
+    public boolean beginDatagram(ByteBuffer buf, int max){
+        return begin(buf, PLAIN_UDP, Math.max(PLAIN_UDP, max), true);
+    }
+
+    private boolean begin(ByteBuffer buf, int plain, int max, boolean udp){
+        this.buf = null;
+        int end = buf.limit();
+        buf.order(ByteOrder.BIG_ENDIAN);
+        if ((end < QNAME) || ((buf.get(2) & 0xf8) != 0) || (buf.getShort(4) != 1))
+            return false;
+        if ((buf.getShort(6) != 0) || (buf.getShort(8) != 0) || ((buf.getShort(10) & 0xffff) > 1))
+            return false;
+        int off = QNAME;
+        int len = 0;
+        qlabelCount = 0;
+        while (true){
+            if (off >= end)
+                return false;
+            int l = buf.get(off) & 0xff;
+            // сжатие в вопросе запроса не встречается на практике
+            if ((l > 63) || (off + l + 1 > end) || (len + l + 1 > Wire.MAX_NAME))
+                return false;
+            if (l == 0)
+                break;
+            qlabels[qlabelCount++] = len;
+            buf.get(off, qname, len, l + 1);
+            len += l + 1;
+            off += l + 1;
+        }
+        qname[len] = 0;
+        off++;
+        if (off + 4 > end)
+            return false;
+        qtype = buf.getShort(off) & 0xffff;
+        qclass = buf.getShort(off + 2) & 0xffff;
+        off += 4;
+        edns = buf.getShort(10) != 0;
+        int size = plain;
+        if (edns){
+            // только OPT версии 0 с корневым именем, занимающая остаток запроса
+            if ((off + OPT_SIZE > end) || (buf.get(off) != 0) || (buf.getShort(off + 1) != Type.OPT)
+                    || (buf.get(off + 6) != 0) || (off + OPT_SIZE + (buf.getShort(off + 9) & 0xffff) != end))
+                return false;
+            dnssecOk = (buf.get(off + 7) & 0x80) != 0;
+            ednsSize = max;
+            size = udp ? Math.min(max, Math.max(PLAIN_UDP, buf.getShort(off + 3) & 0xffff)) : max;
+            size -= OPT_SIZE;
+        }
+        this.buf = buf;
+        question = off;
+        limit = Math.max(question, Math.min(size, buf.capacity() - (edns ? OPT_SIZE : 0)));
+        done = false;
+        reset();
+        return true;
+    }
+
+    /* Несжатое имя вопроса как в запросе; массив переиспользуется */
+    public byte[] getQname() {
+        return qname;
+    }
+
+    public int getQtype() {
+        return qtype;
+    }
+
+    public int getQclass() {
+        return qclass;
+    }
+
+    public ResponseWriter setRcode(int rcode) {
+        this.rcode = rcode & 0xf;
+        return this;
+    }
+
+    public ResponseWriter setAa() {
+        this.aa = true;
+        return this;
+    }
+
+    public ResponseWriter setRa() {
+        this.ra = true;
+        return this;
+    }
+
+    public boolean isTruncated() {
+        return tc;
+    }
+
+    /* Ответ собран вызовом {@link #finish()} */
+    public boolean isDone() {
+        return done;
+    }
+
+    /* Убирает записи и флаги ответа, вопрос остается */
+    public ResponseWriter reset(){
+        check();
+        pos = question;
+        counts[ANSWER] = 0;
+        counts[AUTHORITY] = 0;
+        counts[ADDITIONAL] = 0;
+        section = ANSWER;
+        rcode = Rcode.NOERROR;
+        aa = false;
+        ra = false;
+        tc = false;
+        return this;
+    }
+
+    /* Пустой ответ с флагом TC: клиент должен повторить запрос по TCP */
+    public ResponseWriter truncate(){
+        reset();
+        tc = true;
+        return this;
+    }
+
+    public boolean add(int section, ResourceRecord rr){
+        return add(section, rr.getName(), rr.getType(), rr.getCl(), rr.getTtl(), rr.getRdata());
+    }
+
+    /* Добавляет запись в секцию; false, если ответ пришлось усечь */
+    public boolean add(int section, byte[] owner, int type, int cl, long ttl, byte[] rdata){
+        check();
+        if (section < this.section)
+            throw new IllegalStateException("Sections must be written in order");
+        if (tc)
+            return false;
+        this.section = section;
+        buf.limit(limit);
+        int start = pos;
+        if (!name(owner, 0) || (pos + 10 > limit))
+            return overflow(section, start);
+        buf.putShort(pos, (short) type);
+        buf.putShort(pos + 2, (short) cl);
+        buf.putInt(pos + 4, (int) ttl);
+        int rdlength = pos + 8;
+        pos += 10;
+        if (!rdata(type, rdata))
+            return overflow(section, start);
+        buf.putShort(rdlength, (short) (pos - rdlength - 2));
+        counts[section]++;
+        return true;
+    }
+
+    /* Запись с start не поместилась: дополнительная откатывается, иначе ответ усекается */
+    private boolean overflow(int section, int start){
+        if (section == ADDITIONAL)
+            pos = start;
+        else
+            truncate();
+        return false;
+    }
+
+    /*
+     * Заголовок ответа: QR, флаги AA, TC и RA, код ответа и счетчики; опкод
+     * и RD остаются от запроса. Запросу с EDNS дописывается OPT, место под
+     * нее оставлено с самого начала. Возвращает тот же буфер с позицией 0 и
+     * пределом в конце ответа.
+     */
+    public ByteBuffer finish(){
+        check();
+        int additional = counts[ADDITIONAL];
+        if (edns){
+            buf.limit(pos + OPT_SIZE);
+            buf.put(pos, (byte) 0);
+            buf.putShort(pos + 1, (short) Type.OPT);
+            buf.putShort(pos + 3, (short) ednsSize);
+            buf.putInt(pos + 5, dnssecOk ? 0x8000 : 0);
+            buf.putShort(pos + 9, (short) 0);
+            pos += OPT_SIZE;
+            additional++;
+        }
+        int flags = 0x80 | (buf.get(2) & 0x79) | (aa ? 0x04 : 0) | (tc ? 0x02 : 0);
+        buf.put(2, (byte) flags);
+        buf.put(3, (byte) ((ra ? 0x80 : 0) | rcode));
+        buf.putShort(6, (short) counts[ANSWER]);
+        buf.putShort(8, (short) counts[AUTHORITY]);
+        buf.putShort(10, (short) additional);
+        buf.limit(pos).position(0);
+        done = true;
+        return buf;
+    }
+
+    private void check(){
+        if ((buf == null) || done)
+            throw new IllegalStateException("Response is not started");
+    }
+
+    /* RDATA со сжатием имен в типах, где оно разрешено (RFC 3597, раздел 4) */
+    private boolean rdata(int type, byte[] rdata){
+        int prefix;
+        int names;
+        switch (type){
+            case Type.NS:
+            case Type.CNAME:
+            case Type.PTR:
+                prefix = 0;
+                names = 1;
+                break;
+            case Type.MX:
+                prefix = 2;
+                names = 1;
+                break;
+            case Type.SOA:
+                prefix = 0;
+                names = 2;
+                break;
+            default:
+                return raw(rdata, 0, rdata.length);
+        }
+        if (!raw(rdata, 0, prefix))
+            return false;
+        int off = prefix;
+        for (int i = 0; i < names; i++){
+            if (!valid(rdata, off))
+                return raw(rdata, off, rdata.length - off);
+            if (!name(rdata, off))
+                return false;
+            off += Wire.nameLength(rdata, off);
+        }
+        return raw(rdata, off, rdata.length - off);
+    }
+
+    /* Целое несжатое имя внутри массива */
+    private static boolean valid(byte[] b, int off){
+        while (off < b.length){
+            int len = b[off] & 0xff;
+            if (len == 0)
+                return true;
+            if (len > 63)
+                return false;
+            off += len + 1;
+        }
+        return false;
+    }
+
+    private boolean raw(byte[] b, int off, int len){
+        if (pos + len > limit)
+            return false;
+        buf.put(pos, b, off, len);
+        pos += len;
+        return true;
+    }
+
+    /* Имя со сжатием по самому длинному общему суффиксу с именем вопроса */
+    private boolean name(byte[] name, int off){
+        // суффиксы с одинаковым числом меток сравниваются, начиная с самого длинного
+        int skip = Wire.labelCount(name, off) - qlabelCount;
+        int q = Math.max(0, -skip);
+        while (name[off] != 0){
+            if (skip > 0){
+                skip--;
+            }else if (Wire.equalsIgnoreCase(name, off, qname, qlabels[q])){
+                if (pos + 2 > limit)
+                    return false;
+                buf.putShort(pos, (short) (0xc000 | (QNAME + qlabels[q])));
+                pos += 2;
+                return true;
+            }else{
+                q++;
+            }
+            int len = name[off] & 0xff;
+            if (pos + len + 1 > limit)
+                return false;
+            buf.put(pos, name, off, len + 1);
+            pos += len + 1;
+            off += len + 1;
+        }
+        if (pos + 1 > limit)
+            return false;
+        buf.put(pos++, (byte) 0);
+        return true;
+    }
+}
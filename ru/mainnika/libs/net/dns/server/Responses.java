@@ -0,0 +1,50 @@
+package ru.mainnika.libs.net.dns.server;
+
+import ru.mainnika.libs.net.dns.Dns;
+import ru.mainnika.libs.net.dns.DnsException;
+import ru.mainnika.libs.net.dns.Rcode;
+
+/**
+ * Служебные ответы без записей: ошибки и усеченные ответы.
+ *
+ * @author MainNika
+ */
+public final class Responses {
+
+    private Responses(){
+    }
+
+    /* Пустой ответ с идентификатором, флагами и вопросом запроса */
+    public static Dns reply(Dns request) throws DnsException{
+        Dns response = new Dns();
+        response.setId(request.getId()).setOpcode(request.getOpcode()).setQr();
+        if (request.issetRd())
+            response.setRd();
+        if (request.getQdcount() > 0){
+            Dns.Query query = request.getQueryAt(0);
+            response.addQuery(query.getWireName(), query.getType() & 0xffff, query.getCl() & 0xffff);
+        }
+        return response;
+    }
+
+    public static Dns error(Dns request, byte rcode) throws DnsException{
+        return reply(request).setRcode(rcode);
+    }
+
+    /* Ответ с флагом TC: клиент должен повторить запрос по TCP */
+    public static Dns truncated(Dns request) throws DnsException{
+        return reply(request).setTc();
+    }
+
+    /* FORMERR на пакет, который не удалось разобрать; null, если нет даже заголовка */
+    public static byte[] formerr(byte[] raw, int length){
+        if ((length < 12) || ((raw[2] & 0x80) != 0))
+            return null;
+        byte[] ret = new byte[12];
+        ret[0] = raw[0];
+        ret[1] = raw[1];
+        ret[2] = (byte) (0x80 | (raw[2] & 0x79));
+        ret[3] = Rcode.FORMERR;
+        return ret;
+    }
+}
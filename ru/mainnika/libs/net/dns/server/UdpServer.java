@@ -0,0 +1,333 @@
+package ru.mainnika.libs.net.dns.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.TimeUnit;
+import ru.mainnika.libs.net.dns.Dns;
+import ru.mainnika.libs.net.dns.DnsException;
+import ru.mainnika.libs.net.dns.Rcode;
+import ru.mainnika.libs.net.dns.io.BufferArena;
+import ru.mainnika.libs.net.dns.log.QueryLog;
+import ru.mainnika.libs.net.dns.metrics.Metrics;
+
+/**
+ * Сервер DNS по UDP. Несколько рабочих потоков читают один канал в
+ * блокирующем режиме; каждый поток разбирает запрос, вызывает обработчик
+ * и отправляет ответ. Ответ больше допустимого размера заменяется
+ * усеченным с флагом TC. Запрос берется из пула потока и возвращается
+ * туда после ответа. Прием и отправка идут через прямые буферы
+ * {@link BufferArena}. Для разбора в Dns пакет один раз копируется из
+ * буфера приема в массив запроса из пула (без выделения памяти, но с
+ * копией). Без копирования работает только путь {@link WireHandler}: если
+ * обработчик его реализует, обычный запрос сначала отвечается прямо в
+ * буфере приема, без разбора в Dns.
+ *
+ * С {@link Admission} канал читает один поток приема: он помечает пакеты
+ * временем прихода и раскладывает по очередям рабочих потоков, а рабочие
+ * потоки отбрасывают просроченные пакеты и пакеты сверх предела
+ * одновременных вызовов обработчика, не тратя время на их разбор.
+ *
+ * @author MainNika
+ */
+public final class UdpServer implements Closeable {
+
+    /* Наибольший ответ по UDP без EDNS */
+    public static final int MAX_PAYLOAD = 512;
+
+    /* Наибольший ответ по UDP клиенту с EDNS: без фрагментации в большинстве сетей */
+    public static final int MAX_EDNS_PAYLOAD = 1232;
+
+    private final DatagramChannel channel;
+
+    private final Handler handler;
+
+    private final WireHandler wire;
+
+    private final Thread[] workers;
+
+    private Thread receiver;
+
+    private Admission admission;
+
+    private Admission.Queue[] queues;
+
+    private QueryLog log;
+
+    private BufferArena arena = BufferArena.get();
+
+    private volatile boolean running;
+
+    public UdpServer(InetSocketAddress bind, Handler handler, int threads) throws IOException{
+        this.handler = handler;
+        this.wire = (handler instanceof WireHandler) ? (WireHandler) handler : null;
+        this.channel = DatagramChannel.open();
+        this.channel.bind(bind);
+        this.workers = new Thread[Math.max(1, threads)];
+    }
+
+    /* Журнал запросов и ответов, null - без журнала */
+    public UdpServer setQueryLog(QueryLog log) {
+        this.log = log;
+        return this;
+    }
+
+    /* Арена буферов приема и отправки; по умолчанию общая */
+    public UdpServer setArena(BufferArena arena) {
+        this.arena = arena;
+        return this;
+    }
+
+    /* Допуск запросов при перегрузке, null - рабочие потоки читают канал сами; задается до запуска */
+    public UdpServer setAdmission(Admission admission) {
+        if (running)
+            throw new IllegalStateException("Server is already started");
+        this.admission = admission;
+        return this;
+    }
+
+    public InetSocketAddress getLocalAddress() throws IOException{
+        return (InetSocketAddress) channel.getLocalAddress();
+    }
+
+    public synchronized UdpServer start(){
+        if (running)
+            return this;
+        running = true;
+        if (admission != null){
+            queues = admission.queues(workers.length);
+            receiver = new Thread(this::receive, "dns-udp-rx");
+            receiver.setDaemon(true);
+        }
+        for (int i = 0; i < workers.length; i++){
+            Admission.Queue queue = (queues != null) ? queues[i] : null;
+            workers[i] = new Thread(() -> {
+                if (queue != null)
+                    drain(queue);
+                else
+                    serve();
+            }, "dns-udp-" + Integer.toString(i));
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+        if (receiver != null)
+            receiver.start();
+        return this;
+    }
+
+    private void serve(){
+        BufferArena arena = this.arena;
+        ByteBuffer in = arena.acquire(BufferArena.LARGE);
+        ResponseWriter writer = new ResponseWriter();
+        try{
+            while (running){
+                InetSocketAddress client;
+                try{
+                    in.clear();
+                    client = (InetSocketAddress) channel.receive(in);
+                }catch(ClosedChannelException e){
+                    return;
+                }catch(IOException e){
+                    continue;
+                }
+                in.flip();
+                try{
+                    respond(in, client, arena, writer);
+                }catch(IOException e){
+                    // ответ одному клиенту не должен останавливать поток
+                }
+            }
+        }finally{
+            arena.release(in);
+        }
+    }
+
+    /* Поток приема: копирует пакеты в буферы арены и раздает по очередям по кругу */
+    private void receive(){
+        BufferArena arena = this.arena;
+        ByteBuffer in = arena.acquire(BufferArena.LARGE);
+        ResponseWriter writer = new ResponseWriter();
+        int next = 0;
+        try{
+            while (running){
+                InetSocketAddress client;
+                try{
+                    in.clear();
+                    client = (InetSocketAddress) channel.receive(in);
+                }catch(ClosedChannelException e){
+                    return;
+                }catch(IOException e){
+                    continue;
+                }
+                long arrival = System.nanoTime();
+                in.flip();
+                ByteBuffer packet = arena.acquire(in.remaining());
+                packet.put(in).flip();
+                boolean queued = false;
+                for (int i = 0; (i < queues.length) && !queued; i++){
+                    queued = queues[next].offer(packet, client, arrival);
+                    next = (next + 1) % queues.length;
+                }
+                if (queued)
+                    continue;
+                admission.overflow();
+                try{
+                    shed(packet, client, writer);
+                }catch(IOException e){
+                    // отказ одному клиенту не должен останавливать прием
+                }finally{
+                    arena.release(packet);
+                }
+            }
+        }finally{
+            arena.release(in);
+        }
+    }
+
+    /* Рабочий поток с допуском: отвечает на пакеты из своей очереди */
+    private void drain(Admission.Queue queue){
+        BufferArena arena = this.arena;
+        Admission admission = this.admission;
+        ResponseWriter writer = new ResponseWriter();
+        long wait = TimeUnit.MILLISECONDS.toNanos(100);
+        try{
+            while (running){
+                if (!queue.await(wait))
+                    continue;
+                ByteBuffer packet = queue.packet();
+                InetSocketAddress client = queue.client();
+                long arrival = queue.arrival();
+                queue.remove();
+                try{
+                    long start = System.nanoTime();
+                    if (Metrics.enabled)
+                        Metrics.get().record(Metrics.Stage.QUEUE, start - arrival);
+                    if (!admission.admit(arrival, start)){
+                        shed(packet, client, writer);
+                        continue;
+                    }
+                    try{
+                        respond(packet, client, arena, writer);
+                    }finally{
+                        long now = System.nanoTime();
+                        admission.complete(now - start, now);
+                    }
+                }catch(IOException e){
+                    // ответ одному клиенту не должен останавливать поток
+                }finally{
+                    arena.release(packet);
+                }
+            }
+        }finally{
+            ByteBuffer packet;
+            while ((packet = queue.poll()) != null)
+                arena.release(packet);
+        }
+    }
+
+    /* Пакет, не допущенный к обработчику: REFUSED стандартному запросу или ничего */
+    private void shed(ByteBuffer in, InetSocketAddress client, ResponseWriter writer) throws IOException{
+        if ((admission.getAction() == Admission.Action.REFUSED) && writer.beginDatagram(in, MAX_EDNS_PAYLOAD))
+            send(writer.setRcode(Rcode.REFUSED).finish(), client, log);
+    }
+
+    private void respond(ByteBuffer in, InetSocketAddress client, BufferArena arena, ResponseWriter writer) throws IOException{
+        boolean measure = Metrics.enabled;
+        long start = measure ? System.nanoTime() : 0;
+        QueryLog log = this.log;
+        if (log != null)
+            log.log(QueryLog.CLIENT_QUERY, client, in);
+        if (respondInPlace(in, client, writer, log)){
+            if (measure)
+                Metrics.get().record(Metrics.Stage.SERVE, System.nanoTime() - start);
+            return;
+        }
+        Dns request = Dns.acquire();
+        ByteBuffer out;
+        try{
+            try{
+                request.fromRaw(in);
+            }catch(DnsException e){
+                byte[] raw = request.getSourceRaw();
+                byte[] formerr = Responses.formerr(raw, raw.length);
+                if (formerr != null)
+                    send(ByteBuffer.wrap(formerr), client, log);
+                return;
+            }
+            try{
+                Dns response = handler.handle(request, client, true);
+                if (response == null)
+                    return;
+                if (response.getSize() > MAX_PAYLOAD)
+                    response = Responses.truncated(request);
+                out = encode(response, arena);
+            }catch(Exception e){
+                try{
+                    out = encode(Responses.error(request, Rcode.SERVFAIL), arena);
+                }catch(Exception ignored){
+                    return;
+                }
+            }
+        }finally{
+            request.release();
+        }
+        try{
+            send(out, client, log);
+        }finally{
+            arena.release(out);
+        }
+        if (measure)
+            Metrics.get().record(Metrics.Stage.SERVE, System.nanoTime() - start);
+    }
+
+    /* Ответ прямо в буфере приема; false - запрос нужно разобрать в Dns */
+    private boolean respondInPlace(ByteBuffer in, InetSocketAddress client, ResponseWriter writer, QueryLog log) throws IOException{
+        if ((wire == null) || !writer.beginDatagram(in, MAX_EDNS_PAYLOAD))
+            return false;
+        try{
+            if (!wire.respond(writer, client, true))
+                return false;
+        }catch(Exception e){
+            if (!writer.isDone())
+                writer.reset().setRcode(Rcode.SERVFAIL).finish();
+        }
+        if (writer.isDone())
+            send(in, client, log);
+        return true;
+    }
+
+    /* Ответ в буфере арены, готовом к отправке */
+    private static ByteBuffer encode(Dns response, BufferArena arena) throws Exception{
+        ByteBuffer out = arena.acquire(response.getSize());
+        try{
+            response.getRaw(out);
+        }catch(Exception e){
+            arena.release(out);
+            throw e;
+        }
+        return out.flip();
+    }
+
+    /* Отправляет буфер с нулевой позиции до предела */
+    private void send(ByteBuffer out, InetSocketAddress client, QueryLog log) throws IOException{
+        channel.send(out, client);
+        if (log != null){
+            out.position(0);
+            log.log(QueryLog.CLIENT_RESPONSE, client, out);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        channel.close();
+        if (receiver != null)
+            receiver.interrupt();
+        for (Thread worker : workers)
+            if (worker != null)
+                worker.interrupt();
+    }
+}
@@ -0,0 +1,245 @@
+package ru.mainnika.libs.net.dns.server;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+import ru.mainnika.libs.net.dns.Dns;
+import ru.mainnika.libs.net.dns.DnsException;
+import ru.mainnika.libs.net.dns.Message;
+import ru.mainnika.libs.net.dns.RRset;
+import ru.mainnika.libs.net.dns.Rcode;
+import ru.mainnika.libs.net.dns.ResourceRecord;
+import ru.mainnika.libs.net.dns.Type;
+import ru.mainnika.libs.net.dns.Wire;
+import ru.mainnika.libs.net.dns.zone.LiveZone;
+import ru.mainnika.libs.net.dns.zone.ZoneDiff;
+import ru.mainnika.libs.net.dns.zone.ZoneEditor;
+
+/**
+ * Динамическое обновление зоны (RFC 2136). Предусловия проверяются и
+ * изменения применяются к одной правке {@link ZoneEditor}, которая
+ * публикуется целиком или не публикуется вовсе, так что запросы к зоне видят
+ * либо прежнюю версию, либо результат всего обновления. После изменений
+ * серийный номер SOA увеличивается, если обновление не задало его само.
+ *
+ * TSIG не поддерживается, поэтому по умолчанию обновления принимаются только
+ * с адресов loopback. Запросы с другими кодами операции передаются
+ * следующему обработчику.
+ *
+ * @author MainNika
+ */
+public final class UpdateHandler implements Handler {
+
+    public static final int OPCODE_UPDATE = 5;
+
+    private final LiveZone zone;
+
+    private final Handler next;
+
+    private volatile Predicate<InetAddress> allowed = InetAddress::isLoopbackAddress;
+
+    public UpdateHandler(LiveZone zone, Handler next){
+        this.zone = zone;
+        this.next = next;
+    }
+
+    /* Каким клиентам разрешено обновлять зону */
+    public UpdateHandler setAllowed(Predicate<InetAddress> allowed) {
+        this.allowed = allowed;
+        return this;
+    }
+
+    @Override
+    public Dns handle(Dns request, InetSocketAddress client, boolean udp) throws DnsException {
+        if (request.issetQr())
+            return null;
+        if (request.getOpcode() != OPCODE_UPDATE)
+            return (next != null) ? next.handle(request, client, udp) : Responses.error(request, Rcode.NOTIMP);
+        if ((client != null) && !allowed.test(client.getAddress()))
+            return Responses.error(request, Rcode.REFUSED);
+        byte[] raw = request.getSourceRaw();
+        Message message;
+        try{
+            message = Message.parse((raw != null) ? raw : request.getRaw());
+        }catch(Exception e){
+            return Responses.error(request, Rcode.FORMERR);
+        }
+        return Responses.error(request, update(message));
+    }
+
+    /* Обновление из разобранного сообщения; возвращает код ответа */
+    public synchronized byte update(Message m) throws DnsException{
+        byte[] origin = zone.getOrigin();
+        int cl = zone.get().getCl();
+        if ((Wire.u16(m.getRaw(), 4) != 1) || (m.getQtype() != Type.SOA))
+            return Rcode.FORMERR;
+        if (!Wire.equalsIgnoreCase(m.getQname(), origin) || (m.getQclass() != cl))
+            return Rcode.NOTAUTH;
+        ZoneEditor editor = zone.edit();
+        byte rcode = prerequisites(m.getAnswers(), editor, origin, cl);
+        if (rcode != Rcode.NOERROR)
+            return rcode;
+        rcode = prescan(m.getAuthorities(), origin, cl);
+        if (rcode != Rcode.NOERROR)
+            return rcode;
+        boolean serial = false;
+        for (ResourceRecord rr : m.getAuthorities())
+            serial |= apply(rr, editor, origin, cl);
+        if (!editor.isChanged())
+            return Rcode.NOERROR;
+        if (!serial)
+            increment(editor, origin);
+        zone.publish(editor);
+        return Rcode.NOERROR;
+    }
+
+    /* Предусловия (раздел 3.2) по состоянию зоны до обновления */
+    private static byte prerequisites(List<ResourceRecord> records, ZoneEditor editor, byte[] origin, int cl){
+        ArrayList<RRset> sets = new ArrayList<>();
+        for (ResourceRecord rr : records){
+            byte[] name = rr.getName();
+            int type = rr.getType();
+            if (rr.getTtl() != 0)
+                return Rcode.FORMERR;
+            if (!Wire.isSubdomain(name, origin))
+                return Rcode.NOTZONE;
+            if (rr.getCl() == Type.CLASS_ANY){
+                if (rr.getRdata().length != 0)
+                    return Rcode.FORMERR;
+                if (type == Type.ANY){
+                    if (!editor.inUse(name))
+                        return Rcode.NXDOMAIN;
+                }else if (editor.find(name, type) == null){
+                    return Rcode.NXRRSET;
+                }
+            }else if (rr.getCl() == Type.CLASS_NONE){
+                if (rr.getRdata().length != 0)
+                    return Rcode.FORMERR;
+                if (type == Type.ANY){
+                    if (editor.inUse(name))
+                        return Rcode.YXDOMAIN;
+                }else if (editor.find(name, type) != null){
+                    return Rcode.YXRRSET;
+                }
+            }else if (rr.getCl() == cl){
+                RRset set = null;
+                for (RRset s : sets)
+                    if ((s.getType() == type) && Wire.equalsIgnoreCase(s.getName(), name))
+                        set = s;
+                if (set == null){
+                    set = new RRset(name, type, cl, 0);
+                    sets.add(set);
+                }
+                set.add(rr.getRdata(), 0);
+            }else{
+                return Rcode.FORMERR;
+            }
+        }
+        // наборы, зависящие от значения, должны совпасть целиком
+        for (RRset expected : sets){
+            RRset actual = editor.find(expected.getName(), expected.getType());
+            if ((actual == null) || (actual.size() != expected.size()))
+                return Rcode.NXRRSET;
+            for (int i = 0; i < expected.size(); i++)
+                if (actual.indexOf(expected.getRdataAt(i)) < 0)
+                    return Rcode.NXRRSET;
+        }
+        return Rcode.NOERROR;
+    }
+
+    /* Проверка секции обновлений до применения (раздел 3.4.1) */
+    private static byte prescan(List<ResourceRecord> records, byte[] origin, int cl){
+        for (ResourceRecord rr : records){
+            int type = rr.getType();
+            boolean meta = (type >= Type.IXFR) && (type <= Type.ANY);
+            if (!Wire.isSubdomain(rr.getName(), origin))
+                return Rcode.NOTZONE;
+            if (rr.getCl() == cl){
+                if (meta || (type == Type.OPT))
+                    return Rcode.FORMERR;
+            }else if (rr.getCl() == Type.CLASS_ANY){
+                if ((rr.getTtl() != 0) || (rr.getRdata().length != 0) || (meta && (type != Type.ANY)))
+                    return Rcode.FORMERR;
+            }else if (rr.getCl() == Type.CLASS_NONE){
+                if ((rr.getTtl() != 0) || meta)
+                    return Rcode.FORMERR;
+            }else{
+                return Rcode.FORMERR;
+            }
+        }
+        return Rcode.NOERROR;
+    }
+
+    /* Одно изменение (раздел 3.4.2); true, если заменена SOA */
+    private static boolean apply(ResourceRecord rr, ZoneEditor editor, byte[] origin, int cl) throws DnsException{
+        byte[] name = rr.getName();
+        int type = rr.getType();
+        boolean apex = Wire.equalsIgnoreCase(name, origin);
+        if (rr.getCl() == cl){
+            if (type == Type.SOA){
+                RRset soa = editor.find(origin, Type.SOA);
+                if (!apex || ((soa != null) && (ZoneDiff.compareSerial(serial(rr.getRdata()), serial(soa.getRdataAt(0))) <= 0)))
+                    return false;
+                editor.deleteSet(origin, Type.SOA);
+                editor.add(rr);
+                return true;
+            }
+            boolean cname = editor.find(name, Type.CNAME) != null;
+            if (type == Type.CNAME){
+                // CNAME не уживается с другими данными имени
+                if (editor.inUse(name) && !cname)
+                    return false;
+                editor.deleteSet(name, Type.CNAME);
+            }else if (cname){
+                return false;
+            }
+            editor.add(rr);
+        }else if (rr.getCl() == Type.CLASS_ANY){
+            if (type == Type.ANY){
+                if (!apex){
+                    editor.deleteName(name);
+                    return false;
+                }
+                for (RRset set : editor.sets(name))
+                    if ((set.getType() != Type.SOA) && (set.getType() != Type.NS))
+                        editor.deleteSet(name, set.getType());
+            }else if (!apex || ((type != Type.SOA) && (type != Type.NS))){
+                editor.deleteSet(name, type);
+            }
+        }else{
+            if (type == Type.SOA)
+                return false;
+            if (apex && (type == Type.NS)){
+                // последний NS вершины не удаляется
+                RRset ns = editor.find(name, Type.NS);
+                if ((ns != null) && (ns.size() == 1))
+                    return false;
+            }
+            editor.delete(name, type, rr.getRdata());
+        }
+        return false;
+    }
+
+    /* Увеличивает серийный номер SOA на единицу по модулю 2^32 */
+    private static void increment(ZoneEditor editor, byte[] origin) throws DnsException{
+        RRset soa = editor.find(origin, Type.SOA);
+        if (soa == null)
+            return;
+        byte[] rdata = soa.getRdataAt(0).clone();
+        int off = serialOffset(rdata);
+        Wire.put32(rdata, off, (Wire.u32(rdata, off) + 1) & 0xffffffffL);
+        editor.deleteSet(origin, Type.SOA);
+        editor.add(new ResourceRecord(soa.getName(), Type.SOA, soa.getCl(), soa.getTtl(), rdata));
+    }
+
+    private static long serial(byte[] rdata){
+        return Wire.u32(rdata, serialOffset(rdata));
+    }
+
+    private static int serialOffset(byte[] rdata){
+        int off = Wire.nameLength(rdata, 0);
+        return off + Wire.nameLength(rdata, off);
+    }
+}
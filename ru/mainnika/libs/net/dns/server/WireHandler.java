@@ -0,0 +1,22 @@
+package ru.mainnika.libs.net.dns.server;
+
+import java.net.InetSocketAddress;
+import ru.mainnika.libs.net.dns.DnsException;
+
+/**
+ * Обработчик, который умеет отвечать прямо в буфер запроса через
+ * {@link ResponseWriter}, без разбора запроса в {@link ru.mainnika.libs.net.dns.Dns}
+ * и без сборки ответа из объектов. Сервер пробует его раньше
+ * {@link Handler#handle}.
+ *
+ * @author MainNika
+ */
+public interface WireHandler {
+
+    /*
+     * Ответ на запрос из writer. false - обработчик не берется за запрос, и
+     * сервер разбирает его обычным путем; отказаться можно только до первой
+     * записи в writer. true без {@link ResponseWriter#finish()} - отвечать не нужно.
+     */
+    public boolean respond(ResponseWriter writer, InetSocketAddress client, boolean udp) throws DnsException;
+}
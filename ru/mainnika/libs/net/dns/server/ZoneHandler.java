@@ -0,0 +1,176 @@
+package ru.mainnika.libs.net.dns.server;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import ru.mainnika.libs.net.dns.Dns;
+import ru.mainnika.libs.net.dns.DnsException;
+import ru.mainnika.libs.net.dns.Rcode;
+import ru.mainnika.libs.net.dns.ResourceRecord;
+import ru.mainnika.libs.net.dns.filter.Blocklist;
+import ru.mainnika.libs.net.dns.filter.Policy;
+import ru.mainnika.libs.net.dns.metrics.Metrics;
+import ru.mainnika.libs.net.dns.zone.Lookup;
+import ru.mainnika.libs.net.dns.zone.ZoneSource;
+
+/**
+ * Авторитетные ответы из зоны с необязательной фильтрацией по списку
+ * блокировки и ограничением частоты ответов по UDP. Ограничение проверяется
+ * по результату поиска или политике, до сборки пакета ответа. Запросы без политик
+ * фильтра отвечаются прямо в буфер запроса через {@link #respond}.
+ *
+ * @author MainNika
+ */
+public final class ZoneHandler implements Handler, WireHandler {
+
+    private final ZoneSource zone;
+
+    private Blocklist blocklist;
+
+    private RateLimiter limiter;
+
+    public ZoneHandler(ZoneSource zone){
+        this.zone = zone;
+    }
+
+    public ZoneHandler setBlocklist(Blocklist blocklist) {
+        this.blocklist = blocklist;
+        return this;
+    }
+
+    public ZoneHandler setRateLimiter(RateLimiter limiter) {
+        this.limiter = limiter;
+        return this;
+    }
+
+    @Override
+    public Dns handle(Dns request, InetSocketAddress client, boolean udp) throws DnsException {
+        if (request.issetQr())
+            return null;
+        if (request.getOpcode() != 0)
+            return Responses.error(request, Rcode.NOTIMP);
+        if (request.getQdcount() != 1)
+            return Responses.error(request, Rcode.FORMERR);
+        Dns.Query query = request.getQueryAt(0);
+        byte[] qname = query.getWireName();
+        int qtype = query.getType() & 0xffff;
+        if (blocklist != null){
+            Policy policy = filter(qname);
+            if ((policy != null) && (policy.getAction() != Policy.Action.PASSTHRU)){
+                if (udp && (limiter != null) && (client != null)){
+                    switch (limit(policy, client.getAddress(), qname, qtype)){
+                        case DROP:
+                            return null;
+                        case SLIP:
+                            return Responses.truncated(request);
+                        default:
+                    }
+                }
+                return policy.respond(request);
+            }
+        }
+        Lookup lookup = lookup(qname, qtype);
+        if (udp && (limiter != null) && (client != null)){
+            switch (limit(lookup, client.getAddress(), qname, qtype)){
+                case DROP:
+                    return null;
+                case SLIP:
+                    return Responses.truncated(request);
+                default:
+            }
+        }
+        return lookup.makeResponse(request);
+    }
+
+    @Override
+    public boolean respond(ResponseWriter writer, InetSocketAddress client, boolean udp) throws DnsException {
+        byte[] qname = writer.getQname();
+        int qtype = writer.getQtype();
+        // ответы политик собираются из запроса в Dns
+        if (blocklist != null){
+            Policy policy = filter(qname);
+            if ((policy != null) && (policy.getAction() != Policy.Action.PASSTHRU))
+                return false;
+        }
+        Lookup lookup = lookup(qname, qtype);
+        if (udp && (limiter != null) && (client != null)){
+            switch (limit(lookup, client.getAddress(), qname, qtype)){
+                case DROP:
+                    return true;
+                case SLIP:
+                    writer.truncate().finish();
+                    return true;
+                default:
+            }
+        }
+        writer.setRcode(lookup.getRcode());
+        if (lookup.isAuthoritative())
+            writer.setAa();
+        write(writer, ResponseWriter.ANSWER, lookup.getAnswers());
+        write(writer, ResponseWriter.AUTHORITY, lookup.getAuthorities());
+        write(writer, ResponseWriter.ADDITIONAL, lookup.getAdditionals());
+        writer.finish();
+        return true;
+    }
+
+    private static void write(ResponseWriter writer, int section, ArrayList<ResourceRecord> records){
+        for (int i = 0; i < records.size(); i++)
+            if (!writer.add(section, records.get(i)))
+                return;
+    }
+
+    /* Политика списка блокировки для имени с учетом времени этапа FILTER */
+    private Policy filter(byte[] qname){
+        boolean measure = Metrics.enabled;
+        long start = measure ? System.nanoTime() : 0;
+        Policy policy = blocklist.match(qname, 0);
+        if (measure)
+            Metrics.get().record(Metrics.Stage.FILTER, System.nanoTime() - start);
+        return policy;
+    }
+
+    private Lookup lookup(byte[] qname, int qtype){
+        boolean measure = Metrics.enabled;
+        long start = measure ? System.nanoTime() : 0;
+        Lookup lookup = zone.lookup(qname, 0, qtype);
+        if (measure)
+            Metrics.get().record(Metrics.Stage.LOOKUP, System.nanoTime() - start);
+        return lookup;
+    }
+
+    /* Класс ответа для ограничения частоты и его ключевое имя */
+    private RateLimiter.Action limit(Lookup lookup, InetAddress addr, byte[] qname, int qtype){
+        switch (lookup.getStatus()){
+            case ANSWER:
+                return limiter.check(addr, RateLimiter.ANSWER, qname, 0, qtype);
+            case NODATA:
+                return limiter.check(addr, RateLimiter.NODATA, owner(lookup), 0, qtype);
+            case NXDOMAIN:
+                return limiter.check(addr, RateLimiter.NXDOMAIN, owner(lookup), 0, qtype);
+            case REFERRAL:
+                return limiter.check(addr, RateLimiter.REFERRAL, owner(lookup), 0, qtype);
+            default:
+                return limiter.check(addr, RateLimiter.ERROR, null, 0, qtype);
+        }
+    }
+
+    /* Класс ответа политики; ключом служит имя вопроса */
+    private RateLimiter.Action limit(Policy policy, InetAddress addr, byte[] qname, int qtype){
+        switch (policy.getAction()){
+            case NXDOMAIN:
+                return limiter.check(addr, RateLimiter.NXDOMAIN, qname, 0, qtype);
+            case NODATA:
+                return limiter.check(addr, RateLimiter.NODATA, qname, 0, qtype);
+            case DROP:
+                // ответа не будет и так
+                return RateLimiter.Action.SEND;
+            default:
+                return limiter.check(addr, RateLimiter.ANSWER, qname, 0, qtype);
+        }
+    }
+
+    /* Владелец первой записи секции авторитетных: SOA зоны или NS делегирования */
+    private byte[] owner(Lookup lookup){
+        return lookup.getAuthorities().isEmpty() ? zone.getOrigin() : lookup.getAuthorities().get(0).getName();
+    }
+}
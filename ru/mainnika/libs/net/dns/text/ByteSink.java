@@ -0,0 +1,95 @@
+package ru.mainnika.libs.net.dns.text;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Буферизованный вывод текста в поток байтов. Текст представления и JSON
+ * содержит только ASCII (прочие байты экранированы), поэтому символы
+ * пишутся по байту без кодировщика: в отличие от Writer поверх потока
+ * здесь нет промежуточного char[] и CharsetEncoder на каждый вызов.
+ * Символ вне ASCII заменяется на '?'.
+ *
+ * @author MainNika
+ */
+public final class ByteSink implements Appendable, Flushable, Closeable {
+
+    private final OutputStream out;
+
+    private final byte[] buf;
+
+    private int pos;
+
+    /* Символы очередной порции строки */
+    private final char[] chars = new char[1024];
+
+    public ByteSink(OutputStream out){
+        this(out, 65536);
+    }
+
+    public ByteSink(OutputStream out, int size){
+        if (size < 1)
+            throw new IllegalArgumentException("Buffer size must be positive");
+        this.out = out;
+        this.buf = new byte[size];
+    }
+
+    @Override
+    public ByteSink append(CharSequence s) throws IOException{
+        return append(s, 0, s.length());
+    }
+
+    @Override
+    public ByteSink append(CharSequence s, int start, int end) throws IOException{
+        while (start < end){
+            if (pos == buf.length)
+                drain();
+            int n = Math.min(Math.min(end - start, buf.length - pos), chars.length);
+            // строки копируются порцией: charAt через интерфейс на каждый символ заметно дороже
+            if (s instanceof StringBuilder)
+                ((StringBuilder) s).getChars(start, start + n, chars, 0);
+            else if (s instanceof String)
+                ((String) s).getChars(start, start + n, chars, 0);
+            else
+                for (int i = 0; i < n; i++)
+                    chars[i] = s.charAt(start + i);
+            for (int i = 0; i < n; i++){
+                char c = chars[i];
+                buf[pos + i] = (byte) ((c < 0x80) ? c : '?');
+            }
+            pos += n;
+            start += n;
+        }
+        return this;
+    }
+
+    @Override
+    public ByteSink append(char c) throws IOException{
+        if (pos == buf.length)
+            drain();
+        buf[pos++] = (byte) ((c < 0x80) ? c : '?');
+        return this;
+    }
+
+    private void drain() throws IOException{
+        out.write(buf, 0, pos);
+        pos = 0;
+    }
+
+    @Override
+    public void flush() throws IOException{
+        drain();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException{
+        try{
+            flush();
+        }finally{
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package ru.mainnika.libs.net.dns.text;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import ru.mainnika.libs.net.dns.DnsException;
+import ru.mainnika.libs.net.dns.Type;
+import ru.mainnika.libs.net.dns.Wire;
+
+/**
+ * Сообщение в JSON по RFC 8427: один объект в строку, удобно для журналов
+ * в формате JSON Lines. Заголовок раскладывается на поля ID, QR, Opcode и
+ * т.д., вопрос - в QNAME/QTYPE/QCLASS, секции - в массивы answerRRs,
+ * authorityRRs и additionalRRs. RDATA известных типов передается строкой
+ * в синтаксисе мастер-файла в поле rdata&lt;тип&gt;, остальных - в
+ * RDATAHEX. Как и {@link Presentation}, разбирает байты сообщения напрямую
+ * и отдает объект одним вызовом append.
+ *
+ * Экземпляр переиспользуется и не потокобезопасен.
+ *
+ * @author MainNika
+ */
+public final class JsonFormat {
+
+    private static final String[] SECTIONS = { "answerRRs", "authorityRRs", "additionalRRs" };
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Presentation presentation = new Presentation();
+
+    private final StringBuilder sb = new StringBuilder(4096);
+
+    /* Текст RDATA и имен перед экранированием */
+    private final StringBuilder text = new StringBuilder(512);
+
+    private final byte[] name = new byte[Wire.MAX_NAME];
+
+    private byte[] scratch = new byte[512];
+
+    /*
+     * Сообщение от начала массива с переводом строки. Поврежденное
+     * сообщение не печатается: бросается исключение.
+     */
+    public void write(byte[] msg, int len, Appendable out) throws IOException, DnsException{
+        sb.setLength(0);
+        message(msg, len);
+        sb.append('\n');
+        out.append(sb);
+    }
+
+    /* Сообщение от позиции до предела буфера; позиция не меняется */
+    public void write(ByteBuffer msg, Appendable out) throws IOException, DnsException{
+        int len = msg.remaining();
+        if (scratch.length < len)
+            scratch = new byte[Math.max(len, scratch.length * 2)];
+        msg.get(msg.position(), scratch, 0, len);
+        write(scratch, len, out);
+    }
+
+    private void message(byte[] msg, int len) throws DnsException{
+        if (len < 12)
+            throw new DnsException("Truncated header");
+        int flags = Wire.u16(msg, 2);
+        int qd = Wire.u16(msg, 4);
+        sb.append("{\"ID\":").append(Wire.u16(msg, 0));
+        bit(flags, 0x8000, "QR");
+        sb.append(",\"Opcode\":").append((flags >> 11) & 0xf);
+        bit(flags, 0x0400, "AA");
+        bit(flags, 0x0200, "TC");
+        bit(flags, 0x0100, "RD");
+        bit(flags, 0x0080, "RA");
+        bit(flags, 0x0020, "AD");
+        bit(flags, 0x0010, "CD");
+        sb.append(",\"RCODE\":").append(flags & 0xf);
+        sb.append(",\"QDCOUNT\":").append(qd);
+        sb.append(",\"ANCOUNT\":").append(Wire.u16(msg, 6));
+        sb.append(",\"NSCOUNT\":").append(Wire.u16(msg, 8));
+        sb.append(",\"ARCOUNT\":").append(Wire.u16(msg, 10));
+        int off = 12;
+        // RFC 8427 описывает только один вопрос, остальные пропускаются
+        for (int i = 0; i < qd; i++){
+            int at = Wire.skipName(msg, off, len);
+            if (at + 4 > len)
+                throw new DnsException("Truncated question");
+            if (i == 0){
+                sb.append(",\"QNAME\":");
+                name(msg, off, len);
+                int type = Wire.u16(msg, at);
+                int cl = Wire.u16(msg, at + 2);
+                sb.append(",\"QTYPE\":").append(type);
+                sb.append(",\"QTYPEname\":\"").append(Type.nameOf(type)).append('"');
+                sb.append(",\"QCLASS\":").append(cl);
+                sb.append(",\"QCLASSname\":\"").append(Type.classNameOf(cl)).append('"');
+            }
+            off = at + 4;
+        }
+        for (int s = 0; s < 3; s++){
+            int count = Wire.u16(msg, 6 + s * 2);
+            if (count == 0)
+                continue;
+            sb.append(",\"").append(SECTIONS[s]).append("\":[");
+            for (int i = 0; i < count; i++){
+                if (i > 0)
+                    sb.append(',');
+                off = record(msg, off, len);
+            }
+            sb.append(']');
+        }
+        sb.append('}');
+    }
+
+    private int record(byte[] msg, int off, int len) throws DnsException{
+        sb.append("{\"NAME\":");
+        int at = name(msg, off, len);
+        if (at + 10 > len)
+            throw new DnsException("Truncated record");
+        int type = Wire.u16(msg, at);
+        int cl = Wire.u16(msg, at + 2);
+        int rdlength = Wire.u16(msg, at + 8);
+        if (at + 10 + rdlength > len)
+            throw new DnsException("Truncated rdata");
+        sb.append(",\"TYPE\":").append(type);
+        sb.append(",\"TYPEname\":\"").append(Type.nameOf(type)).append('"');
+        sb.append(",\"CLASS\":").append(cl);
+        if (type != Type.OPT)
+            sb.append(",\"CLASSname\":\"").append(Type.classNameOf(cl)).append('"');
+        sb.append(",\"TTL\":").append(Wire.u32(msg, at + 4));
+        sb.append(",\"RDLENGTH\":").append(rdlength);
+        text.setLength(0);
+        presentation.appendRdata(text, type, msg, at + 10, rdlength);
+        if ((text.length() > 1) && (text.charAt(0) == '\\') && (text.charAt(1) == '#')){
+            // общий вид RFC 3597: только сами байты
+            sb.append(",\"RDATAHEX\":\"");
+            Presentation.hex(sb, msg, at + 10, rdlength);
+            sb.append('"');
+        }else{
+            sb.append(",\"rdata").append(Type.nameOf(type)).append("\":");
+            string(text);
+        }
+        sb.append('}');
+        return at + 10 + rdlength;
+    }
+
+    private void bit(int flags, int mask, String field){
+        sb.append(",\"").append(field).append("\":").append(((flags & mask) != 0) ? 1 : 0);
+    }
+
+    /* Имя строкой JSON; смещение за ним в сообщении */
+    private int name(byte[] msg, int off, int len) throws DnsException{
+        Wire.readName(msg, off, len, name, 0);
+        text.setLength(0);
+        Wire.appendName(text, name, 0);
+        string(text);
+        return Wire.skipName(msg, off, len);
+    }
+
+    /*
+     * Строка JSON; текст представления уже ASCII, экранируются кавычки, \ и
+     * управляющие символы, которые RFC 8259 не допускает в строке
+     */
+    private void string(CharSequence s){
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++){
+            char c = s.charAt(i);
+            if (c < 0x20){
+                sb.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xf]);
+                continue;
+            }
+            if ((c == '"') || (c == '\\'))
+                sb.append('\\');
+            sb.append(c);
+        }
+        sb.append('"');
+    }
+}
@@ -0,0 +1,582 @@
+package ru.mainnika.libs.net.dns.text;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import ru.mainnika.libs.net.dns.Dns;
+import ru.mainnika.libs.net.dns.DnsException;
+import ru.mainnika.libs.net.dns.Rcode;
+import ru.mainnika.libs.net.dns.ResourceRecord;
+import ru.mainnika.libs.net.dns.Type;
+import ru.mainnika.libs.net.dns.Wire;
+
+/**
+ * Текстовое представление сообщений и записей: записи в синтаксисе
+ * мастер-файла (RFC 1035, раздел 5.1), сообщение целиком - как его печатает
+ * dig. Сообщение разбирается прямо из байтов, без {@link Dns} и без
+ * промежуточных объектов: текст собирается в переиспользуемом буфере и
+ * отдается в {@link Appendable} одним вызовом на сообщение. RDATA известных
+ * типов печатается в их собственном синтаксисе, который читает
+ * {@link ru.mainnika.libs.net.dns.zone.MasterFileParser}, остальные - в
+ * общем виде \# длина hex (RFC 3597).
+ *
+ * Экземпляр переиспользуется и не потокобезопасен.
+ *
+ * @author MainNika
+ */
+public final class Presentation {
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    private static final char[] BASE32HEX = "0123456789ABCDEFGHIJKLMNOPQRSTUV".toCharArray();
+
+    private static final String[] SECTIONS = { "ANSWER", "AUTHORITY", "ADDITIONAL" };
+
+    private final StringBuilder sb = new StringBuilder(4096);
+
+    /* Распакованное имя */
+    private final byte[] name = new byte[Wire.MAX_NAME];
+
+    /* Копия сообщения из ByteBuffer */
+    private byte[] scratch = new byte[512];
+
+    /* ———————————————————— Сообщения —————————————————————— */
+
+    /*
+     * Сообщение от начала массива. Для поврежденного сообщения в out
+     * уходит разобранная часть и строка ";; MALFORMED", затем бросается
+     * исключение.
+     */
+    public void write(byte[] msg, int len, Appendable out) throws IOException, DnsException{
+        sb.setLength(0);
+        try{
+            message(sb, msg, len);
+        }catch(DnsException e){
+            sb.append(";; MALFORMED: ").append(e.getMessage()).append('\n');
+            out.append(sb);
+            throw e;
+        }
+        out.append(sb);
+    }
+
+    /* Сообщение от позиции до предела буфера; позиция не меняется */
+    public void write(ByteBuffer msg, Appendable out) throws IOException, DnsException{
+        int len = msg.remaining();
+        if (scratch.length < len)
+            scratch = new byte[Math.max(len, scratch.length * 2)];
+        msg.get(msg.position(), scratch, 0, len);
+        write(scratch, len, out);
+    }
+
+    /* Разобранный пакет печатается по исходным байтам, собранный - после сборки */
+    public void write(Dns dns, Appendable out) throws IOException, DnsException{
+        byte[] raw = dns.getSourceRaw();
+        if (raw == null){
+            try{
+                raw = dns.getRaw();
+            }catch(DnsException e){
+                throw e;
+            }catch(Exception e){
+                throw new DnsException("Unable to build message: " + e.getMessage());
+            }
+        }
+        write(raw, raw.length, out);
+    }
+
+    /* Запись одной строкой мастер-файла с переводом строки */
+    public void write(ResourceRecord rr, Appendable out) throws IOException{
+        sb.setLength(0);
+        byte[] owner = rr.getName();
+        byte[] rdata = rr.getRdata();
+        Wire.appendName(sb, owner, 0);
+        sb.append('\t').append(rr.getTtl()).append('\t');
+        appendClass(sb, rr.getCl());
+        sb.append('\t');
+        appendType(sb, rr.getType());
+        sb.append('\t');
+        appendRdata(sb, rr.getType(), rdata, 0, rdata.length);
+        sb.append('\n');
+        out.append(sb);
+    }
+
+    private void message(StringBuilder sb, byte[] msg, int len) throws DnsException{
+        if (len < 12)
+            throw new DnsException("Truncated header");
+        int flags = Wire.u16(msg, 2);
+        int qd = Wire.u16(msg, 4);
+        int[] counts = { Wire.u16(msg, 6), Wire.u16(msg, 8), Wire.u16(msg, 10) };
+        sb.append(";; ->>HEADER<<- opcode: ");
+        appendOpcode(sb, (flags >> 11) & 0xf);
+        sb.append(", status: ").append(Rcode.nameOf(flags & 0xf)).append(", id: ").append(Wire.u16(msg, 0)).append('\n');
+        sb.append(";; flags:");
+        flag(sb, flags, 0x8000, " qr");
+        flag(sb, flags, 0x0400, " aa");
+        flag(sb, flags, 0x0200, " tc");
+        flag(sb, flags, 0x0100, " rd");
+        flag(sb, flags, 0x0080, " ra");
+        flag(sb, flags, 0x0020, " ad");
+        flag(sb, flags, 0x0010, " cd");
+        sb.append("; QUERY: ").append(qd).append(", ANSWER: ").append(counts[0]).append(", AUTHORITY: ").append(counts[1])
+                .append(", ADDITIONAL: ").append(counts[2]).append('\n');
+        int off = 12;
+        int question = off;
+        for (int i = 0; i < qd; i++)
+            off = Wire.skipName(msg, off, len) + 4;
+        if (off > len)
+            throw new DnsException("Truncated question");
+        // OPT печатается до вопроса, как у dig; ищем его проходом без разбора
+        int opt = -1;
+        int records = off;
+        for (int s = 0; s < 3; s++){
+            for (int i = 0; i < counts[s]; i++){
+                int at = off;
+                off = Wire.skipName(msg, off, len) + 10;
+                if (off > len)
+                    throw new DnsException("Truncated record");
+                if ((s == 2) && (Wire.u16(msg, off - 10) == Type.OPT))
+                    opt = at;
+                off += Wire.u16(msg, off - 2);
+                if (off > len)
+                    throw new DnsException("Truncated rdata");
+            }
+        }
+        if (opt >= 0)
+            opt(sb, msg, opt, len);
+        if (qd > 0)
+            sb.append("\n;; QUESTION SECTION:\n");
+        off = question;
+        for (int i = 0; i < qd; i++){
+            sb.append(';');
+            off = name(sb, msg, off, len);
+            sb.append("\t\t");
+            appendClass(sb, Wire.u16(msg, off + 2));
+            sb.append('\t');
+            appendType(sb, Wire.u16(msg, off));
+            sb.append('\n');
+            off += 4;
+        }
+        off = records;
+        for (int s = 0; s < 3; s++){
+            boolean header = false;
+            for (int i = 0; i < counts[s]; i++){
+                if (off == opt){
+                    off = Wire.skipName(msg, off, len) + 10;
+                    off += Wire.u16(msg, off - 2);
+                    continue;
+                }
+                if (!header){
+                    sb.append("\n;; ").append(SECTIONS[s]).append(" SECTION:\n");
+                    header = true;
+                }
+                off = record(sb, msg, off, len);
+            }
+        }
+        sb.append('\n');
+    }
+
+    /* Запись сообщения строкой мастер-файла; смещение за записью */
+    private int record(StringBuilder sb, byte[] msg, int off, int len) throws DnsException{
+        off = name(sb, msg, off, len);
+        int type = Wire.u16(msg, off);
+        int rdlength = Wire.u16(msg, off + 8);
+        sb.append('\t').append(Wire.u32(msg, off + 4)).append('\t');
+        appendClass(sb, Wire.u16(msg, off + 2));
+        sb.append('\t');
+        appendType(sb, type);
+        sb.append('\t');
+        appendRdata(sb, type, msg, off + 10, rdlength);
+        sb.append('\n');
+        return off + 10 + rdlength;
+    }
+
+    /* Псевдосекция EDNS (RFC 6891) */
+    private void opt(StringBuilder sb, byte[] msg, int off, int len) throws DnsException{
+        off = Wire.skipName(msg, off, len);
+        long ttl = Wire.u32(msg, off + 4);
+        int rdlength = Wire.u16(msg, off + 8);
+        sb.append("\n;; OPT PSEUDOSECTION:\n; EDNS: version: ").append((ttl >> 16) & 0xff).append(", flags:");
+        if ((ttl & 0x8000) != 0)
+            sb.append(" do");
+        sb.append("; udp: ").append(Wire.u16(msg, off + 2)).append('\n');
+        off += 10;
+        int end = off + rdlength;
+        while (off + 4 <= end){
+            int code = Wire.u16(msg, off);
+            int olen = Wire.u16(msg, off + 2);
+            off += 4;
+            if (off + olen > end)
+                break;
+            sb.append("; OPT=").append(code).append(": ");
+            hex(sb, msg, off, olen);
+            sb.append('\n');
+            off += olen;
+        }
+    }
+
+    private static void flag(StringBuilder sb, int flags, int bit, String name){
+        if ((flags & bit) != 0)
+            sb.append(name);
+    }
+
+    private static void appendOpcode(StringBuilder sb, int opcode){
+        switch (opcode){
+            case 0: sb.append("QUERY"); return;
+            case 1: sb.append("IQUERY"); return;
+            case 2: sb.append("STATUS"); return;
+            case 4: sb.append("NOTIFY"); return;
+            case 5: sb.append("UPDATE"); return;
+            default: sb.append(opcode);
+        }
+    }
+
+    static void appendType(StringBuilder sb, int type){
+        sb.append(Type.nameOf(type));
+    }
+
+    static void appendClass(StringBuilder sb, int cl){
+        sb.append(Type.classNameOf(cl));
+    }
+
+    /* Имя из сообщения, возможно сжатое; смещение за ним в сообщении */
+    private int name(StringBuilder sb, byte[] msg, int off, int end) throws DnsException{
+        Wire.readName(msg, off, end, name, 0);
+        Wire.appendName(sb, name, 0);
+        return Wire.skipName(msg, off, end);
+    }
+
+    /* ———————————————————— RDATA —————————————————————— */
+
+    /*
+     * RDATA в синтаксисе ее типа. Имена могут быть сжаты указателями внутрь
+     * msg; если RDATA не разбирается по формату типа, печатается \# hex.
+     */
+    public void appendRdata(StringBuilder sb, int type, byte[] msg, int off, int len){
+        int mark = sb.length();
+        try{
+            if (typed(sb, type, msg, off, off + len))
+                return;
+        }catch(DnsException e){
+            // формат не совпал с типом
+        }
+        sb.setLength(mark);
+        sb.append("\\# ").append(len);
+        if (len > 0){
+            sb.append(' ');
+            hex(sb, msg, off, len);
+        }
+    }
+
+    /* false - у типа нет своего синтаксиса */
+    private boolean typed(StringBuilder sb, int type, byte[] msg, int off, int end) throws DnsException{
+        int p = off;
+        switch (type){
+            case Type.A:
+                need(p, 4, end, true);
+                for (int i = 0; i < 4; i++){
+                    if (i > 0)
+                        sb.append('.');
+                    sb.append(msg[p + i] & 0xff);
+                }
+                return true;
+            case Type.AAAA:
+                need(p, 16, end, true);
+                ipv6(sb, msg, p);
+                return true;
+            case Type.NS: case Type.CNAME: case Type.PTR: case Type.DNAME:
+                p = rname(sb, msg, p, end);
+                break;
+            case Type.MX:
+                need(p, 2, end, false);
+                sb.append(Wire.u16(msg, p)).append(' ');
+                p = rname(sb, msg, p + 2, end);
+                break;
+            case Type.SOA:
+                p = rname(sb, msg, p, end);
+                sb.append(' ');
+                p = rname(sb, msg, p, end);
+                need(p, 20, end, false);
+                for (int i = 0; i < 5; i++, p += 4)
+                    sb.append(' ').append(Wire.u32(msg, p));
+                break;
+            case Type.TXT: case Type.SPF:
+                if (p == end)
+                    throw new DnsException("Empty TXT");
+                while (p < end){
+                    if (p > off)
+                        sb.append(' ');
+                    p = string(sb, msg, p, end);
+                }
+                break;
+            case Type.HINFO:
+                p = string(sb, msg, p, end);
+                sb.append(' ');
+                p = string(sb, msg, p, end);
+                break;
+            case Type.SRV:
+                need(p, 6, end, false);
+                sb.append(Wire.u16(msg, p)).append(' ').append(Wire.u16(msg, p + 2)).append(' ').append(Wire.u16(msg, p + 4)).append(' ');
+                p = rname(sb, msg, p + 6, end);
+                break;
+            case Type.NAPTR:
+                need(p, 4, end, false);
+                sb.append(Wire.u16(msg, p)).append(' ').append(Wire.u16(msg, p + 2));
+                p += 4;
+                for (int i = 0; i < 3; i++){
+                    sb.append(' ');
+                    p = string(sb, msg, p, end);
+                }
+                sb.append(' ');
+                p = rname(sb, msg, p, end);
+                break;
+            case Type.CAA: {
+                need(p, 2, end, false);
+                int tag = msg[p + 1] & 0xff;
+                need(p + 2, tag, end, false);
+                sb.append(msg[p] & 0xff).append(' ');
+                // тег по RFC 8659 - непустые буквы и цифры ASCII, иначе запись выводится в общем виде
+                if (tag == 0)
+                    throw new DnsException("Empty CAA tag");
+                for (int i = p + 2; i < p + 2 + tag; i++){
+                    char c = (char) (msg[i] & 0xff);
+                    if (!(((c >= 'a') && (c <= 'z')) || ((c >= 'A') && (c <= 'Z')) || ((c >= '0') && (c <= '9'))))
+                        throw new DnsException("Invalid CAA tag");
+                    sb.append(c);
+                }
+                sb.append(' ');
+                quoted(sb, msg, p + 2 + tag, end);
+                p = end;
+                break;
+            }
+            case Type.DS:
+                need(p, 4, end, false);
+                sb.append(Wire.u16(msg, p)).append(' ').append(msg[p + 2] & 0xff).append(' ').append(msg[p + 3] & 0xff).append(' ');
+                hex(sb, msg, p + 4, end - p - 4);
+                p = end;
+                break;
+            case Type.SSHFP:
+                need(p, 2, end, false);
+                sb.append(msg[p] & 0xff).append(' ').append(msg[p + 1] & 0xff).append(' ');
+                hex(sb, msg, p + 2, end - p - 2);
+                p = end;
+                break;
+            case Type.TLSA:
+                need(p, 3, end, false);
+                sb.append(msg[p] & 0xff).append(' ').append(msg[p + 1] & 0xff).append(' ').append(msg[p + 2] & 0xff).append(' ');
+                hex(sb, msg, p + 3, end - p - 3);
+                p = end;
+                break;
+            case Type.DNSKEY:
+                need(p, 4, end, false);
+                sb.append(Wire.u16(msg, p)).append(' ').append(msg[p + 2] & 0xff).append(' ').append(msg[p + 3] & 0xff).append(' ');
+                base64(sb, msg, p + 4, end - p - 4);
+                p = end;
+                break;
+            case Type.RRSIG:
+                need(p, 18, end, false);
+                appendType(sb, Wire.u16(msg, p));
+                sb.append(' ').append(msg[p + 2] & 0xff).append(' ').append(msg[p + 3] & 0xff).append(' ').append(Wire.u32(msg, p + 4)).append(' ');
+                time(sb, Wire.u32(msg, p + 8));
+                sb.append(' ');
+                time(sb, Wire.u32(msg, p + 12));
+                sb.append(' ').append(Wire.u16(msg, p + 16)).append(' ');
+                p = rname(sb, msg, p + 18, end);
+                sb.append(' ');
+                base64(sb, msg, p, end - p);
+                p = end;
+                break;
+            case Type.NSEC:
+                p = rname(sb, msg, p, end);
+                bitmap(sb, msg, p, end);
+                p = end;
+                break;
+            case Type.NSEC3: {
+                p = nsec3param(sb, msg, p, end);
+                need(p, 1, end, false);
+                int hash = msg[p] & 0xff;
+                need(p + 1, hash, end, false);
+                sb.append(' ');
+                base32hex(sb, msg, p + 1, hash);
+                bitmap(sb, msg, p + 1 + hash, end);
+                p = end;
+                break;
+            }
+            case Type.NSEC3PARAM:
+                p = nsec3param(sb, msg, p, end);
+                break;
+            default:
+                return false;
+        }
+        if (p != end)
+            throw new DnsException("Trailing bytes in RDATA");
+        return true;
+    }
+
+    /* Проверка, что в RDATA есть n байт; exact - и ни байтом больше */
+    private static void need(int p, int n, int end, boolean exact) throws DnsException{
+        if ((exact ? (p + n != end) : (p + n > end)))
+            throw new DnsException("Truncated RDATA");
+    }
+
+    /* Имя внутри RDATA; указатели сжатия ведут внутрь msg */
+    private int rname(StringBuilder sb, byte[] msg, int p, int end) throws DnsException{
+        int next = Wire.skipName(msg, p, end);
+        Wire.readName(msg, p, msg.length, name, 0);
+        Wire.appendName(sb, name, 0);
+        return next;
+    }
+
+    /* Строка символов в кавычках (RFC 1035, раздел 5.1) */
+    private static int string(StringBuilder sb, byte[] msg, int p, int end) throws DnsException{
+        need(p, 1, end, false);
+        int len = msg[p] & 0xff;
+        need(p + 1, len, end, false);
+        quoted(sb, msg, p + 1, p + 1 + len);
+        return p + 1 + len;
+    }
+
+    private static void quoted(StringBuilder sb, byte[] msg, int from, int to){
+        sb.append('"');
+        for (int i = from; i < to; i++){
+            int b = msg[i] & 0xff;
+            if ((b < 0x20) || (b >= 0x7f)){
+                sb.append('\\');
+                sb.append((char) ('0' + b / 100)).append((char) ('0' + b / 10 % 10)).append((char) ('0' + b % 10));
+            }else{
+                if ((b == '"') || (b == '\\'))
+                    sb.append('\\');
+                sb.append((char) b);
+            }
+        }
+        sb.append('"');
+    }
+
+    /* Алгоритм, флаги, итерации и соль NSEC3 и NSEC3PARAM */
+    private static int nsec3param(StringBuilder sb, byte[] msg, int p, int end) throws DnsException{
+        need(p, 5, end, false);
+        int salt = msg[p + 4] & 0xff;
+        need(p + 5, salt, end, false);
+        sb.append(msg[p] & 0xff).append(' ').append(msg[p + 1] & 0xff).append(' ').append(Wire.u16(msg, p + 2)).append(' ');
+        if (salt == 0)
+            sb.append('-');
+        else
+            hex(sb, msg, p + 5, salt);
+        return p + 5 + salt;
+    }
+
+    /* Битовая карта типов NSEC и NSEC3 (RFC 4034, раздел 4.1.2) */
+    private static void bitmap(StringBuilder sb, byte[] msg, int p, int end) throws DnsException{
+        while (p < end){
+            need(p, 2, end, false);
+            int window = msg[p] & 0xff;
+            int len = msg[p + 1] & 0xff;
+            if ((len == 0) || (len > 32))
+                throw new DnsException("Invalid type bitmap");
+            need(p + 2, len, end, false);
+            for (int i = 0; i < len; i++){
+                int bits = msg[p + 2 + i] & 0xff;
+                for (int b = 0; b < 8; b++){
+                    if ((bits & (0x80 >> b)) != 0){
+                        sb.append(' ');
+                        appendType(sb, (window << 8) | (i << 3) | b);
+                    }
+                }
+            }
+            p += 2 + len;
+        }
+    }
+
+    /* Адрес IPv6 в сокращенной записи RFC 5952 */
+    private static void ipv6(StringBuilder sb, byte[] msg, int p){
+        // самая длинная серия нулевых групп, не короче двух
+        int best = -1;
+        int bestLen = 1;
+        for (int i = 0; i < 8; ){
+            if (Wire.u16(msg, p + i * 2) != 0){
+                i++;
+                continue;
+            }
+            int j = i;
+            while ((j < 8) && (Wire.u16(msg, p + j * 2) == 0))
+                j++;
+            if (j - i > bestLen){
+                best = i;
+                bestLen = j - i;
+            }
+            i = j;
+        }
+        for (int i = 0; i < 8; i++){
+            if (i == best){
+                sb.append("::");
+                i += bestLen - 1;
+                continue;
+            }
+            if ((i > 0) && (i != best + bestLen))
+                sb.append(':');
+            sb.append(Integer.toHexString(Wire.u16(msg, p + i * 2)));
+        }
+    }
+
+    /* Время подписи YYYYMMDDHHmmSS в UTC (RFC 4034, раздел 3.2) */
+    private static void time(StringBuilder sb, long seconds){
+        long days = seconds / 86400;
+        int rest = (int) (seconds % 86400);
+        // дни от эпохи в григорианскую дату (алгоритм Хиннанта)
+        long z = days + 719468;
+        long era = z / 146097;
+        long doe = z - era * 146097;
+        long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        long mp = (5 * doy + 2) / 153;
+        int day = (int) (doy - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        long year = yoe + era * 400 + ((month <= 2) ? 1 : 0);
+        sb.append(year);
+        two(sb, month);
+        two(sb, day);
+        two(sb, rest / 3600);
+        two(sb, rest / 60 % 60);
+        two(sb, rest % 60);
+    }
+
+    private static void two(StringBuilder sb, int v){
+        sb.append((char) ('0' + v / 10)).append((char) ('0' + v % 10));
+    }
+
+    static void hex(StringBuilder sb, byte[] b, int off, int len){
+        for (int i = off; i < off + len; i++)
+            sb.append(HEX[(b[i] >> 4) & 0xf]).append(HEX[b[i] & 0xf]);
+    }
+
+    private static void base64(StringBuilder sb, byte[] b, int off, int len){
+        int end = off + len;
+        int i = off;
+        for (; i + 3 <= end; i += 3){
+            int v = ((b[i] & 0xff) << 16) | ((b[i + 1] & 0xff) << 8) | (b[i + 2] & 0xff);
+            sb.append(BASE64[v >> 18]).append(BASE64[(v >> 12) & 0x3f]).append(BASE64[(v >> 6) & 0x3f]).append(BASE64[v & 0x3f]);
+        }
+        if (end - i == 1){
+            int v = (b[i] & 0xff) << 16;
+            sb.append(BASE64[v >> 18]).append(BASE64[(v >> 12) & 0x3f]).append("==");
+        }else if (end - i == 2){
+            int v = ((b[i] & 0xff) << 16) | ((b[i + 1] & 0xff) << 8);
+            sb.append(BASE64[v >> 18]).append(BASE64[(v >> 12) & 0x3f]).append(BASE64[(v >> 6) & 0x3f]).append('=');
+        }
+    }
+
+    /* base32hex без выравнивания (RFC 5155, раздел 3.3) */
+    private static void base32hex(StringBuilder sb, byte[] b, int off, int len){
+        long buffer = 0;
+        int bits = 0;
+        for (int i = off; i < off + len; i++){
+            buffer = (buffer << 8) | (b[i] & 0xff);
+            bits += 8;
+            while (bits >= 5){
+                bits -= 5;
+                sb.append(BASE32HEX[(int) (buffer >> bits) & 0x1f]);
+            }
+        }
+        if (bits > 0)
+            sb.append(BASE32HEX[(int) (buffer << (5 - bits)) & 0x1f]);
+    }
+}
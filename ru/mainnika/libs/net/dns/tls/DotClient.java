@@ -0,0 +1,523 @@
+package ru.mainnika.libs.net.dns.tls;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.SSLContext;
+import ru.mainnika.libs.net.dns.Dns;
+import ru.mainnika.libs.net.dns.DnsException;
+import ru.mainnika.libs.net.dns.Type;
+import ru.mainnika.libs.net.dns.server.Handler;
+
+/**
+ * Клиент DNS поверх TLS (RFC 7858) к одному серверу. Держит несколько
+ * постоянных соединений и отправляет в каждое конвейером до
+ * {@link #setPipeline(int)} запросов, не дожидаясь ответов; ответы
+ * сопоставляются по идентификатору и могут приходить в любом порядке
+ * (RFC 7766, раздел 6.2.1). Соединение открывается при первом запросе,
+ * повторное подключение возобновляет сессию TLS 1.3 по билету из кэша
+ * контекста. Если сервер закрыл соединение с запросами в полете, они один
+ * раз повторяются в новом соединении.
+ *
+ * Весь ввод-вывод идет в одном потоке через Selector, как в
+ * {@link ru.mainnika.libs.net.dns.resolver.Forwarder}.
+ *
+ * @author MainNika
+ */
+public final class DotClient implements Handler, Closeable {
+
+    private static final int IDS = 65536;
+
+    private final InetSocketAddress address;
+
+    private final SSLContext context;
+
+    /* Имя сервера для кэша сессий и проверки сертификата */
+    private final String host;
+
+    private final boolean verify;
+
+    private final Connection[] connections;
+
+    private final Selector selector;
+
+    private final ConcurrentLinkedQueue<Query> submitted = new ConcurrentLinkedQueue<>();
+
+    private final ConcurrentLinkedQueue<CompletableFuture<Void>> closing = new ConcurrentLinkedQueue<>();
+
+    /* Запросы без соединения и все запросы в полете, только для потока ввода-вывода */
+    private final ArrayDeque<Query> waiting = new ArrayDeque<>();
+
+    private final ArrayList<Query> queries = new ArrayList<>();
+
+    private final ByteBuffer message = ByteBuffer.allocate(DotServer.MAX_MESSAGE);
+
+    private final ByteBuffer frame = ByteBuffer.allocate(2 + DotServer.MAX_MESSAGE);
+
+    private final Thread thread;
+
+    private volatile boolean running = true;
+
+    private volatile long timeout = TimeUnit.SECONDS.toNanos(5);
+
+    private volatile int pipeline = 64;
+
+    private final AtomicLong connects = new AtomicLong();
+
+    private final AtomicLong handshakes = new AtomicLong();
+
+    private final AtomicLong resumed = new AtomicLong();
+
+    private final AtomicLong answered = new AtomicLong();
+
+    /*
+     * Клиент к address. serverName - имя в сертификате сервера для строгой
+     * проверки, null - сертификат только должен быть доверенным в context.
+     */
+    public DotClient(InetSocketAddress address, SSLContext context, String serverName, int connections) throws IOException{
+        this.address = address;
+        this.context = context;
+        this.host = (serverName != null) ? serverName : address.getHostString();
+        this.verify = serverName != null;
+        this.connections = new Connection[Math.max(1, connections)];
+        for (int i = 0; i < this.connections.length; i++)
+            this.connections[i] = new Connection();
+        selector = Selector.open();
+        thread = new Thread(this::loop, "dns-tls-client");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public DotClient setTimeout(long timeout, TimeUnit unit) {
+        this.timeout = unit.toNanos(timeout);
+        return this;
+    }
+
+    /* Сколько запросов в полете допускается на одно соединение */
+    public DotClient setPipeline(int pipeline) {
+        this.pipeline = Math.max(1, Math.min(IDS / 2, pipeline));
+        return this;
+    }
+
+    /* Открытых соединений */
+    public long getConnects() {
+        return connects.get();
+    }
+
+    public long getHandshakes() {
+        return handshakes.get();
+    }
+
+    public long getResumed() {
+        return resumed.get();
+    }
+
+    public long getAnswered() {
+        return answered.get();
+    }
+
+    /* Отправляет запрос; ответ приходит с идентификатором запроса */
+    public CompletableFuture<Dns> forward(Dns request){
+        Query q;
+        try{
+            byte[] raw = request.getRaw();
+            if (raw.length < 12)
+                throw new DnsException("Truncated header");
+            q = new Query(raw);
+        }catch(Exception e){
+            return CompletableFuture.failedFuture(e);
+        }
+        if (!running)
+            return CompletableFuture.failedFuture(new DnsException("Client is closed"));
+        submitted.add(q);
+        selector.wakeup();
+        return q.future;
+    }
+
+    /* Блокирующий вариант {@link #forward(Dns)} */
+    public Dns query(Dns request) throws DnsException{
+        try{
+            return forward(request).get();
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new DnsException("Interrupted");
+        }catch(ExecutionException e){
+            if (e.getCause() instanceof DnsException)
+                throw (DnsException) e.getCause();
+            throw new DnsException("DNS over TLS failed: " + e.getCause());
+        }
+    }
+
+    @Override
+    public Dns handle(Dns request, InetSocketAddress client, boolean udp) throws DnsException {
+        return query(request);
+    }
+
+    /* Закрывает соединения без запросов в полете; следующий запрос подключится заново */
+    public void closeIdle(){
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        closing.add(done);
+        selector.wakeup();
+        done.join();
+    }
+
+    /* ———————————————————— Поток ввода-вывода —————————————————————— */
+
+    private void loop(){
+        while (running){
+            try{
+                long now = System.nanoTime();
+                CompletableFuture<Void> close;
+                while ((close = closing.poll()) != null){
+                    for (Connection c : connections)
+                        if ((c.tls != null) && (c.inflight == 0) && c.queued.isEmpty())
+                            c.close();
+                    close.complete(null);
+                }
+                Query q;
+                while ((q = submitted.poll()) != null){
+                    q.expire = now + timeout;
+                    queries.add(q);
+                    waiting.add(q);
+                }
+                dispatch(now);
+                long wait = TimeUnit.NANOSECONDS.toMillis(expire(now) - now);
+                if (wait > 0)
+                    selector.select(wait);
+                else
+                    selector.selectNow();
+                now = System.nanoTime();
+                for (SelectionKey key : selector.selectedKeys())
+                    if (key.isValid())
+                        serve((Connection) key.attachment(), key, now);
+                selector.selectedKeys().clear();
+            }catch(IOException e){
+                // ошибка одного соединения не останавливает клиента
+            }
+        }
+        DnsException closed = new DnsException("Client is closed");
+        for (Query q : queries)
+            q.future.completeExceptionally(closed);
+        Query q;
+        while ((q = submitted.poll()) != null)
+            q.future.completeExceptionally(closed);
+        CompletableFuture<Void> close;
+        while ((close = closing.poll()) != null)
+            close.complete(null);
+        for (Connection c : connections)
+            c.close();
+    }
+
+    /* Раздает ожидающие запросы наименее загруженным соединениям */
+    private void dispatch(long now){
+        while (!waiting.isEmpty()){
+            Connection best = null;
+            for (Connection c : connections)
+                if ((c.load() < pipeline) && ((best == null) || (c.load() < best.load())))
+                    best = c;
+            if (best == null)
+                break;
+            Query q = waiting.poll();
+            if (q.future.isDone())
+                continue;
+            if (best.tls == null){
+                try{
+                    open(best, now);
+                }catch(IOException e){
+                    q.future.completeExceptionally(new DnsException("Connect to " + address + " failed: " + e.getMessage()));
+                    continue;
+                }
+            }
+            best.queued.add(q);
+        }
+        for (Connection c : connections)
+            if ((c.tls != null) && c.tls.isReady() && !c.queued.isEmpty())
+                send(c);
+    }
+
+    private void open(Connection c, long now) throws IOException{
+        SocketChannel channel = SocketChannel.open();
+        try{
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            boolean connected = channel.connect(address);
+            c.tls = new TlsConnection(channel, Tls.client(context, host, address.getPort(), verify), now);
+            c.tls.key = channel.register(selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, c);
+            connects.incrementAndGet();
+            if (connected){
+                c.tls.begin();
+                c.tls.flush();
+            }
+        }catch(IOException e){
+            c.tls = null;
+            channel.close();
+            throw e;
+        }
+    }
+
+    /* Отправляет запросы, ждавшие рукопожатия или места в конвейере, одной записью в сокет */
+    private void send(Connection c){
+        try{
+            Query q;
+            while ((q = c.queued.poll()) != null){
+                if (q.future.isDone())
+                    continue;
+                int id = c.freeId();
+                q.connection = c;
+                q.id = id;
+                c.pending[id] = q;
+                c.inflight++;
+                frame.clear();
+                frame.put((byte) (q.raw.length >> 8)).put((byte) q.raw.length);
+                frame.put((byte) (id >> 8)).put((byte) id);
+                frame.put(q.raw, 2, q.raw.length - 2).flip();
+                c.tls.send(frame);
+            }
+            c.tls.flush();
+        }catch(IOException e){
+            fail(c);
+        }
+    }
+
+    private void serve(Connection c, SelectionKey key, long now){
+        TlsConnection tls = c.tls;
+        if ((tls == null) || (tls.key != key))
+            return;
+        try{
+            if (key.isConnectable()){
+                tls.channel.finishConnect();
+                key.interestOps(SelectionKey.OP_READ);
+                tls.begin();
+            }
+            if (key.isReadable()){
+                boolean open;
+                do{
+                    boolean ready = tls.isReady();
+                    open = tls.read();
+                    if (!ready && tls.isReady()){
+                        handshakes.incrementAndGet();
+                        if (tls.isResumed())
+                            resumed.incrementAndGet();
+                    }
+                    while (tls.next(message))
+                        receive(c);
+                }while (open && tls.hasInput());
+                if (!open){
+                    fail(c);
+                    return;
+                }
+            }
+            if (tls.isReady() && !c.queued.isEmpty())
+                send(c);
+            else
+                tls.flush();
+        }catch(IOException e){
+            fail(c);
+        }
+        dispatch(now);
+    }
+
+    private void receive(Connection c){
+        int len = message.limit();
+        if ((len < 12) || ((message.get(2) & 0x80) == 0))
+            return;
+        int id = ((message.get(0) & 0xff) << 8) | (message.get(1) & 0xff);
+        Query q = c.pending[id];
+        if (q == null)
+            return;
+        c.pending[id] = null;
+        c.inflight--;
+        q.connection = null;
+        message.put(0, q.raw[0]).put(1, q.raw[1]);
+        try{
+            q.future.complete(new Dns().fromRaw(message));
+            answered.incrementAndGet();
+        }catch(DnsException e){
+            q.future.completeExceptionally(e);
+        }
+    }
+
+    /* Соединение потеряно: запросы в полете повторяются один раз, остальные ждут нового соединения */
+    private void fail(Connection c){
+        for (Query q : queries){
+            if (q.connection != c)
+                continue;
+            q.connection = null;
+            if (q.future.isDone())
+                continue;
+            if (q.retried){
+                q.future.completeExceptionally(new DnsException("Connection to " + address + " closed"));
+            }else{
+                q.retried = true;
+                waiting.add(q);
+            }
+        }
+        waiting.addAll(c.queued);
+        c.close();
+    }
+
+    /* Сроки запросов; возвращает время следующего события */
+    private long expire(long now){
+        long next = now + TimeUnit.SECONDS.toNanos(1);
+        for (Iterator<Query> it = queries.iterator(); it.hasNext();){
+            Query q = it.next();
+            if (!q.future.isDone() && (now >= q.expire))
+                q.future.completeExceptionally(new DnsException("DNS over TLS timeout"));
+            if (q.future.isDone()){
+                if (q.connection != null){
+                    q.connection.pending[q.id] = null;
+                    q.connection.inflight--;
+                    q.connection = null;
+                }
+                it.remove();
+                continue;
+            }
+            next = Math.min(next, q.expire);
+        }
+        return next;
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        try{
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        selector.close();
+    }
+
+    /* Одно соединение пула */
+    private static final class Connection {
+
+        /* null - не подключено */
+        private TlsConnection tls;
+
+        private final Query[] pending = new Query[IDS];
+
+        /* Отправленные запросы без ответа */
+        private int inflight;
+
+        /* Назначенные запросы, ждущие рукопожатия */
+        private final ArrayDeque<Query> queued = new ArrayDeque<>();
+
+        private int nextId;
+
+        private int load(){
+            return inflight + queued.size();
+        }
+
+        private int freeId(){
+            while (pending[nextId] != null)
+                nextId = (nextId + 1) & (IDS - 1);
+            int ret = nextId;
+            nextId = (nextId + 1) & (IDS - 1);
+            return ret;
+        }
+
+        private void close(){
+            if (tls != null)
+                tls.close();
+            tls = null;
+            inflight = 0;
+            queued.clear();
+            Arrays.fill(pending, null);
+        }
+    }
+
+    /* Запрос в полете */
+    private static final class Query {
+
+        private final byte[] raw;
+
+        private final CompletableFuture<Dns> future = new CompletableFuture<>();
+
+        private long expire;
+
+        private Connection connection;
+
+        private int id;
+
+        private boolean retried;
+
+        private Query(byte[] raw){
+            this.raw = raw;
+        }
+    }
+
+    /*
+     * Использование: DotClient host:port truststore.p12 password [--name qname]
+     * [--connections N] [--pipeline N] [--duration s] [--verify servername]
+     * Сначала меряет рукопожатия в секунду (соединение на запрос, с
+     * возобновлением), затем запросы в секунду по постоянным соединениям.
+     */
+    public static void main(String[] args) throws Exception{
+        PrintStream out = System.out;
+        if (args.length < 3){
+            out.println("usage: DotClient host:port truststore.p12 password [--name qname] [--connections N]"
+                    + " [--pipeline N] [--duration s] [--verify servername]");
+            return;
+        }
+        int colon = args[0].lastIndexOf(':');
+        InetSocketAddress target = new InetSocketAddress(args[0].substring(0, colon), Integer.parseInt(args[0].substring(colon + 1)));
+        SSLContext context = Tls.context(Paths.get(args[1]), args[2].toCharArray());
+        String name = "www.example.com.";
+        int count = 1;
+        int depth = 64;
+        long duration = 5;
+        String serverName = null;
+        for (int i = 3; i + 1 < args.length; i += 2){
+            switch (args[i]){
+                case "--name": name = args[i + 1]; break;
+                case "--connections": count = Integer.parseInt(args[i + 1]); break;
+                case "--pipeline": depth = Integer.parseInt(args[i + 1]); break;
+                case "--duration": duration = Long.parseLong(args[i + 1]); break;
+                case "--verify": serverName = args[i + 1]; break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        Dns request = new Dns().setRd().addQuery(name, Type.A, Type.CLASS_IN);
+        try (DotClient client = new DotClient(target, context, serverName, count)){
+            client.setPipeline(depth);
+            long start = System.nanoTime();
+            long end = start + TimeUnit.SECONDS.toNanos(duration);
+            long n = 0;
+            while (System.nanoTime() < end){
+                client.query(request);
+                client.closeIdle();
+                n++;
+            }
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            out.printf("handshakes/s %.1f (%d handshakes, %d resumed)%n", n / elapsed, client.getHandshakes(), client.getResumed());
+
+            long answered = client.getAnswered();
+            start = System.nanoTime();
+            end = start + TimeUnit.SECONDS.toNanos(duration);
+            CompletableFuture<?>[] batch = new CompletableFuture<?>[count * depth];
+            while (System.nanoTime() < end){
+                for (int i = 0; i < batch.length; i++)
+                    batch[i] = client.forward(request);
+                CompletableFuture.allOf(batch).get();
+            }
+            elapsed = (System.nanoTime() - start) / 1e9;
+            out.printf("queries/s %.1f over %d connections, pipeline %d%n", (client.getAnswered() - answered) / elapsed, count, depth);
+        }
+    }
+}
@@ -0,0 +1,389 @@
+package ru.mainnika.libs.net.dns.tls;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.SSLContext;
+import ru.mainnika.libs.net.dns.Dns;
+import ru.mainnika.libs.net.dns.DnsException;
+import ru.mainnika.libs.net.dns.Rcode;
+import ru.mainnika.libs.net.dns.Wire;
+import ru.mainnika.libs.net.dns.server.Handler;
+import ru.mainnika.libs.net.dns.server.ResponseWriter;
+import ru.mainnika.libs.net.dns.server.Responses;
+import ru.mainnika.libs.net.dns.server.WireHandler;
+import ru.mainnika.libs.net.dns.server.ZoneHandler;
+import ru.mainnika.libs.net.dns.zone.Zone;
+
+/**
+ * Сервер DNS поверх TLS (RFC 7858) на неблокирующих сокетах и
+ * {@link javax.net.ssl.SSLEngine}. Каждый поток ввода-вывода ведет свой
+ * селектор и свои соединения; новые соединения раздаются потокам по кругу.
+ * Соединение живет, пока клиент присылает запросы, и закрывается после
+ * простоя, поэтому одно рукопожатие обслуживает много запросов. Запросы
+ * из одного чтения отвечаются по порядку, ответы шифруются в общий буфер
+ * и уходят в сокет вместе. Повторные подключения возобновляют сессию по
+ * билетам TLS 1.3 из кэша контекста.
+ *
+ * Обработчик вызывается прямо в потоке ввода-вывода, поэтому должен
+ * отвечать быстро; обработчик {@link WireHandler} отвечает без разбора
+ * запроса в {@link Dns}.
+ *
+ * @author MainNika
+ */
+public final class DotServer implements Closeable {
+
+    public static final int PORT = 853;
+
+    /* Наибольшее сообщение по TCP */
+    public static final int MAX_MESSAGE = 65535;
+
+    /* Сколько зашифрованного вывода копится до записи в сокет посреди конвейера */
+    private static final int FLUSH_AT = 16384;
+
+    private final ServerSocketChannel acceptor;
+
+    private final SSLContext context;
+
+    private final Handler handler;
+
+    private final WireHandler wire;
+
+    private final Loop[] loops;
+
+    private volatile long idleTimeout = TimeUnit.SECONDS.toNanos(10);
+
+    private volatile boolean running;
+
+    private final AtomicLong connections = new AtomicLong();
+
+    private final AtomicLong handshakes = new AtomicLong();
+
+    private final AtomicLong resumed = new AtomicLong();
+
+    private final AtomicLong queries = new AtomicLong();
+
+    public DotServer(InetSocketAddress bind, SSLContext context, Handler handler, int threads) throws IOException{
+        this.context = context;
+        this.handler = handler;
+        this.wire = (handler instanceof WireHandler) ? (WireHandler) handler : null;
+        this.loops = new Loop[Math.max(1, threads)];
+        this.acceptor = ServerSocketChannel.open();
+        try{
+            acceptor.bind(bind, 1024);
+            acceptor.configureBlocking(false);
+            for (int i = 0; i < loops.length; i++)
+                loops[i] = new Loop(i);
+            acceptor.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+        }catch(IOException e){
+            close();
+            throw e;
+        }
+    }
+
+    /* Через сколько простоя соединение закрывается; RFC 7858 советует секунды */
+    public DotServer setIdleTimeout(long timeout, TimeUnit unit) {
+        this.idleTimeout = unit.toNanos(timeout);
+        return this;
+    }
+
+    public InetSocketAddress getLocalAddress() throws IOException{
+        return (InetSocketAddress) acceptor.getLocalAddress();
+    }
+
+    /* Принятых соединений */
+    public long getConnections() {
+        return connections.get();
+    }
+
+    /* Завершенных рукопожатий, включая возобновленные */
+    public long getHandshakes() {
+        return handshakes.get();
+    }
+
+    /* Рукопожатий с возобновлением сессии */
+    public long getResumed() {
+        return resumed.get();
+    }
+
+    public long getQueries() {
+        return queries.get();
+    }
+
+    public synchronized DotServer start(){
+        if (running)
+            return this;
+        running = true;
+        for (Loop loop : loops)
+            loop.thread.start();
+        return this;
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        for (Loop loop : loops){
+            if (loop == null)
+                continue;
+            loop.selector.wakeup();
+            if (loop.thread.isAlive()){
+                try{
+                    loop.thread.join(TimeUnit.SECONDS.toMillis(5));
+                }catch(InterruptedException e){
+                    Thread.currentThread().interrupt();
+                }
+            }
+            loop.selector.close();
+        }
+        acceptor.close();
+    }
+
+    /* ———————————————————— Потоки ввода-вывода —————————————————————— */
+
+    private final class Loop {
+
+        private final Selector selector;
+
+        private final Thread thread;
+
+        private final ConcurrentLinkedQueue<SocketChannel> accepted = new ConcurrentLinkedQueue<>();
+
+        /* Запрос без префикса длины и ответ с префиксом */
+        private final ByteBuffer message = ByteBuffer.allocate(MAX_MESSAGE);
+
+        private final ByteBuffer frame = ByteBuffer.allocate(2 + MAX_MESSAGE);
+
+        private final ResponseWriter writer = new ResponseWriter();
+
+        private int next;
+
+        private Loop(int index) throws IOException{
+            selector = Selector.open();
+            thread = new Thread(this::run, "dns-tls-" + Integer.toString(index));
+            thread.setDaemon(true);
+        }
+
+        private void run(){
+            try{
+                while (running){
+                    selector.select(TimeUnit.SECONDS.toMillis(1));
+                    long now = System.nanoTime();
+                    SocketChannel channel;
+                    while ((channel = accepted.poll()) != null)
+                        register(channel, now);
+                    for (SelectionKey key : selector.selectedKeys()){
+                        if (!key.isValid())
+                            continue;
+                        if (key.isAcceptable())
+                            accept();
+                        else
+                            serve((TlsConnection) key.attachment(), key);
+                    }
+                    selector.selectedKeys().clear();
+                    expire(now);
+                }
+            }catch(IOException | ClosedSelectorException e){
+                // сервер закрыт
+            }finally{
+                for (SelectionKey key : selector.keys())
+                    if (key.attachment() != null)
+                        ((TlsConnection) key.attachment()).close();
+            }
+        }
+
+        private void accept(){
+            while (true){
+                SocketChannel channel;
+                try{
+                    channel = acceptor.accept();
+                }catch(IOException e){
+                    // например, исчерпаны дескрипторы: следующая попытка на следующем событии
+                    return;
+                }
+                if (channel == null)
+                    return;
+                connections.incrementAndGet();
+                Loop loop = loops[next];
+                next = (next + 1) % loops.length;
+                if (loop == this){
+                    register(channel, System.nanoTime());
+                }else{
+                    loop.accepted.add(channel);
+                    loop.selector.wakeup();
+                }
+            }
+        }
+
+        private void register(SocketChannel channel, long now){
+            try{
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                TlsConnection conn = new TlsConnection(channel, Tls.server(context), now);
+                conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+                conn.begin();
+            }catch(IOException e){
+                try{
+                    channel.close();
+                }catch(IOException ignored){
+                    // соединение и так не состоялось
+                }
+            }
+        }
+
+        /*
+         * Читает и отвечает по одному сообщению. Если вывода накопилось
+         * FLUSH_AT и он не ушел в сокет, разбор прерывается: соединение ждет
+         * только OP_WRITE, а принятый ввод остается в его буферах до записи.
+         */
+        private void serve(TlsConnection conn, SelectionKey key){
+            try{
+                if (key.isWritable() && !conn.flush())
+                    return;
+                boolean open;
+                do{
+                    boolean ready = conn.isReady();
+                    open = conn.read();
+                    if (!ready && conn.isReady()){
+                        handshakes.incrementAndGet();
+                        if (conn.isResumed())
+                            resumed.incrementAndGet();
+                    }
+                    while (conn.next(message)){
+                        answer(conn);
+                        if ((conn.getPending() >= FLUSH_AT) && !conn.flush())
+                            return;
+                    }
+                }while (open && conn.hasInput());
+                if (!open){
+                    conn.close();
+                    return;
+                }
+                conn.flush();
+            }catch(IOException e){
+                conn.close();
+            }
+        }
+
+        private void answer(TlsConnection conn) throws IOException{
+            queries.incrementAndGet();
+            InetSocketAddress client = (InetSocketAddress) conn.channel.socket().getRemoteSocketAddress();
+            int len = respondInPlace(client);
+            if (len < 0)
+                len = respond(client);
+            if (len == 0)
+                return;
+            frame.clear();
+            frame.put((byte) (len >> 8)).put((byte) len);
+            frame.put(2, message, 0, len);
+            frame.limit(2 + len).position(0);
+            conn.send(frame);
+        }
+
+        /* Ответ в буфере запроса; длина ответа, 0 - без ответа, -1 - нужен разбор в Dns */
+        private int respondInPlace(InetSocketAddress client){
+            if ((wire == null) || !writer.begin(message, MAX_MESSAGE))
+                return -1;
+            try{
+                if (!wire.respond(writer, client, false))
+                    return -1;
+            }catch(Exception e){
+                if (!writer.isDone())
+                    writer.reset().setRcode(Rcode.SERVFAIL).finish();
+            }
+            return writer.isDone() ? message.limit() : 0;
+        }
+
+        /* Ответ обработчика через Dns, записанный в message; длина ответа или 0 */
+        private int respond(InetSocketAddress client){
+            Dns request = Dns.acquire();
+            try{
+                try{
+                    request.fromRaw(message);
+                }catch(DnsException e){
+                    byte[] raw = request.getSourceRaw();
+                    byte[] formerr = Responses.formerr(raw, raw.length);
+                    if (formerr == null)
+                        return 0;
+                    message.clear();
+                    message.put(formerr).flip();
+                    return formerr.length;
+                }
+                Dns response;
+                try{
+                    response = handler.handle(request, client, false);
+                    if (response == null)
+                        return 0;
+                    if (response.getSize() > MAX_MESSAGE)
+                        response = Responses.truncated(request);
+                }catch(Exception e){
+                    try{
+                        response = Responses.error(request, Rcode.SERVFAIL);
+                    }catch(DnsException ignored){
+                        return 0;
+                    }
+                }
+                try{
+                    message.clear();
+                    response.getRaw(message);
+                    return message.flip().limit();
+                }catch(Exception e){
+                    return 0;
+                }
+            }finally{
+                request.release();
+            }
+        }
+
+        /* Закрывает простаивающие соединения и незавершенные рукопожатия */
+        private void expire(long now){
+            long timeout = idleTimeout;
+            for (SelectionKey key : selector.keys()){
+                TlsConnection conn = (TlsConnection) key.attachment();
+                if ((conn != null) && (now - conn.active > timeout))
+                    conn.close();
+            }
+        }
+    }
+
+    /*
+     * Использование: DotServer keystore.p12 password zonefile origin [port] [threads]
+     * Отвечает из зоны на 127.0.0.1 и раз в секунду печатает рукопожатия и запросы в секунду.
+     */
+    public static void main(String[] args) throws Exception{
+        PrintStream out = System.out;
+        if (args.length < 4){
+            out.println("usage: DotServer keystore.p12 password zonefile origin [port] [threads]");
+            return;
+        }
+        char[] password = args[1].toCharArray();
+        SSLContext context = Tls.context(Paths.get(args[0]), password);
+        Zone zone = Zone.load(Paths.get(args[2]), Wire.fromString(args[3]));
+        int port = (args.length > 4) ? Integer.parseInt(args[4]) : PORT;
+        int threads = (args.length > 5) ? Integer.parseInt(args[5]) : 1;
+        try (DotServer server = new DotServer(new InetSocketAddress("127.0.0.1", port), context, new ZoneHandler(zone), threads)){
+            server.start();
+            out.printf("listening on %s%n", server.getLocalAddress());
+            long handshakes = 0;
+            long queries = 0;
+            while (true){
+                Thread.sleep(1000);
+                long h = server.getHandshakes();
+                long q = server.getQueries();
+                out.printf("handshakes/s %d (resumed total %d), queries/s %d%n", h - handshakes, server.getResumed(), q - queries);
+                handshakes = h;
+                queries = q;
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package ru.mainnika.libs.net.dns.tls;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * Настройка TLS для DNS поверх TLS (RFC 7858, RFC 8310): контексты из
+ * хранилища ключей и параметры движка. Разрешены только TLS 1.3 и 1.2,
+ * согласуется ALPN "dot".
+ *
+ * Для проверки на одной машине хватит самоподписанного сертификата:
+ * keytool -genkeypair -alias dot -keyalg EC -groupname secp256r1
+ * -dname CN=localhost -ext SAN=dns:localhost,ip:127.0.0.1
+ * -validity 365 -keystore dot.p12 -storepass changeit
+ * Серверу это хранилище дает ключ, клиенту - доверенный сертификат.
+ *
+ * @author MainNika
+ */
+public final class Tls {
+
+    public static final String ALPN = "dot";
+
+    private static final String[] PROTOCOLS = { "TLSv1.3", "TLSv1.2" };
+
+    private Tls(){
+    }
+
+    public static KeyStore load(Path file, char[] password) throws IOException, GeneralSecurityException{
+        KeyStore ret = KeyStore.getInstance("PKCS12");
+        try (InputStream in = Files.newInputStream(file)){
+            ret.load(in, password);
+        }
+        return ret;
+    }
+
+    /*
+     * Контекст с ключами и доверенными сертификатами из одного хранилища.
+     * Кэш сессий контекста дает возобновление: сервер выдает билеты TLS 1.3,
+     * клиент предъявляет их при повторном подключении к тому же адресу.
+     */
+    public static SSLContext context(KeyStore store, char[] password) throws GeneralSecurityException{
+        KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keys.init(store, password);
+        TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trust.init(store);
+        SSLContext ret = SSLContext.getInstance("TLS");
+        ret.init(keys.getKeyManagers(), trust.getTrustManagers(), null);
+        return ret;
+    }
+
+    public static SSLContext context(Path file, char[] password) throws IOException, GeneralSecurityException{
+        return context(load(file, password), password);
+    }
+
+    /* Серверный движок */
+    static SSLEngine server(SSLContext context){
+        return configure(context.createSSLEngine(), false, false);
+    }
+
+    /*
+     * Клиентский движок; сессии в кэше контекста ищутся по host и port. При
+     * verify имя сертификата сервера сверяется с host (строгий профиль RFC 8310).
+     */
+    static SSLEngine client(SSLContext context, String host, int port, boolean verify){
+        return configure(context.createSSLEngine(host, port), true, verify);
+    }
+
+    private static SSLEngine configure(SSLEngine engine, boolean client, boolean verify){
+        engine.setUseClientMode(client);
+        SSLParameters params = engine.getSSLParameters();
+        params.setProtocols(PROTOCOLS);
+        params.setApplicationProtocols(new String[] { ALPN });
+        if (verify)
+            params.setEndpointIdentificationAlgorithm("HTTPS");
+        engine.setSSLParameters(params);
+        return engine;
+    }
+}
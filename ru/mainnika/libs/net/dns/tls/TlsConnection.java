@@ -0,0 +1,342 @@
+package ru.mainnika.libs.net.dns.tls;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * Неблокирующее соединение TLS поверх {@link SocketChannel} и
+ * {@link SSLEngine} с сообщениями DNS, каждому из которых предшествует
+ * 2-байтовая длина (RFC 7766, раздел 8). Рукопожатие продвигается
+ * чтениями и записями, задачи движка выполняются в потоке
+ * ввода-вывода. Зашифрованный вывод копится в буфере до {@link #flush()},
+ * так что ответы на конвейер запросов уходят общими записями в сокет.
+ *
+ * Ввод ограничен: чтение останавливается, как только расшифровано целое
+ * сообщение, поэтому расшифрованный буфер держит не больше одного
+ * недочитанного сообщения и одной записи TLS. На стороне сервера, пока
+ * вывод не ушел в сокет, ключ ждет только OP_WRITE: клиент, который не
+ * читает ответы, перестает получать новые. Клиент читает всегда, иначе
+ * при встречных заторах обе стороны ждали бы друг друга.
+ * Экземпляр используется только потоком своего селектора.
+ *
+ * @author MainNika
+ */
+final class TlsConnection {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    /* Предел расшифрованного буфера: два сообщения наибольшего размера с префиксами */
+    private static final int MAX_APP_IN = 2 * (2 + 65535);
+
+    final SocketChannel channel;
+
+    final SSLEngine engine;
+
+    SelectionKey key;
+
+    /* Время последнего чтения или записи сообщения, нс */
+    long active;
+
+    /* Начало соединения по часам, мс: с ним сравнивается время создания сессии */
+    private final long created = System.currentTimeMillis();
+
+    /* Зашифрованные данные из сокета и в сокет, оба в режиме записи */
+    private ByteBuffer netIn;
+
+    private ByteBuffer netOut;
+
+    /* Расшифрованные данные: [appStart, position) еще не разобраны */
+    private ByteBuffer appIn;
+
+    private int appStart;
+
+    private boolean ready;
+
+    private boolean resumed;
+
+    private boolean closed;
+
+    /* Чтение остановлено на целом сообщении: в сокете или буферах может быть еще */
+    private boolean more;
+
+    /* Не читать, пока есть неотправленный вывод (сервер) */
+    private final boolean throttle;
+
+    TlsConnection(SocketChannel channel, SSLEngine engine, long now){
+        this.channel = channel;
+        this.engine = engine;
+        this.active = now;
+        this.throttle = !engine.getUseClientMode();
+        SSLSession session = engine.getSession();
+        netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+        netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+        appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+    }
+
+    /* Начинает рукопожатие; клиент сразу готовит ClientHello */
+    void begin() throws IOException{
+        engine.beginHandshake();
+        step(engine.getHandshakeStatus());
+    }
+
+    /* Рукопожатие завершено, можно обмениваться сообщениями */
+    boolean isReady() {
+        return ready;
+    }
+
+    /* Сессия возобновлена по билету или из кэша, без полного рукопожатия */
+    boolean isResumed() {
+        return resumed;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /* Есть зашифрованные данные, не ушедшие в сокет */
+    boolean isPending() {
+        return netOut.position() > 0;
+    }
+
+    /* Сколько зашифрованных байт ждет записи в сокет */
+    int getPending() {
+        return netOut.position();
+    }
+
+    /*
+     * Последнее чтение остановилось на целом сообщении: после разбора
+     * сообщений нужно читать еще, событие селектора для уже принятых
+     * байт не придет.
+     */
+    boolean hasInput() {
+        return more;
+    }
+
+    /*
+     * Расшифровывает принятое и читает из сокета, пока не наберется целое
+     * сообщение или сокет не опустеет. Возвращает false, если соединение
+     * закрыто другой стороной.
+     */
+    boolean read() throws IOException{
+        more = false;
+        while (true){
+            if (!unwrap())
+                return false;
+            if (hasMessage()){
+                more = true;
+                return true;
+            }
+            if (!netIn.hasRemaining())
+                netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+            int n = channel.read(netIn);
+            if (n < 0){
+                closed = true;
+                try{
+                    engine.closeInbound();
+                }catch(SSLException e){
+                    // соединение оборвано без close_notify
+                }
+                return false;
+            }
+            if (n == 0)
+                return true;
+        }
+    }
+
+    private boolean unwrap() throws IOException{
+        netIn.flip();
+        try{
+            while (netIn.hasRemaining()){
+                // остальные записи ждут, пока разобрано целое сообщение
+                if (hasMessage())
+                    return true;
+                reserve(engine.getSession().getApplicationBufferSize());
+                SSLEngineResult r = engine.unwrap(netIn, appIn);
+                switch (r.getStatus()){
+                    case BUFFER_UNDERFLOW:
+                        return true;
+                    case BUFFER_OVERFLOW:
+                        appIn = grow(appIn, engine.getSession().getApplicationBufferSize());
+                        continue;
+                    case CLOSED:
+                        closed = true;
+                        return false;
+                    default:
+                }
+                step(r.getHandshakeStatus());
+                if ((r.bytesConsumed() == 0) && (r.bytesProduced() == 0))
+                    return true;
+            }
+            return true;
+        }finally{
+            netIn.compact();
+        }
+    }
+
+    /* Продвигает рукопожатие, пока движку не нужны данные от другой стороны */
+    private void step(HandshakeStatus status) throws IOException{
+        while (true){
+            switch (status){
+                case FINISHED:
+                    finished();
+                    return;
+                case NEED_TASK: {
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null)
+                        task.run();
+                    status = engine.getHandshakeStatus();
+                    break;
+                }
+                case NEED_WRAP:
+                    status = wrap(EMPTY);
+                    break;
+                default:
+                    if (!ready && (status == HandshakeStatus.NOT_HANDSHAKING))
+                        finished();
+                    return;
+            }
+        }
+    }
+
+    private void finished(){
+        if (ready)
+            return;
+        ready = true;
+        // возобновленная сессия создана раньше этого рукопожатия
+        resumed = engine.getSession().getCreationTime() < created;
+    }
+
+    private HandshakeStatus wrap(ByteBuffer src) throws IOException{
+        while (true){
+            SSLEngineResult r = engine.wrap(src, netOut);
+            switch (r.getStatus()){
+                case BUFFER_OVERFLOW:
+                    netOut = grow(netOut, engine.getSession().getPacketBufferSize());
+                    continue;
+                case CLOSED:
+                    if (r.bytesProduced() == 0)
+                        throw new SSLException("Connection is closed");
+                    return r.getHandshakeStatus();
+                default:
+                    return r.getHandshakeStatus();
+            }
+        }
+    }
+
+    /* Шифрует сообщение с префиксом длины в буфер вывода; уходит в сокет при {@link #flush()} */
+    void send(ByteBuffer message) throws IOException{
+        if (!ready)
+            throw new SSLException("Handshake is not finished");
+        while (message.hasRemaining())
+            step(wrap(message));
+    }
+
+    /* Пишет накопленный вывод в сокет; true - все ушло */
+    boolean flush() throws IOException{
+        netOut.flip();
+        try{
+            while (netOut.hasRemaining())
+                if (channel.write(netOut) == 0)
+                    return false;
+            return true;
+        }finally{
+            netOut.compact();
+            if (key != null){
+                boolean pending = netOut.position() > 0;
+                key.interestOps((pending ? SelectionKey.OP_WRITE : 0) | ((pending && throttle) ? 0 : SelectionKey.OP_READ));
+            }
+        }
+    }
+
+    /* В расшифрованном буфере есть целое сообщение */
+    private boolean hasMessage(){
+        int avail = appIn.position() - appStart;
+        if (avail < 2)
+            return false;
+        return avail >= 2 + (((appIn.get(appStart) & 0xff) << 8) | (appIn.get(appStart + 1) & 0xff));
+    }
+
+    /*
+     * Копирует в dst следующее целое сообщение без префикса длины, dst
+     * готов к чтению с нуля. false - целого сообщения еще нет.
+     */
+    boolean next(ByteBuffer dst){
+        int avail = appIn.position() - appStart;
+        if (avail < 2)
+            return false;
+        int len = ((appIn.get(appStart) & 0xff) << 8) | (appIn.get(appStart + 1) & 0xff);
+        if (avail < 2 + len){
+            // сообщение больше свободного места: освобождаем его под остаток
+            if (appIn.capacity() - appStart < 2 + len){
+                compactApp();
+                if (appIn.capacity() < 2 + len)
+                    appIn = grow(appIn, 2 + len - appIn.capacity());
+            }
+            return false;
+        }
+        dst.clear();
+        dst.put(0, appIn, appStart + 2, len);
+        dst.limit(len);
+        appStart += 2 + len;
+        if (appStart == appIn.position()){
+            appIn.clear();
+            appStart = 0;
+        }
+        active = System.nanoTime();
+        return true;
+    }
+
+    /* Место под расшифровку: неразобранный остаток сдвигается в начало */
+    private void reserve(int size) throws SSLException{
+        if (appIn.remaining() >= size)
+            return;
+        compactApp();
+        if (appIn.remaining() < size){
+            if (appIn.capacity() + size > MAX_APP_IN)
+                throw new SSLException("Too much buffered input");
+            appIn = grow(appIn, size);
+        }
+    }
+
+    private void compactApp(){
+        if (appStart == 0)
+            return;
+        appIn.limit(appIn.position()).position(appStart);
+        appIn.compact();
+        appStart = 0;
+    }
+
+    private static ByteBuffer grow(ByteBuffer b, int extra){
+        ByteBuffer ret = ByteBuffer.allocate(b.capacity() + extra);
+        b.flip();
+        ret.put(b);
+        return ret;
+    }
+
+    /* Отправляет close_notify, если получится, и закрывает сокет */
+    void close(){
+        closed = true;
+        try{
+            engine.closeOutbound();
+            if (ready){
+                wrap(EMPTY);
+                netOut.flip();
+                channel.write(netOut);
+            }
+        }catch(IOException e){
+            // сокет закрывается в любом случае
+        }
+        try{
+            channel.close();
+        }catch(IOException e){
+            // закрытие не должно мешать остальным соединениям
+        }
+    }
+}
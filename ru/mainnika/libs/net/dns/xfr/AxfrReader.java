@@ -0,0 +1,84 @@
+package ru.mainnika.libs.net.dns.xfr;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import ru.mainnika.libs.net.dns.DnsException;
+import ru.mainnika.libs.net.dns.Message;
+import ru.mainnika.libs.net.dns.ResourceRecord;
+import ru.mainnika.libs.net.dns.Type;
+import ru.mainnika.libs.net.dns.Wire;
+
+/**
+ * Прием зоны по AXFR. Сообщения читаются из потока по одному в
+ * переиспользуемый буфер, и каждая запись сразу отдается получателю, так
+ * что память не зависит от размера зоны. Имена в записях, в том числе
+ * внутри RDATA, распакованы. Передача заканчивается второй SOA зоны, которая
+ * получателю не передается. Экземпляр не потокобезопасен: у него один буфер
+ * сообщения.
+ *
+ * @author MainNika
+ */
+public final class AxfrReader {
+
+    private final InetSocketAddress server;
+
+    private int timeout = 10000;
+
+    private final byte[] buf = new byte[Packer.MAX_MESSAGE];
+
+    public AxfrReader(InetSocketAddress server){
+        this.server = server;
+    }
+
+    /* Срок ожидания соединения и каждого сообщения */
+    public AxfrReader setTimeout(long timeout, TimeUnit unit) {
+        this.timeout = (int) Math.max(1, unit.toMillis(timeout));
+        return this;
+    }
+
+    /* Запрашивает зону и отдает записи получателю; возвращает их число */
+    public long transfer(byte[] zone, Consumer<ResourceRecord> receiver) throws IOException, DnsException{
+        int id = ThreadLocalRandom.current().nextInt(65536);
+        byte[] query = Message.query(id, zone, Type.AXFR, false);
+        try (Socket socket = new Socket()){
+            socket.connect(server, timeout);
+            socket.setSoTimeout(timeout);
+            OutputStream out = socket.getOutputStream();
+            byte[] frame = new byte[query.length + 2];
+            Wire.put16(frame, 0, query.length);
+            System.arraycopy(query, 0, frame, 2, query.length);
+            out.write(frame);
+            out.flush();
+            return read(socket.getInputStream(), id, zone, receiver);
+        }
+    }
+
+    /* Читает поток ответов на запрос id до завершающей SOA */
+    public long read(InputStream in, int id, byte[] zone, Consumer<ResourceRecord> receiver) throws IOException, DnsException{
+        RecordStream stream = new RecordStream(in, id, buf);
+        ResourceRecord rr = stream.next();
+        if (!isSoa(rr, zone))
+            throw new DnsException("Transfer does not start with SOA");
+        long count = 0;
+        while (true){
+            receiver.accept(rr);
+            count++;
+            rr = stream.next();
+            if (isSoa(rr, zone)){
+                if (stream.hasBuffered())
+                    throw new DnsException("Records after the closing SOA");
+                return count;
+            }
+        }
+    }
+
+    static boolean isSoa(ResourceRecord rr, byte[] zone){
+        return (rr.getType() == Type.SOA) && Wire.equalsIgnoreCase(rr.getName(), zone);
+    }
+}
@@ -0,0 +1,111 @@
+package ru.mainnika.libs.net.dns.xfr;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
+import ru.mainnika.libs.net.dns.DnsException;
+import ru.mainnika.libs.net.dns.RRset;
+import ru.mainnika.libs.net.dns.ResourceRecord;
+import ru.mainnika.libs.net.dns.Type;
+import ru.mainnika.libs.net.dns.Wire;
+import ru.mainnika.libs.net.dns.zone.Zone;
+
+/**
+ * Передача зоны по AXFR (RFC 5936) потоком сообщений TCP. Зона обходится
+ * итератором, записи пакуются со сжатием имен в сообщения до 64 КБ, и каждое
+ * сообщение уходит в канал сразу, как только заполнится. Память не зависит
+ * от размера зоны: один буфер сообщения и стек обхода.
+ *
+ * Поток начинается и заканчивается SOA зоны; вопрос есть только в первом
+ * сообщении. Экземпляр не потокобезопасен: у него один буфер сообщения.
+ *
+ * @author MainNika
+ */
+public final class AxfrWriter {
+
+    /* QR и AA */
+    private static final int FLAGS = 0x8400;
+
+    private final Packer packer = new Packer();
+
+    private int messageSize = Packer.MAX_MESSAGE;
+
+    private long messages;
+
+    private int id;
+
+    /* Предел размера одного сообщения, по умолчанию 65535 */
+    public AxfrWriter setMessageSize(int messageSize) {
+        this.messageSize = Math.max(512, Math.min(Packer.MAX_MESSAGE, messageSize));
+        return this;
+    }
+
+    /* Сообщений отправлено за все передачи */
+    public long getMessages() {
+        return messages;
+    }
+
+    /* Передает зону в ответ на запрос с идентификатором id; возвращает число записей */
+    public long write(Zone zone, int id, WritableByteChannel out) throws IOException, DnsException{
+        return write(zone, id, Type.AXFR, out);
+    }
+
+    /* Полная передача; qtype - тип вопроса запроса, AXFR или IXFR */
+    long write(Zone zone, int id, int qtype, WritableByteChannel out) throws IOException, DnsException{
+        RRset soa = zone.getSoa();
+        if ((soa == null) || (soa.size() != 1))
+            throw new DnsException("No SOA at zone apex");
+        begin(id, zone.getOrigin(), qtype, zone.getCl());
+        long count = 0;
+        add(soa.getName(), soa.getType(), soa.getCl(), soa.getTtl(), soa.getRdataAt(0), out);
+        count++;
+        for (Iterator<RRset> it = zone.iterator(); it.hasNext();){
+            RRset set = it.next();
+            if (set.getType() == Type.SOA)
+                continue;
+            for (int i = 0; i < set.size(); i++){
+                add(set.getName(), set.getType(), set.getCl(), set.getTtl(), set.getRdataAt(i), out);
+                count++;
+            }
+        }
+        add(soa.getName(), soa.getType(), soa.getCl(), soa.getTtl(), soa.getRdataAt(0), out);
+        count++;
+        finish(out);
+        return count;
+    }
+
+    /* Первое сообщение ответа с вопросом */
+    void begin(int id, byte[] origin, int qtype, int cl){
+        this.id = id;
+        packer.begin(id, FLAGS, origin, qtype, cl, messageSize);
+    }
+
+    /* Запись в текущее сообщение; заполненное сообщение отправляется */
+    void add(byte[] owner, int type, int cl, long ttl, byte[] rdata, WritableByteChannel out) throws IOException, DnsException{
+        if (packer.add(owner, type, cl, ttl, rdata))
+            return;
+        if (packer.getAnswers() == 0)
+            throw new DnsException("Record does not fit in a message: " + Wire.toString(owner));
+        send(out);
+        packer.begin(id, FLAGS, null, 0, 0, messageSize);
+        if (!packer.add(owner, type, cl, ttl, rdata))
+            throw new DnsException("Record does not fit in a message: " + Wire.toString(owner));
+    }
+
+    void add(ResourceRecord rr, WritableByteChannel out) throws IOException, DnsException{
+        add(rr.getName(), rr.getType(), rr.getCl(), rr.getTtl(), rr.getRdata(), out);
+    }
+
+    /* Отправляет последнее сообщение */
+    void finish(WritableByteChannel out) throws IOException{
+        send(out);
+    }
+
+    private void send(WritableByteChannel out) throws IOException{
+        ByteBuffer frame = packer.frame();
+        while (frame.hasRemaining())
+            out.write(frame);
+        messages++;
+    }
+}
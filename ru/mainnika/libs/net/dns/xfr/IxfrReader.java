@@ -0,0 +1,136 @@
+package ru.mainnika.libs.net.dns.xfr;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import ru.mainnika.libs.net.dns.DnsException;
+import ru.mainnika.libs.net.dns.Message;
+import ru.mainnika.libs.net.dns.RRset;
+import ru.mainnika.libs.net.dns.ResourceRecord;
+import ru.mainnika.libs.net.dns.Type;
+import ru.mainnika.libs.net.dns.Wire;
+import ru.mainnika.libs.net.dns.zone.LiveZone;
+import ru.mainnika.libs.net.dns.zone.Zone;
+import ru.mainnika.libs.net.dns.zone.ZoneDiff;
+import ru.mainnika.libs.net.dns.zone.ZoneEditor;
+
+/**
+ * Вторичная копия зоны по IXFR (RFC 1995). Запрос несет SOA текущей версии;
+ * разницы из ответа применяются к одной правке, которая публикуется в
+ * {@link LiveZone} целиком после завершающей SOA, так что запросы к зоне не
+ * видят промежуточных состояний. Ответ в формате AXFR собирается в новую
+ * зону и заменяет текущую.
+ *
+ * @author MainNika
+ */
+public final class IxfrReader {
+
+    private final InetSocketAddress server;
+
+    private int timeout = 10000;
+
+    private final byte[] buf = new byte[Packer.MAX_MESSAGE];
+
+    public IxfrReader(InetSocketAddress server){
+        this.server = server;
+    }
+
+    /* Срок ожидания соединения и каждого сообщения */
+    public IxfrReader setTimeout(long timeout, TimeUnit unit) {
+        this.timeout = (int) Math.max(1, unit.toMillis(timeout));
+        return this;
+    }
+
+    /* Обновляет зону с сервера; возвращает новый серийный номер */
+    public long transfer(LiveZone zone) throws IOException, DnsException{
+        Zone current = zone.get();
+        RRset soa = current.getSoa();
+        if ((soa == null) || (soa.size() != 1))
+            throw new DnsException("No SOA at zone apex");
+        int id = ThreadLocalRandom.current().nextInt(65536);
+        byte[] query = query(id, current.getOrigin(), current.getCl(), soa);
+        try (Socket socket = new Socket()){
+            socket.connect(server, timeout);
+            socket.setSoTimeout(timeout);
+            OutputStream out = socket.getOutputStream();
+            out.write(query);
+            out.flush();
+            return read(socket.getInputStream(), id, zone);
+        }
+    }
+
+    /* Запрос IXFR с SOA текущей версии в секции авторитетных, с длиной для TCP */
+    private static byte[] query(int id, byte[] origin, int cl, RRset soa){
+        byte[] head = Message.query(id, origin, Type.IXFR, false);
+        Wire.put16(head, 14 + Wire.nameLength(origin, 0), cl);
+        ResourceRecord rr = new ResourceRecord(soa.getName(), Type.SOA, soa.getCl(), soa.getTtl(), soa.getRdataAt(0));
+        byte[] ret = new byte[2 + head.length + rr.getSize()];
+        Wire.put16(head, 8, 1);
+        System.arraycopy(head, 0, ret, 2, head.length);
+        int end = rr.writeTo(ret, 2 + head.length);
+        Wire.put16(ret, 0, end - 2);
+        return ret;
+    }
+
+    /* Читает ответ на запрос id и применяет его к зоне */
+    public long read(InputStream in, int id, LiveZone live) throws IOException, DnsException{
+        Zone current = live.get();
+        byte[] origin = current.getOrigin();
+        long serial = ZoneDiff.serial(soa(current.getSoa()));
+        RecordStream stream = new RecordStream(in, id, buf);
+        ResourceRecord first = stream.next();
+        if (!AxfrReader.isSoa(first, origin))
+            throw new DnsException("Transfer does not start with SOA");
+        long target = ZoneDiff.serial(first);
+        if (ZoneDiff.compareSerial(target, serial) <= 0)
+            return serial;
+        ResourceRecord rr = stream.next();
+        if (!AxfrReader.isSoa(rr, origin) || (ZoneDiff.serial(rr) != serial))
+            return full(stream, live, origin, first, rr);
+        ZoneEditor editor = live.edit();
+        if (editor.getBase() != current)
+            throw new DnsException("Zone changed during the transfer");
+        // rr - SOA начала очередной разницы
+        while (true){
+            if (ZoneDiff.serial(rr) != serial)
+                throw new DnsException("Incremental transfer is not contiguous");
+            for (rr = stream.next(); !AxfrReader.isSoa(rr, origin); rr = stream.next())
+                editor.delete(rr.getName(), rr.getType(), rr.getRdata());
+            serial = ZoneDiff.serial(rr);
+            ResourceRecord to = rr;
+            for (rr = stream.next(); !AxfrReader.isSoa(rr, origin); rr = stream.next())
+                editor.add(rr);
+            if (ZoneDiff.serial(rr) == target){
+                if (stream.hasBuffered())
+                    throw new DnsException("Records after the closing SOA");
+                editor.deleteSet(origin, Type.SOA);
+                editor.add(to);
+                live.publish(editor);
+                return target;
+            }
+        }
+    }
+
+    /* Ответ в формате AXFR: first - SOA, rr - первая запись после нее */
+    private static long full(RecordStream stream, LiveZone live, byte[] origin, ResourceRecord first, ResourceRecord rr)
+            throws IOException, DnsException{
+        Zone zone = new Zone(origin, first.getCl());
+        zone.add(first);
+        while (!AxfrReader.isSoa(rr, origin)){
+            zone.add(rr);
+            rr = stream.next();
+        }
+        if (stream.hasBuffered())
+            throw new DnsException("Records after the closing SOA");
+        live.replace(zone);
+        return ZoneDiff.serial(first);
+    }
+
+    private static ResourceRecord soa(RRset set){
+        return new ResourceRecord(set.getName(), Type.SOA, set.getCl(), set.getTtl(), set.getRdataAt(0));
+    }
+}
@@ -0,0 +1,66 @@
+package ru.mainnika.libs.net.dns.xfr;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import ru.mainnika.libs.net.dns.DnsException;
+import ru.mainnika.libs.net.dns.RRset;
+import ru.mainnika.libs.net.dns.ResourceRecord;
+import ru.mainnika.libs.net.dns.Type;
+import ru.mainnika.libs.net.dns.zone.LiveZone;
+import ru.mainnika.libs.net.dns.zone.Zone;
+import ru.mainnika.libs.net.dns.zone.ZoneDiff;
+
+/**
+ * Ответ на IXFR (RFC 1995) по журналу {@link LiveZone}. Если журнал
+ * покрывает версии от серийного номера клиента до текущей, передаются
+ * только разницы; иначе зона передается целиком в формате AXFR. Клиенту с
+ * актуальной версией отвечают одной SOA.
+ *
+ * @author MainNika
+ */
+public final class IxfrWriter {
+
+    private final AxfrWriter writer = new AxfrWriter();
+
+    public IxfrWriter setMessageSize(int messageSize) {
+        writer.setMessageSize(messageSize);
+        return this;
+    }
+
+    /* Передает изменения с версии serial; возвращает число записей */
+    public long write(LiveZone live, int id, long serial, WritableByteChannel out) throws IOException, DnsException{
+        Zone zone;
+        List<ZoneDiff> diffs;
+        synchronized (live){
+            zone = live.get();
+            diffs = live.journal(serial);
+        }
+        RRset soa = zone.getSoa();
+        if ((soa == null) || (soa.size() != 1))
+            throw new DnsException("No SOA at zone apex");
+        ResourceRecord current = new ResourceRecord(soa.getName(), Type.SOA, soa.getCl(), soa.getTtl(), soa.getRdataAt(0));
+        writer.begin(id, zone.getOrigin(), Type.IXFR, zone.getCl());
+        if (ZoneDiff.compareSerial(serial, ZoneDiff.serial(current)) >= 0){
+            writer.add(current, out);
+            writer.finish(out);
+            return 1;
+        }
+        if (diffs == null)
+            return writer.write(zone, id, Type.IXFR, out);
+        long count = 0;
+        writer.add(current, out);
+        for (ZoneDiff diff : diffs){
+            writer.add(diff.getFrom(), out);
+            for (ResourceRecord rr : diff.getDeleted())
+                writer.add(rr, out);
+            writer.add(diff.getTo(), out);
+            for (ResourceRecord rr : diff.getAdded())
+                writer.add(rr, out);
+            count += diff.getDeleted().size() + diff.getAdded().size() + 2;
+        }
+        writer.add(current, out);
+        writer.finish(out);
+        return count + 2;
+    }
+}
@@ -0,0 +1,229 @@
+package ru.mainnika.libs.net.dns.xfr;
+
+import java.nio.ByteBuffer;
+import ru.mainnika.libs.net.dns.Type;
+import ru.mainnika.libs.net.dns.Wire;
+
+/**
+ * Сборка сообщения со сжатием имен в один переиспользуемый буфер с местом
+ * под 2-байтовую длину для TCP. Суффиксы уже записанных имен хранятся в
+ * открытой хэш-таблице смещений; сравнение идет прямо по байтам сообщения
+ * с переходом по указателям. Запись, которая не помещается, откатывается
+ * вместе со своими суффиксами, и сообщение остается целым.
+ *
+ * @author MainNika
+ */
+final class Packer {
+
+    static final int MAX_MESSAGE = 65535;
+
+    /* Ячеек в таблице суффиксов, степень двойки */
+    private static final int TABLE = 4096;
+
+    /* Указатель сжатия адресует только первые 16 КБ сообщения */
+    private static final int MAX_POINTER = 0x3fff;
+
+    private final byte[] buf = new byte[2 + MAX_MESSAGE];
+
+    /* Смещение суффикса в сообщении плюс один, 0 - пустая ячейка */
+    private final int[] table = new int[TABLE];
+
+    private final int[] hashes = new int[TABLE];
+
+    /* Занятые ячейки по порядку, для отката и очистки */
+    private final int[] used = new int[TABLE];
+
+    private int usedCount;
+
+    private int limit;
+
+    private int pos;
+
+    private int answers;
+
+    /* Начинает сообщение размером не больше max; qname == null - без вопроса */
+    void begin(int id, int flags, byte[] qname, int qtype, int qclass, int max){
+        for (int i = 0; i < usedCount; i++)
+            table[used[i]] = 0;
+        usedCount = 0;
+        limit = 2 + Math.min(max, MAX_MESSAGE);
+        answers = 0;
+        Wire.put16(buf, 2, id);
+        Wire.put16(buf, 4, flags);
+        Wire.put16(buf, 6, (qname != null) ? 1 : 0);
+        Wire.put16(buf, 8, 0);
+        Wire.put16(buf, 10, 0);
+        Wire.put16(buf, 12, 0);
+        pos = 14;
+        if (qname != null){
+            name(qname, 0);
+            Wire.put16(buf, pos, qtype);
+            Wire.put16(buf, pos + 2, qclass);
+            pos += 4;
+        }
+    }
+
+    int getAnswers() {
+        return answers;
+    }
+
+    /* Добавляет запись в секцию ответов; false, если она не поместилась */
+    boolean add(byte[] owner, int type, int cl, long ttl, byte[] rdata){
+        int mark = pos;
+        int undo = usedCount;
+        if (!name(owner, 0) || (pos + 10 > limit)){
+            rollback(mark, undo);
+            return false;
+        }
+        Wire.put16(buf, pos, type);
+        Wire.put16(buf, pos + 2, cl);
+        Wire.put32(buf, pos + 4, ttl);
+        int rdlength = pos + 8;
+        pos += 10;
+        if (!rdata(type, rdata)){
+            rollback(mark, undo);
+            return false;
+        }
+        Wire.put16(buf, rdlength, pos - rdlength - 2);
+        answers++;
+        return true;
+    }
+
+    /* Готовое сообщение с длиной для TCP впереди */
+    ByteBuffer frame(){
+        Wire.put16(buf, 8, answers);
+        Wire.put16(buf, 0, pos - 2);
+        return ByteBuffer.wrap(buf, 0, pos);
+    }
+
+    private void rollback(int mark, int undo){
+        pos = mark;
+        while (usedCount > undo)
+            table[used[--usedCount]] = 0;
+    }
+
+    /* RDATA со сжатием имен в типах, где оно разрешено (RFC 3597, раздел 4) */
+    private boolean rdata(int type, byte[] rdata){
+        int prefix;
+        int names;
+        switch (type){
+            case Type.NS:
+            case Type.CNAME:
+            case Type.PTR:
+                prefix = 0;
+                names = 1;
+                break;
+            case Type.MX:
+                prefix = 2;
+                names = 1;
+                break;
+            case Type.SOA:
+                prefix = 0;
+                names = 2;
+                break;
+            default:
+                return raw(rdata, 0, rdata.length);
+        }
+        if (!raw(rdata, 0, prefix))
+            return false;
+        int off = prefix;
+        for (int i = 0; i < names; i++){
+            if (!valid(rdata, off))
+                return raw(rdata, off, rdata.length - off);
+            if (!name(rdata, off))
+                return false;
+            off += Wire.nameLength(rdata, off);
+        }
+        return raw(rdata, off, rdata.length - off);
+    }
+
+    /* Целое несжатое имя внутри массива */
+    private static boolean valid(byte[] b, int off){
+        while (off < b.length){
+            int len = b[off] & 0xff;
+            if (len == 0)
+                return true;
+            if (len > 63)
+                return false;
+            off += len + 1;
+        }
+        return false;
+    }
+
+    private boolean raw(byte[] b, int off, int len){
+        if (pos + len > limit)
+            return false;
+        System.arraycopy(b, off, buf, pos, len);
+        pos += len;
+        return true;
+    }
+
+    /* Имя со сжатием по самому длинному уже записанному суффиксу */
+    private boolean name(byte[] name, int off){
+        while (name[off] != 0){
+            int hash = Wire.hashIgnoreCase(name, off);
+            int pointer = find(hash, name, off);
+            if (pointer >= 0){
+                if (pos + 2 > limit)
+                    return false;
+                buf[pos] = (byte) (0xc0 | (pointer >> 8));
+                buf[pos + 1] = (byte) pointer;
+                pos += 2;
+                return true;
+            }
+            int len = name[off] & 0xff;
+            if (pos + len + 1 > limit)
+                return false;
+            remember(hash, pos - 2);
+            System.arraycopy(name, off, buf, pos, len + 1);
+            pos += len + 1;
+            off += len + 1;
+        }
+        if (pos + 1 > limit)
+            return false;
+        buf[pos++] = 0;
+        return true;
+    }
+
+    private int find(int hash, byte[] name, int off){
+        int mask = TABLE - 1;
+        for (int i = hash & mask; table[i] != 0; i = (i + 1) & mask)
+            if ((hashes[i] == hash) && matches(table[i] - 1, name, off))
+                return table[i] - 1;
+        return -1;
+    }
+
+    private void remember(int hash, int offset){
+        // при заполнении таблицы на три четверти новые суффиксы не запоминаются
+        if ((offset > MAX_POINTER) || (usedCount >= TABLE * 3 / 4))
+            return;
+        int mask = TABLE - 1;
+        int i = hash & mask;
+        while (table[i] != 0)
+            i = (i + 1) & mask;
+        table[i] = offset + 1;
+        hashes[i] = hash;
+        used[usedCount++] = i;
+    }
+
+    /* Совпадает ли имя в сообщении по смещению offset с name[off] без учета регистра */
+    private boolean matches(int offset, byte[] name, int off){
+        int p = offset + 2;
+        while (true){
+            int len = buf[p] & 0xff;
+            if ((len & 0xc0) == 0xc0){
+                p = 2 + (((len & 0x3f) << 8) | (buf[p + 1] & 0xff));
+                continue;
+            }
+            if (len != (name[off] & 0xff))
+                return false;
+            if (len == 0)
+                return true;
+            for (int i = 1; i <= len; i++)
+                if (Wire.lower(buf[p + i]) != Wire.lower(name[off + i]))
+                    return false;
+            p += len + 1;
+            off += len + 1;
+        }
+    }
+}
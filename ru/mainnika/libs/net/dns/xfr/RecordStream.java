@@ -0,0 +1,88 @@
+package ru.mainnika.libs.net.dns.xfr;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import ru.mainnika.libs.net.dns.DnsException;
+import ru.mainnika.libs.net.dns.Message;
+import ru.mainnika.libs.net.dns.Rcode;
+import ru.mainnika.libs.net.dns.ResourceRecord;
+import ru.mainnika.libs.net.dns.Wire;
+
+/**
+ * Записи секций ответов из потока сообщений TCP по одной. Сообщение
+ * читается в переиспользуемый буфер, следующее - когда записи текущего
+ * закончились. Каждое сообщение сверяется с идентификатором запроса.
+ *
+ * @author MainNika
+ */
+final class RecordStream {
+
+    private final DataInputStream in;
+
+    private final int id;
+
+    private final byte[] buf;
+
+    private final byte[] name = new byte[Wire.MAX_NAME];
+
+    private int length;
+
+    private int off;
+
+    private int left;
+
+    RecordStream(InputStream in, int id, byte[] buf){
+        this.in = new DataInputStream(in);
+        this.id = id;
+        this.buf = buf;
+    }
+
+    /* Следующая запись; исключение, если поток закончился */
+    ResourceRecord next() throws IOException, DnsException{
+        while (left == 0)
+            read();
+        left--;
+        int nameLength = Wire.readName(buf, off, length, name, 0);
+        off = Wire.skipName(buf, off, length) + 10;
+        if (off > length)
+            throw new DnsException("Truncated record");
+        int type = Wire.u16(buf, off - 10);
+        int rdlength = Wire.u16(buf, off - 2);
+        if (off + rdlength > length)
+            throw new DnsException("Truncated rdata");
+        byte[] owner = new byte[nameLength];
+        System.arraycopy(name, 0, owner, 0, nameLength);
+        ResourceRecord ret = new ResourceRecord(owner, type, Wire.u16(buf, off - 8), Wire.u32(buf, off - 6),
+                Message.readRdata(buf, off, rdlength, type, length));
+        off += rdlength;
+        return ret;
+    }
+
+    /* Остались ли непрочитанные записи в текущем сообщении */
+    boolean hasBuffered(){
+        return left > 0;
+    }
+
+    private void read() throws IOException, DnsException{
+        try{
+            length = in.readUnsignedShort();
+        }catch(EOFException e){
+            throw new DnsException("Transfer ended before the closing SOA");
+        }
+        in.readFully(buf, 0, length);
+        if ((length < 12) || (Wire.u16(buf, 0) != id) || ((buf[2] & 0x80) == 0))
+            throw new DnsException("Mismatched transfer message");
+        int rcode = buf[3] & 0xf;
+        if (rcode != Rcode.NOERROR)
+            throw new DnsException("Transfer failed: " + Rcode.nameOf(rcode));
+        off = 12;
+        for (int i = Wire.u16(buf, 4); i > 0; i--){
+            off = Wire.skipName(buf, off, length) + 4;
+            if (off > length)
+                throw new DnsException("Truncated question");
+        }
+        left = Wire.u16(buf, 6);
+    }
+}
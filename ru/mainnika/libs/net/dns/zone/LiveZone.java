@@ -0,0 +1,126 @@
+package ru.mainnika.libs.net.dns.zone;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import ru.mainnika.libs.net.dns.DnsException;
+import ru.mainnika.libs.net.dns.RRset;
+import ru.mainnika.libs.net.dns.ResourceRecord;
+
+/**
+ * Изменяемая зона для обслуживания запросов. Текущая версия - неизменяемый
+ * {@link Zone}, который публикуется заменой одной volatile-ссылки: чтение
+ * идет без блокировок и всегда видит целую версию. Правки применяются по
+ * одной под монитором и копируют только затронутые пути дерева.
+ *
+ * К каждой версии хранится разница с предыдущей для IXFR; длина журнала
+ * ограничена.
+ *
+ * @author MainNika
+ */
+public final class LiveZone implements ZoneSource {
+
+    private volatile Zone zone;
+
+    /* Разницы от старых к новым, только под монитором */
+    private final ArrayDeque<ZoneDiff> journal = new ArrayDeque<>();
+
+    private int journalLimit = 256;
+
+    public LiveZone(Zone zone){
+        this.zone = zone;
+    }
+
+    /* Текущая версия */
+    public Zone get(){
+        return zone;
+    }
+
+    @Override
+    public byte[] getOrigin() {
+        return zone.getOrigin();
+    }
+
+    @Override
+    public Lookup lookup(byte[] qname, int off, int qtype){
+        return zone.lookup(qname, off, qtype);
+    }
+
+    /* Сколько разниц хранить для IXFR */
+    public synchronized LiveZone setJournalLimit(int journalLimit) {
+        this.journalLimit = journalLimit;
+        while (journal.size() > journalLimit)
+            journal.removeFirst();
+        return this;
+    }
+
+    /* Правка текущей версии; публикуется через {@link #publish} */
+    public synchronized ZoneEditor edit(){
+        return zone.edit();
+    }
+
+    /*
+     * Публикует правку. Правка должна начинаться с текущей версии, иначе
+     * между ее началом и публикацией прошла другая правка.
+     */
+    public synchronized Zone publish(ZoneEditor editor) throws DnsException{
+        if (editor.getBase() != zone)
+            throw new DnsException("Zone changed since the edit began");
+        Zone next = editor.commit();
+        if (next == zone)
+            return next;
+        RRset from = zone.getSoa();
+        RRset to = next.getSoa();
+        if ((from != null) && (to != null) && (ZoneDiff.compareSerial(serial(to), serial(from)) > 0)){
+            journal.addLast(new ZoneDiff(soa(from), soa(to), without(editor.getDeleted(), from), without(editor.getAdded(), to)));
+            while (journal.size() > journalLimit)
+                journal.removeFirst();
+        }else{
+            // без роста серийного номера разницу не описать, журнал начинается заново
+            journal.clear();
+        }
+        zone = next;
+        return next;
+    }
+
+    /* Полная замена зоны, например после AXFR; журнал сбрасывается */
+    public synchronized void replace(Zone next){
+        journal.clear();
+        zone = next;
+    }
+
+    /*
+     * Цепочка разниц от версии с серийным номером serial до текущей; null,
+     * если журнал ее не покрывает.
+     */
+    public synchronized List<ZoneDiff> journal(long serial){
+        ArrayList<ZoneDiff> ret = new ArrayList<>();
+        boolean found = false;
+        for (ZoneDiff diff : journal){
+            if (!found && (diff.getFromSerial() == serial))
+                found = true;
+            if (found)
+                ret.add(diff);
+        }
+        if (!found)
+            return null;
+        return ret;
+    }
+
+    private static long serial(RRset soa){
+        return ZoneDiff.serial(soa(soa));
+    }
+
+    private static ResourceRecord soa(RRset set){
+        return new ResourceRecord(set.getName(), set.getType(), set.getCl(), set.getTtl(), set.getRdataAt(0));
+    }
+
+    /* Записи без SOA версии: она передается отдельно */
+    private static List<ResourceRecord> without(List<ResourceRecord> records, RRset soa){
+        ArrayList<ResourceRecord> ret = new ArrayList<>(records.size());
+        for (ResourceRecord rr : records)
+            if (rr.getType() != soa.getType())
+                ret.add(rr);
+        return ret;
+    }
+}
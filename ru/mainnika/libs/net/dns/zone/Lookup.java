@@ -0,0 +1,131 @@
+package ru.mainnika.libs.net.dns.zone;
+
+import java.util.ArrayList;
+import ru.mainnika.libs.net.dns.Dns;
+import ru.mainnika.libs.net.dns.DnsException;
+import ru.mainnika.libs.net.dns.Rcode;
+import ru.mainnika.libs.net.dns.ResourceRecord;
+import ru.mainnika.libs.net.dns.Type;
+import ru.mainnika.libs.net.dns.Wire;
+
+/**
+ * Результат поиска в зоне: статус, код ответа и содержимое секций ответа.
+ *
+ * @author MainNika
+ */
+public final class Lookup {
+
+    public enum Status {
+        /** Найдены записи запрошенного типа */
+        ANSWER,
+        /** Имя существует, записей запрошенного типа нет */
+        NODATA,
+        /** Имя не существует */
+        NXDOMAIN,
+        /** Имя лежит ниже точки делегирования */
+        REFERRAL,
+        /** Имя вне зоны */
+        NOTAUTH
+    }
+
+    private Status status;
+
+    private boolean authoritative;
+
+    private boolean wildcard;
+
+    final ArrayList<ResourceRecord> answers;
+
+    final ArrayList<ResourceRecord> authorities;
+
+    final ArrayList<ResourceRecord> additionals;
+
+    Lookup(){
+        answers = new ArrayList<>();
+        authorities = new ArrayList<>();
+        additionals = new ArrayList<>();
+        status = Status.NOTAUTH;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    Lookup setStatus(Status status) {
+        this.status = status;
+        this.authoritative = (status != Status.REFERRAL) && (status != Status.NOTAUTH);
+        return this;
+    }
+
+    public boolean isAuthoritative() {
+        return authoritative;
+    }
+
+    /* Ответ синтезирован по wildcard */
+    public boolean isWildcard() {
+        return wildcard;
+    }
+
+    Lookup setWildcard() {
+        wildcard = true;
+        return this;
+    }
+
+    /* SOA в секцию авторитетных для отрицательного ответа, TTL не больше MINIMUM (RFC 2308) */
+    void negative(byte[] name, int cl, long ttl, byte[] rdata){
+        long minimum = Wire.u32(rdata, rdata.length - 4);
+        authorities.add(new ResourceRecord(name, Type.SOA, cl, Math.min(ttl, minimum), rdata));
+    }
+
+    public byte getRcode(){
+        switch (status){
+            case NXDOMAIN: return Rcode.NXDOMAIN;
+            case NOTAUTH: return Rcode.REFUSED;
+            default: return Rcode.NOERROR;
+        }
+    }
+
+    public ArrayList<ResourceRecord> getAnswers() {
+        return answers;
+    }
+
+    public ArrayList<ResourceRecord> getAuthorities() {
+        return authorities;
+    }
+
+    public ArrayList<ResourceRecord> getAdditionals() {
+        return additionals;
+    }
+
+    /* Переносит результат в пакет ответа: код, флаг AA и записи секций */
+    public Dns fill(Dns response) throws DnsException{
+        response.setQr().setRcode(getRcode());
+        if (authoritative)
+            response.setAa();
+        for (ResourceRecord rr : answers)
+            response.addAnswer(rr);
+        for (ResourceRecord rr : authorities)
+            response.addAuthority(rr);
+        for (ResourceRecord rr : additionals)
+            response.addAdditional(rr);
+        return response;
+    }
+
+    /* Новый пакет ответа на запрос с первым вопросом запроса */
+    public Dns makeResponse(Dns request) throws DnsException{
+        Dns response = new Dns();
+        response.setId(request.getId()).setOpcode(request.getOpcode());
+        if (request.issetRd())
+            response.setRd();
+        if (request.getQdcount() > 0){
+            Dns.Query query = request.getQueryAt(0);
+            response.addQuery(query.getWireName(), query.getType() & 0xffff, query.getCl() & 0xffff);
+        }
+        return fill(response);
+    }
+
+    @Override
+    public String toString() {
+        return status + " AN:" + answers + " NS:" + authorities + " AR:" + additionals;
+    }
+}
@@ -0,0 +1,714 @@
+package ru.mainnika.libs.net.dns.zone;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Calendar;
+import java.util.TimeZone;
+import ru.mainnika.libs.net.dns.DnsException;
+import ru.mainnika.libs.net.dns.ResourceRecord;
+import ru.mainnika.libs.net.dns.Type;
+import ru.mainnika.libs.net.dns.Wire;
+
+/**
+ * Потоковый разбор мастер-файла зоны (RFC 1035, раздел 5). Записи отдаются
+ * по одной через {@link #next()}, файл целиком в памяти не держится.
+ * Поддерживаются $ORIGIN, $TTL, $INCLUDE, многострочные записи в скобках,
+ * экранирование и общий формат RDATA \# (RFC 3597).
+ *
+ * @author MainNika
+ */
+public final class MasterFileParser {
+
+    /* Наибольшая вложенность $INCLUDE; глубже - почти наверняка цикл */
+    static final int MAX_INCLUDE = 16;
+
+    /* Открытые файлы: текущий и прерванные через $INCLUDE */
+    private final ArrayDeque<Source> sources = new ArrayDeque<>();
+
+    private final Path base;
+
+    private Source current;
+
+    private byte[] origin;
+
+    private long defaultTtl = -1;
+
+    private long lastTtl = -1;
+
+    private int lastCl = Type.CLASS_IN;
+
+    private byte[] lastName;
+
+    /* Токены текущей записи; строки в кавычках сохраняют кавычки */
+    private final ArrayList<String> tokens = new ArrayList<>();
+
+    private boolean blankOwner;
+
+    private final StringBuilder token = new StringBuilder(64);
+
+    private byte[] out = new byte[1024];
+
+    private int pos;
+
+    private static final class Source {
+        final BufferedReader in;
+        byte[] origin;
+        final String name;
+        /* Нормализованный путь для поиска циклов $INCLUDE; null у исходного потока */
+        final Path path;
+        int line;
+
+        Source(BufferedReader in, byte[] origin, String name, Path path){
+            this.in = in;
+            this.origin = origin;
+            this.name = name;
+            this.path = path;
+        }
+    }
+
+    public MasterFileParser(Reader in, byte[] origin, Path base){
+        BufferedReader reader = (in instanceof BufferedReader) ? (BufferedReader) in : new BufferedReader(in, 1 << 16);
+        this.current = new Source(reader, origin.clone(), "<zone>", null);
+        this.origin = origin.clone();
+        this.base = base;
+    }
+
+    public MasterFileParser(Reader in, byte[] origin){
+        this(in, origin, null);
+    }
+
+    /* TTL по умолчанию, если в файле нет $TTL */
+    public MasterFileParser setDefaultTtl(long ttl){
+        this.defaultTtl = ttl;
+        return this;
+    }
+
+    /* Текущая позиция для сообщений об ошибках */
+    public String getPosition(){
+        return current.name + ":" + Integer.toString(current.line);
+    }
+
+    /* Следующая запись или null в конце файла */
+    public ResourceRecord next() throws IOException, DnsException{
+        while (readEntry()){
+            if (tokens.isEmpty())
+                continue;
+            try{
+                String first = tokens.get(0);
+                if (!blankOwner && first.startsWith("$")){
+                    directive(first);
+                    continue;
+                }
+                return record();
+            }catch(DnsException | RuntimeException e){
+                throw new DnsException(getPosition() + ": " + e.getMessage());
+            }
+        }
+        return null;
+    }
+
+    /* ———————————————————— Лексика —————————————————————— */
+
+    /* Читает одну логическую запись, склеивая строки внутри скобок */
+    private boolean readEntry() throws IOException, DnsException{
+        tokens.clear();
+        int depth = 0;
+        boolean first = true;
+        while (true){
+            String line = current.in.readLine();
+            if (line == null){
+                if (depth > 0)
+                    throw new DnsException(getPosition() + ": Unbalanced parentheses");
+                if (!popSource())
+                    return false;
+                first = true;
+                continue;
+            }
+            current.line++;
+            if (first){
+                blankOwner = (line.length() > 0) && ((line.charAt(0) == ' ') || (line.charAt(0) == '\t'));
+                first = false;
+            }
+            depth = tokenize(line, depth);
+            if (depth == 0){
+                if (tokens.isEmpty()){
+                    first = true;
+                    continue;
+                }
+                return true;
+            }
+        }
+    }
+
+    private int tokenize(String line, int depth) throws DnsException{
+        int length = line.length();
+        int i = 0;
+        while (i < length){
+            char c = line.charAt(i);
+            if ((c == ' ') || (c == '\t') || (c == '\r')){
+                i++;
+            }else if (c == ';'){
+                break;
+            }else if (c == '('){
+                depth++;
+                i++;
+            }else if (c == ')'){
+                if (--depth < 0)
+                    throw new DnsException(getPosition() + ": Unbalanced parentheses");
+                i++;
+            }else if (c == '"'){
+                token.setLength(0);
+                token.append('"');
+                i++;
+                while (i < length){
+                    c = line.charAt(i);
+                    if (c == '\\' && (i + 1 < length)){
+                        token.append(c).append(line.charAt(i + 1));
+                        i += 2;
+                        continue;
+                    }
+                    i++;
+                    if (c == '"')
+                        break;
+                    token.append(c);
+                }
+                token.append('"');
+                tokens.add(token.toString());
+            }else{
+                token.setLength(0);
+                while (i < length){
+                    c = line.charAt(i);
+                    if ((c == ' ') || (c == '\t') || (c == '\r') || (c == ';') || (c == '(') || (c == ')') || (c == '"'))
+                        break;
+                    if ((c == '\\') && (i + 1 < length)){
+                        token.append(c).append(line.charAt(i + 1));
+                        i += 2;
+                        continue;
+                    }
+                    token.append(c);
+                    i++;
+                }
+                tokens.add(token.toString());
+            }
+        }
+        return depth;
+    }
+
+    private boolean popSource() throws IOException{
+        if (sources.isEmpty())
+            return false;
+        current.in.close();
+        current = sources.pop();
+        origin = current.origin;
+        return true;
+    }
+
+    /* ———————————————————— Директивы —————————————————————— */
+
+    private void directive(String name) throws IOException, DnsException{
+        switch (name.toUpperCase()){
+            case "$ORIGIN":
+                origin = Wire.fromString(arg(1), origin);
+                break;
+            case "$TTL":
+                defaultTtl = parseTtl(arg(1));
+                break;
+            case "$INCLUDE":{
+                Path file = (base == null) ? Path.of(arg(1)) : base.resolve(arg(1));
+                if (sources.size() >= MAX_INCLUDE)
+                    throw new DnsException("$INCLUDE nested deeper than " + Integer.toString(MAX_INCLUDE));
+                Path path = file.toAbsolutePath().normalize();
+                if (path.equals(current.path))
+                    throw new DnsException("$INCLUDE of itself: " + file);
+                for (Source source : sources)
+                    if (path.equals(source.path))
+                        throw new DnsException("$INCLUDE loop through " + file);
+                byte[] includeOrigin = (tokens.size() > 2) ? Wire.fromString(tokens.get(2), origin) : origin;
+                current.origin = origin;
+                sources.push(current);
+                current = new Source(Files.newBufferedReader(file, StandardCharsets.ISO_8859_1), includeOrigin, file.toString(), path);
+                origin = includeOrigin;
+                break;
+            }
+            default:
+                throw new DnsException("Unsupported directive " + name);
+        }
+    }
+
+    private String arg(int index) throws DnsException{
+        if (tokens.size() <= index)
+            throw new DnsException("Missing argument for " + tokens.get(0));
+        return tokens.get(index);
+    }
+
+    /* ———————————————————— Записи —————————————————————— */
+
+    private ResourceRecord record() throws DnsException{
+        int index = 0;
+        byte[] name;
+        if (blankOwner){
+            if (lastName == null)
+                throw new DnsException("No previous owner");
+            name = lastName;
+        }else{
+            name = Wire.fromString(tokens.get(index++), origin);
+            lastName = name;
+        }
+        long ttl = -1;
+        int cl = -1;
+        for (int k = 0; (k < 2) && (index < tokens.size()); k++){
+            String t = tokens.get(index);
+            if ((cl < 0) && (Type.classForName(t) >= 0) && (Type.forName(t) < 0)){
+                cl = Type.classForName(t);
+                index++;
+            }else if ((ttl < 0) && (t.length() > 0) && Character.isDigit(t.charAt(0))){
+                ttl = parseTtl(t);
+                index++;
+            }else{
+                break;
+            }
+        }
+        if (index >= tokens.size())
+            throw new DnsException("Missing type");
+        String typeName = tokens.get(index++);
+        int type = Type.forName(typeName);
+        if (type < 0)
+            throw new DnsException("Unknown type " + typeName);
+        if (cl < 0){
+            cl = lastCl;
+        }else{
+            lastCl = cl;
+        }
+        byte[] rdata = rdata(type, index);
+        if (ttl < 0){
+            if (defaultTtl >= 0){
+                ttl = defaultTtl;
+            }else if (lastTtl >= 0){
+                ttl = lastTtl;
+            }else if (type == Type.SOA){
+                ttl = Wire.u32(rdata, rdata.length - 4);
+            }else{
+                throw new DnsException("No TTL for " + Wire.toString(name));
+            }
+        }else if (defaultTtl < 0){
+            lastTtl = ttl;
+        }
+        return new ResourceRecord(name, type, cl, ttl, rdata);
+    }
+
+    private byte[] rdata(int type, int index) throws DnsException{
+        pos = 0;
+        if ((index < tokens.size()) && tokens.get(index).equals("\\#")){
+            int length = (int) parseInt(token(index + 1), 0xffff);
+            hex(index + 2, tokens.size());
+            if (pos != length)
+                throw new DnsException("RDATA length mismatch");
+            return Arrays.copyOf(out, pos);
+        }
+        switch (type){
+            case Type.A:
+                address4(token(index));
+                break;
+            case Type.AAAA:
+                address6(token(index));
+                break;
+            case Type.NS: case Type.CNAME: case Type.PTR: case Type.DNAME:
+                name(token(index));
+                break;
+            case Type.MX:
+                u16(token(index));
+                name(token(index + 1));
+                break;
+            case Type.SOA:
+                name(token(index));
+                name(token(index + 1));
+                u32(parseInt(token(index + 2), 0xffffffffL));
+                for (int i = 3; i < 7; i++)
+                    u32(parseTtl(token(index + i)));
+                break;
+            case Type.TXT: case Type.SPF:
+                token(index);
+                for (int i = index; i < tokens.size(); i++)
+                    string(tokens.get(i));
+                break;
+            case Type.HINFO:
+                string(token(index));
+                string(token(index + 1));
+                break;
+            case Type.SRV:
+                u16(token(index));
+                u16(token(index + 1));
+                u16(token(index + 2));
+                name(token(index + 3));
+                break;
+            case Type.NAPTR:
+                u16(token(index));
+                u16(token(index + 1));
+                string(token(index + 2));
+                string(token(index + 3));
+                string(token(index + 4));
+                name(token(index + 5));
+                break;
+            case Type.CAA:{
+                u8(token(index));
+                String tag = token(index + 1);
+                u8(tag.length());
+                bytes(tag.getBytes(StandardCharsets.ISO_8859_1));
+                byte[] value = unescape(token(index + 2));
+                bytes(value);
+                break;
+            }
+            case Type.DS:
+                u16(token(index));
+                u8(token(index + 1));
+                u8(token(index + 2));
+                hex(index + 3, tokens.size());
+                break;
+            case Type.SSHFP:
+                u8(token(index));
+                u8(token(index + 1));
+                hex(index + 2, tokens.size());
+                break;
+            case Type.TLSA:
+                u8(token(index));
+                u8(token(index + 1));
+                u8(token(index + 2));
+                hex(index + 3, tokens.size());
+                break;
+            case Type.DNSKEY:
+                u16(token(index));
+                u8(token(index + 1));
+                u8(token(index + 2));
+                base64(index + 3);
+                break;
+            case Type.RRSIG:{
+                int covered = Type.forName(token(index));
+                if (covered < 0)
+                    throw new DnsException("Unknown type " + tokens.get(index));
+                u16(covered);
+                u8(token(index + 1));
+                u8(token(index + 2));
+                u32(parseInt(token(index + 3), 0xffffffffL));
+                u32(parseTime(token(index + 4)));
+                u32(parseTime(token(index + 5)));
+                u16(token(index + 6));
+                name(token(index + 7));
+                base64(index + 8);
+                break;
+            }
+            case Type.NSEC:
+                name(token(index));
+                bitmap(index + 1);
+                break;
+            case Type.NSEC3:{
+                u8(token(index));
+                u8(token(index + 1));
+                u16(token(index + 2));
+                salt(token(index + 3));
+                byte[] next = base32hex(token(index + 4));
+                u8(next.length);
+                bytes(next);
+                bitmap(index + 5);
+                break;
+            }
+            case Type.NSEC3PARAM:
+                u8(token(index));
+                u8(token(index + 1));
+                u16(token(index + 2));
+                salt(token(index + 3));
+                break;
+            default:
+                throw new DnsException("No presentation format for " + Type.nameOf(type) + ", use \\#");
+        }
+        return Arrays.copyOf(out, pos);
+    }
+
+    private String token(int index) throws DnsException{
+        if (index >= tokens.size())
+            throw new DnsException("Missing RDATA field");
+        return tokens.get(index);
+    }
+
+    /* ———————————————————— Поля RDATA —————————————————————— */
+
+    private void ensure(int size){
+        if (pos + size > out.length)
+            out = Arrays.copyOf(out, Math.max(out.length * 2, pos + size));
+    }
+
+    private void u8(int v){
+        ensure(1);
+        out[pos++] = (byte) v;
+    }
+
+    private void u8(String v) throws DnsException{
+        u8((int) parseInt(v, 0xff));
+    }
+
+    private void u16(int v){
+        ensure(2);
+        Wire.put16(out, pos, v);
+        pos += 2;
+    }
+
+    private void u16(String v) throws DnsException{
+        u16((int) parseInt(v, 0xffff));
+    }
+
+    private void u32(long v){
+        ensure(4);
+        Wire.put32(out, pos, v);
+        pos += 4;
+    }
+
+    private void bytes(byte[] v){
+        ensure(v.length);
+        System.arraycopy(v, 0, out, pos, v.length);
+        pos += v.length;
+    }
+
+    private void name(String v) throws DnsException{
+        bytes(Wire.fromString(v, origin));
+    }
+
+    /* Строка символов: байт длины и содержимое */
+    private void string(String v) throws DnsException{
+        byte[] s = unescape(v);
+        if (s.length > 255)
+            throw new DnsException("Character string too long");
+        u8(s.length);
+        bytes(s);
+    }
+
+    private void address4(String v) throws DnsException{
+        String[] parts = v.split("\\.", -1);
+        if (parts.length != 4)
+            throw new DnsException("Bad IPv4 address " + v);
+        for (String part : parts)
+            u8((int) parseInt(part, 0xff));
+    }
+
+    private void address6(String v) throws DnsException{
+        if (v.indexOf(':') < 0)
+            throw new DnsException("Bad IPv6 address " + v);
+        try{
+            InetAddress address = InetAddress.getByName(v);
+            if (address instanceof Inet6Address){
+                bytes(address.getAddress());
+            }else if (address instanceof Inet4Address){
+                ensure(16);
+                // буфер переиспользуется: первые 10 байт адреса могут хранить прежние данные
+                Arrays.fill(out, pos, pos + 10, (byte) 0);
+                out[pos + 10] = (byte) 0xff;
+                out[pos + 11] = (byte) 0xff;
+                System.arraycopy(address.getAddress(), 0, out, pos + 12, 4);
+                pos += 16;
+            }
+        }catch(UnknownHostException e){
+            throw new DnsException("Bad IPv6 address " + v);
+        }
+    }
+
+    private void hex(int from, int to) throws DnsException{
+        int hi = -1;
+        for (int i = from; i < to; i++){
+            String v = tokens.get(i);
+            for (int k = 0; k < v.length(); k++){
+                int d = Character.digit(v.charAt(k), 16);
+                if (d < 0)
+                    throw new DnsException("Bad hex " + v);
+                if (hi < 0){
+                    hi = d;
+                }else{
+                    u8((hi << 4) | d);
+                    hi = -1;
+                }
+            }
+        }
+        if (hi >= 0)
+            throw new DnsException("Odd hex length");
+    }
+
+    private void salt(String v) throws DnsException{
+        if (v.equals("-")){
+            u8(0);
+            return;
+        }
+        int at = pos;
+        u8(0);
+        tokens.add(v);
+        hex(tokens.size() - 1, tokens.size());
+        tokens.remove(tokens.size() - 1);
+        out[at] = (byte) (pos - at - 1);
+    }
+
+    private void base64(int from) throws DnsException{
+        StringBuilder sb = new StringBuilder();
+        for (int i = from; i < tokens.size(); i++)
+            sb.append(tokens.get(i));
+        try{
+            bytes(Base64.getDecoder().decode(sb.toString()));
+        }catch(IllegalArgumentException e){
+            throw new DnsException("Bad base64");
+        }
+    }
+
+    /* Битовая карта типов NSEC/NSEC3 (RFC 4034, раздел 4.1.2) */
+    private void bitmap(int from) throws DnsException{
+        int[] types = new int[tokens.size() - from];
+        for (int i = from; i < tokens.size(); i++){
+            types[i - from] = Type.forName(tokens.get(i));
+            if (types[i - from] < 0)
+                throw new DnsException("Unknown type " + tokens.get(i));
+        }
+        bytes(typeBitmap(types));
+    }
+
+    /* Кодирует список типов в битовую карту окнами по 256 типов */
+    public static byte[] typeBitmap(int[] types){
+        int[] sorted = types.clone();
+        Arrays.sort(sorted);
+        byte[] ret = new byte[sorted.length * 34];
+        int length = 0;
+        int i = 0;
+        while (i < sorted.length){
+            int window = sorted[i] >> 8;
+            byte[] bits = new byte[32];
+            int max = 0;
+            for (; (i < sorted.length) && ((sorted[i] >> 8) == window); i++){
+                int bit = sorted[i] & 0xff;
+                bits[bit >> 3] |= (byte) (0x80 >> (bit & 7));
+                max = Math.max(max, (bit >> 3) + 1);
+            }
+            ret[length++] = (byte) window;
+            ret[length++] = (byte) max;
+            System.arraycopy(bits, 0, ret, length, max);
+            length += max;
+        }
+        return Arrays.copyOf(ret, length);
+    }
+
+    private static final String BASE32HEX = "0123456789ABCDEFGHIJKLMNOPQRSTUV";
+
+    private static byte[] base32hex(String v) throws DnsException{
+        byte[] ret = new byte[v.length() * 5 / 8];
+        long buffer = 0;
+        int bits = 0;
+        int length = 0;
+        for (int i = 0; i < v.length(); i++){
+            char c = v.charAt(i);
+            if (c == '=')
+                break;
+            int d = BASE32HEX.indexOf(Character.toUpperCase(c));
+            if (d < 0)
+                throw new DnsException("Bad base32hex " + v);
+            buffer = (buffer << 5) | d;
+            bits += 5;
+            if (bits >= 8){
+                bits -= 8;
+                ret[length++] = (byte) (buffer >> bits);
+            }
+        }
+        return Arrays.copyOf(ret, length);
+    }
+
+    /* Снятие кавычек и экранирования \X, \DDD */
+    private static byte[] unescape(String v) throws DnsException{
+        int from = 0;
+        int to = v.length();
+        if ((to >= 2) && (v.charAt(0) == '"') && (v.charAt(to - 1) == '"')){
+            from = 1;
+            to--;
+        }
+        byte[] ret = new byte[to - from];
+        int length = 0;
+        for (int i = from; i < to; i++){
+            char c = v.charAt(i);
+            if (c == '\\'){
+                if (i + 1 >= to)
+                    throw new DnsException("Bad escape in " + v);
+                char n = v.charAt(++i);
+                if (Character.isDigit(n)){
+                    if (i + 2 >= to)
+                        throw new DnsException("Bad escape in " + v);
+                    ret[length++] = (byte) ((n - '0') * 100 + (v.charAt(i + 1) - '0') * 10 + (v.charAt(i + 2) - '0'));
+                    i += 2;
+                }else{
+                    ret[length++] = (byte) n;
+                }
+            }else{
+                ret[length++] = (byte) c;
+            }
+        }
+        return Arrays.copyOf(ret, length);
+    }
+
+    private static long parseInt(String v, long max) throws DnsException{
+        try{
+            long ret = Long.parseLong(v);
+            if ((ret < 0) || (ret > max))
+                throw new DnsException("Value out of range: " + v);
+            return ret;
+        }catch(NumberFormatException e){
+            throw new DnsException("Bad number " + v);
+        }
+    }
+
+    /* TTL числом секунд или с единицами: 1w2d3h4m5s */
+    public static long parseTtl(String v) throws DnsException{
+        long ret = 0;
+        long value = -1;
+        for (int i = 0; i < v.length(); i++){
+            char c = v.charAt(i);
+            if ((c >= '0') && (c <= '9')){
+                value = ((value < 0) ? 0 : value * 10) + (c - '0');
+                continue;
+            }
+            if (value < 0)
+                throw new DnsException("Bad TTL " + v);
+            switch (Character.toLowerCase(c)){
+                case 'w': value *= 604800; break;
+                case 'd': value *= 86400; break;
+                case 'h': value *= 3600; break;
+                case 'm': value *= 60; break;
+                case 's': break;
+                default: throw new DnsException("Bad TTL " + v);
+            }
+            ret += value;
+            value = -1;
+        }
+        if (value >= 0)
+            ret += value;
+        if (ret > 0xffffffffL)
+            throw new DnsException("Bad TTL " + v);
+        return ret;
+    }
+
+    /* Время подписи: YYYYMMDDHHmmSS в UTC или число секунд */
+    private static long parseTime(String v) throws DnsException{
+        if (v.length() != 14)
+            return parseInt(v, 0xffffffffL);
+        try{
+            Calendar c = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+            c.clear();
+            c.set(Integer.parseInt(v.substring(0, 4)), Integer.parseInt(v.substring(4, 6)) - 1,
+                    Integer.parseInt(v.substring(6, 8)), Integer.parseInt(v.substring(8, 10)),
+                    Integer.parseInt(v.substring(10, 12)), Integer.parseInt(v.substring(12, 14)));
+            return (c.getTimeInMillis() / 1000) & 0xffffffffL;
+        }catch(NumberFormatException e){
+            throw new DnsException("Bad time " + v);
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package ru.mainnika.libs.net.dns.zone;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import ru.mainnika.libs.net.dns.RRset;
+import ru.mainnika.libs.net.dns.Wire;
+
+/**
+ * Узел дерева меток зоны. Дети хранятся списком, пока их мало, и открытой
+ * хэш-таблицей по метке без учета регистра, когда их становится много, так
+ * что переход на один уровень вниз не зависит от ширины зоны. Таблица
+ * разбита на страницы: копия узла для правки разделяет страницы с
+ * оригиналом, и правка копирует только те, в которые пишет.
+ *
+ * @author MainNika
+ */
+final class Node {
+
+    /* Порог перехода от списка детей к хэш-таблице */
+    private static final int LINEAR_LIMIT = 8;
+
+    /* Ячеек на странице хэш-таблицы детей */
+    private static final int PAGE_BITS = 8;
+
+    private static final int PAGE = 1 << PAGE_BITS;
+
+    private static final int PAGE_MASK = PAGE - 1;
+
+    private static final RRset[] NO_SETS = new RRset[0];
+
+    /**
+     * Метка узла: байт длины и байты метки в исходном регистре. У вершины
+     * зоны метки нет.
+     */
+    final byte[] label;
+
+    private RRset[] sets;
+
+    private int setCount;
+
+    /* Дети списком, пока их не больше LINEAR_LIMIT */
+    private Node[] children;
+
+    /* Хэш-таблица детей страницами по PAGE ячеек */
+    private Node[][] pages;
+
+    private int slots;
+
+    private int childCount;
+
+    Node(byte[] label){
+        this.label = label;
+        this.sets = NO_SETS;
+    }
+
+    /*
+     * Поверхностная копия узла: массивы наборов и детей копируются, наборы и
+     * дети разделяются. У хэш-таблицы копируется только каталог страниц;
+     * страницы копируются при первой записи в них (см. {@link Edit}).
+     */
+    Node copy(){
+        Node ret = new Node(label);
+        ret.sets = (setCount == 0) ? NO_SETS : Arrays.copyOf(sets, setCount);
+        ret.setCount = setCount;
+        ret.children = (children == null) ? null : children.clone();
+        ret.pages = (pages == null) ? null : pages.clone();
+        ret.slots = slots;
+        ret.childCount = childCount;
+        return ret;
+    }
+
+    /* ———————————————————— Наборы записей —————————————————————— */
+
+    RRset get(int type){
+        for (int i = 0; i < setCount; i++)
+            if (sets[i].getType() == type)
+                return sets[i];
+        return null;
+    }
+
+    int setCount(){
+        return setCount;
+    }
+
+    RRset setAt(int index){
+        return sets[index];
+    }
+
+    /* Кладет набор вместо набора того же типа или добавляет новый */
+    void put(RRset set){
+        for (int i = 0; i < setCount; i++){
+            if (sets[i].getType() == set.getType()){
+                sets[i] = set;
+                return;
+            }
+        }
+        if (setCount == sets.length)
+            sets = Arrays.copyOf(sets, Math.max(2, setCount * 2));
+        sets[setCount++] = set;
+    }
+
+    /* Удаляет набор по типу */
+    boolean remove(int type){
+        for (int i = 0; i < setCount; i++){
+            if (sets[i].getType() == type){
+                System.arraycopy(sets, i + 1, sets, i, setCount - i - 1);
+                sets[--setCount] = null;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* ———————————————————— Дети —————————————————————— */
+
+    int childCount(){
+        return childCount;
+    }
+
+    /* Число ячеек детей; в хэш-режиме часть ячеек пустые */
+    int childSlots(){
+        return (pages != null) ? slots : childCount;
+    }
+
+    Node childSlot(int index){
+        return (pages != null) ? pages[index >>> PAGE_BITS][index & PAGE_MASK] : children[index];
+    }
+
+    boolean isEmpty(){
+        return (setCount == 0) && (childCount == 0);
+    }
+
+    /* Поиск ребенка по метке name[off] */
+    Node child(byte[] name, int off){
+        if (pages == null){
+            for (int i = 0; i < childCount; i++)
+                if (Wire.labelEquals(name, off, children[i].label, 0))
+                    return children[i];
+            return null;
+        }
+        int mask = slots - 1;
+        int index = Wire.labelHash(name, off) & mask;
+        while (true){
+            Node ret = pages[index >>> PAGE_BITS][index & PAGE_MASK];
+            if (ret == null)
+                return null;
+            if (Wire.labelEquals(name, off, ret.label, 0))
+                return ret;
+            index = (index + 1) & mask;
+        }
+    }
+
+    /* Кладет ребенка вместо ребенка с той же меткой или добавляет новый */
+    void putChild(Node child){
+        putChild(child, null);
+    }
+
+    /* То же при правке копии: страницы, не принадлежащие правке, копируются */
+    void putChild(Node child, Edit edit){
+        if (pages == null){
+            for (int i = 0; i < childCount; i++){
+                if (Wire.labelEquals(child.label, 0, children[i].label, 0)){
+                    children[i] = child;
+                    return;
+                }
+            }
+            if (childCount < LINEAR_LIMIT){
+                if (children == null)
+                    children = new Node[2];
+                else if (childCount == children.length)
+                    children = Arrays.copyOf(children, childCount * 2);
+                children[childCount++] = child;
+                return;
+            }
+            rehash(LINEAR_LIMIT * 4, edit);
+        }else if ((childCount + 1) * 2 > slots){
+            rehash(slots * 2, edit);
+        }
+        int mask = slots - 1;
+        int index = Wire.labelHash(child.label, 0) & mask;
+        Node node;
+        while ((node = pages[index >>> PAGE_BITS][index & PAGE_MASK]) != null){
+            if (Wire.labelEquals(child.label, 0, node.label, 0))
+                break;
+            index = (index + 1) & mask;
+        }
+        page(index, edit)[index & PAGE_MASK] = child;
+        if (node == null)
+            childCount++;
+    }
+
+    /* Удаляет ребенка с меткой name[off] */
+    boolean removeChild(byte[] name, int off){
+        return removeChild(name, off, null);
+    }
+
+    boolean removeChild(byte[] name, int off, Edit edit){
+        if (pages == null){
+            for (int i = 0; i < childCount; i++){
+                if (Wire.labelEquals(name, off, children[i].label, 0)){
+                    System.arraycopy(children, i + 1, children, i, childCount - i - 1);
+                    children[--childCount] = null;
+                    return true;
+                }
+            }
+            return false;
+        }
+        int mask = slots - 1;
+        int index = Wire.labelHash(name, off) & mask;
+        while (true){
+            Node node = pages[index >>> PAGE_BITS][index & PAGE_MASK];
+            if (node == null)
+                return false;
+            if (Wire.labelEquals(name, off, node.label, 0))
+                break;
+            index = (index + 1) & mask;
+        }
+        // удаление со сдвигом назад: цепочки проб остаются целыми без пометок
+        int hole = index;
+        for (int next = (hole + 1) & mask; ; next = (next + 1) & mask){
+            Node node = pages[next >>> PAGE_BITS][next & PAGE_MASK];
+            if (node == null)
+                break;
+            int home = Wire.labelHash(node.label, 0) & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)){
+                page(hole, edit)[hole & PAGE_MASK] = node;
+                hole = next;
+            }
+        }
+        page(hole, edit)[hole & PAGE_MASK] = null;
+        childCount--;
+        return true;
+    }
+
+    /* Страница ячейки index, доступная для записи в рамках правки */
+    private Node[] page(int index, Edit edit){
+        int p = index >>> PAGE_BITS;
+        Node[] ret = pages[p];
+        if ((edit != null) && !edit.owns(ret)){
+            ret = ret.clone();
+            edit.own(ret);
+            pages[p] = ret;
+        }
+        return ret;
+    }
+
+    /* Новая таблица; ее страницы сразу принадлежат правке */
+    private void rehash(int capacity, Edit edit){
+        int size = Math.min(capacity, PAGE);
+        Node[][] table = new Node[capacity / size][];
+        for (int i = 0; i < table.length; i++){
+            table[i] = new Node[size];
+            if (edit != null)
+                edit.own(table[i]);
+        }
+        int mask = capacity - 1;
+        int count = childSlots();
+        for (int i = 0; i < count; i++){
+            Node child = childSlot(i);
+            if (child == null)
+                continue;
+            int index = Wire.labelHash(child.label, 0) & mask;
+            while (table[index >>> PAGE_BITS][index & PAGE_MASK] != null)
+                index = (index + 1) & mask;
+            table[index >>> PAGE_BITS][index & PAGE_MASK] = child;
+        }
+        pages = table;
+        slots = capacity;
+        children = null;
+    }
+
+    /**
+     * Правка копий узлов: запоминает страницы таблиц детей, уже скопированные
+     * в этой правке, чтобы не копировать их повторно и не писать в страницы,
+     * разделяемые с прежней версией зоны.
+     */
+    static final class Edit {
+
+        private final Set<Object> owned = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        boolean owns(Object array){
+            return owned.contains(array);
+        }
+
+        void own(Object array){
+            owned.add(array);
+        }
+    }
+}
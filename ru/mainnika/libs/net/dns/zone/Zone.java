@@ -0,0 +1,359 @@
+package ru.mainnika.libs.net.dns.zone;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import ru.mainnika.libs.net.dns.Dns;
+import ru.mainnika.libs.net.dns.DnsException;
+import ru.mainnika.libs.net.dns.RRset;
+import ru.mainnika.libs.net.dns.ResourceRecord;
+import ru.mainnika.libs.net.dns.Type;
+import ru.mainnika.libs.net.dns.Wire;
+
+/**
+ * Авторитетная зона в памяти. Имена хранятся деревом меток, растущим от
+ * вершины зоны справа налево, поэтому поиск занимает O(число меток) и сразу
+ * дает ближайшего предка, точку делегирования и кандидата для wildcard.
+ *
+ * @author MainNika
+ */
+public final class Zone implements ZoneSource {
+
+    /* Предел длины цепочки CNAME внутри зоны */
+    private static final int MAX_CHAIN = 8;
+
+    private static final byte[] WILDCARD = { 1, '*' };
+
+    private final byte[] origin;
+
+    private final int originLabels;
+
+    private final int cl;
+
+    private Node apex;
+
+    private long records;
+
+    public Zone(byte[] origin, int cl){
+        this.origin = origin.clone();
+        this.originLabels = Wire.labelCount(origin, 0);
+        this.cl = cl;
+        this.apex = new Node(null);
+    }
+
+    public Zone(byte[] origin){
+        this(origin, Type.CLASS_IN);
+    }
+
+    /* Новая версия зоны из правки; дерево разделяется с прежней версией */
+    Zone(Zone base, Node apex, long records){
+        this.origin = base.origin;
+        this.originLabels = base.originLabels;
+        this.cl = base.cl;
+        this.apex = apex;
+        this.records = records;
+    }
+
+    /* Загрузка зоны из мастер-файла */
+    public static Zone load(Reader in, byte[] origin) throws IOException, DnsException{
+        return load(new MasterFileParser(in, origin), origin);
+    }
+
+    public static Zone load(Path file, byte[] origin) throws IOException, DnsException{
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.ISO_8859_1)){
+            return load(new MasterFileParser(in, origin, file.getParent()), origin);
+        }
+    }
+
+    private static Zone load(MasterFileParser parser, byte[] origin) throws IOException, DnsException{
+        Zone ret = new Zone(origin);
+        ResourceRecord rr;
+        while ((rr = parser.next()) != null)
+            ret.add(rr);
+        if (ret.getSoa() == null)
+            throw new DnsException("No SOA at zone apex");
+        return ret;
+    }
+
+    @Override
+    public byte[] getOrigin() {
+        return origin.clone();
+    }
+
+    public int getCl() {
+        return cl;
+    }
+
+    /* Количество записей в зоне */
+    public long getRecordCount() {
+        return records;
+    }
+
+    public RRset getSoa(){
+        return apex.get(Type.SOA);
+    }
+
+    Node getApex() {
+        return apex;
+    }
+
+    int getOriginLabels() {
+        return originLabels;
+    }
+
+    /* ———————————————————— Наполнение —————————————————————— */
+
+    /*
+     * Правка без остановки чтения: изменения копируют только путь от вершины
+     * до измененных узлов, а результат - новая версия зоны. Эта версия не
+     * меняется. В отличие от правки, {@link #add} меняет зону на месте и
+     * годится только для наполнения зоны до публикации.
+     */
+    public ZoneEditor edit(){
+        return new ZoneEditor(this);
+    }
+
+    /* Добавить запись, промежуточные узлы создаются автоматически */
+    public Zone add(ResourceRecord rr) throws DnsException{
+        byte[] name = rr.getName();
+        if (!Wire.isSubdomain(name, 0, origin, 0))
+            throw new DnsException("Out of zone: " + Wire.toString(name));
+        if (rr.getCl() != cl)
+            throw new DnsException("Wrong class for " + Wire.toString(name));
+        int[] offsets = new int[Wire.MAX_LABELS];
+        int count = Wire.labelOffsets(name, 0, offsets) - originLabels;
+        Node node = apex;
+        for (int i = count - 1; i >= 0; i--){
+            Node next = node.child(name, offsets[i]);
+            if (next == null){
+                next = new Node(Arrays.copyOfRange(name, offsets[i], offsets[i] + (name[offsets[i]] & 0xff) + 1));
+                node.putChild(next);
+            }
+            node = next;
+        }
+        RRset set = node.get(rr.getType());
+        if (set == null){
+            set = new RRset(name, rr.getType(), rr.getCl(), rr.getTtl());
+            node.put(set);
+        }
+        if (set.add(rr.getRdata(), rr.getTtl()))
+            records++;
+        return this;
+    }
+
+    /* Набор записей по точному имени без учета делегирований */
+    public RRset find(byte[] name, int type){
+        Node node = findNode(name, 0);
+        return (node == null) ? null : node.get(type);
+    }
+
+    Node findNode(byte[] name, int off){
+        if (!Wire.isSubdomain(name, off, origin, 0))
+            return null;
+        int[] offsets = new int[Wire.MAX_LABELS];
+        int count = Wire.labelOffsets(name, off, offsets) - originLabels;
+        Node node = apex;
+        for (int i = count - 1; (i >= 0) && (node != null); i--)
+            node = node.child(name, offsets[i]);
+        return node;
+    }
+
+    /* ———————————————————— Поиск —————————————————————— */
+
+    /* Поиск по вопросу из разобранного пакета */
+    public Lookup lookup(Dns.Query query){
+        return lookup(query.getWireName(), 0, query.getType() & 0xffff);
+    }
+
+    public Lookup lookup(byte[] qname, int qtype){
+        return lookup(qname, 0, qtype);
+    }
+
+    /* Поиск по несжатому имени qname[off] (RFC 1034, раздел 4.3.2) */
+    @Override
+    public Lookup lookup(byte[] qname, int off, int qtype){
+        Lookup ret = new Lookup();
+        if (!Wire.isSubdomain(qname, off, origin, 0))
+            return ret.setStatus(Lookup.Status.NOTAUTH);
+        resolve(ret, qname, off, qtype, 0);
+        return ret;
+    }
+
+    private void resolve(Lookup ret, byte[] qname, int off, int qtype, int depth){
+        int[] offsets = new int[Wire.MAX_LABELS];
+        int count = Wire.labelOffsets(qname, off, offsets) - originLabels;
+        Node node = apex;
+        int i = count - 1;
+        for (; i >= 0; i--){
+            if ((node != apex) && (node.get(Type.NS) != null)){
+                referral(ret, node);
+                return;
+            }
+            Node next = node.child(qname, offsets[i]);
+            if (next == null)
+                break;
+            node = next;
+        }
+        if (i < 0){
+            if ((node != apex) && (node.get(Type.NS) != null) && (qtype != Type.DS)){
+                referral(ret, node);
+                return;
+            }
+            answer(ret, node, null, qtype, depth);
+            return;
+        }
+        Node wild = node.child(WILDCARD, 0);
+        if (wild != null){
+            ret.setWildcard();
+            answer(ret, wild, Wire.copyName(qname, off), qtype, depth);
+            return;
+        }
+        negative(ret);
+        ret.setStatus(Lookup.Status.NXDOMAIN);
+    }
+
+    /* Ответ по найденному узлу; owner задан при синтезе по wildcard */
+    private void answer(Lookup ret, Node node, byte[] owner, int qtype, int depth){
+        if (qtype == Type.ANY){
+            for (int i = 0; i < node.setCount(); i++)
+                add(ret, node.setAt(i), owner);
+            if (node.setCount() > 0){
+                ret.setStatus(Lookup.Status.ANSWER);
+            }else{
+                negative(ret);
+                ret.setStatus(Lookup.Status.NODATA);
+            }
+            return;
+        }
+        RRset set = node.get(qtype);
+        if (set != null){
+            add(ret, set, owner);
+            additionals(ret, set);
+            ret.setStatus(Lookup.Status.ANSWER);
+            return;
+        }
+        RRset cname = node.get(Type.CNAME);
+        if ((cname != null) && (qtype != Type.CNAME)){
+            add(ret, cname, owner);
+            ret.setStatus(Lookup.Status.ANSWER);
+            byte[] target = cname.getRdataAt(0);
+            if ((depth < MAX_CHAIN) && Wire.isSubdomain(target, 0, origin, 0))
+                resolve(ret, target, 0, qtype, depth + 1);
+            return;
+        }
+        negative(ret);
+        ret.setStatus(Lookup.Status.NODATA);
+    }
+
+    private void add(Lookup ret, RRset set, byte[] owner){
+        if (owner == null){
+            set.toRecords(ret.answers);
+        }else{
+            set.toRecords(owner, ret.answers);
+        }
+    }
+
+    private void negative(Lookup ret){
+        RRset soa = apex.get(Type.SOA);
+        if (soa != null)
+            ret.negative(soa.getName(), cl, soa.getTtl(), soa.getRdataAt(0));
+    }
+
+    /* Делегирование: NS точки разреза и glue из зоны */
+    private void referral(Lookup ret, Node cut){
+        RRset ns = cut.get(Type.NS);
+        ns.toRecords(ret.authorities);
+        RRset ds = cut.get(Type.DS);
+        if (ds != null)
+            ds.toRecords(ret.authorities);
+        additionals(ret, ns);
+        ret.setStatus(Lookup.Status.REFERRAL);
+    }
+
+    /* Адреса для имен из NS, MX и SRV, если они лежат в зоне */
+    private void additionals(Lookup ret, RRset set){
+        int skip;
+        switch (set.getType()){
+            case Type.NS: skip = 0; break;
+            case Type.MX: skip = 2; break;
+            case Type.SRV: skip = 6; break;
+            default: return;
+        }
+        for (int i = 0; i < set.size(); i++){
+            Node node = findNode(set.getRdataAt(i), skip);
+            if (node == null)
+                continue;
+            RRset a = node.get(Type.A);
+            if (a != null)
+                a.toRecords(ret.additionals);
+            RRset aaaa = node.get(Type.AAAA);
+            if (aaaa != null)
+                aaaa.toRecords(ret.additionals);
+        }
+    }
+
+    /* ———————————————————— Обход —————————————————————— */
+
+    /*
+     * Все наборы записей зоны, включая делегирования и клей, обходом в
+     * глубину без сортировки. Память обхода ограничена глубиной дерева, а не
+     * размером зоны; зону нельзя менять во время обхода.
+     */
+    public Iterator<RRset> iterator(){
+        return new Walker(apex);
+    }
+
+    private static final class Walker implements Iterator<RRset> {
+
+        private final Node[] nodes = new Node[Wire.MAX_LABELS + 1];
+
+        /* Следующая ячейка детей для каждого уровня */
+        private final int[] slots = new int[Wire.MAX_LABELS + 1];
+
+        private int depth;
+
+        /* Следующий набор текущего узла */
+        private int set;
+
+        private Walker(Node apex){
+            nodes[0] = apex;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (depth >= 0){
+                Node node = nodes[depth];
+                if (set < node.setCount())
+                    return true;
+                Node child = null;
+                int slot = slots[depth];
+                while ((child == null) && (slot < node.childSlots()))
+                    child = node.childSlot(slot++);
+                slots[depth] = slot;
+                if (child != null){
+                    nodes[++depth] = child;
+                    slots[depth] = 0;
+                    set = 0;
+                }else{
+                    // наборы родителя уже пройдены
+                    nodes[depth--] = null;
+                    set = Integer.MAX_VALUE;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public RRset next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return nodes[depth].setAt(set++);
+        }
+    }
+}
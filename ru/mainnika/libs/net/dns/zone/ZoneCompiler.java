@@ -0,0 +1,182 @@
+package ru.mainnika.libs.net.dns.zone;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import ru.mainnika.libs.net.dns.RRset;
+import ru.mainnika.libs.net.dns.Wire;
+
+/**
+ * Компилятор зоны в двоичный образ для {@link ZoneImage}. Имена пишутся в
+ * каноническом порядке обходом дерева меток в глубину, за ними следует
+ * индекс смещений для двоичного поиска. Формат описан в {@link ZoneImage}.
+ *
+ * @author MainNika
+ */
+public final class ZoneCompiler {
+
+    private final Zone zone;
+
+    private OutputStream out;
+
+    private long pos;
+
+    private long[] offsets;
+
+    private long count;
+
+    private long records;
+
+    /* Ключ текущего узла: метки от вершины дерева в нижнем регистре */
+    private final byte[] key = new byte[Wire.MAX_NAME];
+
+    private byte[] entry = new byte[4096];
+
+    private ZoneCompiler(Zone zone){
+        this.zone = zone;
+        this.offsets = new long[1024];
+    }
+
+    /* Компилирует зону в файл, существующий файл перезаписывается */
+    public static void compile(Zone zone, Path file) throws IOException{
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        new ZoneCompiler(zone).write(tmp);
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void write(Path file) throws IOException{
+        byte[] origin = zone.getOrigin();
+        long index;
+        try (OutputStream stream = new BufferedOutputStream(Files.newOutputStream(file,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE), 1 << 16)){
+            out = stream;
+            pos = 0;
+            write(new byte[ZoneImage.HEADER], ZoneImage.HEADER);
+            write(origin, origin.length);
+
+            int keyLength = 0;
+            int[] labels = new int[Wire.MAX_LABELS];
+            int n = Wire.labelOffsets(origin, 0, labels);
+            for (int i = n - 1; i >= 0; i--){
+                int len = origin[labels[i]] & 0xff;
+                for (int k = 0; k <= len; k++)
+                    key[keyLength + k] = Wire.lower(origin[labels[i] + k]);
+                keyLength += len + 1;
+            }
+            walk(zone.getApex(), keyLength);
+
+            pad((int) ((8 - (pos & 7)) & 7));
+            index = pos;
+            byte[] slot = new byte[8];
+            for (long i = 0; i < count; i++){
+                put64(slot, 0, offsets[(int) i]);
+                write(slot, 8);
+            }
+            out.flush();
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(ZoneImage.HEADER);
+        header.put(ZoneImage.MAGIC);
+        header.putInt(ZoneImage.VERSION);
+        header.putShort((short) zone.getCl());
+        header.putShort((short) origin.length);
+        header.putLong(count);
+        header.putLong(index);
+        header.putLong(records);
+        header.putLong(pos);
+        header.flip();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)){
+            while (header.hasRemaining())
+                channel.write(header, header.position());
+            channel.force(true);
+        }
+    }
+
+    /* Обход в глубину с детьми в каноническом порядке */
+    private void walk(Node node, int keyLength) throws IOException{
+        entry(node, keyLength);
+        int slots = node.childSlots();
+        if (slots == 0)
+            return;
+        Node[] children = new Node[node.childCount()];
+        int n = 0;
+        for (int i = 0; i < slots; i++)
+            if (node.childSlot(i) != null)
+                children[n++] = node.childSlot(i);
+        Arrays.sort(children, 0, n, (a, b) -> Wire.compareLabel(a.label, 0, b.label, 0));
+        for (int i = 0; i < n; i++){
+            byte[] label = children[i].label;
+            int len = label[0] & 0xff;
+            key[keyLength] = (byte) len;
+            for (int k = 1; k <= len; k++)
+                key[keyLength + k] = Wire.lower(label[k]);
+            walk(children[i], keyLength + len + 1);
+        }
+    }
+
+    private void entry(Node node, int keyLength) throws IOException{
+        int size = 1 + keyLength + 2;
+        for (int i = 0; i < node.setCount(); i++){
+            RRset set = node.setAt(i);
+            size += 8;
+            for (int k = 0; k < set.size(); k++)
+                size += 2 + set.getRdataAt(k).length;
+        }
+        if (size > ZoneImage.SEGMENT)
+            throw new IOException("Name too large for image");
+        if (size > entry.length)
+            entry = new byte[Math.max(size, entry.length * 2)];
+
+        int p = 0;
+        entry[p++] = (byte) keyLength;
+        System.arraycopy(key, 0, entry, p, keyLength);
+        p += keyLength;
+        Wire.put16(entry, p, node.setCount());
+        p += 2;
+        for (int i = 0; i < node.setCount(); i++){
+            RRset set = node.setAt(i);
+            Wire.put16(entry, p, set.getType());
+            Wire.put32(entry, p + 2, set.getTtl());
+            Wire.put16(entry, p + 6, set.size());
+            p += 8;
+            for (int k = 0; k < set.size(); k++){
+                byte[] rdata = set.getRdataAt(k);
+                Wire.put16(entry, p, rdata.length);
+                System.arraycopy(rdata, 0, entry, p + 2, rdata.length);
+                p += 2 + rdata.length;
+            }
+            records += set.size();
+        }
+
+        /* Запись имени не должна пересекать границу отображаемого сегмента */
+        if ((pos >>> ZoneImage.SHIFT) != ((pos + size - 1) >>> ZoneImage.SHIFT))
+            pad((int) (ZoneImage.SEGMENT - (pos & (ZoneImage.SEGMENT - 1))));
+        if (count == offsets.length)
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+        offsets[(int) count++] = pos;
+        write(entry, size);
+    }
+
+    private void write(byte[] data, int length) throws IOException{
+        out.write(data, 0, length);
+        pos += length;
+    }
+
+    private void pad(int length) throws IOException{
+        for (int i = 0; i < length; i++)
+            out.write(0);
+        pos += length;
+    }
+
+    private static void put64(byte[] b, int off, long v){
+        Wire.put32(b, off, v >>> 32);
+        Wire.put32(b, off + 4, v);
+    }
+}
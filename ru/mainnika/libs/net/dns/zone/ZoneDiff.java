@@ -0,0 +1,74 @@
+package ru.mainnika.libs.net.dns.zone;
+
+import java.util.List;
+import ru.mainnika.libs.net.dns.ResourceRecord;
+import ru.mainnika.libs.net.dns.Wire;
+
+/**
+ * Разница между двумя версиями зоны для IXFR (RFC 1995): SOA прежней версии,
+ * удаленные записи, SOA новой версии и добавленные записи. Списки записей
+ * SOA не содержат.
+ *
+ * @author MainNika
+ */
+public final class ZoneDiff {
+
+    private final ResourceRecord from;
+
+    private final ResourceRecord to;
+
+    private final List<ResourceRecord> deleted;
+
+    private final List<ResourceRecord> added;
+
+    public ZoneDiff(ResourceRecord from, ResourceRecord to, List<ResourceRecord> deleted, List<ResourceRecord> added){
+        this.from = from;
+        this.to = to;
+        this.deleted = List.copyOf(deleted);
+        this.added = List.copyOf(added);
+    }
+
+    public ResourceRecord getFrom() {
+        return from;
+    }
+
+    public ResourceRecord getTo() {
+        return to;
+    }
+
+    public long getFromSerial() {
+        return serial(from);
+    }
+
+    public long getToSerial() {
+        return serial(to);
+    }
+
+    public List<ResourceRecord> getDeleted() {
+        return deleted;
+    }
+
+    public List<ResourceRecord> getAdded() {
+        return added;
+    }
+
+    /* Серийный номер из RDATA SOA */
+    public static long serial(ResourceRecord soa){
+        byte[] rdata = soa.getRdata();
+        int off = Wire.nameLength(rdata, 0);
+        off += Wire.nameLength(rdata, off);
+        return Wire.u32(rdata, off);
+    }
+
+    /* Сравнение серийных номеров по RFC 1982: отрицательное, если a раньше b */
+    public static int compareSerial(long a, long b){
+        int d = (int) (a - b);
+        return (d == 0) ? 0 : ((d < 0) ? -1 : 1);
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(getFromSerial()) + " -> " + Long.toString(getToSerial())
+                + " -" + Integer.toString(deleted.size()) + " +" + Integer.toString(added.size());
+    }
+}
@@ -0,0 +1,324 @@
+package ru.mainnika.libs.net.dns.zone;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import ru.mainnika.libs.net.dns.DnsException;
+import ru.mainnika.libs.net.dns.RRset;
+import ru.mainnika.libs.net.dns.ResourceRecord;
+import ru.mainnika.libs.net.dns.Wire;
+
+/**
+ * Правка зоны с копированием пути. Узлы от вершины до изменяемого имени
+ * копируются при первом касании, остальное дерево разделяется с исходной
+ * версией, так что цена правки пропорциональна числу изменений и глубине
+ * имен, а не размеру зоны. Исходная версия не меняется и может читаться
+ * параллельно; результат правки - новая версия из {@link #commit()}.
+ *
+ * Правка запоминает удаленные и добавленные записи для журнала IXFR.
+ * Противоположные изменения одной записи взаимно сокращаются: удаление
+ * записи, добавленной этой же правкой, убирает ее из добавленных, а
+ * повторное добавление удаленной - из удаленных.
+ * Экземпляр не потокобезопасен.
+ *
+ * @author MainNika
+ */
+public final class ZoneEditor {
+
+    private final Zone base;
+
+    private final byte[] origin;
+
+    private final int originLabels;
+
+    private final Node.Edit edit = new Node.Edit();
+
+    private Node apex;
+
+    private long records;
+
+    /* Журнал правки в порядке изменений; ключ - запись с точностью до регистра имени */
+    private final LinkedHashMap<Key, ResourceRecord> deleted = new LinkedHashMap<>();
+
+    private final LinkedHashMap<Key, ResourceRecord> added = new LinkedHashMap<>();
+
+    private boolean committed;
+
+    ZoneEditor(Zone base){
+        this.base = base;
+        this.origin = base.getOrigin();
+        this.originLabels = base.getOriginLabels();
+        this.apex = base.getApex();
+        this.records = base.getRecordCount();
+    }
+
+    public Zone getBase() {
+        return base;
+    }
+
+    public byte[] getOrigin() {
+        return origin.clone();
+    }
+
+    /* ———————————————————— Чтение текущего состояния —————————————————————— */
+
+    /* Набор записей по точному имени с учетом уже сделанных изменений */
+    public RRset find(byte[] name, int type){
+        Node node = node(name);
+        return (node == null) ? null : node.get(type);
+    }
+
+    /* Есть ли у имени хотя бы один набор (RFC 2136, раздел 2.4.4) */
+    public boolean inUse(byte[] name){
+        Node node = node(name);
+        return (node != null) && (node.setCount() > 0);
+    }
+
+    /* Все наборы имени */
+    public List<RRset> sets(byte[] name){
+        Node node = node(name);
+        ArrayList<RRset> ret = new ArrayList<>();
+        if (node != null)
+            for (int i = 0; i < node.setCount(); i++)
+                ret.add(node.setAt(i));
+        return ret;
+    }
+
+    private Node node(byte[] name){
+        if (!Wire.isSubdomain(name, 0, origin, 0))
+            return null;
+        int[] offsets = new int[Wire.MAX_LABELS];
+        int count = Wire.labelOffsets(name, 0, offsets) - originLabels;
+        Node node = apex;
+        for (int i = count - 1; (i >= 0) && (node != null); i--)
+            node = node.child(name, offsets[i]);
+        return node;
+    }
+
+    /* ———————————————————— Изменения —————————————————————— */
+
+    /* Добавляет запись; TTL набора заменяется TTL записи. true, если зона изменилась */
+    public boolean add(ResourceRecord rr) throws DnsException{
+        check();
+        byte[] name = rr.getName();
+        if (!Wire.isSubdomain(name, 0, origin, 0))
+            throw new DnsException("Out of zone: " + Wire.toString(name));
+        if (rr.getCl() != base.getCl())
+            throw new DnsException("Wrong class for " + Wire.toString(name));
+        Node[] path = path(name, true);
+        Node node = path[path.length - 1];
+        RRset old = node.get(rr.getType());
+        if ((old != null) && (old.indexOf(rr.getRdata()) >= 0) && (old.getTtl() == rr.getTtl()))
+            return false;
+        RRset set;
+        if (old == null){
+            set = new RRset(name, rr.getType(), rr.getCl(), rr.getTtl());
+            edit.own(set);
+        }else if (!edit.owns(old)){
+            set = old.copy();
+            edit.own(set);
+        }else{
+            set = old;
+        }
+        if ((old != null) && (old.getTtl() != rr.getTtl())){
+            // смена TTL набора в журнале выглядит как замена всех его записей
+            for (int i = 0; i < old.size(); i++){
+                removed(new ResourceRecord(old.getName(), old.getType(), old.getCl(), old.getTtl(), old.getRdataAt(i)));
+                if (!Arrays.equals(old.getRdataAt(i), rr.getRdata()))
+                    added(new ResourceRecord(old.getName(), old.getType(), old.getCl(), rr.getTtl(), old.getRdataAt(i)));
+            }
+        }
+        if (set.add(rr.getRdata(), rr.getTtl()))
+            records++;
+        set.setTtl(rr.getTtl());
+        node.put(set);
+        added(rr);
+        return true;
+    }
+
+    /* Удаляет одну запись набора; true, если она была */
+    public boolean delete(byte[] name, int type, byte[] rdata){
+        check();
+        RRset old = find(name, type);
+        if ((old == null) || (old.indexOf(rdata) < 0))
+            return false;
+        Node[] path = path(name, false);
+        Node node = path[path.length - 1];
+        if (old.size() == 1){
+            node.remove(type);
+        }else{
+            RRset set = edit.owns(old) ? old : old.copy();
+            edit.own(set);
+            set.remove(rdata);
+            node.put(set);
+        }
+        records--;
+        removed(new ResourceRecord(old.getName(), type, old.getCl(), old.getTtl(), rdata));
+        prune(name, path);
+        return true;
+    }
+
+    /* Удаляет набор целиком; возвращает число удаленных записей */
+    public int deleteSet(byte[] name, int type){
+        check();
+        RRset old = find(name, type);
+        if (old == null)
+            return 0;
+        Node[] path = path(name, false);
+        path[path.length - 1].remove(type);
+        journal(old);
+        prune(name, path);
+        return old.size();
+    }
+
+    /* Удаляет все наборы имени; дети имени остаются */
+    public int deleteName(byte[] name){
+        check();
+        Node node = node(name);
+        if ((node == null) || (node.setCount() == 0))
+            return 0;
+        Node[] path = path(name, false);
+        node = path[path.length - 1];
+        int ret = 0;
+        while (node.setCount() > 0){
+            RRset old = node.setAt(0);
+            node.remove(old.getType());
+            journal(old);
+            ret += old.size();
+        }
+        prune(name, path);
+        return ret;
+    }
+
+    private void journal(RRset old){
+        records -= old.size();
+        for (int i = 0; i < old.size(); i++)
+            removed(new ResourceRecord(old.getName(), old.getType(), old.getCl(), old.getTtl(), old.getRdataAt(i)));
+    }
+
+    /* Запись удалена: если ее добавила эта же правка, в журнале не остается ни того, ни другого */
+    private void removed(ResourceRecord rr){
+        Key key = new Key(rr);
+        if (added.remove(key) == null)
+            deleted.put(key, rr);
+    }
+
+    /* Запись добавлена: возврат удаленной этой же правкой записи с тем же TTL сокращается */
+    private void added(ResourceRecord rr){
+        Key key = new Key(rr);
+        if (deleted.remove(key) == null)
+            added.put(key, rr);
+    }
+
+    /* Удаленные записи в порядке удаления */
+    public List<ResourceRecord> getDeleted() {
+        return new ArrayList<>(deleted.values());
+    }
+
+    /* Добавленные записи в порядке добавления */
+    public List<ResourceRecord> getAdded() {
+        return new ArrayList<>(added.values());
+    }
+
+    public boolean isChanged() {
+        return !deleted.isEmpty() || !added.isEmpty();
+    }
+
+    /* Новая версия зоны; после этого правка закрыта */
+    public Zone commit(){
+        check();
+        committed = true;
+        return isChanged() ? new Zone(base, apex, records) : base;
+    }
+
+    private void check(){
+        if (committed)
+            throw new IllegalStateException("Edit is already committed");
+    }
+
+    /*
+     * Узлы от вершины до имени, скопированные для этой правки. Недостающие
+     * узлы создаются при create, иначе имя должно существовать.
+     */
+    private Node[] path(byte[] name, boolean create){
+        int[] offsets = new int[Wire.MAX_LABELS];
+        int count = Wire.labelOffsets(name, 0, offsets) - originLabels;
+        Node[] ret = new Node[count + 1];
+        apex = own(apex);
+        ret[0] = apex;
+        Node node = apex;
+        for (int i = count - 1; i >= 0; i--){
+            Node next = node.child(name, offsets[i]);
+            if (next == null){
+                if (!create)
+                    throw new IllegalStateException("No node for " + Wire.toString(name));
+                next = new Node(Arrays.copyOfRange(name, offsets[i], offsets[i] + (name[offsets[i]] & 0xff) + 1));
+                edit.own(next);
+                node.putChild(next, edit);
+            }else if (!edit.owns(next)){
+                next = own(next);
+                node.putChild(next, edit);
+            }
+            node = next;
+            ret[count - i] = node;
+        }
+        return ret;
+    }
+
+    private Node own(Node node){
+        if (edit.owns(node))
+            return node;
+        Node ret = node.copy();
+        edit.own(ret);
+        return ret;
+    }
+
+    /* Убирает опустевшие узлы снизу вверх, вершина остается */
+    private void prune(byte[] name, Node[] path){
+        int[] offsets = new int[Wire.MAX_LABELS];
+        int count = Wire.labelOffsets(name, 0, offsets) - originLabels;
+        for (int depth = path.length - 1; (depth > 0) && path[depth].isEmpty(); depth--)
+            path[depth - 1].removeChild(name, offsets[count - depth], edit);
+    }
+
+    /* Запись журнала: имя без учета регистра, тип, класс, TTL и RDATA */
+    private static final class Key {
+
+        private final byte[] name;
+
+        private final int type;
+
+        private final int cl;
+
+        private final long ttl;
+
+        private final byte[] rdata;
+
+        private final int hash;
+
+        private Key(ResourceRecord rr){
+            this.name = Wire.copyName(rr.getName(), 0);
+            Wire.toLowerCase(name, 0);
+            this.type = rr.getType();
+            this.cl = rr.getCl();
+            this.ttl = rr.getTtl();
+            this.rdata = rr.getRdata();
+            this.hash = ((Arrays.hashCode(name) * 31 + type) * 31 + Long.hashCode(ttl)) * 31 + Arrays.hashCode(rdata);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key k = (Key) o;
+            return (type == k.type) && (cl == k.cl) && (ttl == k.ttl)
+                    && Arrays.equals(name, k.name) && Arrays.equals(rdata, k.rdata);
+        }
+    }
+}
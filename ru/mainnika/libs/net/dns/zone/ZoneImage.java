@@ -0,0 +1,523 @@
+package ru.mainnika.libs.net.dns.zone;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import ru.mainnika.libs.net.dns.DnsException;
+import ru.mainnika.libs.net.dns.ResourceRecord;
+import ru.mainnika.libs.net.dns.Type;
+import ru.mainnika.libs.net.dns.Wire;
+
+/**
+ * Скомпилированная зона, отображенная в память только для чтения. Поиск
+ * выполняется прямо по страницам файла: куча не растет с размером зоны, а
+ * страницы разделяются между процессами через page cache.
+ *
+ * Формат образа (все числа big-endian):
+ * заголовок 64 байта (магия, версия, класс, длина origin, число имен,
+ * смещение индекса, число записей, размер файла), имя origin, записи имен
+ * в каноническом порядке, индекс из 8-байтовых смещений записей имен.
+ * Запись имени: байт длины ключа, ключ (метки от корня в нижнем регистре),
+ * число наборов, для каждого набора тип, TTL, число RDATA и RDATA с
+ * 2-байтовой длиной. Записи имен не пересекают границы сегментов по 1 ГБ,
+ * поэтому каждая читается из одного отображения.
+ *
+ * @author MainNika
+ */
+public final class ZoneImage implements ZoneSource {
+
+    static final byte[] MAGIC = { 'D', 'N', 'S', 'Z', 'I', 'M', 'G', 0 };
+
+    static final int VERSION = 1;
+
+    static final int HEADER = 64;
+
+    static final int SHIFT = 30;
+
+    static final long SEGMENT = 1L << SHIFT;
+
+    private static final int MAX_CHAIN = 8;
+
+    private final MappedByteBuffer[] segments;
+
+    private final byte[] origin;
+
+    private final int originLabels;
+
+    private final int cl;
+
+    private final long count;
+
+    private final long index;
+
+    private final long records;
+
+    private ZoneImage(MappedByteBuffer[] segments, long size) throws IOException, DnsException{
+        this.segments = segments;
+        ByteBuffer head = segments[0];
+        for (int i = 0; i < MAGIC.length; i++)
+            if (head.get(i) != MAGIC[i])
+                throw new IOException("Not a zone image");
+        if (head.getInt(8) != VERSION)
+            throw new IOException("Unsupported zone image version " + Integer.toString(head.getInt(8)));
+        if (head.getLong(40) != size)
+            throw new IOException("Truncated zone image");
+        cl = head.getShort(12) & 0xffff;
+        int length = head.getShort(14) & 0xffff;
+        if ((length == 0) || (length > Wire.MAX_NAME) || (HEADER + length > head.limit()))
+            throw new DnsException(DnsException.Kind.MALFORMED, "Corrupt zone image: bad origin");
+        origin = new byte[length];
+        for (int i = 0; i < origin.length; i++)
+            origin[i] = head.get(HEADER + i);
+        if (!labels(origin))
+            throw new DnsException(DnsException.Kind.MALFORMED, "Corrupt zone image: bad origin");
+        originLabels = Wire.labelCount(origin, 0);
+        count = head.getLong(16);
+        index = head.getLong(24);
+        records = head.getLong(32);
+        check(HEADER + length, size);
+    }
+
+    /* Отображает образ в память; файл после этого можно закрыть */
+    public static ZoneImage open(Path file) throws IOException, DnsException{
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)){
+            long size = channel.size();
+            if (size < HEADER)
+                throw new IOException("Not a zone image");
+            int n = (int) ((size + SEGMENT - 1) >>> SHIFT);
+            MappedByteBuffer[] segments = new MappedByteBuffer[n];
+            for (int i = 0; i < n; i++){
+                long start = (long) i << SHIFT;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT, size - start));
+            }
+            return new ZoneImage(segments, size);
+        }
+    }
+
+    /*
+     * Проверка смещений из образа до первого поиска: индекс занимает хвост
+     * файла, записи имен идут по возрастанию между origin и индексом и
+     * целиком лежат в своем сегменте. Поиск дальше читает образ без проверок,
+     * поэтому битый файл отсекается здесь, а не исключением посреди запроса.
+     * Обход читает каждую страницу образа один раз.
+     */
+    private void check(long start, long size) throws DnsException{
+        if ((index < start) || (index > size) || ((index & 7) != 0) || (count < 0)
+                || (((size - index) & 7) != 0) || ((size - index) >>> 3 != count))
+            throw new DnsException(DnsException.Kind.MALFORMED, "Corrupt zone image: bad index");
+        long prev = start - 1;
+        for (long i = 0; i < count; i++){
+            long e = entry(i);
+            long next = (i + 1 < count) ? entry(i + 1) : index;
+            if ((e <= prev) || (next <= e) || (next > index) || !fits(e, Math.min(next, limit(e))))
+                throw new DnsException(DnsException.Kind.MALFORMED, "Corrupt zone image: bad entry " + Long.toString(i));
+            prev = e;
+        }
+    }
+
+    /* Конец сегмента, в котором лежит смещение */
+    private long limit(long off){
+        return (off & ~(SEGMENT - 1)) + segment(off).limit();
+    }
+
+    /* Запись имени целиком лежит до end: ключ из меток, наборы и их RDATA */
+    private boolean fits(long entry, long end){
+        ByteBuffer buf = segment(entry);
+        int last = (int) (end - (entry & ~(SEGMENT - 1)));
+        int p = local(entry);
+        int length = buf.get(p) & 0xff;
+        p++;
+        if (p + length + 2 > last)
+            return false;
+        for (int k = p; k < p + length; k += (buf.get(k) & 0xff) + 1)
+            if (((buf.get(k) & 0xff) > 63) || (k + (buf.get(k) & 0xff) + 1 > p + length))
+                return false;
+        p += length;
+        int sets = buf.getShort(p) & 0xffff;
+        p += 2;
+        for (int i = 0; i < sets; i++){
+            if (p + 8 > last)
+                return false;
+            int n = buf.getShort(p + 6) & 0xffff;
+            p += 8;
+            for (int k = 0; k < n; k++){
+                if (p + 2 > last)
+                    return false;
+                p += 2 + (buf.getShort(p) & 0xffff);
+                if (p > last)
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /* Несжатое имя из меток длиной до 63, заканчивающееся корнем ровно в конце массива */
+    private static boolean labels(byte[] name){
+        int p = 0;
+        while (p < name.length){
+            int len = name[p] & 0xff;
+            if (len == 0)
+                return p + 1 == name.length;
+            if (len > 63)
+                return false;
+            p += len + 1;
+        }
+        return false;
+    }
+
+    /* Подгрузить страницы образа заранее, чтобы первые запросы не ждали диск */
+    public ZoneImage preload(){
+        for (MappedByteBuffer segment : segments)
+            segment.load();
+        return this;
+    }
+
+    @Override
+    public byte[] getOrigin() {
+        return origin.clone();
+    }
+
+    public int getCl() {
+        return cl;
+    }
+
+    public long getNameCount() {
+        return count;
+    }
+
+    public long getRecordCount() {
+        return records;
+    }
+
+    /* ———————————————————— Доступ к страницам —————————————————————— */
+
+    private ByteBuffer segment(long off){
+        return segments[(int) (off >>> SHIFT)];
+    }
+
+    private static int local(long off){
+        return (int) (off & (SEGMENT - 1));
+    }
+
+    /* Смещение записи имени с номером i */
+    private long entry(long i){
+        long off = index + i * 8;
+        return segment(off).getLong(local(off));
+    }
+
+    /*
+     * Сравнение ключа key[0..length) с ключом записи имени в каноническом
+     * порядке: метки по очереди от корня, байты без знака.
+     */
+    private int compare(byte[] key, int length, long entry){
+        ByteBuffer buf = segment(entry);
+        int p = local(entry);
+        int elength = buf.get(p) & 0xff;
+        p++;
+        int end = p + elength;
+        int k = 0;
+        while ((k < length) && (p < end)){
+            int klen = key[k] & 0xff;
+            int elen = buf.get(p) & 0xff;
+            int len = Math.min(klen, elen);
+            for (int i = 1; i <= len; i++){
+                int ret = (key[k + i] & 0xff) - (buf.get(p + i) & 0xff);
+                if (ret != 0)
+                    return ret;
+            }
+            if (klen != elen)
+                return klen - elen;
+            k += klen + 1;
+            p += elen + 1;
+        }
+        return (k < length) ? 1 : ((p < end) ? -1 : 0);
+    }
+
+    /* Двоичный поиск записи имени по ключу; -1 если имени нет */
+    private long find(byte[] key, int length){
+        long lo = 0;
+        long hi = count - 1;
+        while (lo <= hi){
+            long mid = (lo + hi) >>> 1;
+            long e = entry(mid);
+            int ret = compare(key, length, e);
+            if (ret == 0)
+                return e;
+            if (ret > 0){
+                lo = mid + 1;
+            }else{
+                hi = mid - 1;
+            }
+        }
+        return -1;
+    }
+
+    /* Смещение набора нужного типа внутри записи имени; -1 если набора нет */
+    private long set(long entry, int type){
+        ByteBuffer buf = segment(entry);
+        int p = local(entry);
+        p += 1 + (buf.get(p) & 0xff);
+        int sets = buf.getShort(p) & 0xffff;
+        p += 2;
+        for (int i = 0; i < sets; i++){
+            if ((buf.getShort(p) & 0xffff) == type)
+                return (entry & ~(SEGMENT - 1)) | p;
+            int n = buf.getShort(p + 6) & 0xffff;
+            p += 8;
+            for (int k = 0; k < n; k++)
+                p += 2 + (buf.getShort(p) & 0xffff);
+        }
+        return -1;
+    }
+
+    private int setCount(long entry){
+        ByteBuffer buf = segment(entry);
+        int p = local(entry);
+        return buf.getShort(p + 1 + (buf.get(p) & 0xff)) & 0xffff;
+    }
+
+    /* Имя владельца, восстановленное из ключа записи */
+    private byte[] owner(long entry){
+        ByteBuffer buf = segment(entry);
+        int p = local(entry);
+        int length = buf.get(p) & 0xff;
+        byte[] ret = new byte[length + 1];
+        int k = p + 1;
+        int end = k + length;
+        int w = length;
+        while (k < end){
+            int len = buf.get(k) & 0xff;
+            w -= len + 1;
+            for (int i = 0; i <= len; i++)
+                ret[w + i] = buf.get(k + i);
+            k += len + 1;
+        }
+        return ret;
+    }
+
+    /* Записи набора по смещению set; тип и TTL берутся из заголовка набора */
+    private void records(long set, byte[] owner, ArrayList<ResourceRecord> buffer){
+        ByteBuffer buf = segment(set);
+        int p = local(set);
+        int type = buf.getShort(p) & 0xffff;
+        long ttl = buf.getInt(p + 2) & 0xffffffffL;
+        int n = buf.getShort(p + 6) & 0xffff;
+        p += 8;
+        for (int i = 0; i < n; i++){
+            int len = buf.getShort(p) & 0xffff;
+            byte[] rdata = new byte[len];
+            for (int k = 0; k < len; k++)
+                rdata[k] = buf.get(p + 2 + k);
+            buffer.add(new ResourceRecord(owner, type, cl, ttl, rdata));
+            p += 2 + len;
+        }
+    }
+
+    private void allRecords(long entry, byte[] owner, ArrayList<ResourceRecord> buffer){
+        ByteBuffer buf = segment(entry);
+        int p = local(entry);
+        p += 1 + (buf.get(p) & 0xff);
+        int sets = buf.getShort(p) & 0xffff;
+        p += 2;
+        for (int i = 0; i < sets; i++){
+            records((entry & ~(SEGMENT - 1)) | p, owner, buffer);
+            int n = buf.getShort(p + 6) & 0xffff;
+            p += 8;
+            for (int k = 0; k < n; k++)
+                p += 2 + (buf.getShort(p) & 0xffff);
+        }
+    }
+
+    /* ———————————————————— Поиск —————————————————————— */
+
+    /* Ключ имени: метки от корня в нижнем регистре, ends[i] - конец i-й метки */
+    private static int key(byte[] name, int off, byte[] key, int[] ends){
+        int[] labels = new int[Wire.MAX_LABELS];
+        int n = Wire.labelOffsets(name, off, labels);
+        int length = 0;
+        for (int i = n - 1; i >= 0; i--){
+            int len = name[labels[i]] & 0xff;
+            key[length] = (byte) len;
+            for (int k = 1; k <= len; k++)
+                key[length + k] = Wire.lower(name[labels[i] + k]);
+            length += len + 1;
+            ends[n - 1 - i] = length;
+        }
+        return n;
+    }
+
+    @Override
+    public Lookup lookup(byte[] qname, int off, int qtype){
+        Lookup ret = new Lookup();
+        if ((count == 0) || !Wire.isSubdomain(qname, off, origin, 0))
+            return ret.setStatus(Lookup.Status.NOTAUTH);
+        resolve(ret, qname, off, qtype, 0);
+        return ret;
+    }
+
+    public Lookup lookup(byte[] qname, int qtype){
+        return lookup(qname, 0, qtype);
+    }
+
+    private void resolve(Lookup ret, byte[] qname, int off, int qtype, int depth){
+        byte[] key = new byte[Wire.MAX_NAME + 2];
+        int[] ends = new int[Wire.MAX_LABELS];
+        int n = key(qname, off, key, ends);
+        long apex = find(key, (originLabels == 0) ? 0 : ends[originLabels - 1]);
+        if (apex < 0){
+            ret.setStatus(Lookup.Status.NOTAUTH);
+            return;
+        }
+        long node = apex;
+        int level = originLabels;
+        for (; level < n; level++){
+            if ((node != apex) && (set(node, Type.NS) >= 0)){
+                referral(ret, node);
+                return;
+            }
+            long next = find(key, ends[level]);
+            if (next < 0)
+                break;
+            node = next;
+        }
+        if (level == n){
+            if ((node != apex) && (set(node, Type.NS) >= 0) && (qtype != Type.DS)){
+                referral(ret, node);
+                return;
+            }
+            answer(ret, node, null, qtype, depth);
+            return;
+        }
+        int length = (level == 0) ? 0 : ends[level - 1];
+        key[length] = 1;
+        key[length + 1] = '*';
+        long wild = find(key, length + 2);
+        if (wild >= 0){
+            ret.setWildcard();
+            answer(ret, wild, Wire.copyName(qname, off), qtype, depth);
+            return;
+        }
+        negative(ret, apex);
+        ret.setStatus(Lookup.Status.NXDOMAIN);
+    }
+
+    private void answer(Lookup ret, long node, byte[] owner, int qtype, int depth){
+        byte[] name = (owner == null) ? owner(node) : owner;
+        if (qtype == Type.ANY){
+            if (setCount(node) > 0){
+                allRecords(node, name, ret.answers);
+                ret.setStatus(Lookup.Status.ANSWER);
+            }else{
+                negative(ret, -1);
+                ret.setStatus(Lookup.Status.NODATA);
+            }
+            return;
+        }
+        long set = set(node, qtype);
+        if (set >= 0){
+            int from = ret.answers.size();
+            records(set, name, ret.answers);
+            additionals(ret, qtype, from);
+            ret.setStatus(Lookup.Status.ANSWER);
+            return;
+        }
+        long cname = set(node, Type.CNAME);
+        if ((cname >= 0) && (qtype != Type.CNAME)){
+            int from = ret.answers.size();
+            records(cname, name, ret.answers);
+            ret.setStatus(Lookup.Status.ANSWER);
+            byte[] target = ret.answers.get(from).getRdata();
+            if ((depth < MAX_CHAIN) && Wire.isSubdomain(target, 0, origin, 0))
+                resolve(ret, target, 0, qtype, depth + 1);
+            return;
+        }
+        negative(ret, -1);
+        ret.setStatus(Lookup.Status.NODATA);
+    }
+
+    private void negative(Lookup ret, long apex){
+        if (apex < 0){
+            byte[] key = new byte[Wire.MAX_NAME];
+            int[] ends = new int[Wire.MAX_LABELS];
+            key(origin, 0, key, ends);
+            apex = find(key, (originLabels == 0) ? 0 : ends[originLabels - 1]);
+        }
+        long soa = set(apex, Type.SOA);
+        if (soa < 0)
+            return;
+        ArrayList<ResourceRecord> buffer = new ArrayList<>(1);
+        records(soa, origin, buffer);
+        ResourceRecord rr = buffer.get(0);
+        ret.negative(rr.getName(), cl, rr.getTtl(), rr.getRdata());
+    }
+
+    private void referral(Lookup ret, long cut){
+        byte[] name = owner(cut);
+        int from = ret.authorities.size();
+        records(set(cut, Type.NS), name, ret.authorities);
+        long ds = set(cut, Type.DS);
+        if (ds >= 0)
+            records(ds, name, ret.authorities);
+        for (int i = from; i < ret.authorities.size(); i++)
+            if (ret.authorities.get(i).getType() == Type.NS)
+                glue(ret, ret.authorities.get(i).getRdata(), 0);
+        ret.setStatus(Lookup.Status.REFERRAL);
+    }
+
+    private void additionals(Lookup ret, int type, int from){
+        int skip;
+        switch (type){
+            case Type.NS: skip = 0; break;
+            case Type.MX: skip = 2; break;
+            case Type.SRV: skip = 6; break;
+            default: return;
+        }
+        int to = ret.answers.size();
+        for (int i = from; i < to; i++)
+            glue(ret, ret.answers.get(i).getRdata(), skip);
+    }
+
+    /* Адреса имени из зоны в дополнительную секцию, без учета делегирований */
+    private void glue(Lookup ret, byte[] name, int off){
+        if (!Wire.isSubdomain(name, off, origin, 0))
+            return;
+        byte[] key = new byte[Wire.MAX_NAME];
+        int[] ends = new int[Wire.MAX_LABELS];
+        int n = key(name, off, key, ends);
+        long node = find(key, (n == 0) ? 0 : ends[n - 1]);
+        if (node < 0)
+            return;
+        byte[] owner = Wire.copyName(name, off);
+        long a = set(node, Type.A);
+        if (a >= 0)
+            records(a, owner, ret.additionals);
+        long aaaa = set(node, Type.AAAA);
+        if (aaaa >= 0)
+            records(aaaa, owner, ret.additionals);
+    }
+
+    /* Проверка целостности: индекс отсортирован канонически */
+    public void verify() throws DnsException{
+        byte[] prev = null;
+        for (long i = 0; i < count; i++){
+            long e = entry(i);
+            byte[] name = owner(e);
+            if ((prev != null) && (Wire.compareCanonical(prev, name) >= 0))
+                throw new DnsException("Image index out of order at " + Wire.toString(name));
+            prev = name;
+        }
+        if ((count > 0) && !Arrays.equals(owner(entry(0)), lowerCase(origin)))
+            throw new DnsException("Image does not start at origin");
+    }
+
+    private static byte[] lowerCase(byte[] name){
+        byte[] ret = name.clone();
+        Wire.toLowerCase(ret, 0);
+        return ret;
+    }
+}
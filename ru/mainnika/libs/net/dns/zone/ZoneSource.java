@@ -0,0 +1,15 @@
+package ru.mainnika.libs.net.dns.zone;
+
+/**
+ * Источник авторитетных ответов: зона в памяти или скомпилированный образ.
+ *
+ * @author MainNika
+ */
+public interface ZoneSource {
+
+    /* Имя вершины зоны в байтовом виде */
+    public byte[] getOrigin();
+
+    /* Поиск по несжатому имени qname[off] */
+    public Lookup lookup(byte[] qname, int off, int qtype);
+}
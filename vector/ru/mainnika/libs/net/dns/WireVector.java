@@ -0,0 +1,65 @@
+package ru.mainnika.libs.net.dns;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Векторные варианты операций {@link Wire} над байтами имени на
+ * jdk.incubator.vector: по 16 или 32 байта за шаг, хвост скалярный.
+ * Хэши остаются скалярными: расширение байтов до int на JDK 17 не
+ * компилируется в векторные инструкции и только замедляет их.
+ * Лежит в отдельном каталоге исходников и собирается отдельно:
+ * javac --add-modules jdk.incubator.vector -cp &lt;основные классы&gt;.
+ * Wire загружает класс по имени, только если модуль добавлен при запуске
+ * (--add-modules jdk.incubator.vector); без модуля или без этого класса
+ * Wire работает скалярно.
+ * Байты длины меток не больше 63 и не попадают в диапазон 'A'..'Z',
+ * поэтому имя обрабатывается целиком, без разбора на метки.
+ *
+ * @author MainNika
+ */
+final class WireVector implements WireKernel {
+
+    private static final VectorSpecies<Byte> BYTES = (ByteVector.SPECIES_PREFERRED.vectorBitSize() >= 256)
+            ? ByteVector.SPECIES_256 : ByteVector.SPECIES_128;
+
+    WireVector(){
+    }
+
+    @Override
+    public int width(){
+        return BYTES.length();
+    }
+
+    private static ByteVector lower(ByteVector v){
+        VectorMask<Byte> upper = v.compare(VectorOperators.GE, (byte) 'A').and(v.compare(VectorOperators.LE, (byte) 'Z'));
+        return v.blend(v.or((byte) 32), upper);
+    }
+
+    @Override
+    public void toLowerCase(byte[] b, int from, int to){
+        int i = from;
+        for (int bound = from + BYTES.loopBound(to - from); i < bound; i += BYTES.length())
+            lower(ByteVector.fromArray(BYTES, b, i)).intoArray(b, i);
+        for (; i < to; i++)
+            b[i] = Wire.lower(b[i]);
+    }
+
+    @Override
+    public int mismatch(byte[] a, int aOff, byte[] b, int bOff, int len){
+        int i = 0;
+        for (int bound = BYTES.loopBound(len); i < bound; i += BYTES.length()){
+            ByteVector va = lower(ByteVector.fromArray(BYTES, a, aOff + i));
+            ByteVector vb = lower(ByteVector.fromArray(BYTES, b, bOff + i));
+            VectorMask<Byte> ne = va.compare(VectorOperators.NE, vb);
+            if (ne.anyTrue())
+                return i + ne.firstTrue();
+        }
+        for (; i < len; i++)
+            if (Wire.lower(a[aOff + i]) != Wire.lower(b[bOff + i]))
+                return i;
+        return -1;
+    }
+}